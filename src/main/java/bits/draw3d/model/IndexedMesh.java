@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.model;
+
+import java.util.*;
+
+import bits.draw3d.util.FloatList;
+import bits.draw3d.util.IntList;
+import bits.math3d.*;
+
+
+/**
+ * Compact, indexed triangle mesh. Vertex attributes are held in flat arrays,
+ * one array per attribute, and each group holds an index buffer with three
+ * indices per triangle. Vertices are shared among all groups.
+ * <p>
+ * Compared to a {@link TriModel}, which holds several objects per vertex and
+ * often duplicates vertices for every triangle that uses them, an indexed mesh
+ * holds each distinct vertex once and allocates nothing per vertex.
+ * <p>
+ * Attributes are either present for all vertices or absent. When converting
+ * a TriModel in which only some vertices have an attribute, the attribute is
+ * zero for the rest.
+ *
+ * @author decamp
+ */
+public class IndexedMesh {
+
+    public String mName = "";
+
+    /** Number of vertices. */
+    public int mVertCount;
+    /** Three floats per vertex. */
+    public float[] mPositions;
+    /** Three floats per vertex, or {@code null}. */
+    public float[] mNormals;
+    /** {@code mTexDim} floats per vertex, or {@code null}. */
+    public float[] mTexCoords;
+    /** Number of texture coordinates per vertex, or 0 if absent. */
+    public int mTexDim;
+    /** Four floats (RGBA) per vertex, or {@code null}. */
+    public float[] mColors;
+
+    public List<Group> mGroups;
+
+
+    public IndexedMesh() {
+        mPositions = new float[0];
+        mGroups    = new ArrayList<Group>();
+    }
+
+    /**
+     * Converts a TriModel. Vertices with identical attributes are welded into
+     * one, whether or not they are represented by the same DrawVert object.
+     * Attributes are compared by bit pattern.
+     */
+    public static IndexedMesh fromModel( TriModel model ) {
+        boolean hasNorm  = false;
+        boolean hasColor = false;
+        int texDim = 0;
+        int cornerCount = 0;
+
+        for( TriGroup g : model.mGroups ) {
+            for( DrawTri t : g.mTris ) {
+                for( DrawVert v : t.mVerts ) {
+                    hasNorm  |= v.mNorm != null;
+                    hasColor |= v.mColor != null;
+                    if( v.mTex != null && v.mTex.length > texDim ) {
+                        texDim = v.mTex.length;
+                    }
+                }
+            }
+            cornerCount += g.mTris.size() * 3;
+        }
+
+        Welder welder = new Welder( hasNorm, texDim, hasColor, cornerCount / 2 );
+        IndexedMesh ret = new IndexedMesh();
+        ret.mName = model.mName;
+
+        for( TriGroup g : model.mGroups ) {
+            int[] indices = new int[g.mTris.size() * 3];
+            int i = 0;
+            for( DrawTri t : g.mTris ) {
+                for( DrawVert v : t.mVerts ) {
+                    indices[i++] = welder.add( v );
+                }
+            }
+            ret.mGroups.add( new Group( g.mName, g.mMaterial, indices ) );
+        }
+
+        welder.finish( ret );
+        return ret;
+    }
+
+    /**
+     * @return number of triangles in all groups
+     */
+    public int triangleCount() {
+        int count = 0;
+        for( Group g : mGroups ) {
+            count += g.mIndices.length / 3;
+        }
+        return count;
+    }
+
+    /**
+     * Converts mesh to a TriModel. Each vertex becomes one DrawVert, shared by
+     * all triangles that index it.
+     */
+    public TriModel toModel() {
+        DrawVert[] verts = new DrawVert[mVertCount];
+        for( int i = 0; i < mVertCount; i++ ) {
+            DrawVert v = new DrawVert( mPositions[i * 3], mPositions[i * 3 + 1], mPositions[i * 3 + 2] );
+            if( mNormals != null ) {
+                v.mNorm = new Vec3( mNormals[i * 3], mNormals[i * 3 + 1], mNormals[i * 3 + 2] );
+            }
+            if( mTexCoords != null ) {
+                v.mTex = Arrays.copyOfRange( mTexCoords, i * mTexDim, i * mTexDim + mTexDim );
+            }
+            if( mColors != null ) {
+                v.mColor = new Vec4( mColors[i * 4], mColors[i * 4 + 1], mColors[i * 4 + 2], mColors[i * 4 + 3] );
+            }
+            verts[i] = v;
+        }
+
+        List<TriGroup> groups = new ArrayList<TriGroup>( mGroups.size() );
+        for( Group g : mGroups ) {
+            final int[] idx = g.mIndices;
+            List<DrawTri> tris = new ArrayList<DrawTri>( idx.length / 3 );
+            for( int i = 0; i + 2 < idx.length; i += 3 ) {
+                tris.add( new DrawTri( verts[idx[i]], verts[idx[i + 1]], verts[idx[i + 2]] ) );
+            }
+            groups.add( new TriGroup( g.mName, g.mMaterial, tris ) );
+        }
+
+        return new TriModel( mName, groups );
+    }
+
+
+
+    public static class Group {
+
+        public String       mName;
+        public DrawMaterial mMaterial;
+        /** Three vertex indices per triangle. */
+        public int[]        mIndices;
+
+        public Group() {
+            mIndices = new int[0];
+        }
+
+        public Group( String name, DrawMaterial material, int[] indicesRef ) {
+            mName     = name;
+            mMaterial = material;
+            mIndices  = indicesRef == null ? new int[0] : indicesRef;
+        }
+    }
+
+
+    /**
+     * Assigns indices to distinct vertices. Vertices are written as rows of
+     * interleaved attributes, and an open-addressing hash table of row indices
+     * finds existing rows without allocating per vertex.
+     */
+    private static final class Welder {
+
+        private final boolean mHasNorm;
+        private final int mTexDim;
+        private final boolean mHasColor;
+        private final int mStride;
+
+        private final float[] mRow;
+        private final FloatList mRows;
+        private final IntList mHashes;
+
+        /** Row index + 1 for each slot, or 0 if empty. */
+        private int[] mTable;
+        private int mCount = 0;
+
+
+        Welder( boolean hasNorm, int texDim, boolean hasColor, int expectedCount ) {
+            mHasNorm  = hasNorm;
+            mTexDim   = texDim;
+            mHasColor = hasColor;
+            mStride   = 3 + ( hasNorm ? 3 : 0 ) + texDim + ( hasColor ? 4 : 0 );
+            mRow      = new float[mStride];
+            mRows     = new FloatList( Math.max( 16, expectedCount * mStride ) );
+            mHashes   = new IntList( Math.max( 16, expectedCount ) );
+
+            int cap = 16;
+            while( cap < expectedCount * 2 && cap < ( 1 << 30 ) ) {
+                cap <<= 1;
+            }
+            mTable = new int[cap];
+        }
+
+
+        int add( DrawVert v ) {
+            final float[] row = mRow;
+            int n = 0;
+            row[n++] = v.mPos.x;
+            row[n++] = v.mPos.y;
+            row[n++] = v.mPos.z;
+
+            if( mHasNorm ) {
+                Vec3 norm = v.mNorm;
+                row[n++] = norm == null ? 0f : norm.x;
+                row[n++] = norm == null ? 0f : norm.y;
+                row[n++] = norm == null ? 0f : norm.z;
+            }
+
+            for( int i = 0; i < mTexDim; i++ ) {
+                row[n++] = v.mTex != null && i < v.mTex.length ? v.mTex[i] : 0f;
+            }
+
+            if( mHasColor ) {
+                Vec4 color = v.mColor;
+                row[n++] = color == null ? 0f : color.x;
+                row[n++] = color == null ? 0f : color.y;
+                row[n++] = color == null ? 0f : color.z;
+                row[n++] = color == null ? 0f : color.w;
+            }
+
+            int hash = 1;
+            for( int i = 0; i < n; i++ ) {
+                hash = hash * 31 + Float.floatToIntBits( row[i] );
+            }
+            hash ^= hash >>> 16;
+            hash *= 0x85EBCA6B;
+            hash ^= hash >>> 13;
+
+            final int mask = mTable.length - 1;
+            int slot = hash & mask;
+
+            while( true ) {
+                final int entry = mTable[slot];
+                if( entry == 0 ) {
+                    break;
+                }
+                if( mHashes.get( entry - 1 ) == hash && rowEquals( entry - 1 ) ) {
+                    return entry - 1;
+                }
+                slot = ( slot + 1 ) & mask;
+            }
+
+            final int index = mCount++;
+            mTable[slot] = index + 1;
+            mHashes.add( hash );
+            for( int i = 0; i < n; i++ ) {
+                mRows.add( row[i] );
+            }
+
+            if( mCount * 2 > mTable.length ) {
+                rehash( mTable.length * 2 );
+            }
+
+            return index;
+        }
+
+        /**
+         * Writes distinct vertex attributes to mesh.
+         */
+        void finish( IndexedMesh out ) {
+            final int count  = mCount;
+            final int stride = mStride;
+            final float[] rows = mRows.array();
+
+            out.mVertCount = count;
+            out.mPositions = new float[count * 3];
+            out.mNormals   = mHasNorm ? new float[count * 3] : null;
+            out.mTexDim    = mTexDim;
+            out.mTexCoords = mTexDim > 0 ? new float[count * mTexDim] : null;
+            out.mColors    = mHasColor ? new float[count * 4] : null;
+
+            for( int i = 0; i < count; i++ ) {
+                int n = i * stride;
+                System.arraycopy( rows, n, out.mPositions, i * 3, 3 );
+                n += 3;
+                if( mHasNorm ) {
+                    System.arraycopy( rows, n, out.mNormals, i * 3, 3 );
+                    n += 3;
+                }
+                if( mTexDim > 0 ) {
+                    System.arraycopy( rows, n, out.mTexCoords, i * mTexDim, mTexDim );
+                    n += mTexDim;
+                }
+                if( mHasColor ) {
+                    System.arraycopy( rows, n, out.mColors, i * 4, 4 );
+                }
+            }
+        }
+
+
+        private boolean rowEquals( int index ) {
+            final float[] rows = mRows.array();
+            final int off = index * mStride;
+            for( int i = 0; i < mStride; i++ ) {
+                if( Float.floatToIntBits( rows[off + i] ) != Float.floatToIntBits( mRow[i] ) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+
+        private void rehash( int cap ) {
+            final int[] table = new int[cap];
+            final int mask = cap - 1;
+            for( int i = 0; i < mCount; i++ ) {
+                int slot = mHashes.get( i ) & mask;
+                while( table[slot] != 0 ) {
+                    slot = ( slot + 1 ) & mask;
+                }
+                table[slot] = i + 1;
+            }
+            mTable = table;
+        }
+
+    }
+
+}
@@ -0,0 +1,620 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.model.io;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import bits.draw3d.*;
+import bits.draw3d.lighting.Material;
+import bits.draw3d.model.*;
+import bits.draw3d.shaders.BasicShaderConfig;
+import bits.draw3d.shaders.BasicShaders;
+import bits.math3d.*;
+
+import static com.jogamp.opengl.GL2ES3.*;
+
+
+/**
+ * Binary mesh file that can be loaded without parsing. The file holds a vertex
+ * stream and an index stream already laid out as GL buffers, so loading a
+ * mesh maps the file and slices it, and the slices may be handed directly
+ * to {@link Bo#buffer}.
+ * <p>
+ * Vertices are written by the {@link BasicShaders} vertex writer for the
+ * shader configuration returned by {@link #shaderConfig()}, in native byte
+ * order. As with BasicShaders, normals are only kept for meshes with texture
+ * coordinates, vertices without colors are white, and at most four texture
+ * components are kept. Indices are 32-bit ints, three per triangle, with
+ * groups stored in order. Material lighting parameters are stored with each
+ * group, but material images and textures are not.
+ * <p>
+ * File layout, in native byte order:
+ * <pre>
+ *   bytes  "D3MC"
+ *   int    0x01020304 (byte order check)
+ *   int    version
+ *   int    texture components
+ *   int    flags: 1 = normals, 2 = colors
+ *   int    vertex count
+ *   int    bytes per vertex
+ *   int    index count
+ *   long   length of source file, or 0
+ *   long   modification time of source file, or 0
+ *   long   offset of vertex stream
+ *   long   offset of index stream
+ *   int    name length in bytes, -1 if null
+ *   byte[] name, UTF-8
+ *   int    group count
+ *   groups:
+ *     string  group name
+ *     int     first index
+ *     int     index count
+ *     string  material name, or -1 length for no material
+ *     float   [17] ambient, diffuse, specular, emissive, shininess (only if material present)
+ * </pre>
+ * Streams are aligned to 16 bytes.
+ *
+ * @author decamp
+ */
+public final class MeshCache {
+
+    /** Suffix appended to source file name to get cache file name. */
+    public static final String SUFFIX = ".d3mesh";
+
+    private static final byte[] MAGIC      = { 'D', '3', 'M', 'C' };
+    private static final int ORDER_CHECK   = 0x01020304;
+    private static final int VERSION       = 1;
+    private static final int FLAG_NORMALS  = 1;
+    private static final int FLAG_COLORS   = 2;
+    private static final int ALIGN         = 16;
+    private static final int WRITE_BUFSIZE = 1 << 20;
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+
+    /**
+     * Loads an OBJ file through a cache file, {@code objFile + SUFFIX}. If the
+     * cache file is missing, unreadable, or was not made from the current
+     * version of the OBJ file, as determined by its length and modification
+     * time, the OBJ file is parsed and the cache file is rewritten.
+     *
+     * @param objFile OBJ file to load.
+     * @param pool    Used to parse the OBJ file in parallel. May be {@code null}.
+     */
+    public static MeshCache readObj( File objFile, ForkJoinPool pool ) throws IOException {
+        return readObj( objFile, new File( objFile.getPath() + SUFFIX ), pool );
+    }
+
+    /**
+     * @param objFile   OBJ file to load.
+     * @param cacheFile Cache file to load or rewrite.
+     * @param pool      Used to parse the OBJ file in parallel. May be {@code null}.
+     * @see #readObj(File, ForkJoinPool)
+     */
+    public static MeshCache readObj( File objFile, File cacheFile, ForkJoinPool pool ) throws IOException {
+        if( !objFile.isFile() ) {
+            throw new FileNotFoundException( objFile.getPath() );
+        }
+        final long length   = objFile.length();
+        final long modified = objFile.lastModified();
+
+        if( cacheFile.exists() ) {
+            try {
+                MeshCache ret = read( cacheFile );
+                if( ret.mSourceLength == length && ret.mSourceModified == modified ) {
+                    return ret;
+                }
+            } catch( IOException ignore ) {
+                // Stale or corrupt cache. Rebuild.
+            }
+        }
+
+        IndexedMesh mesh = IndexedMesh.fromModel( ObjParser.read( objFile, pool ) );
+
+        // Write to temp file first so that a failed write never leaves a cache that looks valid.
+        File dir  = cacheFile.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile( cacheFile.getName(), ".tmp", dir );
+        try {
+            write( mesh, temp, length, modified );
+            if( !temp.renameTo( cacheFile ) ) {
+                cacheFile.delete();
+                if( !temp.renameTo( cacheFile ) ) {
+                    throw new IOException( "Failed to write cache file: " + cacheFile.getPath() );
+                }
+            }
+        } finally {
+            temp.delete();
+        }
+
+        return read( cacheFile );
+    }
+
+    /**
+     * Maps a cache file.
+     */
+    public static MeshCache read( File file ) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try {
+            FileChannel chan = raf.getChannel();
+            final long size = chan.size();
+            if( size < 64 ) {
+                throw new IOException( "Not a mesh cache file." );
+            }
+
+            // Header is small and is read before stream offsets are known.
+            ByteBuffer head = chan.map( FileChannel.MapMode.READ_ONLY, 0, Math.min( size, Integer.MAX_VALUE ) );
+            head.order( ByteOrder.nativeOrder() );
+            for( byte b : MAGIC ) {
+                if( head.get() != b ) {
+                    throw new IOException( "Not a mesh cache file." );
+                }
+            }
+            if( head.getInt() != ORDER_CHECK ) {
+                throw new IOException( "Mesh cache was written with different byte order." );
+            }
+            int version = head.getInt();
+            if( version != VERSION ) {
+                throw new IOException( "Unsupported mesh cache version: " + version );
+            }
+
+            final int texDim       = head.getInt();
+            final int flags        = head.getInt();
+            final int vertCount    = head.getInt();
+            final int bytesPerVert = head.getInt();
+            final int indexCount   = head.getInt();
+            final long srcLength   = head.getLong();
+            final long srcModified = head.getLong();
+            final long vertOffset  = head.getLong();
+            final long indexOffset = head.getLong();
+            final String name      = readString( head );
+
+            final int groupCount = head.getInt();
+            List<Group> groups = new ArrayList<Group>();
+            for( int i = 0; i < groupCount; i++ ) {
+                String groupName = readString( head );
+                int first = head.getInt();
+                int count = head.getInt();
+                DrawMaterial mat = null;
+                String matName = readString( head );
+                if( matName != null ) {
+                    Material m = new Material( readVec( head ), readVec( head ), readVec( head ), readVec( head ), head.getFloat() );
+                    mat = new DrawMaterial( matName, null, null, m );
+                }
+                if( first < 0 || count < 0 || (long)first + count > indexCount ) {
+                    throw new IOException( "Corrupt mesh cache group table." );
+                }
+                groups.add( new Group( groupName, mat, first, count ) );
+            }
+
+            final long vertBytes  = (long)vertCount * bytesPerVert;
+            final long indexBytes = (long)indexCount * 4;
+            if( vertCount < 0 || indexCount < 0 ||
+                vertOffset < 0 || vertOffset + vertBytes > size ||
+                indexOffset < 0 || indexOffset + indexBytes > size )
+            {
+                throw new IOException( "Corrupt mesh cache header." );
+            }
+            if( vertBytes > Integer.MAX_VALUE || indexBytes > Integer.MAX_VALUE ) {
+                throw new IOException( "Mesh cache streams larger than 2 GB are not supported." );
+            }
+
+            ByteBuffer verts = chan.map( FileChannel.MapMode.READ_ONLY, vertOffset, vertBytes );
+            ByteBuffer indices = chan.map( FileChannel.MapMode.READ_ONLY, indexOffset, indexBytes );
+            verts.order( ByteOrder.nativeOrder() );
+            indices.order( ByteOrder.nativeOrder() );
+
+            return new MeshCache( name,
+                                  texDim,
+                                  ( flags & FLAG_NORMALS ) != 0,
+                                  ( flags & FLAG_COLORS ) != 0,
+                                  vertCount,
+                                  bytesPerVert,
+                                  verts,
+                                  indices,
+                                  groups,
+                                  srcLength,
+                                  srcModified );
+        } catch( BufferUnderflowException ex ) {
+            throw new IOException( "Truncated mesh cache file." );
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a cache file with no source file.
+     */
+    public static void write( IndexedMesh mesh, File file ) throws IOException {
+        write( mesh, file, 0L, 0L );
+    }
+
+    /**
+     * @param mesh           Mesh to write.
+     * @param file           Output file.
+     * @param sourceLength   Length of file from which mesh was loaded.
+     * @param sourceModified Modification time of file from which mesh was loaded.
+     */
+    public static void write( IndexedMesh mesh, File file, long sourceLength, long sourceModified ) throws IOException {
+        final BasicShaderConfig config = shaderConfig( mesh.mTexCoords == null ? 0 : mesh.mTexDim,
+                                                       mesh.mNormals != null,
+                                                       mesh.mColors != null );
+        final BoWriter<DrawVert> writer = BasicShaders.createVertWriter( config );
+        final int texDim = config.texComponentNum();
+        final int bytesPerVert = writer.bytesPerElem();
+        // Vertex writers without texture coordinates always write colors.
+        final boolean normals = config.normals();
+        final boolean colors  = config.color() || texDim == 0;
+
+        int indexCount = 0;
+        int tableSize  = 8 + stringSize( mesh.mName );
+        for( IndexedMesh.Group g : mesh.mGroups ) {
+            indexCount += g.mIndices.length;
+            tableSize  += 8 + stringSize( g.mName );
+            tableSize  += g.mMaterial == null ? 4 : stringSize( materialName( g.mMaterial ) ) + 17 * 4;
+        }
+
+        final int fixedSize    = 4 + 4 * 7 + 8 * 4;
+        final long vertOffset  = align( fixedSize + tableSize );
+        final long indexOffset = align( vertOffset + (long)mesh.mVertCount * bytesPerVert );
+
+        ByteBuffer head = ByteBuffer.allocate( (int)vertOffset ).order( ByteOrder.nativeOrder() );
+        head.put( MAGIC );
+        head.putInt( ORDER_CHECK );
+        head.putInt( VERSION );
+        head.putInt( texDim );
+        head.putInt( ( normals ? FLAG_NORMALS : 0 ) | ( colors ? FLAG_COLORS : 0 ) );
+        head.putInt( mesh.mVertCount );
+        head.putInt( bytesPerVert );
+        head.putInt( indexCount );
+        head.putLong( sourceLength );
+        head.putLong( sourceModified );
+        head.putLong( vertOffset );
+        head.putLong( indexOffset );
+        writeString( mesh.mName, head );
+        head.putInt( mesh.mGroups.size() );
+
+        int first = 0;
+        for( IndexedMesh.Group g : mesh.mGroups ) {
+            writeString( g.mName, head );
+            head.putInt( first );
+            head.putInt( g.mIndices.length );
+            first += g.mIndices.length;
+
+            DrawMaterial mat = g.mMaterial;
+            if( mat == null ) {
+                head.putInt( -1 );
+                continue;
+            }
+            writeString( materialName( mat ), head );
+            Material m = mat.mMaterial == null ? new Material() : mat.mMaterial;
+            writeVec( m.mAmbient, head );
+            writeVec( m.mDiffuse, head );
+            writeVec( m.mSpecular, head );
+            writeVec( m.mEmissive, head );
+            head.putFloat( m.mShininess );
+        }
+        head.position( 0 ).limit( head.capacity() );
+
+        FileOutputStream out = new FileOutputStream( file );
+        try {
+            FileChannel chan = out.getChannel();
+            writeFully( head, chan );
+
+            // Vertex stream.
+            ByteBuffer buf = ByteBuffer.allocate( Math.max( WRITE_BUFSIZE, bytesPerVert ) ).order( ByteOrder.nativeOrder() );
+            DrawVert v = new DrawVert( 0, 0, 0 );
+            v.mNorm  = new Vec3( 0, 0, 0 );
+            v.mTex   = new float[Math.max( 1, texDim )];
+            v.mColor = new Vec4( 1, 1, 1, 1 );
+
+            for( int i = 0; i < mesh.mVertCount; i++ ) {
+                loadVert( mesh, i, texDim, v );
+                if( buf.remaining() < bytesPerVert ) {
+                    buf.flip();
+                    writeFully( buf, chan );
+                    buf.clear();
+                }
+                writer.write( v, buf );
+            }
+
+            final int padding = (int)( indexOffset - vertOffset - (long)mesh.mVertCount * bytesPerVert );
+            if( buf.remaining() < padding ) {
+                buf.flip();
+                writeFully( buf, chan );
+                buf.clear();
+            }
+            buf.put( new byte[padding] );
+
+            // Index stream.
+            for( IndexedMesh.Group g : mesh.mGroups ) {
+                for( int index : g.mIndices ) {
+                    if( buf.remaining() < 4 ) {
+                        buf.flip();
+                        writeFully( buf, chan );
+                        buf.clear();
+                    }
+                    buf.putInt( index );
+                }
+            }
+
+            buf.flip();
+            writeFully( buf, chan );
+        } finally {
+            out.close();
+        }
+    }
+
+
+
+    /** Name of mesh. */
+    public final String mName;
+    /** Number of texture components per vertex. */
+    public final int mTexDim;
+    /** Whether vertices have normals. */
+    public final boolean mNormals;
+    /** Whether vertices have colors. */
+    public final boolean mColors;
+    /** Number of vertices. */
+    public final int mVertCount;
+    /** Size of each vertex in {@link #mVerts}. */
+    public final int mBytesPerVert;
+    /** Vertex stream. Native byte order. */
+    public final ByteBuffer mVerts;
+    /** Index stream for all groups. Native byte order. */
+    public final ByteBuffer mIndices;
+    /** Groups, each holding a range of {@link #mIndices}. */
+    public final List<Group> mGroups;
+    /** Length of source file, or 0 if none. */
+    public final long mSourceLength;
+    /** Modification time of source file, or 0 if none. */
+    public final long mSourceModified;
+
+
+    private MeshCache( String name,
+                       int texDim,
+                       boolean normals,
+                       boolean colors,
+                       int vertCount,
+                       int bytesPerVert,
+                       ByteBuffer verts,
+                       ByteBuffer indices,
+                       List<Group> groups,
+                       long sourceLength,
+                       long sourceModified )
+    {
+        mName           = name;
+        mTexDim         = texDim;
+        mNormals        = normals;
+        mColors         = colors;
+        mVertCount      = vertCount;
+        mBytesPerVert   = bytesPerVert;
+        mVerts          = verts;
+        mIndices        = indices;
+        mGroups         = Collections.unmodifiableList( groups );
+        mSourceLength   = sourceLength;
+        mSourceModified = sourceModified;
+    }
+
+
+    /**
+     * @return shader configuration for triangles in the vertex layout of this cache
+     */
+    public BasicShaderConfig shaderConfig() {
+        return shaderConfig( mTexDim, mNormals, mColors );
+    }
+
+    /**
+     * Adds attributes for vertex stream to a Vao.
+     */
+    public void attributes( Vao out ) {
+        BasicShaders.createVertWriter( shaderConfig() ).attributes( out );
+    }
+
+    /**
+     * @param usage GL buffer usage, such as GL_STATIC_DRAW.
+     * @return new array buffer that will be filled with vertex stream
+     */
+    public Bo createVbo( int usage ) {
+        Bo ret = Bo.createArrayBuffer( usage );
+        ret.buffer( mVerts );
+        return ret;
+    }
+
+    /**
+     * @param usage GL buffer usage, such as GL_STATIC_DRAW.
+     * @return new element buffer that will be filled with index stream of all groups
+     */
+    public Bo createIbo( int usage ) {
+        Bo ret = Bo.createElementBuffer( usage );
+        ret.buffer( mIndices );
+        return ret;
+    }
+
+    /**
+     * @return view of index stream for one group. Native byte order.
+     */
+    public ByteBuffer indices( Group group ) {
+        ByteBuffer ret = mIndices.duplicate();
+        ret.position( group.mFirst * 4 ).limit( ( group.mFirst + group.mCount ) * 4 );
+        return ret.slice().order( ByteOrder.nativeOrder() );
+    }
+
+    /**
+     * Decodes cache into an IndexedMesh. Colors are reduced to 8 bits per channel.
+     */
+    public IndexedMesh toMesh() {
+        final int n = mVertCount;
+        IndexedMesh ret = new IndexedMesh();
+        ret.mName      = mName;
+        ret.mVertCount = n;
+        ret.mPositions = new float[n * 3];
+        ret.mNormals   = mNormals ? new float[n * 3] : null;
+        ret.mColors    = mColors ? new float[n * 4] : null;
+        ret.mTexDim    = mTexDim;
+        ret.mTexCoords = mTexDim > 0 ? new float[n * mTexDim] : null;
+
+        // Writers lay out position, then color, normal and texture coords if present.
+        ByteBuffer b = mVerts.duplicate().order( ByteOrder.nativeOrder() );
+        for( int i = 0; i < n; i++ ) {
+            int p = i * mBytesPerVert;
+            for( int j = 0; j < 3; j++, p += 4 ) {
+                ret.mPositions[i * 3 + j] = b.getFloat( p );
+            }
+            if( mColors ) {
+                for( int j = 0; j < 4; j++, p++ ) {
+                    ret.mColors[i * 4 + j] = ( b.get( p ) & 0xFF ) / 255f;
+                }
+            }
+            if( mNormals ) {
+                for( int j = 0; j < 3; j++, p += 4 ) {
+                    ret.mNormals[i * 3 + j] = b.getFloat( p );
+                }
+            }
+            for( int j = 0; j < mTexDim; j++, p += 4 ) {
+                ret.mTexCoords[i * mTexDim + j] = b.getFloat( p );
+            }
+        }
+
+        IntBuffer ib = mIndices.duplicate().order( ByteOrder.nativeOrder() ).asIntBuffer();
+        for( Group g : mGroups ) {
+            int[] indices = new int[g.mCount];
+            ib.position( g.mFirst );
+            ib.get( indices );
+            ret.mGroups.add( new IndexedMesh.Group( g.mName, g.mMaterial, indices ) );
+        }
+
+        return ret;
+    }
+
+
+
+    public static final class Group {
+
+        public final String       mName;
+        public final DrawMaterial mMaterial;
+        /** First index of group in index stream. */
+        public final int          mFirst;
+        /** Number of indices in group. */
+        public final int          mCount;
+
+        Group( String name, DrawMaterial material, int first, int count ) {
+            mName     = name;
+            mMaterial = material;
+            mFirst    = first;
+            mCount    = count;
+        }
+    }
+
+
+
+    private static BasicShaderConfig shaderConfig( int texDim, boolean normals, boolean colors ) {
+        BasicShaderConfig conf = new BasicShaderConfig();
+        conf.geomMode( GL_TRIANGLES );
+        conf.texComponentNum( texDim );
+        conf.normals( normals );
+        conf.color( colors );
+        BasicShaderConfig ret = new BasicShaderConfig();
+        conf.chooseAvailable( ret );
+        return ret;
+    }
+
+
+    private static void loadVert( IndexedMesh mesh, int i, int texDim, DrawVert out ) {
+        final float[] pos = mesh.mPositions;
+        out.mPos.x = pos[i * 3    ];
+        out.mPos.y = pos[i * 3 + 1];
+        out.mPos.z = pos[i * 3 + 2];
+
+        if( mesh.mNormals != null ) {
+            final float[] norm = mesh.mNormals;
+            out.mNorm.x = norm[i * 3    ];
+            out.mNorm.y = norm[i * 3 + 1];
+            out.mNorm.z = norm[i * 3 + 2];
+        }
+
+        if( mesh.mColors != null ) {
+            final float[] color = mesh.mColors;
+            out.mColor.x = color[i * 4    ];
+            out.mColor.y = color[i * 4 + 1];
+            out.mColor.z = color[i * 4 + 2];
+            out.mColor.w = color[i * 4 + 3];
+        }
+
+        if( texDim > 0 ) {
+            System.arraycopy( mesh.mTexCoords, i * mesh.mTexDim, out.mTex, 0, Math.min( texDim, mesh.mTexDim ) );
+        }
+    }
+
+
+    private static long align( long pos ) {
+        return ( pos + ALIGN - 1 ) / ALIGN * ALIGN;
+    }
+
+
+    private static void writeFully( ByteBuffer buf, FileChannel chan ) throws IOException {
+        while( buf.hasRemaining() ) {
+            chan.write( buf );
+        }
+    }
+
+
+    private static String materialName( DrawMaterial mat ) {
+        return mat.mName == null ? "" : mat.mName;
+    }
+
+
+    private static int stringSize( String s ) {
+        return s == null ? 4 : 4 + s.getBytes( UTF8 ).length;
+    }
+
+
+    private static void writeString( String s, ByteBuffer out ) {
+        if( s == null ) {
+            out.putInt( -1 );
+            return;
+        }
+        byte[] bytes = s.getBytes( UTF8 );
+        out.putInt( bytes.length );
+        out.put( bytes );
+    }
+
+
+    private static String readString( ByteBuffer buf ) throws IOException {
+        int len = buf.getInt();
+        if( len < 0 ) {
+            return null;
+        }
+        if( len > buf.remaining() ) {
+            throw new IOException( "Corrupt mesh cache header." );
+        }
+        byte[] bytes = new byte[len];
+        buf.get( bytes );
+        return new String( bytes, UTF8 );
+    }
+
+
+    private static void writeVec( Vec4 v, ByteBuffer out ) {
+        if( v == null ) {
+            v = new Vec4( 0, 0, 0, 1 );
+        }
+        out.putFloat( v.x );
+        out.putFloat( v.y );
+        out.putFloat( v.z );
+        out.putFloat( v.w );
+    }
+
+
+    private static Vec4 readVec( ByteBuffer buf ) {
+        return new Vec4( buf.getFloat(), buf.getFloat(), buf.getFloat(), buf.getFloat() );
+    }
+
+}
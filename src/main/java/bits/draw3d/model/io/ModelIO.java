@@ -7,6 +7,7 @@
 package bits.draw3d.model.io;
 
 import java.io.*;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.*;
 
@@ -37,6 +38,14 @@ public final class ModelIO {
             return ObjParser.read( url );
         }
 
+        if( url.getFile().toLowerCase().endsWith( MeshCache.SUFFIX ) && "file".equals( url.getProtocol() ) ) {
+            try {
+                return MeshCache.read( new File( url.toURI() ) ).toMesh().toModel();
+            } catch( URISyntaxException ex ) {
+                throw new IOException( ex );
+            }
+        }
+
         throw new IOException( "Model format not recognized." );
     }
 
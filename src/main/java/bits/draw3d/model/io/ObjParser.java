@@ -8,13 +8,16 @@ package bits.draw3d.model.io;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.imageio.ImageIO;
 
 import bits.draw3d.model.*;
 import bits.draw3d.lighting.Material;
-import bits.math3d.Vec3;
 import bits.math3d.Vec4;
 
 
@@ -23,149 +26,103 @@ import bits.math3d.Vec4;
  */
 public class ObjParser {
 
+    /** Max size of each region mapped when reading a file. */
+    private static final long MAX_MAP_SIZE = 1L << 30;
+    /** Min size of each chunk scanned in parallel. */
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Reads an OBJ file. The file is memory-mapped and scanned directly,
+     * without decoding it into lines or strings.
+     */
+    public static TriModel read( File file ) throws IOException {
+        return read( file, null );
+    }
 
-    public static TriModel read( URL url ) throws IOException {
-        BufferedReader in = new BufferedReader( new InputStreamReader( url.openStream() ) );
-
-        List<TriGroup> groups = new ArrayList<TriGroup>();
-        List<DrawTri>  tris   = new ArrayList<DrawTri>();
-        List<Vec3>     verts  = new ArrayList<Vec3>();
-        List<Vec3>     norms  = new ArrayList<Vec3>();
-        List<float[]>  texes  = new ArrayList<float[]>();
-        Map<String, DrawMaterial> materialMap = new LinkedHashMap<String, DrawMaterial>();
-
-        String nextGroupName = null;
-        DrawMaterial nextMat = null;
-
-        for( String k = in.readLine(); k != null; k = in.readLine() ) {
-            String[] tok = k.split( "\\s++" );
-            if( tok == null || tok.length == 0 || tok[0].startsWith( "#" ) ) {
-                continue;
+    /**
+     * Reads an OBJ file, optionally scanning it on multiple threads. The file is
+     * divided into chunks that end on line breaks. A first pass counts the
+     * vertices in each chunk so that each chunk knows the global index of its
+     * first vertex; a second pass scans each chunk independently, and the
+     * results are then joined in file order.
+     *
+     * @param file File to read.
+     * @param pool Executes chunk scanning. If {@code null}, the file is read on the calling thread.
+     */
+    public static TriModel read( File file, ForkJoinPool pool ) throws IOException {
+        FileInputStream in = new FileInputStream( file );
+        try {
+            FileChannel chan = in.getChannel();
+            final long size = chan.size();
+            final long chunkSize;
+
+            if( pool == null ) {
+                chunkSize = MAX_MAP_SIZE;
+            } else {
+                chunkSize = Math.max( MIN_CHUNK_SIZE, size / ( pool.getParallelism() * 4 ) );
             }
 
-            if( tok[0].equals( "v" ) ) {
-                try {
-                    float vx = Float.parseFloat( tok[1] );
-                    float vy = Float.parseFloat( tok[2] );
-                    float vz = Float.parseFloat( tok[3] );
-                    verts.add( new Vec3( vx, vy, vz ) );
-                } catch( Exception ex ) {
-                    throw new IOException( "Could not parse vertex: " + ex.getMessage() + "\n" + k );
-                }
-
-            } else if( tok[0].equals( "vt" ) ) {
-                try {
-                    float vx = Float.parseFloat( tok[1] );
-                    float vy = Float.parseFloat( tok[2] );
-                    texes.add( new float[]{ vx, vy } );
-                } catch( Exception ex ) {
-                    throw new IOException( "Could not parse vertex: " + ex.getMessage() + "\n" + k );
-                }
-
-            } else if( tok[0].equals( "vn" ) ) {
-                try {
-                    float vx = Float.parseFloat( tok[1] );
-                    float vy = Float.parseFloat( tok[2] );
-                    float vz = Float.parseFloat( tok[3] );
-                    norms.add( new Vec3( vx, vy, vz ) );
-                } catch( Exception ex ) {
-                    throw new IOException( "Could not parse vertex: " + ex.getMessage() + "\n" + k );
-                }
-
-            } else if( tok[0].equals( "f" ) ) {
-                if( tok.length > 4 ) {
-                    throw new IOException( "Cannot handle faces with more than three vertices." );
-                }
-
-                try {
-                    DrawTri tri = new DrawTri( new DrawVert(), new DrawVert(), new DrawVert() );
-                    String[] subtok = tok[1].split( "/" );
-
-                    if( subtok.length > 2 && subtok[2].length() > 0 ) {
-                        boolean hasTex = !subtok[1].isEmpty();
-
-                        for( int i = 0; i < 3; i++ ) {
-                            if( i > 0 ) {
-                                subtok = tok[i + 1].split( "/" );
-                            }
-                            DrawVert v = tri.mVerts[i];
-                            v.mPos = verts.get( Integer.parseInt( subtok[0] ) - 1 );
-                            v.mNorm = new Vec3( norms.get( Integer.parseInt( subtok[2] ) - 1 ) );
-                            if( hasTex ) {
-                                v.mTex = texes.get( Integer.parseInt( subtok[1] ) - 1 ).clone();
-                            }
-                        }
-                    } else if( subtok.length > 1 && subtok[1].length() > 0 ) {
-                        for( int i = 0; i < 3; i++ ) {
-                            if( i > 0 ) {
-                                subtok = tok[i + 1].split( "/" );
-                            }
-                            DrawVert v = tri.mVerts[i];
-                            v.mPos = verts.get( Integer.parseInt( subtok[0] ) - 1 );
-                            v.mTex = texes.get( Integer.parseInt( subtok[1] ) - 1 ).clone();
-                        }
-
-                    } else {
-                        for( int i = 0; i < 3; i++ ) {
-                            if( i > 0 ) {
-                                subtok = tok[i + 1].split( "/" );
-                            }
-                            DrawVert v = tri.mVerts[i];
-                            v.mPos  = verts.get( Integer.parseInt( subtok[0] ) - 1 );
-                        }
-                    }
-
-                    tris.add( tri );
-                } catch( Exception ex ) {
-                    throw new IOException( "Failed to parse face: " + ex.getMessage() + "\n" + k );
-                }
-
-            } else if( tok[0].equals( "g" ) || tok[0].equals( "usemtl" ) ) {
-                // Write out remaining triangles to new group.
-                if( tris.size() > 0 ) {
-                    if( nextGroupName == null ) {
-                        nextGroupName = String.format( "unnamed_group_%03d", groups.size() );
-                    }
+            List<Chunk> chunks = new ArrayList<Chunk>();
+            long pos = 0;
 
-                    groups.add( new TriGroup( nextGroupName, nextMat, tris ) );
-                    tris = new ArrayList<DrawTri>();
-                }
+            // Map file in windows that end on line breaks.
+            while( pos < size ) {
+                final long len = Math.min( size - pos, MAX_MAP_SIZE );
+                MappedByteBuffer buf = chan.map( FileChannel.MapMode.READ_ONLY, pos, len );
+                int end = (int)len;
 
-                if( tok[0].equals( "g" ) ) {
-                    if( tok.length == 1 ) {
-                        throw new IOException( "Failed to parse group: " + k );
+                if( pos + len < size ) {
+                    while( end > 0 && buf.get( end - 1 ) != '\n' ) {
+                        end--;
                     }
-                    nextMat = null;
-                    nextGroupName = tok[1];
-
-                } else {
-                    if( tok.length == 1 ) {
-                        throw new IOException( "Failed to parse material: " + k );
+                    if( end == 0 ) {
+                        throw new IOException( "Line too long." );
                     }
-                    nextMat = materialMap.get( tok[1] );
                 }
 
-            } else if( tok[0].equals( "mtllib" ) ) {
-                URL matUrl = getRelativeUrl( url, tok[1] );
+                splitChunks( buf, end, chunkSize, chunks );
+                pos += end;
+            }
 
-                try {
-                    readMaterials( matUrl, materialMap );
-                } catch( IOException ex ) {
-                    // TODO: Should be a warning, or something.
+            ObjScanner scanner;
+            if( pool == null || chunks.size() < 2 ) {
+                scanner = new ObjScanner();
+                for( Chunk c : chunks ) {
+                    scanner.scan( c.mBuf, c.mStart, c.mEnd );
                 }
+            } else {
+                scanner = scanParallel( chunks, pool );
             }
 
+            return scanner.toModel( file.toURI().toURL(), new LinkedHashMap<String, DrawMaterial>() );
+        } finally {
+            in.close();
         }
+    }
 
-        if( tris.size() > 0 ) {
-            if( nextGroupName == null ) {
-                nextGroupName = String.format( "unnamed_group_%03d", groups.size() );
-            }
 
-            groups.add( new TriGroup( nextGroupName, nextMat, tris ) );
+    public static TriModel read( URL url ) throws IOException {
+        if( "file".equals( url.getProtocol() ) ) {
+            try {
+                return read( new File( url.toURI() ) );
+            } catch( URISyntaxException ignore ) {
+            } catch( IllegalArgumentException ignore ) {}
         }
 
-        return new TriModel( "", groups );
+        return read( ModelIO.bufferStream( url.openStream() ), url );
+    }
+
+    /**
+     * Reads OBJ data from {@code buf[position,limit)}.
+     *
+     * @param buf     Buffer holding OBJ data. Position is not modified.
+     * @param baseUrl URL against which material libraries are resolved, or {@code null}
+     *                to ignore material libraries.
+     */
+    public static TriModel read( ByteBuffer buf, URL baseUrl ) throws IOException {
+        ObjScanner scanner = new ObjScanner();
+        scanner.scan( buf, buf.position(), buf.limit() );
+        return scanner.toModel( baseUrl, new LinkedHashMap<String, DrawMaterial>() );
     }
 
 
@@ -279,7 +236,7 @@ public class ObjParser {
     }
 
 
-    private static URL getRelativeUrl( URL url, String path ) throws MalformedURLException {
+    static URL getRelativeUrl( URL url, String path ) throws MalformedURLException {
         if( !path.startsWith( "/" ) ) {
             String basePath = url.getFile();
             int idx = basePath.lastIndexOf( '/' );
@@ -296,4 +253,112 @@ public class ObjParser {
 
     }
 
+
+
+    /**
+     * Divides {@code buf[0,end)} into chunks of roughly {@code chunkSize} bytes
+     * that each end on a line break.
+     */
+    private static void splitChunks( ByteBuffer buf, int end, long chunkSize, List<Chunk> out ) {
+        int start = 0;
+        while( start < end ) {
+            int stop = (int)Math.min( end, start + chunkSize );
+            while( stop < end && buf.get( stop - 1 ) != '\n' ) {
+                stop++;
+            }
+            out.add( new Chunk( buf, start, stop ) );
+            start = stop;
+        }
+    }
+
+
+    private static ObjScanner scanParallel( final List<Chunk> chunks, ForkJoinPool pool ) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>( chunks.size() );
+
+        // Count vertices in each chunk.
+        for( final Chunk c : chunks ) {
+            tasks.add( new Callable<Void>() {
+                public Void call() {
+                    ObjScanner.countVertices( c.mBuf, c.mStart, c.mEnd, c.mCounts );
+                    return null;
+                }
+            } );
+        }
+        invokeAll( pool, tasks );
+
+        // Offset indices of each chunk by vertices in preceding chunks.
+        int posCount  = 0;
+        int texCount  = 0;
+        int normCount = 0;
+        for( Chunk c : chunks ) {
+            c.mScanner = new ObjScanner();
+            c.mScanner.indexBase( posCount, texCount, normCount );
+            posCount  += c.mCounts[0];
+            texCount  += c.mCounts[1];
+            normCount += c.mCounts[2];
+        }
+
+        tasks.clear();
+        for( final Chunk c : chunks ) {
+            tasks.add( new Callable<Void>() {
+                public Void call() throws IOException {
+                    c.mScanner.scan( c.mBuf, c.mStart, c.mEnd );
+                    return null;
+                }
+            } );
+        }
+        invokeAll( pool, tasks );
+
+        ObjScanner ret = chunks.get( 0 ).mScanner;
+        for( int i = 1; i < chunks.size(); i++ ) {
+            ret.append( chunks.get( i ).mScanner );
+            chunks.get( i ).mScanner = null;
+        }
+        return ret;
+    }
+
+    /**
+     * Runs tasks and waits for completion. If any task fails, the exception of
+     * the earliest failed task is rethrown.
+     */
+    private static void invokeAll( ForkJoinPool pool, List<Callable<Void>> tasks ) throws IOException {
+        for( Future<Void> f : pool.invokeAll( tasks ) ) {
+            try {
+                f.get();
+            } catch( InterruptedException ex ) {
+                throw new InterruptedIOException();
+            } catch( ExecutionException ex ) {
+                // ForkJoinPool wraps checked exceptions thrown by Callables.
+                Throwable cause = ex.getCause();
+                for( Throwable t = cause; t != null; t = t.getCause() ) {
+                    if( t instanceof IOException ) {
+                        throw (IOException)t;
+                    }
+                }
+                if( cause instanceof RuntimeException ) {
+                    throw (RuntimeException)cause;
+                }
+                if( cause instanceof Error ) {
+                    throw (Error)cause;
+                }
+                throw new IOException( cause );
+            }
+        }
+    }
+
+
+    private static final class Chunk {
+        final ByteBuffer mBuf;
+        final int mStart;
+        final int mEnd;
+        final int[] mCounts = new int[3];
+        ObjScanner mScanner;
+
+        Chunk( ByteBuffer buf, int start, int end ) {
+            mBuf   = buf;
+            mStart = start;
+            mEnd   = end;
+        }
+    }
+
 }
@@ -0,0 +1,726 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.model.io;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import bits.draw3d.model.*;
+import bits.draw3d.util.FloatList;
+import bits.draw3d.util.IntList;
+import bits.math3d.Vec3;
+
+
+/**
+ * Byte-level OBJ scanner. Reads lines directly from a ByteBuffer, parses
+ * numbers by hand, and accumulates vertex data and face indices in primitive
+ * arrays. Nothing is allocated per line, aside from group and material names.
+ * <p>
+ * A scanner may be fed any number of buffers in sequence, provided each holds
+ * only whole lines. {@link #toModel} then produces the same TriModel as the
+ * line-based parser did for files that it accepted. Unlike that parser,
+ * polygons are triangulated and negative vertex indices are accepted.
+ * <p>
+ * To support parallel loading, a file may also be split into chunks that are
+ * scanned independently. Vertex indices in faces refer to all vertices that
+ * come before them in the file, so each chunk scanner must first be given the
+ * number of vertices in the chunks that precede it, which
+ * {@link #countVertices} finds cheaply. Group, material and material library
+ * statements are recorded as events rather than applied, and are replayed in
+ * order once chunks are joined with {@link #append}.
+ *
+ * @author decamp
+ */
+final class ObjScanner {
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    /** Marks attribute missing from face corner. */
+    private static final int ABSENT = Integer.MIN_VALUE;
+
+    private static final int EVENT_GROUP    = 0;
+    private static final int EVENT_MATERIAL = 1;
+    private static final int EVENT_MTLLIB   = 2;
+
+    private static final float[] POW10 = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+
+    /** Three floats per position. */
+    final FloatList mPositions = new FloatList( 3 * 1024 );
+    /** Two floats per texture coordinate. */
+    final FloatList mTexCoords = new FloatList( 2 * 1024 );
+    /** Three floats per normal. */
+    final FloatList mNormals   = new FloatList( 3 * 1024 );
+    /**
+     * Three ints per triangle corner: zero-based indices of position, texture
+     * coordinate and normal. Absent attributes are -1.
+     */
+    final IntList mCorners = new IntList( 9 * 1024 );
+
+    /** Two ints per event: index of next triangle, and event type. */
+    private final IntList mEvents = new IntList( 64 );
+    /** Argument of each event. */
+    private final List<String> mEventArgs = new ArrayList<String>();
+
+    // Number of vertices preceding this scanner's input.
+    private int mPosBase  = 0;
+    private int mTexBase  = 0;
+    private int mNormBase = 0;
+
+    // Current line.
+    private ByteBuffer mBuf;
+    private int mLineStart;
+    private int mLineEnd;
+    private int mPos;
+
+    // Corners of current face, three ints each. Grows for large polygons.
+    private int[] mFace = new int[12];
+
+
+    ObjScanner() {}
+
+    /**
+     * Sets the number of each kind of vertex that precede the input to this
+     * scanner. Must be called before scanning.
+     */
+    void indexBase( int posCount, int texCount, int normCount ) {
+        mPosBase  = posCount;
+        mTexBase  = texCount;
+        mNormBase = normCount;
+    }
+
+
+    /**
+     * Scans the lines held in {@code buf[start,end)}. The final line need not
+     * end with a line break, but must not continue in a later buffer.
+     */
+    void scan( ByteBuffer buf, int start, int end ) throws IOException {
+        mBuf = buf;
+        int pos = start;
+
+        while( pos < end ) {
+            int lineEnd = pos;
+            while( lineEnd < end && buf.get( lineEnd ) != '\n' ) {
+                lineEnd++;
+            }
+
+            mLineStart = pos;
+            mLineEnd   = lineEnd;
+            mPos       = pos;
+            parseLine();
+            pos = lineEnd + 1;
+        }
+
+        mBuf = null;
+    }
+
+    /**
+     * @return number of triangles scanned
+     */
+    int triangleCount() {
+        return mCorners.size() / 9;
+    }
+
+    /**
+     * Appends data scanned by a scanner of the input that follows this one.
+     */
+    void append( ObjScanner next ) {
+        final int triOffset = triangleCount();
+        appendAll( mPositions, next.mPositions );
+        appendAll( mTexCoords, next.mTexCoords );
+        appendAll( mNormals, next.mNormals );
+        appendAll( mCorners, next.mCorners );
+
+        for( int i = 0; i < next.mEvents.size(); i += 2 ) {
+            mEvents.add( next.mEvents.get( i ) + triOffset );
+            mEvents.add( next.mEvents.get( i + 1 ) );
+        }
+        mEventArgs.addAll( next.mEventArgs );
+    }
+
+    /**
+     * Replays group and material events to divide triangles into groups.
+     *
+     * @param baseUrl   URL against which material libraries are resolved. May be {@code null}
+     *                  to ignore material libraries.
+     * @param materials Receives materials from libraries, and is used to resolve material names.
+     */
+    List<Span> spans( URL baseUrl, Map<String, DrawMaterial> materials ) {
+        List<Span> spans = new ArrayList<Span>();
+        String name = null;
+        DrawMaterial mat = null;
+        int start = 0;
+
+        for( int e = 0; e <= mEventArgs.size(); e++ ) {
+            final boolean last = e == mEventArgs.size();
+            final int type = last ? EVENT_GROUP : mEvents.get( e * 2 + 1 );
+            final int tri  = last ? triangleCount() : mEvents.get( e * 2 );
+
+            if( type == EVENT_MTLLIB ) {
+                if( baseUrl == null ) {
+                    continue;
+                }
+                try {
+                    ObjParser.readMaterials( ObjParser.getRelativeUrl( baseUrl, mEventArgs.get( e ) ), materials );
+                } catch( IOException ex ) {
+                    // TODO: Should be a warning, or something.
+                }
+                continue;
+            }
+
+            // Write out preceding triangles to new group.
+            if( tri > start ) {
+                if( name == null ) {
+                    name = String.format( "unnamed_group_%03d", spans.size() );
+                }
+                spans.add( new Span( name, mat, start, tri ) );
+                start = tri;
+            }
+
+            if( last ) {
+                break;
+            }
+
+            if( type == EVENT_GROUP ) {
+                mat  = null;
+                name = mEventArgs.get( e );
+            } else {
+                mat = materials.get( mEventArgs.get( e ) );
+            }
+        }
+
+        return spans;
+    }
+
+    /**
+     * Builds model. As with the line-based parser,
+     * each position is held by one Vec3 shared among the vertices that
+     * reference it, while normals and texture coordinates are copied per vertex.
+     *
+     * @param baseUrl   URL against which material libraries are resolved. May be {@code null}
+     *                  to ignore material libraries.
+     * @param materials Receives materials from libraries, and is used to resolve material names.
+     */
+    TriModel toModel( URL baseUrl, Map<String, DrawMaterial> materials ) {
+        final List<Span> spans = spans( baseUrl, materials );
+        final float[] pos  = mPositions.array();
+        final float[] tex  = mTexCoords.array();
+        final float[] norm = mNormals.array();
+        final int[] corners = mCorners.array();
+        final Vec3[] posCache = new Vec3[mPositions.size() / 3];
+
+        List<TriGroup> groups = new ArrayList<TriGroup>( spans.size() );
+
+        for( Span span : spans ) {
+            List<DrawTri> tris = new ArrayList<DrawTri>( span.mEnd - span.mStart );
+
+            for( int t = span.mStart; t < span.mEnd; t++ ) {
+                DrawTri tri = new DrawTri( new DrawVert(), new DrawVert(), new DrawVert() );
+
+                for( int i = 0; i < 3; i++ ) {
+                    final int c = ( t * 3 + i ) * 3;
+                    final DrawVert v = tri.mVerts[i];
+
+                    final int p = corners[c];
+                    Vec3 vec = posCache[p];
+                    if( vec == null ) {
+                        vec = posCache[p] = new Vec3( pos[p * 3], pos[p * 3 + 1], pos[p * 3 + 2] );
+                    }
+                    v.mPos = vec;
+
+                    final int tx = corners[c + 1];
+                    if( tx >= 0 ) {
+                        v.mTex = new float[]{ tex[tx * 2], tex[tx * 2 + 1] };
+                    }
+
+                    final int n = corners[c + 2];
+                    if( n >= 0 ) {
+                        v.mNorm = new Vec3( norm[n * 3], norm[n * 3 + 1], norm[n * 3 + 2] );
+                    }
+                }
+
+                tris.add( tri );
+            }
+
+            groups.add( new TriGroup( span.mName, span.mMaterial, tris ) );
+        }
+
+        return new TriModel( "", groups );
+    }
+
+
+
+    private void parseLine() throws IOException {
+        skipSpace();
+        if( mPos >= mLineEnd ) {
+            return;
+        }
+
+        final int start = mPos;
+        skipToken();
+        final int len = mPos - start;
+        final byte c0 = mBuf.get( start );
+        final byte c1 = len > 1 ? mBuf.get( start + 1 ) : 0;
+
+        if( c0 == '#' ) {
+            return;
+        }
+
+        if( c0 == 'v' ) {
+            if( len == 1 ) {
+                try {
+                    mPositions.add( parseFloat() );
+                    mPositions.add( parseFloat() );
+                    mPositions.add( parseFloat() );
+                } catch( Exception ex ) {
+                    throw new IOException( "Could not parse vertex: " + ex.getMessage() + "\n" + line() );
+                }
+            } else if( len == 2 && c1 == 't' ) {
+                try {
+                    mTexCoords.add( parseFloat() );
+                    mTexCoords.add( parseFloat() );
+                } catch( Exception ex ) {
+                    throw new IOException( "Could not parse vertex: " + ex.getMessage() + "\n" + line() );
+                }
+            } else if( len == 2 && c1 == 'n' ) {
+                try {
+                    mNormals.add( parseFloat() );
+                    mNormals.add( parseFloat() );
+                    mNormals.add( parseFloat() );
+                } catch( Exception ex ) {
+                    throw new IOException( "Could not parse vertex: " + ex.getMessage() + "\n" + line() );
+                }
+            }
+            return;
+        }
+
+        if( c0 == 'f' && len == 1 ) {
+            parseFace();
+            return;
+        }
+
+        if( c0 == 'g' && len == 1 ) {
+            String name = nextToken();
+            if( name == null ) {
+                throw new IOException( "Failed to parse group: " + line() );
+            }
+            addEvent( EVENT_GROUP, name );
+            return;
+        }
+
+        if( tokenEquals( start, len, "usemtl" ) ) {
+            String name = nextToken();
+            if( name == null ) {
+                throw new IOException( "Failed to parse material: " + line() );
+            }
+            addEvent( EVENT_MATERIAL, name );
+            return;
+        }
+
+        if( tokenEquals( start, len, "mtllib" ) ) {
+            String path = nextToken();
+            if( path != null ) {
+                addEvent( EVENT_MTLLIB, path );
+            }
+        }
+    }
+
+
+    private void addEvent( int type, String arg ) {
+        mEvents.add( triangleCount() );
+        mEvents.add( type );
+        mEventArgs.add( arg );
+    }
+
+
+    /**
+     * Parses a face and adds its triangles. Faces with more than three corners
+     * are triangulated as a fan around the first corner, which is exact for
+     * convex polygons. Negative indices are relative to the end of the vertex
+     * list, so {@code -1} is the last vertex defined before the face.
+     */
+    private void parseFace() throws IOException {
+        int[] face = mFace;
+        int count = 0;
+
+        try {
+            for( skipSpace(); mPos < mLineEnd; skipSpace() ) {
+                if( face.length < count * 3 + 3 ) {
+                    face = mFace = Arrays.copyOf( face, face.length * 2 );
+                }
+                parseCorner( face, count++ * 3 );
+            }
+            if( count < 3 ) {
+                throw new IOException( "face has " + count + " vertices" );
+            }
+
+            // Attributes present on the first corner determine the format of the face.
+            final boolean hasTex  = face[1] != ABSENT;
+            final boolean hasNorm = face[2] != ABSENT;
+            final int posCount  = mPosBase + mPositions.size() / 3;
+            final int texCount  = mTexBase + mTexCoords.size() / 2;
+            final int normCount = mNormBase + mNormals.size() / 3;
+
+            for( int i = 0; i < count * 3; i += 3 ) {
+                face[i] = resolveIndex( face[i], posCount );
+                face[i + 1] = hasTex ? resolveIndex( face[i + 1], texCount ) : -1;
+                face[i + 2] = hasNorm ? resolveIndex( face[i + 2], normCount ) : -1;
+            }
+
+        } catch( Exception ex ) {
+            throw new IOException( "Failed to parse face: " + ex.getMessage() + "\n" + line() );
+        }
+
+        final int end = count * 3;
+        for( int i = 6; i < end; i += 3 ) {
+            mCorners.add( face[0] );
+            mCorners.add( face[1] );
+            mCorners.add( face[2] );
+            mCorners.add( face[i - 3] );
+            mCorners.add( face[i - 2] );
+            mCorners.add( face[i - 1] );
+            mCorners.add( face[i] );
+            mCorners.add( face[i + 1] );
+            mCorners.add( face[i + 2] );
+        }
+    }
+
+
+    /**
+     * Parses a face corner of form {@code v}, {@code v/t}, {@code v//n} or {@code v/t/n}.
+     * Writes indices as written to {@code out[off,off+3)}, with {@code ABSENT} for absent attributes.
+     */
+    private void parseCorner( int[] out, int off ) throws IOException {
+        out[off] = parseInt();
+        out[off + 1] = ABSENT;
+        out[off + 2] = ABSENT;
+
+        if( mPos >= mLineEnd || mBuf.get( mPos ) != '/' ) {
+            return;
+        }
+        mPos++;
+        if( mPos < mLineEnd && mBuf.get( mPos ) != '/' && !isSpace( mBuf.get( mPos ) ) ) {
+            out[off + 1] = parseInt();
+        }
+
+        if( mPos >= mLineEnd || mBuf.get( mPos ) != '/' ) {
+            return;
+        }
+        mPos++;
+        if( mPos < mLineEnd && !isSpace( mBuf.get( mPos ) ) ) {
+            out[off + 2] = parseInt();
+        }
+    }
+
+    /**
+     * Converts a one-based or negative relative index to a zero-based index.
+     *
+     * @param index Index as written in file.
+     * @param count Number of elements defined so far.
+     */
+    private static int resolveIndex( int index, int count ) throws IOException {
+        final int ret = index > 0 ? index - 1 : count + index;
+        if( index == 0 || index == ABSENT || ret < 0 || ret >= count ) {
+            throw new IOException( "Index: " + ( index == ABSENT ? "missing" : String.valueOf( index ) ) + ", Size: " + count );
+        }
+        return ret;
+    }
+
+
+    /**
+     * Parses a decimal integer, ending at whitespace, a slash, or end of line.
+     */
+    private int parseInt() throws IOException {
+        final ByteBuffer buf = mBuf;
+        int p = mPos;
+        boolean neg = false;
+
+        if( p < mLineEnd && buf.get( p ) == '-' ) {
+            neg = true;
+            p++;
+        }
+
+        final int digitStart = p;
+        long val = 0;
+        while( p < mLineEnd ) {
+            int d = buf.get( p ) - '0';
+            if( d < 0 || d > 9 ) {
+                break;
+            }
+            val = val * 10 + d;
+            if( val > Integer.MAX_VALUE ) {
+                throw new IOException( "Index out of range" );
+            }
+            p++;
+        }
+
+        if( p == digitStart || ( p < mLineEnd && buf.get( p ) != '/' && !isSpace( buf.get( p ) ) ) ) {
+            throw new NumberFormatException( "For input string: \"" + token( mPos ) + "\"" );
+        }
+
+        mPos = p;
+        return neg ? (int)-val : (int)val;
+    }
+
+    /**
+     * Parses a float token. Common decimal forms with up to seven significant
+     * digits are parsed directly, which gives exactly the result of
+     * {@link Float#parseFloat}. Anything else is handed to Float.parseFloat.
+     */
+    private float parseFloat() {
+        skipSpace();
+        final ByteBuffer buf = mBuf;
+        final int start = mPos;
+        final int end = mLineEnd;
+        int p = start;
+
+        boolean neg = false;
+        if( p < end ) {
+            byte c = buf.get( p );
+            if( c == '-' || c == '+' ) {
+                neg = c == '-';
+                p++;
+            }
+        }
+
+        long mant = 0;
+        int exp = 0;
+        int digits = 0;
+        boolean valid = false;
+        boolean exact = true;
+
+        // Integer part.
+        while( p < end ) {
+            int d = buf.get( p ) - '0';
+            if( d < 0 || d > 9 ) {
+                break;
+            }
+            valid = true;
+            if( digits < 18 ) {
+                mant = mant * 10 + d;
+                if( mant != 0 ) {
+                    digits++;
+                }
+            } else {
+                exact = false;
+            }
+            p++;
+        }
+
+        // Fraction.
+        if( p < end && buf.get( p ) == '.' ) {
+            p++;
+            while( p < end ) {
+                int d = buf.get( p ) - '0';
+                if( d < 0 || d > 9 ) {
+                    break;
+                }
+                valid = true;
+                if( digits < 18 ) {
+                    mant = mant * 10 + d;
+                    exp--;
+                    if( mant != 0 ) {
+                        digits++;
+                    }
+                } else {
+                    exact = false;
+                }
+                p++;
+            }
+        }
+
+        // Exponent.
+        if( valid && p < end && ( buf.get( p ) == 'e' || buf.get( p ) == 'E' ) ) {
+            p++;
+            boolean expNeg = false;
+            if( p < end && ( buf.get( p ) == '-' || buf.get( p ) == '+' ) ) {
+                expNeg = buf.get( p ) == '-';
+                p++;
+            }
+            int e = 0;
+            boolean expValid = false;
+            while( p < end ) {
+                int d = buf.get( p ) - '0';
+                if( d < 0 || d > 9 ) {
+                    break;
+                }
+                expValid = true;
+                if( e < 10000 ) {
+                    e = e * 10 + d;
+                }
+                p++;
+            }
+            valid = expValid;
+            exp += expNeg ? -e : e;
+        }
+
+        if( valid && exact && ( p == end || isSpace( buf.get( p ) ) ) &&
+            mant < ( 1 << 24 ) && exp >= -10 && exp <= 10 )
+        {
+            // Both operands are exact floats, so one operation rounds correctly.
+            mPos = p;
+            float f = exp >= 0 ? mant * POW10[exp] : mant / POW10[-exp];
+            return neg ? -f : f;
+        }
+
+        String tok = token( start );
+        skipToken();
+        return Float.parseFloat( tok );
+    }
+
+
+    private void skipSpace() {
+        while( mPos < mLineEnd && isSpace( mBuf.get( mPos ) ) ) {
+            mPos++;
+        }
+    }
+
+
+    private void skipToken() {
+        while( mPos < mLineEnd && !isSpace( mBuf.get( mPos ) ) ) {
+            mPos++;
+        }
+    }
+
+    /**
+     * @return next whitespace-delimited token on line, or {@code null} if none.
+     */
+    private String nextToken() {
+        skipSpace();
+        if( mPos >= mLineEnd ) {
+            return null;
+        }
+        int start = mPos;
+        skipToken();
+        return string( start, mPos );
+    }
+
+    /**
+     * @return token starting at {@code start}, without moving position.
+     */
+    private String token( int start ) {
+        int end = start;
+        while( end < mLineEnd && !isSpace( mBuf.get( end ) ) ) {
+            end++;
+        }
+        return string( start, end );
+    }
+
+
+    private String line() {
+        int end = mLineEnd;
+        if( end > mLineStart && mBuf.get( end - 1 ) == '\r' ) {
+            end--;
+        }
+        return string( mLineStart, end );
+    }
+
+
+    private String string( int start, int end ) {
+        byte[] bytes = new byte[end - start];
+        for( int i = 0; i < bytes.length; i++ ) {
+            bytes[i] = mBuf.get( start + i );
+        }
+        return new String( bytes, CHARSET );
+    }
+
+
+    private boolean tokenEquals( int start, int len, String s ) {
+        if( len != s.length() ) {
+            return false;
+        }
+        for( int i = 0; i < len; i++ ) {
+            if( mBuf.get( start + i ) != s.charAt( i ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts vertex statements in {@code buf[start,end)} without parsing them.
+     *
+     * @param out Receives number of positions, texture coordinates, and normals.
+     */
+    static void countVertices( ByteBuffer buf, int start, int end, int[] out ) {
+        int posCount  = 0;
+        int texCount  = 0;
+        int normCount = 0;
+        int pos = start;
+
+        while( pos < end ) {
+            while( pos < end && isSpace( buf.get( pos ) ) ) {
+                pos++;
+            }
+
+            if( pos + 1 < end && buf.get( pos ) == 'v' ) {
+                byte c = buf.get( pos + 1 );
+                if( isSpace( c ) ) {
+                    posCount++;
+                } else if( pos + 2 < end && isSpace( buf.get( pos + 2 ) ) ) {
+                    if( c == 't' ) {
+                        texCount++;
+                    } else if( c == 'n' ) {
+                        normCount++;
+                    }
+                }
+            }
+
+            while( pos < end && buf.get( pos ) != '\n' ) {
+                pos++;
+            }
+            pos++;
+        }
+
+        out[0] = posCount;
+        out[1] = texCount;
+        out[2] = normCount;
+    }
+
+
+    private static void appendAll( FloatList list, FloatList src ) {
+        final int size = list.size();
+        list.size( size + src.size() );
+        System.arraycopy( src.array(), 0, list.array(), size, src.size() );
+    }
+
+
+    private static void appendAll( IntList list, IntList src ) {
+        final int size = list.size();
+        list.size( size + src.size() );
+        System.arraycopy( src.array(), 0, list.array(), size, src.size() );
+    }
+
+    /**
+     * Matches whitespace as defined by regex {@code \s}.
+     */
+    private static boolean isSpace( byte c ) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == 0x0B || c == '\f';
+    }
+
+
+
+    /**
+     * Run of triangles sharing a group name and material.
+     */
+    static final class Span {
+        final String mName;
+        final DrawMaterial mMaterial;
+        final int mStart;
+        final int mEnd;
+
+        Span( String name, DrawMaterial material, int start, int end ) {
+            mName     = name;
+            mMaterial = material;
+            mStart    = start;
+            mEnd      = end;
+        }
+    }
+
+}
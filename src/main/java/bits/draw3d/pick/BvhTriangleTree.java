@@ -0,0 +1,1002 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.pick;
+
+import java.util.*;
+
+import bits.draw3d.model.*;
+import bits.draw3d.util.IntList;
+import bits.math3d.*;
+
+import static java.lang.Float.POSITIVE_INFINITY;
+import static java.lang.Float.NEGATIVE_INFINITY;
+
+
+/**
+ * BvhTriangleTree is a bounding volume hierarchy over DrawTri objects that,
+ * unlike KdTriangleTree, can be updated after vertex positions change. This
+ * makes it suitable for picking against animated geometry.
+ * <p>
+ * The hierarchy is built top-down with a binned Surface Area Heuristic.
+ * Each triangle is referenced by exactly one leaf, so after the positions
+ * of a triangle's DrawVerts change, {@link #refit()} restores correct bounds
+ * in O(N) without changing the structure of the tree. Refitting preserves
+ * correctness but not quality; if triangles move far relative to their
+ * neighbors, node bounds grow and overlap. {@link #update()} refits the tree
+ * and additionally rebuilds any subtree whose bounds have grown by more than
+ * {@link #rebuildRatio()} relative to the tree as a whole.
+ * <p>
+ * Like KdTriangleTree, nodes are stored in a flat, depth-first layout. Picks
+ * may be performed concurrently from multiple threads with separate
+ * RayPickResults, but must not overlap with {@code refit()} or {@code update()}.
+ *
+ * @author decamp
+ */
+public final class BvhTriangleTree implements FastRayPicker {
+
+    private static final int LEAF_ITEM_COUNT     = 4;
+    private static final int MAX_LEAF_ITEM_COUNT = 16;
+    private static final int BIN_COUNT           = 16;
+
+    private static final float COST_TRAVERSAL_STEP = 2;
+    private static final float COST_INTERSECTION   = 1;
+
+    private static final float DEFAULT_REBUILD_RATIO = 2f;
+
+    // Flat node layout. Each node is two ints.
+    // Inner node: [ 0,        offset from node to right child ]
+    // Leaf node:  [ triCount, offset into mOrder               ]
+    // Left child of inner node always immediately follows node.
+    private static final int NODE_SIZE = 2;
+    private static final int BOX_SIZE  = 6;
+
+
+    public static BvhTriangleTree build( List<? extends DrawTri> triList ) {
+        final int triCount = triList.size();
+        final DrawTri[] tris = triList.toArray( new DrawTri[triCount] );
+        final int[] order = new int[triCount];
+        for( int i = 0; i < triCount; i++ ) {
+            order[i] = i;
+        }
+
+        BvhTriangleTree tree = new BvhTriangleTree( tris, order );
+        if( triCount == 0 ) {
+            return tree;
+        }
+
+        Builder b = new Builder( tris, order, 0, triCount );
+        b.build( 0, triCount );
+        tree.mNodes = b.nodes();
+        tree.mBoxes = b.boxes();
+        tree.mAreas = b.relativeAreas( 0 );
+        tree.refit();
+        return tree;
+    }
+
+
+    private final DrawTri[] mTris;
+    private final int[] mOrder;
+    private final float[] mTriData;
+
+    private int[] mNodes   = new int[0];
+    private float[] mBoxes = new float[0];
+    private float[] mAreas = new float[0];
+    private float mRebuildRatio = DEFAULT_REBUILD_RATIO;
+
+
+    private BvhTriangleTree( DrawTri[] tris, int[] order ) {
+        mTris    = tris;
+        mOrder   = order;
+        mTriData = new float[tris.length * TriangleIntersector.TRI_DATA_SIZE];
+    }
+
+
+    @Override
+    public RayPickResult newRayPickResult() {
+        return new Result();
+    }
+
+    @Override
+    public boolean pick( Vec3 rayPointVec, Vec3 rayDirVec, int side, RayPickResult out ) {
+        if( !(out instanceof Result) ) {
+            throw new IllegalArgumentException( "Improperly allocated PickResult." );
+        }
+
+        Result result = (Result)out;
+        result.setRay( rayPointVec, rayDirVec );
+        return traverse( result.mRayPoint, result.mRayDir, side, false, POSITIVE_INFINITY, result );
+    }
+
+    @Override
+    public int pick( float[] rayPoints,
+                     float[] rayDirs,
+                     int rayOff,
+                     int rayCount,
+                     int sides,
+                     float[] outDists,
+                     int[] outTris,
+                     int[] outSides )
+    {
+        Result result = new Result();
+        int hitCount = 0;
+
+        for( int i = rayOff; i < rayOff + rayCount; i++ ) {
+            result.setRay( rayPoints, rayDirs, i );
+
+            if( traverse( result.mRayPoint, result.mRayDir, sides, false, POSITIVE_INFINITY, result ) ) {
+                hitCount++;
+                if( outDists != null ) {
+                    outDists[i] = result.mRayDist;
+                }
+                if( outTris != null ) {
+                    outTris[i] = result.mTriIndex;
+                }
+                if( outSides != null ) {
+                    outSides[i] = result.mSide;
+                }
+            } else {
+                if( outDists != null ) {
+                    outDists[i] = POSITIVE_INFINITY;
+                }
+                if( outTris != null ) {
+                    outTris[i] = -1;
+                }
+                if( outSides != null ) {
+                    outSides[i] = Side.NONE;
+                }
+            }
+        }
+
+        return hitCount;
+    }
+
+    @Override
+    public boolean occluded( Vec3 rayPointVec, Vec3 rayDirVec, float maxDist, int sides, RayPickResult work ) {
+        if( !(work instanceof Result) ) {
+            throw new IllegalArgumentException( "Improperly allocated PickResult." );
+        }
+
+        Result result = (Result)work;
+        result.loadRay( rayPointVec, rayDirVec );
+        return traverse( result.mRayPoint, result.mRayDir, sides, true, maxDist, result );
+    }
+
+    @Override
+    public int occluded( float[] rayPoints,
+                         float[] rayDirs,
+                         int rayOff,
+                         int rayCount,
+                         float maxDist,
+                         int sides,
+                         boolean[] out )
+    {
+        Result result = new Result();
+        int hitCount = 0;
+
+        for( int i = rayOff; i < rayOff + rayCount; i++ ) {
+            result.setRay( rayPoints, rayDirs, i );
+            boolean hit = traverse( result.mRayPoint, result.mRayDir, sides, true, maxDist, result );
+            if( hit ) {
+                hitCount++;
+            }
+            out[i] = hit;
+        }
+
+        return hitCount;
+    }
+
+    /**
+     * Recomputes all bounds from current vertex positions. The structure of
+     * the tree is unchanged. Runs in O(N).
+     */
+    public void refit() {
+        final DrawTri[] tris  = mTris;
+        final int[] order     = mOrder;
+        final float[] triData = mTriData;
+        final int[] nodes     = mNodes;
+        final float[] boxes   = mBoxes;
+
+        for( int i = 0; i < order.length; i++ ) {
+            TriangleIntersector.packTriangle( tris[order[i]], triData, i * TriangleIntersector.TRI_DATA_SIZE );
+        }
+
+        // Children always follow parents, so visit nodes in reverse.
+        for( int node = nodes.length / NODE_SIZE - 1; node >= 0; node-- ) {
+            final int count = nodes[node * NODE_SIZE];
+            final int box   = node * BOX_SIZE;
+
+            if( count > 0 ) {
+                final int start = nodes[node * NODE_SIZE + 1];
+                clearBox( boxes, box );
+                for( int i = start; i < start + count; i++ ) {
+                    int off = i * TriangleIntersector.TRI_DATA_SIZE;
+                    for( int axis = 0; axis < 3; axis++ ) {
+                        float v0 = triData[off + axis];
+                        float v1 = v0 + triData[off + 3 + axis];
+                        float v2 = v0 + triData[off + 6 + axis];
+                        boxes[box + axis    ] = Math.min( boxes[box + axis], Math.min( v0, Math.min( v1, v2 ) ) );
+                        boxes[box + axis + 3] = Math.max( boxes[box + axis + 3], Math.max( v0, Math.max( v1, v2 ) ) );
+                    }
+                }
+            } else {
+                final int left  = ( node + 1 ) * BOX_SIZE;
+                final int right = ( node + nodes[node * NODE_SIZE + 1] ) * BOX_SIZE;
+                for( int axis = 0; axis < 3; axis++ ) {
+                    boxes[box + axis    ] = Math.min( boxes[left + axis    ], boxes[right + axis    ] );
+                    boxes[box + axis + 3] = Math.max( boxes[left + axis + 3], boxes[right + axis + 3] );
+                }
+            }
+        }
+    }
+
+    /**
+     * Refits tree, then rebuilds any subtrees that have degraded. A subtree is
+     * rebuilt when the surface area of its root, relative to the surface area of
+     * the entire tree, has grown by more than {@link #rebuildRatio()} since it
+     * was built.
+     *
+     * @return number of subtrees rebuilt
+     */
+    public int update() {
+        refit();
+        if( mNodes.length == 0 ) {
+            return 0;
+        }
+
+        float rootArea = surfaceArea( mBoxes, 0 );
+        if( !( rootArea > 0 ) ) {
+            return 0;
+        }
+
+        // Find degraded subtrees top-down.
+        IntList degraded = new IntList();
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+
+        while( stackSize > 0 ) {
+            final int node = stack[--stackSize];
+            if( mNodes[node * NODE_SIZE] > 0 ) {
+                continue;
+            }
+
+            float ratio = surfaceArea( mBoxes, node * BOX_SIZE ) / rootArea;
+            if( ratio > mAreas[node] * mRebuildRatio ) {
+                degraded.add( node );
+                continue;
+            }
+
+            if( stackSize + 2 > stack.length ) {
+                stack = Arrays.copyOf( stack, stack.length * 2 );
+            }
+            stack[stackSize++] = node + mNodes[node * NODE_SIZE + 1];
+            stack[stackSize++] = node + 1;
+        }
+
+        // Rebuild from last to first so that earlier node indices remain valid.
+        for( int i = degraded.size() - 1; i >= 0; i-- ) {
+            rebuildSubtree( degraded.get( i ), rootArea );
+        }
+
+        if( degraded.size() > 0 ) {
+            refit();
+        }
+
+        return degraded.size();
+    }
+
+    /**
+     * @return ratio of relative surface-area growth at which {@link #update()} rebuilds a subtree.
+     */
+    public float rebuildRatio() {
+        return mRebuildRatio;
+    }
+
+    /**
+     * @param ratio Ratio of relative surface-area growth at which {@link #update()} rebuilds
+     *              a subtree. Must be greater than 1.
+     */
+    public void rebuildRatio( float ratio ) {
+        if( !( ratio > 1f ) ) {
+            throw new IllegalArgumentException( "Rebuild ratio must be greater than 1." );
+        }
+        mRebuildRatio = ratio;
+    }
+
+    /**
+     * @return number of nodes in tree, including leaves.
+     */
+    public int nodeCount() {
+        return mNodes.length / NODE_SIZE;
+    }
+
+    /**
+     * @param out Receives bounds of all indexed triangles, as of last refit.
+     * @return out
+     */
+    public Box3 bounds( Box3 out ) {
+        if( mBoxes.length == 0 ) {
+            out.x0 = out.y0 = out.z0 = out.x1 = out.y1 = out.z1 = 0;
+            return out;
+        }
+        out.x0 = mBoxes[0];
+        out.y0 = mBoxes[1];
+        out.z0 = mBoxes[2];
+        out.x1 = mBoxes[3];
+        out.y1 = mBoxes[4];
+        out.z1 = mBoxes[5];
+        return out;
+    }
+
+
+
+    /***************
+     * Traversal
+     ***************/
+
+    /**
+     * @param anyHit   If true, stops at first intersection within {@code hitLimit}
+     *                 and leaves pick data of {@code result} unmodified.
+     * @param hitLimit Max parameterized distance of intersections.
+     */
+    private boolean traverse( float[] rayPoint,
+                              float[] rayDir,
+                              int sides,
+                              boolean anyHit,
+                              float hitLimit,
+                              Result result )
+    {
+        float limit = hitLimit;
+        if( !anyHit ) {
+            result.mHasPick = false;
+            result.mRayDist = hitLimit;
+        }
+
+        final int[] nodes   = mNodes;
+        final float[] boxes = mBoxes;
+        if( nodes.length == 0 ) {
+            return false;
+        }
+
+        final float px = rayPoint[0];
+        final float py = rayPoint[1];
+        final float pz = rayPoint[2];
+        final float ix = 1f / rayDir[0];
+        final float iy = 1f / rayDir[1];
+        final float iz = 1f / rayDir[2];
+
+        int[] stack = result.mStack;
+        int stackSize = 0;
+
+        if( !Float.isNaN( boxEntry( boxes, 0, px, py, pz, ix, iy, iz, limit ) ) ) {
+            stack[stackSize++] = 0;
+        }
+
+        while( stackSize > 0 ) {
+            final int node  = stack[--stackSize];
+            final int count = nodes[node * NODE_SIZE];
+
+            if( count > 0 ) {
+                if( intersectLeaf( nodes[node * NODE_SIZE + 1], count, rayPoint, rayDir, sides, anyHit, limit, result ) ) {
+                    if( anyHit ) {
+                        return true;
+                    }
+                    limit = result.mRayDist;
+                }
+                continue;
+            }
+
+            final int left  = node + 1;
+            final int right = node + nodes[node * NODE_SIZE + 1];
+            final float tLeft  = boxEntry( boxes, left  * BOX_SIZE, px, py, pz, ix, iy, iz, limit );
+            final float tRight = boxEntry( boxes, right * BOX_SIZE, px, py, pz, ix, iy, iz, limit );
+
+            if( stackSize + 2 > stack.length ) {
+                stack = Arrays.copyOf( stack, stack.length * 2 );
+                result.mStack = stack;
+            }
+
+            // Push farther child first so that nearer child is visited first.
+            if( Float.isNaN( tLeft ) ) {
+                if( !Float.isNaN( tRight ) ) {
+                    stack[stackSize++] = right;
+                }
+            } else if( Float.isNaN( tRight ) ) {
+                stack[stackSize++] = left;
+            } else if( tLeft <= tRight ) {
+                stack[stackSize++] = right;
+                stack[stackSize++] = left;
+            } else {
+                stack[stackSize++] = left;
+                stack[stackSize++] = right;
+            }
+        }
+
+        return !anyHit && result.mHasPick;
+    }
+
+    /**
+     * @return true if any triangle in leaf intersects ray within {@code limit}. Unless
+     *         {@code anyHit} is set, the nearest intersection is written to {@code result}.
+     */
+    private boolean intersectLeaf( int start,
+                                   int count,
+                                   float[] rayPoint,
+                                   float[] rayDir,
+                                   int sides,
+                                   boolean anyHit,
+                                   float limit,
+                                   Result result )
+    {
+        final float[] triData = mTriData;
+        TriangleIntersector tester = result.mIntersector;
+        RayIntersection intersect = result.mRayIntersection;
+        boolean hit = false;
+
+        for( int i = start; i < start + count; i++ ) {
+            if( !tester.intersect( rayPoint, rayDir, triData, i, intersect ) ||
+                (intersect.mTargetSide & sides) == 0 ||
+                intersect.mRayDist > limit )
+            {
+                continue;
+            }
+
+            if( anyHit ) {
+                return true;
+            }
+
+            hit = true;
+            limit = intersect.mRayDist;
+            result.mHasPick  = true;
+            result.mTriIndex = mOrder[i];
+            result.mTriangle = mTris[result.mTriIndex];
+            result.mRayDist  = intersect.mRayDist;
+            result.mSide     = intersect.mTargetSide;
+            Vec.put( intersect.mPoint, result.mStopPoint );
+        }
+
+        return hit;
+    }
+
+
+    /**
+     * @return parameterized distance at which ray enters box, or NaN if ray does not intersect box
+     *         within {@code [0, maxDist]}.
+     */
+    static float boxEntry( float[] boxes,
+                           int off,
+                           float px,
+                           float py,
+                           float pz,
+                           float ix,
+                           float iy,
+                           float iz,
+                           float maxDist )
+    {
+        float tMin = NEGATIVE_INFINITY;
+        float tMax = POSITIVE_INFINITY;
+
+        // A ray parallel to an axis that starts on a box plane gives 0 * inf = NaN.
+        // The origin then lies within that slab, which does not limit the ray.
+        float t0 = ( boxes[off    ] - px ) * ix;
+        float t1 = ( boxes[off + 3] - px ) * ix;
+        if( t0 == t0 && t1 == t1 ) {
+            tMin = Math.min( t0, t1 );
+            tMax = Math.max( t0, t1 );
+        }
+
+        t0 = ( boxes[off + 1] - py ) * iy;
+        t1 = ( boxes[off + 4] - py ) * iy;
+        if( t0 == t0 && t1 == t1 ) {
+            tMin = Math.max( tMin, Math.min( t0, t1 ) );
+            tMax = Math.min( tMax, Math.max( t0, t1 ) );
+        }
+
+        t0 = ( boxes[off + 2] - pz ) * iz;
+        t1 = ( boxes[off + 5] - pz ) * iz;
+        if( t0 == t0 && t1 == t1 ) {
+            tMin = Math.max( tMin, Math.min( t0, t1 ) );
+            tMax = Math.min( tMax, Math.max( t0, t1 ) );
+        }
+
+        // Slight inflation guards against rejecting hits on box faces.
+        tMax += Math.abs( tMax ) * 1e-5f;
+
+        if( tMax < 0 || tMin > tMax || tMin > maxDist ) {
+            return Float.NaN;
+        }
+        return tMin;
+    }
+
+
+
+    /***************
+     * Construction
+     ***************/
+
+    private void rebuildSubtree( int node, float rootArea ) {
+        final int[] nodes = mNodes;
+
+        // Find range of triangles and nodes covered by subtree.
+        int first = node;
+        while( nodes[first * NODE_SIZE] == 0 ) {
+            first = first + 1;
+        }
+        int last = node;
+        while( nodes[last * NODE_SIZE] == 0 ) {
+            last = last + nodes[last * NODE_SIZE + 1];
+        }
+
+        final int triStart  = nodes[first * NODE_SIZE + 1];
+        final int triStop   = nodes[last * NODE_SIZE + 1] + nodes[last * NODE_SIZE];
+        final int nodeStop  = last + 1;
+
+        Builder b = new Builder( mTris, mOrder, triStart, triStop );
+        b.build( triStart, triStop );
+
+        final int oldCount = nodeStop - node;
+        final int newCount = b.mSize;
+        final int shift    = newCount - oldCount;
+        final int total    = nodes.length / NODE_SIZE + shift;
+
+        int[] newNodes   = new int[total * NODE_SIZE];
+        float[] newBoxes = new float[total * BOX_SIZE];
+        float[] newAreas = new float[total];
+
+        System.arraycopy( nodes, 0, newNodes, 0, node * NODE_SIZE );
+        System.arraycopy( b.mNodes, 0, newNodes, node * NODE_SIZE, newCount * NODE_SIZE );
+        System.arraycopy( nodes, nodeStop * NODE_SIZE, newNodes, ( nodeStop + shift ) * NODE_SIZE, nodes.length - nodeStop * NODE_SIZE );
+
+        System.arraycopy( mBoxes, 0, newBoxes, 0, node * BOX_SIZE );
+        System.arraycopy( b.mBoxes, 0, newBoxes, node * BOX_SIZE, newCount * BOX_SIZE );
+        System.arraycopy( mBoxes, nodeStop * BOX_SIZE, newBoxes, ( nodeStop + shift ) * BOX_SIZE, mBoxes.length - nodeStop * BOX_SIZE );
+
+        System.arraycopy( mAreas, 0, newAreas, 0, node );
+        System.arraycopy( b.relativeAreas( rootArea ), 0, newAreas, node, newCount );
+        System.arraycopy( mAreas, nodeStop, newAreas, nodeStop + shift, mAreas.length - nodeStop );
+
+        // Only ancestors that hold subtree on their left side need right offsets adjusted.
+        int a = 0;
+        while( a != node ) {
+            final int right = a + newNodes[a * NODE_SIZE + 1];
+            if( node >= right ) {
+                a = right;
+            } else {
+                newNodes[a * NODE_SIZE + 1] += shift;
+                a = a + 1;
+            }
+        }
+
+        mNodes = newNodes;
+        mBoxes = newBoxes;
+        mAreas = newAreas;
+    }
+
+
+    /**
+     * Builds a subtree over a range of the triangle ordering into growable arrays.
+     */
+    private static final class Builder {
+        private final int[] mOrder;
+        private final float[] mTriBoxes;
+        private final int mTriOff;
+
+        int[] mNodes   = new int[64 * NODE_SIZE];
+        float[] mBoxes = new float[64 * BOX_SIZE];
+        int mSize      = 0;
+
+        private final int[] mBinCounts     = new int[BIN_COUNT];
+        private final float[] mBinBoxes    = new float[BIN_COUNT * BOX_SIZE];
+        private final float[] mRightAreas  = new float[BIN_COUNT];
+        private final float[] mWorkBox     = new float[BOX_SIZE];
+        private final float[] mCentBox     = new float[BOX_SIZE];
+
+
+        /**
+         * @param tris     All triangles.
+         * @param order    Triangle ordering, which will be partitioned in place.
+         * @param triStart Start of range of {@code order} to build.
+         * @param triStop  End of range of {@code order} to build.
+         */
+        Builder( DrawTri[] tris, int[] order, int triStart, int triStop ) {
+            mOrder    = order;
+            mTriOff   = triStart;
+            mTriBoxes = new float[( triStop - triStart ) * BOX_SIZE];
+
+            // Compute bounds of each triangle, indexed by position in order minus triStart.
+            for( int i = triStart; i < triStop; i++ ) {
+                writeTriBox( tris[order[i]], mTriBoxes, ( i - triStart ) * BOX_SIZE );
+            }
+        }
+
+
+        int[] nodes() {
+            return Arrays.copyOf( mNodes, mSize * NODE_SIZE );
+        }
+
+
+        float[] boxes() {
+            return Arrays.copyOf( mBoxes, mSize * BOX_SIZE );
+        }
+
+        /**
+         * @param rootArea Area to normalize by, or 0 to normalize by area of first node.
+         * @return surface area of each node relative to {@code rootArea}.
+         */
+        float[] relativeAreas( float rootArea ) {
+            float[] ret = new float[mSize];
+            if( mSize == 0 ) {
+                return ret;
+            }
+
+            float norm = rootArea > 0 ? rootArea : surfaceArea( mBoxes, 0 );
+            for( int i = 0; i < mSize; i++ ) {
+                ret[i] = norm > 0 ? surfaceArea( mBoxes, i * BOX_SIZE ) / norm : 0;
+            }
+            return ret;
+        }
+
+
+        int build( int start, int stop ) {
+            final int node = alloc();
+            final int box  = node * BOX_SIZE;
+            final int count = stop - start;
+
+            // Compute node bounds and centroid bounds.
+            float[] cent = mCentBox;
+            clearBox( mBoxes, box );
+            clearBox( cent, 0 );
+
+            for( int i = start; i < stop; i++ ) {
+                int tb = ( i - mTriOff ) * BOX_SIZE;
+                unionBox( mTriBoxes, tb, mBoxes, box );
+                for( int axis = 0; axis < 3; axis++ ) {
+                    float c = 0.5f * ( mTriBoxes[tb + axis] + mTriBoxes[tb + axis + 3] );
+                    cent[axis    ] = Math.min( cent[axis], c );
+                    cent[axis + 3] = Math.max( cent[axis + 3], c );
+                }
+            }
+
+            int mid = count <= LEAF_ITEM_COUNT ? -1 : findSplit( start, stop, box, count );
+
+            if( mid <= start || mid >= stop ) {
+                if( count > MAX_LEAF_ITEM_COUNT ) {
+                    mid = splitMedian( start, stop );
+                }
+            }
+
+            if( mid <= start || mid >= stop ) {
+                mNodes[node * NODE_SIZE    ] = count;
+                mNodes[node * NODE_SIZE + 1] = start;
+                return node;
+            }
+
+            mNodes[node * NODE_SIZE] = 0;
+            build( start, mid );
+            final int right = build( mid, stop );
+            mNodes[node * NODE_SIZE + 1] = right - node;
+            return node;
+        }
+
+        /**
+         * Finds best SAH split and partitions range.
+         *
+         * @return position of partition, or -1 if creating a leaf is cheaper.
+         */
+        private int findSplit( int start, int stop, int box, int count ) {
+            final float[] cent     = mCentBox;
+            final int[] binCounts  = mBinCounts;
+            final float[] binBoxes = mBinBoxes;
+            final float[] work     = mWorkBox;
+            final float parentArea = surfaceArea( mBoxes, box );
+
+            float bestCost = COST_INTERSECTION * count;
+            int bestAxis   = -1;
+            int bestBin    = -1;
+
+            if( !( parentArea > 0 ) ) {
+                return -1;
+            }
+
+            for( int axis = 0; axis < 3; axis++ ) {
+                final float min    = cent[axis];
+                final float extent = cent[axis + 3] - min;
+                if( !( extent > 0 ) ) {
+                    continue;
+                }
+
+                final float scale = BIN_COUNT / extent;
+                Arrays.fill( binCounts, 0 );
+                for( int b = 0; b < BIN_COUNT; b++ ) {
+                    clearBox( binBoxes, b * BOX_SIZE );
+                }
+
+                for( int i = start; i < stop; i++ ) {
+                    int tb = ( i - mTriOff ) * BOX_SIZE;
+                    int b = binIndex( mTriBoxes, tb, axis, min, scale );
+                    binCounts[b]++;
+                    unionBox( mTriBoxes, tb, binBoxes, b * BOX_SIZE );
+                }
+
+                // Sweep from right to accumulate right areas.
+                clearBox( work, 0 );
+                int rightCount = 0;
+                for( int b = BIN_COUNT - 1; b > 0; b-- ) {
+                    unionBox( binBoxes, b * BOX_SIZE, work, 0 );
+                    rightCount += binCounts[b];
+                    mRightAreas[b] = rightCount == 0 ? 0 : surfaceArea( work, 0 );
+                }
+
+                // Sweep from left to evaluate costs.
+                clearBox( work, 0 );
+                int leftCount = 0;
+                for( int b = 1; b < BIN_COUNT; b++ ) {
+                    unionBox( binBoxes, ( b - 1 ) * BOX_SIZE, work, 0 );
+                    leftCount += binCounts[b - 1];
+                    int right = count - leftCount;
+                    if( leftCount == 0 || right == 0 ) {
+                        continue;
+                    }
+
+                    float cost = COST_TRAVERSAL_STEP +
+                                 COST_INTERSECTION * ( surfaceArea( work, 0 ) * leftCount +
+                                                       mRightAreas[b] * right ) / parentArea;
+                    if( cost < bestCost ) {
+                        bestCost = cost;
+                        bestAxis = axis;
+                        bestBin  = b;
+                    }
+                }
+            }
+
+            if( bestAxis < 0 ) {
+                return -1;
+            }
+
+            // Partition range in place.
+            final float min   = cent[bestAxis];
+            final float scale = BIN_COUNT / ( cent[bestAxis + 3] - min );
+            int i = start;
+            int j = stop - 1;
+
+            while( i <= j ) {
+                if( binIndex( mTriBoxes, ( i - mTriOff ) * BOX_SIZE, bestAxis, min, scale ) < bestBin ) {
+                    i++;
+                } else {
+                    swap( i, j-- );
+                }
+            }
+
+            return i;
+        }
+
+        /**
+         * Splits range at median centroid along longest axis of centroid bounds.
+         */
+        private int splitMedian( int start, int stop ) {
+            final float[] cent = mCentBox;
+            int axis = 0;
+            for( int a = 1; a < 3; a++ ) {
+                if( cent[a + 3] - cent[a] > cent[axis + 3] - cent[axis] ) {
+                    axis = a;
+                }
+            }
+
+            final int mid = ( start + stop ) >>> 1;
+            int lo = start;
+            int hi = stop - 1;
+
+            // Quickselect on centroid.
+            while( lo < hi ) {
+                float pivot = centroid( ( lo + hi ) >>> 1, axis );
+                int i = lo;
+                int j = hi;
+                while( i <= j ) {
+                    while( centroid( i, axis ) < pivot ) {
+                        i++;
+                    }
+                    while( centroid( j, axis ) > pivot ) {
+                        j--;
+                    }
+                    if( i <= j ) {
+                        swap( i++, j-- );
+                    }
+                }
+                if( mid <= j ) {
+                    hi = j;
+                } else if( mid >= i ) {
+                    lo = i;
+                } else {
+                    break;
+                }
+            }
+
+            return mid;
+        }
+
+
+        private float centroid( int i, int axis ) {
+            int tb = ( i - mTriOff ) * BOX_SIZE;
+            return mTriBoxes[tb + axis] + mTriBoxes[tb + axis + 3];
+        }
+
+
+        private void swap( int i, int j ) {
+            int t = mOrder[i];
+            mOrder[i] = mOrder[j];
+            mOrder[j] = t;
+
+            int bi = ( i - mTriOff ) * BOX_SIZE;
+            int bj = ( j - mTriOff ) * BOX_SIZE;
+            for( int k = 0; k < BOX_SIZE; k++ ) {
+                float f = mTriBoxes[bi + k];
+                mTriBoxes[bi + k] = mTriBoxes[bj + k];
+                mTriBoxes[bj + k] = f;
+            }
+        }
+
+
+        private int alloc() {
+            if( mSize * NODE_SIZE >= mNodes.length ) {
+                mNodes = Arrays.copyOf( mNodes, mNodes.length * 2 );
+                mBoxes = Arrays.copyOf( mBoxes, mBoxes.length * 2 );
+            }
+            return mSize++;
+        }
+
+
+        private static int binIndex( float[] triBoxes, int off, int axis, float min, float scale ) {
+            float c = 0.5f * ( triBoxes[off + axis] + triBoxes[off + axis + 3] );
+            int bin = (int)( ( c - min ) * scale );
+            return bin < 0 ? 0 : bin >= BIN_COUNT ? BIN_COUNT - 1 : bin;
+        }
+
+    }
+
+
+    private static final class Result implements IndexedPickResult {
+        final TriangleIntersector mIntersector     = new TriangleIntersector();
+        final RayIntersection     mRayIntersection = new RayIntersection();
+
+        final float[] mRayPoint = new float[3];
+        final float[] mRayDir   = new float[3];
+        int[] mStack = new int[64];
+
+        boolean  mHasPick    = false;
+        float    mRayDist    = 0;
+        DrawTri  mTriangle   = null;
+        int      mTriIndex   = -1;
+        int      mSide       = 0;
+        Vec3     mStartPoint = new Vec3();
+        Vec3     mStopPoint  = new Vec3();
+
+
+        Result() {}
+
+
+        void setRay( Vec3 point, Vec3 dir ) {
+            loadRay( point, dir );
+            Vec.put( point, mStartPoint );
+        }
+
+        /**
+         * Loads ray into working arrays without modifying pick data.
+         */
+        void loadRay( Vec3 point, Vec3 dir ) {
+            mRayPoint[0] = point.x;
+            mRayPoint[1] = point.y;
+            mRayPoint[2] = point.z;
+            mRayDir[0]   = dir.x;
+            mRayDir[1]   = dir.y;
+            mRayDir[2]   = dir.z;
+        }
+
+
+        void setRay( float[] points, float[] dirs, int index ) {
+            mRayPoint[0] = points[index * 3    ];
+            mRayPoint[1] = points[index * 3 + 1];
+            mRayPoint[2] = points[index * 3 + 2];
+            mRayDir[0]   = dirs[index * 3    ];
+            mRayDir[1]   = dirs[index * 3 + 1];
+            mRayDir[2]   = dirs[index * 3 + 2];
+            mStartPoint.x = mRayPoint[0];
+            mStartPoint.y = mRayPoint[1];
+            mStartPoint.z = mRayPoint[2];
+        }
+
+
+        @Override
+        public boolean hasPick() {
+            return mHasPick;
+        }
+
+        @Override
+        public float pickedDistance() {
+            return Vec.dist( mStartPoint, mStopPoint );
+        }
+
+        @Override
+        public float pickedParamDistance() {
+            return mRayDist;
+        }
+
+        @Override
+        public Vec3 pickedPoint() {
+            return new Vec3( mStopPoint );
+        }
+
+        @Override
+        public Vec3 pickedPointRef() {
+            return mStopPoint;
+        }
+
+        @Override
+        public DrawTri pickedTriangle() {
+            return mTriangle;
+        }
+
+        @Override
+        public int pickedSide() {
+            return mSide;
+        }
+
+        @Override
+        public Object pickedData() {
+            return null;
+        }
+
+        @Override
+        public int pickedTriangleIndex() {
+            return mHasPick ? mTriIndex : -1;
+        }
+
+    }
+
+
+    private static void writeTriBox( DrawTri tri, float[] out, int off ) {
+        clearBox( out, off );
+        for( int i = 0; i < 3; i++ ) {
+            Vec3 v = tri.mVerts[i].mPos;
+            out[off    ] = Math.min( out[off    ], v.x );
+            out[off + 1] = Math.min( out[off + 1], v.y );
+            out[off + 2] = Math.min( out[off + 2], v.z );
+            out[off + 3] = Math.max( out[off + 3], v.x );
+            out[off + 4] = Math.max( out[off + 4], v.y );
+            out[off + 5] = Math.max( out[off + 5], v.z );
+        }
+    }
+
+
+    private static void clearBox( float[] box, int off ) {
+        box[off    ] = POSITIVE_INFINITY;
+        box[off + 1] = POSITIVE_INFINITY;
+        box[off + 2] = POSITIVE_INFINITY;
+        box[off + 3] = NEGATIVE_INFINITY;
+        box[off + 4] = NEGATIVE_INFINITY;
+        box[off + 5] = NEGATIVE_INFINITY;
+    }
+
+
+    private static void unionBox( float[] src, int srcOff, float[] dst, int dstOff ) {
+        for( int i = 0; i < 3; i++ ) {
+            dst[dstOff + i    ] = Math.min( dst[dstOff + i    ], src[srcOff + i    ] );
+            dst[dstOff + i + 3] = Math.max( dst[dstOff + i + 3], src[srcOff + i + 3] );
+        }
+    }
+
+
+    private static float surfaceArea( float[] box, int off ) {
+        float dx = box[off + 3] - box[off    ];
+        float dy = box[off + 4] - box[off + 1];
+        float dz = box[off + 5] - box[off + 2];
+        if( dx < 0 || dy < 0 || dz < 0 ) {
+            return 0;
+        }
+        return 2 * (dx * dy + dx * dz + dy * dz);
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.pick;
+
+import bits.math3d.Vec3;
+
+
+/**
+ * RayPicker that performs batch picks and occlusion queries directly, rather
+ * than through repeated calls to {@link #pick(Vec3, Vec3, int, RayPickResult)}.
+ * These are kept out of RayPicker so that existing implementations need not
+ * provide them. Use {@link RayPickers} to perform them on any RayPicker.
+ *
+ * @author decamp
+ */
+public interface FastRayPicker extends RayPicker {
+
+    /**
+     * Picks a batch of rays packed into float arrays. Results are written into
+     * parallel arrays, such that the result for the ray at {@code rayPoints[i*3]}
+     * is written to {@code outDists[i]}, {@code outTris[i]} and {@code outSides[i]}.
+     * Working data is allocated once per call rather than once per ray.
+     * <p>
+     * See {@link RayPickers#pick} to split a batch across multiple threads.
+     *
+     * @param rayPoints Ray origins packed as {@code [x0, y0, z0, x1, y1, z1, ...]}.
+     * @param rayDirs   Ray directions packed as {@code [x0, y0, z0, x1, y1, z1, ...]}.
+     * @param rayOff    Index of first ray to pick.
+     * @param rayCount  Number of rays to pick.
+     * @param sides     Which sides to pick. (Side.FRONT, Side.BACK, or Side.BOTH)
+     * @param outDists  Receives parameterized distance of each pick, or POSITIVE_INFINITY on a miss. May be null.
+     * @param outTris   Receives index of each picked triangle, or -1 on a miss. May be null.
+     * @param outSides  Receives side of each picked triangle, or Side.NONE on a miss. May be null.
+     * @return number of rays that picked a point
+     */
+    public int pick( float[] rayPoints,
+                     float[] rayDirs,
+                     int rayOff,
+                     int rayCount,
+                     int sides,
+                     float[] outDists,
+                     int[] outTris,
+                     int[] outSides );
+
+    /**
+     * Determines if any geometry intersects a ray before a given distance. This is
+     * generally faster than {@code pick}, as the search stops at the first
+     * intersection found rather than the nearest. Useful for line-of-sight and
+     * shadow queries: to test if anything lies between points {@code a} and {@code b},
+     * use {@code rayPoint = a}, {@code rayDir = b - a} and {@code maxDist = 1}.
+     *
+     * @param rayPoint Origin point of the ray.
+     * @param rayDir   Direction of ray.
+     * @param maxDist  Intersections farther than {@code maxDist}, in units of {@code rayDir}, are ignored.
+     * @param sides    Which sides to test. (Side.FRONT, Side.BACK, or Side.BOTH)
+     * @param work     PickResult allocated with <tt>newRayPickResult()</tt> used as working space.
+     *                 Its pick data is not modified.
+     * @return true iff ray intersects geometry at or before {@code maxDist}
+     */
+    public boolean occluded( Vec3 rayPoint, Vec3 rayDir, float maxDist, int sides, RayPickResult work );
+
+    /**
+     * Performs {@link #occluded(Vec3, Vec3, float, int, RayPickResult)} on a batch of rays
+     * packed into float arrays. The result for the ray at {@code rayPoints[i*3]} is
+     * written to {@code out[i]}.
+     * <p>
+     * See {@link RayPickers#occluded} to split a batch across multiple threads.
+     *
+     * @param rayPoints Ray origins packed as {@code [x0, y0, z0, x1, y1, z1, ...]}.
+     * @param rayDirs   Ray directions packed as {@code [x0, y0, z0, x1, y1, z1, ...]}.
+     * @param rayOff    Index of first ray to test.
+     * @param rayCount  Number of rays to test.
+     * @param maxDist   Intersections farther than {@code maxDist}, in units of ray direction, are ignored.
+     * @param sides     Which sides to test. (Side.FRONT, Side.BACK, or Side.BOTH)
+     * @param out       Receives true for each occluded ray.
+     * @return number of occluded rays
+     */
+    public int occluded( float[] rayPoints,
+                         float[] rayDirs,
+                         int rayOff,
+                         int rayCount,
+                         float maxDist,
+                         int sides,
+                         boolean[] out );
+
+
+}
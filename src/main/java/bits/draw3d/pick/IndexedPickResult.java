@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.pick;
+
+
+/**
+ * RayPickResult that can report the index of the picked triangle within
+ * the picker that produced it.
+ *
+ * @author decamp
+ */
+interface IndexedPickResult extends RayPickResult {
+
+    /**
+     * @return index of picked triangle, or -1 if there is no pick.
+     */
+    public int pickedTriangleIndex();
+
+}
@@ -0,0 +1,864 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.pick;
+
+import java.util.*;
+
+import bits.draw3d.model.DrawTri;
+import bits.math3d.*;
+
+import static java.lang.Float.POSITIVE_INFINITY;
+import static java.lang.Float.NEGATIVE_INFINITY;
+
+
+/**
+ * InstanceTree is a two-level pick structure for scenes that place the same
+ * geometry many times. Each {@link Instance} pairs a shared, object-space
+ * RayPicker (typically a KdTriangleTree or BvhTriangleTree) with an affine
+ * transform. A small bounding volume hierarchy over the world-space bounds of
+ * all instances finds candidate instances for a ray, and the ray is then
+ * transformed into the object space of each candidate and picked against its
+ * shared picker.
+ * <p>
+ * Because ray directions are transformed without normalization, parameterized
+ * distances are identical in world and object space and results from
+ * different instances compare directly. Picked points are reported in world
+ * space. {@link RayPickResult#pickedTriangle()} returns the shared, untransformed
+ * triangle, and {@link RayPickResult#pickedData()} returns the picked Instance.
+ * Transforms with a negative determinant mirror geometry, so the FRONT and BACK
+ * sides of their triangles are swapped accordingly.
+ * <p>
+ * {@link #setTransform} refits only the ancestors of the moved instance and
+ * runs in O(log N). Repeatedly moving instances far from their original
+ * positions degrades the hierarchy, which {@link #optimize()} restores.
+ * {@link #add} and {@link #remove} rebuild the hierarchy. Picks may be performed
+ * concurrently from multiple threads with separate RayPickResults, provided the
+ * shared pickers allow it, but must not overlap with any modification of the tree.
+ *
+ * @author decamp
+ */
+public final class InstanceTree implements FastRayPicker {
+
+    private static final int BOX_SIZE = 6;
+
+    // Top-level node layout. Each node has two child entries.
+    // Inner node: [ left child, right child ]
+    // Leaf node:  [ -1 - instance index, -1 ]
+    private int[]   mChildren = new int[0];
+    private int[]   mParents  = new int[0];
+    private float[] mBoxes    = new float[0];
+    private int     mNodeCount = 0;
+
+    private Instance[] mInstances     = new Instance[8];
+    private int        mInstanceCount = 0;
+
+    // Distinct pickers referenced by instances. Each Result keeps one
+    // RayPickResult per slot.
+    private final Map<RayPicker,Integer> mPickerSlots = new IdentityHashMap<RayPicker,Integer>();
+    private RayPicker[] mPickers    = new RayPicker[4];
+    private int[]       mPickerRefs = new int[4];
+
+
+    public InstanceTree() {}
+
+
+    /**
+     * Adds an instance of a picker.
+     *
+     * @param picker      Picker that operates on geometry in object space.
+     * @param localBounds Object-space bounds of all geometry in {@code picker}.
+     * @param transform   Affine transform from object space to world space.
+     * @param data        Arbitrary data to associate with instance. May be null.
+     * @return handle for new instance
+     * @throws IllegalArgumentException if transform is not affine or is not invertible
+     */
+    public Instance add( RayPicker picker, Box3 localBounds, Mat4 transform, Object data ) {
+        if( picker == null ) {
+            throw new NullPointerException( "picker" );
+        }
+
+        Instance inst = new Instance( this, picker, acquireSlot( picker ), data );
+        inst.setBounds( localBounds );
+        try {
+            inst.setTransform( transform );
+        } catch( IllegalArgumentException ex ) {
+            releaseSlot( picker, inst.mPickerSlot );
+            throw ex;
+        }
+
+        if( mInstanceCount == mInstances.length ) {
+            mInstances = Arrays.copyOf( mInstances, mInstanceCount * 2 );
+        }
+        inst.mIndex = mInstanceCount;
+        mInstances[mInstanceCount++] = inst;
+        optimize();
+        return inst;
+    }
+
+    /**
+     * Removes an instance. The last instance is moved into the
+     * index of the removed instance.
+     *
+     * @param inst Instance to remove.
+     * @return true iff instance was removed
+     */
+    public boolean remove( Instance inst ) {
+        if( inst == null || inst.mOwner != this || inst.mIndex < 0 ) {
+            return false;
+        }
+
+        int index = inst.mIndex;
+        Instance last = mInstances[--mInstanceCount];
+        mInstances[index] = last;
+        mInstances[mInstanceCount] = null;
+        last.mIndex = index;
+
+        releaseSlot( inst.mPicker, inst.mPickerSlot );
+        inst.mIndex = -1;
+        inst.mLeaf  = -1;
+        optimize();
+        return true;
+    }
+
+    /**
+     * Moves an instance. Only the path from the instance to the root of the
+     * hierarchy is updated.
+     *
+     * @param inst      Instance to move.
+     * @param transform Affine transform from object space to world space.
+     * @throws IllegalArgumentException if transform is not affine or is not invertible
+     */
+    public void setTransform( Instance inst, Mat4 transform ) {
+        checkOwner( inst );
+        inst.setTransform( transform );
+        refit( inst );
+    }
+
+    /**
+     * Updates the object-space bounds of an instance, as is necessary after the
+     * geometry of its picker changes.
+     *
+     * @param inst        Instance to update.
+     * @param localBounds Object-space bounds of all geometry in instance's picker.
+     */
+    public void setBounds( Instance inst, Box3 localBounds ) {
+        checkOwner( inst );
+        inst.setBounds( localBounds );
+        inst.updateWorldBounds();
+        refit( inst );
+    }
+
+    /**
+     * Rebuilds the top-level hierarchy from the current bounds of all instances.
+     */
+    public void optimize() {
+        final int n = mInstanceCount;
+        final int nodeCount = n == 0 ? 0 : n * 2 - 1;
+
+        if( mChildren.length < nodeCount * 2 ) {
+            mChildren = new int[nodeCount * 2];
+            mParents  = new int[nodeCount];
+            mBoxes    = new float[nodeCount * BOX_SIZE];
+        }
+
+        mNodeCount = 0;
+        if( n == 0 ) {
+            return;
+        }
+
+        int[] order = new int[n];
+        float[] centroids = new float[n * 3];
+        for( int i = 0; i < n; i++ ) {
+            order[i] = i;
+            float[] box = mInstances[i].mWorldBox;
+            centroids[i*3  ] = ( box[0] + box[3] ) * 0.5f;
+            centroids[i*3+1] = ( box[1] + box[4] ) * 0.5f;
+            centroids[i*3+2] = ( box[2] + box[5] ) * 0.5f;
+        }
+
+        build( order, centroids, 0, n, -1 );
+    }
+
+    /**
+     * @return number of instances in tree.
+     */
+    public int instanceCount() {
+        return mInstanceCount;
+    }
+
+    /**
+     * @param index Index of instance, in {@code [0, instanceCount())}.
+     * @return instance at index
+     */
+    public Instance instance( int index ) {
+        if( index < 0 || index >= mInstanceCount ) {
+            throw new IndexOutOfBoundsException();
+        }
+        return mInstances[index];
+    }
+
+
+    @Override
+    public RayPickResult newRayPickResult() {
+        return new Result();
+    }
+
+    @Override
+    public boolean pick( Vec3 rayPointVec, Vec3 rayDirVec, int sides, RayPickResult out ) {
+        if( !(out instanceof Result) ) {
+            throw new IllegalArgumentException( "Improperly allocated PickResult." );
+        }
+
+        Result result = (Result)out;
+        result.setRay( rayPointVec, rayDirVec );
+        return traverse( result.mRayPoint, result.mRayDir, sides, false, POSITIVE_INFINITY, result );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Triangle indices written to {@code outTris} refer to triangles within the
+     * picker of the picked instance, and are only available if that picker is a
+     * KdTriangleTree, BvhTriangleTree or InstanceTree. Otherwise, -1 is written.
+     */
+    @Override
+    public int pick( float[] rayPoints,
+                     float[] rayDirs,
+                     int rayOff,
+                     int rayCount,
+                     int sides,
+                     float[] outDists,
+                     int[] outTris,
+                     int[] outSides )
+    {
+        return pick( rayPoints, rayDirs, rayOff, rayCount, sides, outDists, outTris, outSides, null );
+    }
+
+    /**
+     * Picks a batch of rays and additionally reports which instance each ray hit.
+     *
+     * @param outInstances Receives index of each picked instance, or -1 on a miss. May be null.
+     * @see #pick(float[], float[], int, int, int, float[], int[], int[])
+     */
+    public int pick( float[] rayPoints,
+                     float[] rayDirs,
+                     int rayOff,
+                     int rayCount,
+                     int sides,
+                     float[] outDists,
+                     int[] outTris,
+                     int[] outSides,
+                     int[] outInstances )
+    {
+        Result result = new Result();
+        int hitCount = 0;
+
+        for( int i = rayOff; i < rayOff + rayCount; i++ ) {
+            result.setRay( rayPoints, rayDirs, i );
+            boolean hit = traverse( result.mRayPoint, result.mRayDir, sides, false, POSITIVE_INFINITY, result );
+            if( hit ) {
+                hitCount++;
+            }
+            if( outDists != null ) {
+                outDists[i] = hit ? result.mRayDist : POSITIVE_INFINITY;
+            }
+            if( outTris != null ) {
+                outTris[i] = hit ? result.mTriIndex : -1;
+            }
+            if( outSides != null ) {
+                outSides[i] = hit ? result.mSide : Side.NONE;
+            }
+            if( outInstances != null ) {
+                outInstances[i] = hit ? result.mInstance.mIndex : -1;
+            }
+        }
+
+        return hitCount;
+    }
+
+    @Override
+    public boolean occluded( Vec3 rayPointVec, Vec3 rayDirVec, float maxDist, int sides, RayPickResult work ) {
+        if( !(work instanceof Result) ) {
+            throw new IllegalArgumentException( "Improperly allocated PickResult." );
+        }
+
+        Result result = (Result)work;
+        result.loadRay( rayPointVec, rayDirVec );
+        return traverse( result.mRayPoint, result.mRayDir, sides, true, maxDist, result );
+    }
+
+    @Override
+    public int occluded( float[] rayPoints,
+                         float[] rayDirs,
+                         int rayOff,
+                         int rayCount,
+                         float maxDist,
+                         int sides,
+                         boolean[] out )
+    {
+        Result result = new Result();
+        int hitCount = 0;
+
+        for( int i = rayOff; i < rayOff + rayCount; i++ ) {
+            result.setRay( rayPoints, rayDirs, i );
+            boolean hit = traverse( result.mRayPoint, result.mRayDir, sides, true, maxDist, result );
+            if( hit ) {
+                hitCount++;
+            }
+            out[i] = hit;
+        }
+
+        return hitCount;
+    }
+
+
+
+    /**
+     * Handle to a single placement of a picker within an InstanceTree.
+     */
+    public static final class Instance {
+
+        final InstanceTree mOwner;
+        final RayPicker mPicker;
+        final int mPickerSlot;
+        final Object mData;
+
+        final float[] mLocalBox = new float[BOX_SIZE];
+        final float[] mWorldBox = new float[BOX_SIZE];
+        final Mat4 mToWorld = new Mat4();
+        final Mat4 mToLocal = new Mat4();
+        boolean mMirrored = false;
+
+        int mIndex = -1;
+        int mLeaf  = -1;
+
+
+        Instance( InstanceTree owner, RayPicker picker, int pickerSlot, Object data ) {
+            mOwner      = owner;
+            mPicker     = picker;
+            mPickerSlot = pickerSlot;
+            mData       = data;
+        }
+
+
+        /**
+         * @return picker shared by this instance
+         */
+        public RayPicker picker() {
+            return mPicker;
+        }
+
+        /**
+         * @return data associated with this instance
+         */
+        public Object data() {
+            return mData;
+        }
+
+        /**
+         * @return current index of instance within tree, or -1 if removed
+         */
+        public int index() {
+            return mIndex;
+        }
+
+        /**
+         * @param out Receives transform from object space to world space.
+         * @return out
+         */
+        public Mat4 transform( Mat4 out ) {
+            Mat.put( mToWorld, out );
+            return out;
+        }
+
+        /**
+         * @param out Receives world-space bounds of instance.
+         * @return out
+         */
+        public Box3 worldBounds( Box3 out ) {
+            out.x0 = mWorldBox[0];
+            out.y0 = mWorldBox[1];
+            out.z0 = mWorldBox[2];
+            out.x1 = mWorldBox[3];
+            out.y1 = mWorldBox[4];
+            out.z1 = mWorldBox[5];
+            return out;
+        }
+
+
+        void setBounds( Box3 box ) {
+            mLocalBox[0] = box.x0;
+            mLocalBox[1] = box.y0;
+            mLocalBox[2] = box.z0;
+            mLocalBox[3] = box.x1;
+            mLocalBox[4] = box.y1;
+            mLocalBox[5] = box.z1;
+        }
+
+
+        void setTransform( Mat4 mat ) {
+            if( mat.m30 != 0 || mat.m31 != 0 || mat.m32 != 0 || mat.m33 != 1 ) {
+                throw new IllegalArgumentException( "Instance transform must be affine." );
+            }
+            Mat4 inv = new Mat4();
+            if( !Mat.invert( mat, inv ) ) {
+                throw new IllegalArgumentException( "Instance transform is not invertible." );
+            }
+            Mat.put( mat, mToWorld );
+            Mat.put( inv, mToLocal );
+            mMirrored = Mat.det( mat ) < 0;
+            updateWorldBounds();
+        }
+
+
+        void updateWorldBounds() {
+            final Mat4 m = mToWorld;
+            final float[] b = mLocalBox;
+            final float[] out = mWorldBox;
+
+            // Transformed box is centered on transformed center, with extents
+            // given by absolute values of the linear part.
+            float cx = ( b[0] + b[3] ) * 0.5f;
+            float cy = ( b[1] + b[4] ) * 0.5f;
+            float cz = ( b[2] + b[5] ) * 0.5f;
+            float ex = ( b[3] - b[0] ) * 0.5f;
+            float ey = ( b[4] - b[1] ) * 0.5f;
+            float ez = ( b[5] - b[2] ) * 0.5f;
+
+            float wx = m.m00 * cx + m.m01 * cy + m.m02 * cz + m.m03;
+            float wy = m.m10 * cx + m.m11 * cy + m.m12 * cz + m.m13;
+            float wz = m.m20 * cx + m.m21 * cy + m.m22 * cz + m.m23;
+            float rx = Math.abs( m.m00 ) * ex + Math.abs( m.m01 ) * ey + Math.abs( m.m02 ) * ez;
+            float ry = Math.abs( m.m10 ) * ex + Math.abs( m.m11 ) * ey + Math.abs( m.m12 ) * ez;
+            float rz = Math.abs( m.m20 ) * ex + Math.abs( m.m21 ) * ey + Math.abs( m.m22 ) * ez;
+
+            out[0] = wx - rx;
+            out[1] = wy - ry;
+            out[2] = wz - rz;
+            out[3] = wx + rx;
+            out[4] = wy + ry;
+            out[5] = wz + rz;
+        }
+
+    }
+
+
+
+    /***************
+     * Traversal
+     ***************/
+
+    /**
+     * @param anyHit   If true, stops at first intersection within {@code hitLimit}
+     *                 and leaves pick data of {@code result} unmodified.
+     * @param hitLimit Max parameterized distance of intersections.
+     */
+    private boolean traverse( float[] rayPoint,
+                              float[] rayDir,
+                              int sides,
+                              boolean anyHit,
+                              float hitLimit,
+                              Result result )
+    {
+        float limit = hitLimit;
+        if( !anyHit ) {
+            result.mHasPick  = false;
+            result.mRayDist  = hitLimit;
+            result.mInstance = null;
+        }
+
+        if( mNodeCount == 0 ) {
+            return false;
+        }
+
+        final int[] children = mChildren;
+        final float[] boxes  = mBoxes;
+        final float px = rayPoint[0];
+        final float py = rayPoint[1];
+        final float pz = rayPoint[2];
+        final float ix = 1f / rayDir[0];
+        final float iy = 1f / rayDir[1];
+        final float iz = 1f / rayDir[2];
+
+        int[] stack = result.mStack;
+        int stackSize = 0;
+
+        if( !Float.isNaN( BvhTriangleTree.boxEntry( boxes, 0, px, py, pz, ix, iy, iz, limit ) ) ) {
+            stack[stackSize++] = 0;
+        }
+
+        while( stackSize > 0 ) {
+            final int node = stack[--stackSize];
+            final int left = children[node * 2];
+
+            if( left < 0 ) {
+                if( intersectInstance( mInstances[-1 - left], rayPoint, rayDir, sides, anyHit, limit, result ) ) {
+                    if( anyHit ) {
+                        return true;
+                    }
+                    limit = result.mRayDist;
+                }
+                continue;
+            }
+
+            final int right = children[node * 2 + 1];
+            final float tLeft  = BvhTriangleTree.boxEntry( boxes, left  * BOX_SIZE, px, py, pz, ix, iy, iz, limit );
+            final float tRight = BvhTriangleTree.boxEntry( boxes, right * BOX_SIZE, px, py, pz, ix, iy, iz, limit );
+
+            if( stackSize + 2 > stack.length ) {
+                stack = Arrays.copyOf( stack, stack.length * 2 );
+                result.mStack = stack;
+            }
+
+            // Push farther child first so that nearer child is visited first.
+            if( Float.isNaN( tLeft ) ) {
+                if( !Float.isNaN( tRight ) ) {
+                    stack[stackSize++] = right;
+                }
+            } else if( Float.isNaN( tRight ) ) {
+                stack[stackSize++] = left;
+            } else if( tLeft <= tRight ) {
+                stack[stackSize++] = right;
+                stack[stackSize++] = left;
+            } else {
+                stack[stackSize++] = left;
+                stack[stackSize++] = right;
+            }
+        }
+
+        return !anyHit && result.mHasPick;
+    }
+
+    /**
+     * @return true if instance intersects ray within {@code limit}. Unless {@code anyHit}
+     *         is set, the intersection is written to {@code result}.
+     */
+    private boolean intersectInstance( Instance inst,
+                                       float[] rayPoint,
+                                       float[] rayDir,
+                                       int sides,
+                                       boolean anyHit,
+                                       float limit,
+                                       Result result )
+    {
+        final Mat4 m = inst.mToLocal;
+        final Vec3 lp = result.mLocalPoint;
+        final Vec3 ld = result.mLocalDir;
+        final float px = rayPoint[0];
+        final float py = rayPoint[1];
+        final float pz = rayPoint[2];
+        final float dx = rayDir[0];
+        final float dy = rayDir[1];
+        final float dz = rayDir[2];
+
+        lp.x = m.m00 * px + m.m01 * py + m.m02 * pz + m.m03;
+        lp.y = m.m10 * px + m.m11 * py + m.m12 * pz + m.m13;
+        lp.z = m.m20 * px + m.m21 * py + m.m22 * pz + m.m23;
+        ld.x = m.m00 * dx + m.m01 * dy + m.m02 * dz;
+        ld.y = m.m10 * dx + m.m11 * dy + m.m12 * dz;
+        ld.z = m.m20 * dx + m.m21 * dy + m.m22 * dz;
+
+        final int localSides = inst.mMirrored ? flipSides( sides ) : sides;
+        final RayPickResult sub = result.subResult( inst.mPicker, inst.mPickerSlot );
+
+        if( anyHit ) {
+            return RayPickers.occluded( inst.mPicker, lp, ld, limit, localSides, sub );
+        }
+
+        if( !inst.mPicker.pick( lp, ld, localSides, sub ) ) {
+            return false;
+        }
+
+        final float t = sub.pickedParamDistance();
+        if( !( t <= limit ) ) {
+            return false;
+        }
+
+        result.mHasPick  = true;
+        result.mRayDist  = t;
+        result.mInstance = inst;
+        result.mTriangle = sub.pickedTriangle();
+        result.mTriIndex = sub instanceof IndexedPickResult ? ((IndexedPickResult)sub).pickedTriangleIndex() : -1;
+        result.mSide     = inst.mMirrored ? flipSides( sub.pickedSide() ) : sub.pickedSide();
+        result.mStopPoint.x = px + t * dx;
+        result.mStopPoint.y = py + t * dy;
+        result.mStopPoint.z = pz + t * dz;
+        return true;
+    }
+
+
+    private static int flipSides( int sides ) {
+        return ( ( sides & Side.FRONT ) << 1 ) | ( ( sides & Side.BACK ) >> 1 );
+    }
+
+
+
+    /***************
+     * Construction
+     ***************/
+
+    private int build( int[] order, float[] centroids, int start, int stop, int parent ) {
+        final int node = mNodeCount++;
+        final int box  = node * BOX_SIZE;
+        mParents[node] = parent;
+
+        if( stop - start == 1 ) {
+            Instance inst = mInstances[order[start]];
+            inst.mLeaf = node;
+            mChildren[node * 2    ] = -1 - inst.mIndex;
+            mChildren[node * 2 + 1] = -1;
+            System.arraycopy( inst.mWorldBox, 0, mBoxes, box, BOX_SIZE );
+            return node;
+        }
+
+        // Split at median centroid along axis of greatest centroid spread.
+        float[] min = { POSITIVE_INFINITY, POSITIVE_INFINITY, POSITIVE_INFINITY };
+        float[] max = { NEGATIVE_INFINITY, NEGATIVE_INFINITY, NEGATIVE_INFINITY };
+        for( int i = start; i < stop; i++ ) {
+            for( int axis = 0; axis < 3; axis++ ) {
+                float c = centroids[order[i] * 3 + axis];
+                min[axis] = Math.min( min[axis], c );
+                max[axis] = Math.max( max[axis], c );
+            }
+        }
+
+        int axis = 0;
+        if( max[1] - min[1] > max[axis] - min[axis] ) {
+            axis = 1;
+        }
+        if( max[2] - min[2] > max[axis] - min[axis] ) {
+            axis = 2;
+        }
+
+        final int mid = ( start + stop ) >>> 1;
+        select( order, centroids, axis, start, stop - 1, mid );
+
+        final int left  = build( order, centroids, start, mid, node );
+        final int right = build( order, centroids, mid, stop, node );
+        mChildren[node * 2    ] = left;
+        mChildren[node * 2 + 1] = right;
+        unionChildren( node );
+        return node;
+    }
+
+
+    private void refit( Instance inst ) {
+        int node = inst.mLeaf;
+        if( node < 0 ) {
+            return;
+        }
+        System.arraycopy( inst.mWorldBox, 0, mBoxes, node * BOX_SIZE, BOX_SIZE );
+        for( node = mParents[node]; node >= 0; node = mParents[node] ) {
+            unionChildren( node );
+        }
+    }
+
+
+    private void unionChildren( int node ) {
+        final float[] boxes = mBoxes;
+        final int box   = node * BOX_SIZE;
+        final int left  = mChildren[node * 2    ] * BOX_SIZE;
+        final int right = mChildren[node * 2 + 1] * BOX_SIZE;
+        for( int i = 0; i < 3; i++ ) {
+            boxes[box + i    ] = Math.min( boxes[left + i    ], boxes[right + i    ] );
+            boxes[box + i + 3] = Math.max( boxes[left + i + 3], boxes[right + i + 3] );
+        }
+    }
+
+
+    /**
+     * Partially sorts {@code order[lo..hi]} so that element {@code k} holds the instance
+     * with the k-th smallest centroid along {@code axis}.
+     */
+    private static void select( int[] order, float[] centroids, int axis, int lo, int hi, int k ) {
+        while( hi > lo ) {
+            float pivot = centroids[order[( lo + hi ) >>> 1] * 3 + axis];
+            int i = lo;
+            int j = hi;
+            while( i <= j ) {
+                while( centroids[order[i] * 3 + axis] < pivot ) {
+                    i++;
+                }
+                while( centroids[order[j] * 3 + axis] > pivot ) {
+                    j--;
+                }
+                if( i <= j ) {
+                    int t = order[i];
+                    order[i++] = order[j];
+                    order[j--] = t;
+                }
+            }
+            if( k <= j ) {
+                hi = j;
+            } else if( k >= i ) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+
+    private int acquireSlot( RayPicker picker ) {
+        Integer slot = mPickerSlots.get( picker );
+        if( slot != null ) {
+            mPickerRefs[slot]++;
+            return slot;
+        }
+
+        int s = 0;
+        while( s < mPickers.length && mPickers[s] != null ) {
+            s++;
+        }
+        if( s == mPickers.length ) {
+            mPickers    = Arrays.copyOf( mPickers, s * 2 );
+            mPickerRefs = Arrays.copyOf( mPickerRefs, s * 2 );
+        }
+
+        mPickers[s]    = picker;
+        mPickerRefs[s] = 1;
+        mPickerSlots.put( picker, s );
+        return s;
+    }
+
+
+    private void releaseSlot( RayPicker picker, int slot ) {
+        if( --mPickerRefs[slot] == 0 ) {
+            mPickers[slot] = null;
+            mPickerSlots.remove( picker );
+        }
+    }
+
+
+    private void checkOwner( Instance inst ) {
+        if( inst.mOwner != this || inst.mIndex < 0 ) {
+            throw new IllegalArgumentException( "Instance does not belong to this tree." );
+        }
+    }
+
+
+
+    private static final class Result implements IndexedPickResult {
+        final float[] mRayPoint = new float[3];
+        final float[] mRayDir   = new float[3];
+        final Vec3 mLocalPoint  = new Vec3();
+        final Vec3 mLocalDir    = new Vec3();
+        int[] mStack = new int[64];
+
+        // Results for shared pickers, indexed by picker slot.
+        RayPicker[]     mSubPickers = new RayPicker[4];
+        RayPickResult[] mSubResults = new RayPickResult[4];
+
+        boolean  mHasPick    = false;
+        float    mRayDist    = 0;
+        Instance mInstance   = null;
+        DrawTri  mTriangle   = null;
+        int      mTriIndex   = -1;
+        int      mSide       = 0;
+        Vec3     mStartPoint = new Vec3();
+        Vec3     mStopPoint  = new Vec3();
+
+
+        Result() {}
+
+
+        void setRay( Vec3 point, Vec3 dir ) {
+            loadRay( point, dir );
+            Vec.put( point, mStartPoint );
+        }
+
+        /**
+         * Loads ray into working arrays without modifying pick data.
+         */
+        void loadRay( Vec3 point, Vec3 dir ) {
+            mRayPoint[0] = point.x;
+            mRayPoint[1] = point.y;
+            mRayPoint[2] = point.z;
+            mRayDir[0]   = dir.x;
+            mRayDir[1]   = dir.y;
+            mRayDir[2]   = dir.z;
+        }
+
+
+        void setRay( float[] points, float[] dirs, int index ) {
+            mRayPoint[0] = points[index * 3    ];
+            mRayPoint[1] = points[index * 3 + 1];
+            mRayPoint[2] = points[index * 3 + 2];
+            mRayDir[0]   = dirs[index * 3    ];
+            mRayDir[1]   = dirs[index * 3 + 1];
+            mRayDir[2]   = dirs[index * 3 + 2];
+            mStartPoint.x = mRayPoint[0];
+            mStartPoint.y = mRayPoint[1];
+            mStartPoint.z = mRayPoint[2];
+        }
+
+
+        RayPickResult subResult( RayPicker picker, int slot ) {
+            if( slot >= mSubPickers.length ) {
+                int len = Math.max( slot + 1, mSubPickers.length * 2 );
+                mSubPickers = Arrays.copyOf( mSubPickers, len );
+                mSubResults = Arrays.copyOf( mSubResults, len );
+            }
+            if( mSubPickers[slot] != picker ) {
+                mSubPickers[slot] = picker;
+                mSubResults[slot] = picker.newRayPickResult();
+            }
+            return mSubResults[slot];
+        }
+
+
+        @Override
+        public boolean hasPick() {
+            return mHasPick;
+        }
+
+        @Override
+        public float pickedDistance() {
+            return Vec.dist( mStartPoint, mStopPoint );
+        }
+
+        @Override
+        public float pickedParamDistance() {
+            return mRayDist;
+        }
+
+        @Override
+        public Vec3 pickedPoint() {
+            return new Vec3( mStopPoint );
+        }
+
+        @Override
+        public Vec3 pickedPointRef() {
+            return mStopPoint;
+        }
+
+        @Override
+        public DrawTri pickedTriangle() {
+            return mTriangle;
+        }
+
+        @Override
+        public int pickedSide() {
+            return mSide;
+        }
+
+        /**
+         * @return picked {@link Instance}
+         */
+        @Override
+        public Object pickedData() {
+            return mInstance;
+        }
+
+        @Override
+        public int pickedTriangleIndex() {
+            return mHasPick ? mTriIndex : -1;
+        }
+
+    }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.pick;
+
+
+/**
+ * Construction strategies for KdTriangleTree. Higher quality trees
+ * pick faster but take longer to build.
+ *
+ * @author decamp
+ */
+public enum KdBuildQuality {
+
+    /**
+     * Evaluates the surface area heuristic at every candidate split plane and
+     * clips triangles exactly to each node. Produces the best trees in
+     * O(N log N) time.
+     */
+    PERFECT_SPLIT,
+
+    /**
+     * Evaluates the surface area heuristic at a fixed number of evenly spaced
+     * planes per axis and clips triangle bounding boxes to each node. Builds
+     * much faster, but produces somewhat slower trees.
+     */
+    BINNED
+
+}
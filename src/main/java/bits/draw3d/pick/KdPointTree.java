@@ -14,11 +14,31 @@ package bits.draw3d.pick;
 import bits.math3d.VecView;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 
 /**
  * Picks N-dimensional points. Uses euclidean distance to determine nearest
  * neighbor.
+ * <p>
+ * The tree keeps itself balanced under inserts and removals by rebuilding
+ * subtrees, much like a scapegoat tree. An insert that lands too deep rebuilds
+ * the smallest enclosing subtree that has become lopsided. Removed points are
+ * marked and skipped by searches until they make up half of some subtree,
+ * which is then rebuilt without them. Each rebuild touches only the affected
+ * subtree, and amortized cost per update remains O(log n). {@link #optimize()}
+ * may still be called to rebuild the entire tree.
+ * <p>
+ * Points equal to a node along its split dimension may be held in either
+ * subtree, so that runs of duplicate points are split evenly like any other
+ * points rather than forming a chain.
+ * <p>
+ * Searches hold all working data in the result object passed to them, so
+ * any number of threads may search an unmodified tree concurrently, provided
+ * each thread uses its own result objects. Searches must not overlap with
+ * modification of the tree. {@link LockedKdPointTree} may be used to mix
+ * concurrent readers and writers.
  * 
  * @param <P>
  *            Point object type.
@@ -26,14 +46,32 @@ import java.util.*;
  */
 public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
 
+    /** Subtrees with more points than this are built as separate fork/join tasks. */
+    private static final int PARALLEL_BUILD_SIZE = 1 << 14;
+
+    /**
+     * Max fraction of a subtree that may be held by one child. Inserts that
+     * land deeper than a tree with this balance would allow trigger a partial
+     * rebuild, as in a scapegoat tree.
+     */
+    private static final double BALANCE_ALPHA = 0.7;
+    private static final double INV_LOG_ALPHA = 1.0 / Math.log( 1.0 / BALANCE_ALPHA );
+
+    /**
+     * Default budget for {@link #approximatePick(Object, PointPickResult)}, kept
+     * from earlier versions. This budget is large enough that searches rarely stop
+     * early, and can be slower than an exact {@link #pick}. On 200K uniform 8-D points,
+     * it takes roughly twice as long as {@code pick()}. Budgets of 16 to 64 visits
+     * trade 2% to 20% recall for speed; see {@code KdPointTreeTest.runRecallBenchmark}.
+     */
+    public static final int DEFAULT_MAX_LEAF_VISITS = 1000;
+
     private final VecView<? super P> mComp;
 
     private Node mRoot = null;
     private int mSize = 0;
 
     private int mDimCount = 0;
-    private Bounds mBounds = null;
-    private BinSum mMinDist = null;
 
     private int mModCount = 0;
 
@@ -42,6 +80,34 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
         mComp = comp;
     }
 
+    /**
+     * Builds a balanced tree from a set of points. This is much faster than
+     * adding points individually.
+     *
+     * @param comp   Provides point coordinates.
+     * @param points Points to hold in tree.
+     */
+    public KdPointTree( VecView<? super P> comp, Collection<? extends P> points ) {
+        this( comp, points, null );
+    }
+
+    /**
+     * Builds a balanced tree from a set of points, optionally on a ForkJoinPool.
+     *
+     * @param comp   Provides point coordinates.
+     * @param points Points to hold in tree.
+     * @param pool   Pool on which to build large subtrees, or {@code null} to build on calling thread.
+     */
+    public KdPointTree( VecView<? super P> comp, Collection<? extends P> points, ForkJoinPool pool ) {
+        mComp = comp;
+        Object[] arr = points.toArray();
+        if( arr.length > 0 ) {
+            mDimCount = comp.dim();
+            mSize = arr.length;
+            mRoot = build( arr, pool );
+        }
+    }
+
 
     @Override
     public boolean add( P point ) {
@@ -53,37 +119,41 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
             return true;
         }
 
-        mBounds.clear();
         Node node = mRoot;
+        int depth = 0;
 
         do {
             int dim = node.mDim;
             double val1 = mComp.get( point, dim );
-            double val2 = mComp.get( node.mFeature, dim );
-
-            if( val1 < val2 ) {
-                mBounds.mMax[dim] = val2;
-                dim = (dim + 1) % mDimCount;
+            double val2 = node.mVal;
+            node.mCount++;
+            depth++;
 
+            // Ties go to the smaller subtree.
+            if( val1 < val2 || val1 == val2 && count( node.mLess ) < count( node.mMore ) ) {
                 if( node.mLess != null ) {
                     node = node.mLess;
-                } else {
-                    node.mLess = new Node( node, point, dim, mBounds.mMin[dim], mBounds.mMax[dim] );
-                    return true;
+                    continue;
                 }
-
-            } else {
-                mBounds.mMin[dim] = val1;
                 dim = (dim + 1) % mDimCount;
+                node.mLess = new Node( node, point, dim );
+                node = node.mLess;
 
+            } else {
                 if( node.mMore != null ) {
                     node = node.mMore;
-
-                } else {
-                    node.mMore = new Node( node, point, dim, mBounds.mMin[dim], mBounds.mMax[dim] );
-                    return true;
+                    continue;
                 }
+                dim = (dim + 1) % mDimCount;
+                node.mMore = new Node( node, point, dim );
+                node = node.mMore;
             }
+
+            if( depth > maxDepth( mRoot.mCount ) ) {
+                rebuildScapegoat( node );
+            }
+            return true;
+
         } while( true );
     }
 
@@ -110,27 +180,11 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
             return false;
         }
 
-        Node node = mRoot;
         try {
-            while( node != null ) {
-                double val = mComp.get( (P)o, node.mDim );
-                if( val < node.mVal ) {
-                    node = node.mLess;
-
-                } else if( val > node.mVal ) {
-                    node = node.mMore;
-
-                } else if( node.mFeature.equals( o ) ) {
-                    return true;
-
-                }
-            }
-
+            return find( mRoot, (P)o ) != null;
         } catch( ArrayIndexOutOfBoundsException ex ) {
             return false;
         }
-
-        return false;
     }
 
     @Override
@@ -156,57 +210,21 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
     @Override
     @SuppressWarnings( "unchecked" )
     public boolean remove( Object o ) {
-        Node node = mRoot;
-
+        Node node;
         try {
-            while( node != null ) {
-                double val = mComp.get( (P)o, node.mDim );
-
-                if( val < node.mVal ) {
-                    node = node.mLess;
-
-                } else if( val > node.mVal ) {
-                    node = node.mMore;
-
-                } else if( o.equals( node.mFeature ) ) {
-                    mModCount++;
-
-                    if( node.mParent == null ) {
-                        mRoot = null;
-
-                    } else if( node.mParent.mLess == node ) {
-                        node.mParent.mLess = null;
-
-                    } else {
-                        node.mParent.mMore = null;
-                    }
-
-                    List<P> featureList = new ArrayList<P>();
-
-                    if( node.mLess != null ) {
-                        node.mLess.listFeatures( featureList );
-                    }
-
-                    if( node.mMore != null ) {
-                        node.mMore.listFeatures( featureList );
-                    }
-
-                    if( featureList.size() > 0 ) {
-                        mSize -= (1 + featureList.size());
-                        addAll( featureList );
-                    } else {
-                        mSize--;
-                    }
-
-                    return true;
+            node = find( mRoot, (P)o );
+        } catch( ArrayIndexOutOfBoundsException ex ) {
+            return false;
+        }
 
-                } else {
-                    node = node.mMore;
-                }
-            }
-        } catch( ArrayIndexOutOfBoundsException ex ) {}
+        if( node == null ) {
+            return false;
+        }
 
-        return false;
+        mModCount++;
+        mSize--;
+        removeNode( node );
+        return true;
     }
 
     @Override
@@ -292,9 +310,8 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
             return false;
         }
 
-        mMinDist.clear();
-
-        if( !mRoot.findNearest( point, mMinDist, result ) ) {
+        BinSum minDist = result.minDist( mDimCount );
+        if( !mRoot.findNearest( point, minDist, result ) ) {
             return false;
         }
 
@@ -304,7 +321,34 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
     }
 
 
+    /**
+     * Approximate nearest neighbor search with a default budget of
+     * {@value #DEFAULT_MAX_LEAF_VISITS} leaf visits.
+     *
+     * @see #approximatePick(Object, int, double, PointPickResult)
+     */
     public boolean approximatePick( P point, PointPickResult<P> out ) {
+        return approximatePick( point, DEFAULT_MAX_LEAF_VISITS, 0.0, out );
+    }
+
+    /**
+     * Approximate nearest neighbor search using best-bin-first. The search
+     * descends from the root to a leaf along the branches nearest to the query
+     * point, queueing each branch not taken by its distance from the query.
+     * It then repeatedly descends from the nearest queued branch until the
+     * budget of leaf visits is spent, or until no queued branch may hold a
+     * point within {@code 1 / (1 + epsilon)} of the nearest distance found.
+     * <p>
+     * The queue is held in {@code out} and reused, so searches allocate nothing
+     * once it has grown to fit.
+     *
+     * @param point         Query point.
+     * @param maxLeafVisits Max number of descents to a leaf. Larger values give more accurate results.
+     * @param epsilon       Allowed relative error of result distance. Use 0 to stop only on budget or exhaustion.
+     * @param out           Receives result.
+     * @return true if a point was found
+     */
+    public boolean approximatePick( P point, int maxLeafVisits, double epsilon, PointPickResult<P> out ) {
         if( !(out instanceof Result) ) {
             throw new IllegalArgumentException( "Improperly allocated PointPickResult." );
         }
@@ -317,17 +361,51 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
             return false;
         }
 
-        PriorityQueue<Choice<Node>> queue = new PriorityQueue<Choice<Node>>( 1000 );
-        mMinDist.clear();
-
-        mRoot.findApproximateNearest( point, mMinDist, result, queue );
+        // Compare squared distances.
+        final double scale = 1.0 / ( ( 1.0 + epsilon ) * ( 1.0 + epsilon ) );
+        final double[] offsets = result.heapClear( mDimCount );
+        result.heapPush( mRoot, 0.0, offsets );
 
-        for( int i = 0; i < 1000 && !queue.isEmpty(); i++ ) {
-            Choice<Node> choice = queue.remove();
-            if( choice.mDistance > result.mPickDist ) {
+        for( int visits = 0; visits < maxLeafVisits && result.heapSize() > 0; visits++ ) {
+            double bound = result.heapMinKey();
+            if( bound >= result.mPickDist * scale ) {
                 break;
             }
-            mRoot.findApproximateNearest( choice.mNode.mFeature, point, mMinDist, result, queue );
+
+            // Restores offsets from query to cell of branch.
+            @SuppressWarnings( "unchecked" )
+            Node node = (Node)result.heapPop( offsets );
+            while( node != null ) {
+                if( !node.mRemoved ) {
+                    double dist = node.distSq( point );
+                    if( dist < result.mPickDist ) {
+                        result.mPickDist = dist;
+                        result.mPickPoint = node.mFeature;
+                    }
+                }
+
+                double diff = mComp.get( point, node.mDim ) - node.mVal;
+                Node near = diff < 0 ? node.mLess : node.mMore;
+                Node far  = diff < 0 ? node.mMore : node.mLess;
+
+                if( far != null ) {
+                    // Replace offset along split dimension to find distance to far cell.
+                    final int dim = node.mDim;
+                    final double prev = offsets[dim];
+                    final double farBound = bound - prev * prev + diff * diff;
+                    if( farBound < result.mPickDist * scale ) {
+                        offsets[dim] = diff;
+                        result.heapPush( far, farBound, offsets );
+                        offsets[dim] = prev;
+                    }
+                }
+
+                node = near;
+            }
+        }
+
+        if( result.mPickDist == Double.POSITIVE_INFINITY ) {
+            return false;
         }
 
         result.mHasPick = true;
@@ -336,100 +414,331 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
     }
 
 
+    /**
+     * Finds the {@code k} points nearest to a query point. This search is exact.
+     *
+     * @param point Query point.
+     * @param k     Max number of neighbors to find.
+     * @param out   Receives neighbors, sorted by ascending distance. May be reused across calls.
+     * @return number of neighbors found, which is {@code min( k, size() )}
+     */
+    public int pickNearest( P point, int k, PointNeighbors<P> out ) {
+        out.reset( Math.max( 0, k ) );
+        if( mRoot == null || k <= 0 ) {
+            return 0;
+        }
+
+        mRoot.findNearest( point, out.minDist( mDimCount ), out );
+        out.finish();
+        return out.size();
+    }
+
+    /**
+     * Finds all points within a given distance of a query point.
+     *
+     * @param point  Query point.
+     * @param radius Max distance from query point, inclusive.
+     * @param out    Receives points within radius, in no particular order.
+     * @return number of points added to {@code out}
+     */
+    public int pickInRadius( P point, double radius, Collection<? super P> out ) {
+        if( mRoot == null || !( radius >= 0 ) ) {
+            return 0;
+        }
+
+        return mRoot.findInRadius( point, radius * radius, new BinSum( mDimCount ), out );
+    }
+
+
+    /**
+     * Rebuilds tree so that it is balanced.
+     */
     public void optimize() {
+        optimize( null );
+    }
+
+    /**
+     * Rebuilds tree so that it is balanced, optionally on a ForkJoinPool.
+     *
+     * @param pool Pool on which to build large subtrees, or {@code null} to build on calling thread.
+     */
+    public void optimize( ForkJoinPool pool ) {
         if( mRoot == null ) {
             return;
         }
 
         mModCount++;
-        List<P> list = new ArrayList<P>( mSize );
-        Bounds range = new Bounds( mDimCount );
-        mRoot.listFeatures( list );
-        mBounds.clear();
+        Object[] arr = toArray();
+        mRoot = build( arr, pool );
+    }
 
-        mRoot = balance( null, mBounds, list, range );
+
+
+    /**
+     * @return number of levels in tree, for testing.
+     */
+    int depth() {
+        return depth( mRoot );
     }
 
 
+    private static int depth( KdPointTree<?>.Node node ) {
+        if( node == null ) {
+            return 0;
+        }
+        return 1 + Math.max( depth( node.mLess ), depth( node.mMore ) );
+    }
+
+
+    private static int count( KdPointTree<?>.Node node ) {
+        return node == null ? 0 : node.mCount;
+    }
+
+    /**
+     * @return node holding {@code point} that has not been removed, or {@code null} if none
+     */
+    private Node find( Node node, P point ) {
+        while( node != null ) {
+            double val = mComp.get( point, node.mDim );
+            if( val < node.mVal ) {
+                node = node.mLess;
+            } else if( val > node.mVal ) {
+                node = node.mMore;
+            } else {
+                // Point may be on either side of a tie.
+                if( !node.mRemoved && point.equals( node.mFeature ) ) {
+                    return node;
+                }
+                Node ret = find( node.mLess, point );
+                if( ret != null ) {
+                    return ret;
+                }
+                node = node.mMore;
+            }
+        }
+        return null;
+    }
+
 
     private void addFirst( P feature ) {
-        mRoot = new Node( null, feature, 0, Float.MIN_VALUE, Float.MAX_VALUE );
+        mRoot = new Node( null, feature, 0 );
         mDimCount = mComp.dim();
-        mBounds = new Bounds( mDimCount );
-        mMinDist = new BinSum( mDimCount );
     }
 
+    /**
+     * @return max depth allowed for a tree with {@code count} nodes before it is rebalanced.
+     */
+    private static int maxDepth( int count ) {
+        return (int)( Math.log( count ) * INV_LOG_ALPHA ) + 1;
+    }
 
-    private Node balance( Node parent, Bounds bounds, List<P> list, Bounds range ) {
-        if( list.size() == 0 ) {
-            return null;
+    /**
+     * Called after inserting a node that is too deep. Finds the lowest ancestor
+     * that is out of weight-balance, and rebuilds its subtree.
+     */
+    private void rebuildScapegoat( Node node ) {
+        Node child = node;
+        node = node.mParent;
+
+        while( node != null ) {
+            if( child.mCount > BALANCE_ALPHA * node.mCount ) {
+                rebuild( node );
+                return;
+            }
+            child = node;
+            node = node.mParent;
         }
+    }
 
-        // Determine variances.
-        Arrays.fill( range.mMin, 0f );
-        Arrays.fill( range.mMax, 0f );
-        double scale = 1f / list.size();
-
-        for( P f : list ) {
-            for( int i = 0; i < mDimCount; i++ ) {
-                range.mMin[i] += mComp.get( f, i );
+    /**
+     * Marks a node as removed. Once removed nodes make up more than half of a
+     * subtree, the highest such subtree is rebuilt without them.
+     */
+    private void removeNode( Node node ) {
+        node.mRemoved = true;
+        Node target = null;
+
+        for( Node n = node; n != null; n = n.mParent ) {
+            n.mRemovedCount++;
+            if( n.mRemovedCount * 2 > n.mCount ) {
+                target = n;
             }
         }
 
-        for( int i = 0; i < mDimCount; i++ ) {
-            range.mMin[i] *= scale;
+        if( target != null ) {
+            rebuild( target );
         }
+    }
 
-        for( P f : list ) {
-            for( int i = 0; i < mDimCount; i++ ) {
-                double d = mComp.get( f, i ) - range.mMin[i];
-                range.mMax[i] += d * d;
-            }
+    /**
+     * Replaces a subtree with a balanced subtree holding only the points that
+     * have not been removed, and updates the node counts of its ancestors.
+     */
+    private void rebuild( Node node ) {
+        final Node parent = node.mParent;
+        final int dropped = node.mRemovedCount;
+        final int size = node.mCount - dropped;
+
+        Object[] arr = new Object[size];
+        node.toArray( arr, 0 );
+        Node rebuilt = build( parent, arr, 0, size, new double[mDimCount * 2] );
+
+        if( parent == null ) {
+            mRoot = rebuilt;
+        } else if( parent.mLess == node ) {
+            parent.mLess = rebuilt;
+        } else {
+            parent.mMore = rebuilt;
         }
 
-        for( int i = 0; i < mDimCount; i++ ) {
-            range.mMax[i] *= scale;
+        for( Node p = parent; p != null; p = p.mParent ) {
+            p.mCount -= dropped;
+            p.mRemovedCount -= dropped;
         }
+    }
 
+    /**
+     * Builds a balanced tree over an array of points. The array is partitioned
+     * in place; no other storage is allocated aside from the nodes.
+     */
+    private Node build( Object[] arr, ForkJoinPool pool ) {
+        if( pool == null || arr.length <= PARALLEL_BUILD_SIZE ) {
+            return build( null, arr, 0, arr.length, new double[mDimCount * 2] );
+        }
 
-        // Get the dimension with the maximum variance.
-        int maxIndex = 0;
-        double maxVar = Float.MIN_VALUE;
+        return pool.invoke( new BuildTask( null, arr, 0, arr.length ) );
+    }
 
-        for( int i = 0; i < mDimCount; i++ ) {
-            if( range.mMax[i] > maxVar ) {
-                maxVar = range.mMax[i];
-                maxIndex = i;
+    /**
+     * Builds subtree over {@code arr[lo,hi)}.
+     *
+     * @param scratch Working space of size {@code 2 * mDimCount}.
+     */
+    @SuppressWarnings( "unchecked" )
+    private Node build( Node parent, Object[] arr, int lo, int hi, double[] scratch ) {
+        if( lo >= hi ) {
+            return null;
+        }
+
+        final int axis = splitAxis( arr, lo, hi, scratch );
+        final int mid  = partition( arr, lo, hi, axis );
+        final Node node = new Node( parent, (P)arr[mid], axis );
+        node.mLess = build( node, arr, lo, mid, scratch );
+        node.mMore = build( node, arr, mid + 1, hi, scratch );
+
+        node.mCount = hi - lo;
+        return node;
+    }
+
+    /**
+     * @return dimension of greatest variance among {@code arr[lo,hi)}.
+     */
+    @SuppressWarnings( "unchecked" )
+    private int splitAxis( Object[] arr, int lo, int hi, double[] scratch ) {
+        final int dimCount = mDimCount;
+        final double scale = 1.0 / ( hi - lo );
+        Arrays.fill( scratch, 0.0 );
+
+        // Determine means, held in scratch[0,dimCount).
+        for( int i = lo; i < hi; i++ ) {
+            P f = (P)arr[i];
+            for( int d = 0; d < dimCount; d++ ) {
+                scratch[d] += mComp.get( f, d );
             }
         }
+        for( int d = 0; d < dimCount; d++ ) {
+            scratch[d] *= scale;
+        }
 
-        // Sort list according to this dimension and dived list into left,
-        // center, and right portions.
-        Collections.sort( list, new DimComp( maxIndex ) );
+        // Determine variances, held in scratch[dimCount,2*dimCount).
+        for( int i = lo; i < hi; i++ ) {
+            P f = (P)arr[i];
+            for( int d = 0; d < dimCount; d++ ) {
+                double v = mComp.get( f, d ) - scratch[d];
+                scratch[dimCount + d] += v * v;
+            }
+        }
 
-        int size = list.size();
-        List<P> rightList = new ArrayList<P>( size );
-        for( int i = size - 1; i > size / 2; i-- ) {
-            rightList.add( list.remove( i ) );
+        int axis = 0;
+        double maxVar = scratch[dimCount];
+        for( int d = 1; d < dimCount; d++ ) {
+            if( scratch[dimCount + d] > maxVar ) {
+                maxVar = scratch[dimCount + d];
+                axis = d;
+            }
         }
 
-        P nodeFeature = list.remove( size / 2 );
-        // double[] nodeVector = nodeFeature.vectorRef();
-        Node newNode = new Node( parent, nodeFeature, maxIndex, mBounds.mMin[maxIndex], mBounds.mMax[maxIndex] );
+        return axis;
+    }
 
-        bounds.mMin[maxIndex] = mComp.get( nodeFeature, maxIndex );
-        newNode.mLess = balance( newNode, bounds, list, range );
-        bounds.mMin[maxIndex] = newNode.mMin;
+    /**
+     * Partitions {@code arr[lo,hi)} about its median along {@code axis}.
+     * On return, every point before the median is less than or equal to it
+     * along axis, and every point after it is greater or equal. Points equal
+     * to the median may fall on either side, which keeps subtrees balanced
+     * when many points share a coordinate.
+     *
+     * @return index of median
+     */
+    private int partition( Object[] arr, int lo, int hi, int axis ) {
+        int mid = ( lo + hi ) >>> 1;
+        select( arr, lo, hi - 1, mid, axis );
+        return mid;
+    }
 
-        bounds.mMax[maxIndex] = mComp.get( nodeFeature, maxIndex );
-        newNode.mMore = balance( newNode, bounds, rightList, range );
-        bounds.mMax[maxIndex] = newNode.mMax;
+    /**
+     * Quickselect. Partially sorts {@code arr[lo,hi]} along {@code axis} so that
+     * element {@code k} is in its sorted position, with lesser-or-equal points
+     * before it and greater-or-equal points after.
+     */
+    @SuppressWarnings( "unchecked" )
+    private void select( Object[] arr, int lo, int hi, int k, int axis ) {
+        final VecView<? super P> comp = mComp;
+
+        while( hi > lo ) {
+            // Median-of-three pivot, moved to arr[lo].
+            int m = ( lo + hi ) >>> 1;
+            if( comp.get( (P)arr[m], axis ) < comp.get( (P)arr[lo], axis ) ) {
+                swap( arr, m, lo );
+            }
+            if( comp.get( (P)arr[hi], axis ) < comp.get( (P)arr[lo], axis ) ) {
+                swap( arr, hi, lo );
+            }
+            if( comp.get( (P)arr[hi], axis ) < comp.get( (P)arr[m], axis ) ) {
+                swap( arr, hi, m );
+            }
+            swap( arr, lo, m );
 
-        // Return list to previous state.
-        list.add( nodeFeature );
-        list.addAll( rightList );
+            final double pivot = comp.get( (P)arr[lo], axis );
+            int i = lo;
+            int j = hi + 1;
 
-        return newNode;
+            while( true ) {
+                while( i < hi && comp.get( (P)arr[++i], axis ) < pivot ) {}
+                while( pivot < comp.get( (P)arr[--j], axis ) ) {}
+                if( i >= j ) {
+                    break;
+                }
+                swap( arr, i, j );
+            }
+
+            swap( arr, lo, j );
+
+            if( j == k ) {
+                return;
+            } else if( j < k ) {
+                lo = j + 1;
+            } else {
+                hi = j - 1;
+            }
+        }
+    }
+
+
+    private static void swap( Object[] arr, int i, int j ) {
+        Object t = arr[i];
+        arr[i] = arr[j];
+        arr[j] = t;
     }
 
 
@@ -440,36 +749,34 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
         public final P mFeature;
         public final int mDim;
         public final double mVal;
-        public final double mMin;
-        public final double mMax;
 
         public Node mLess = null;
         public Node mMore = null;
 
+        /** Number of nodes in subtree, including removed nodes. */
+        public int mCount = 1;
+        /** Number of removed nodes in subtree. */
+        public int mRemovedCount = 0;
+        /** Removed nodes are kept in place to guide searches until their subtree is rebuilt. */
+        public boolean mRemoved = false;
+
 
-        public Node( Node parent, P feature, int dim, double min, double max ) {
+        public Node( Node parent, P feature, int dim ) {
             mParent = parent;
             mFeature = feature;
             mDim = dim;
             mVal = mComp.get( feature, dim );
-            mMin = min;
-            mMax = max;
         }
 
 
 
         public boolean findNearest( P feature, BinSum minDist, Result<P> result ) {
-            final int dimCount = mComp.dim();
-            double dist = 0f;
-
-            for( int i = 0; i < dimCount; i++ ) {
-                double d = mComp.get( feature, i ) - mComp.get( mFeature, i );
-                dist += d * d;
-            }
-
-            if( dist < result.mPickDist ) {
-                result.mPickDist = dist;
-                result.mPickPoint = mFeature;
+            if( !mRemoved ) {
+                double dist = distSq( feature );
+                if( dist < result.mPickDist ) {
+                    result.mPickDist = dist;
+                    result.mPickPoint = mFeature;
+                }
             }
 
             double val = mComp.get( feature, mDim );
@@ -511,118 +818,83 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
         }
 
 
-        public void listFeatures( List<P> list ) {
-            list.add( mFeature );
-
-            if( mLess != null ) {
-                mLess.listFeatures( list );
-            }
-            if( mMore != null ) {
-                mMore.listFeatures( list );
-            }
-        }
-
-
-        public void findApproximateNearest( P startVec,
-                                            P vec,
-                                            BinSum minDist,
-                                            Result<P> result,
-                                            PriorityQueue<Choice<Node>> queue )
-        {
-            if( mFeature == startVec ) {
-                findApproximateNearest( vec, minDist, result, queue );
-
-            } else if( mComp.get( startVec, mDim ) < mVal ) {
-                if( mLess == null ) {
-                    return;
+        public void findNearest( P feature, BinSum minDist, PointNeighbors<P> out ) {
+            if( !mRemoved ) {
+                double dist = distSq( feature );
+                if( dist < out.limit() ) {
+                    out.offer( mFeature, dist );
                 }
+            }
 
-                double val = mComp.get( vec, mDim );
+            double val = mComp.get( feature, mDim );
+            Node near = val < mVal ? mLess : mMore;
+            Node far  = val < mVal ? mMore : mLess;
 
-                if( val > mVal ) {
-                    double d = minDist.getBin( mDim );
-                    minDist.setBin( mDim, (val - mVal) * (val - mVal) );
-                    mLess.findApproximateNearest( startVec, vec, minDist, result, queue );
-                    minDist.setBin( mDim, d );
+            if( near != null ) {
+                near.findNearest( feature, minDist, out );
+            }
 
-                } else {
-                    mLess.findApproximateNearest( startVec, vec, minDist, result, queue );
+            // Check if the other side of the tree can contain any nearer points.
+            if( far != null ) {
+                double prevDist = minDist.getBin( mDim );
+                double newDist = minDist.setBin( mDim, (mVal - val) * (mVal - val) );
 
+                if( newDist < out.limit() ) {
+                    far.findNearest( feature, minDist, out );
                 }
 
-            } else {
-                if( mMore == null ) {
-                    return;
-                }
-
-                double val = mComp.get( vec, mDim );
-                if( val < mVal ) {
-                    minDist.setBin( mDim, (val - mVal) * (val - mVal) );
-                    mMore.findApproximateNearest( startVec, vec, minDist, result, queue );
-                } else {
-                    mMore.findApproximateNearest( startVec, vec, minDist, result, queue );
-                }
+                minDist.setBin( mDim, prevDist );
             }
         }
 
 
-        public void findApproximateNearest( P feature,
-                                            BinSum minDist,
-                                            Result<P> result,
-                                            PriorityQueue<Choice<Node>> queue )
-        {
-            int dimCount = mComp.dim();
-            double dist = 0f;
+        public int findInRadius( P feature, double radSq, BinSum minDist, Collection<? super P> out ) {
+            int count = 0;
+            if( !mRemoved && distSq( feature ) <= radSq ) {
+                out.add( mFeature );
+                count++;
+            }
+
             double val = mComp.get( feature, mDim );
+            Node near = val < mVal ? mLess : mMore;
+            Node far  = val < mVal ? mMore : mLess;
 
-            for( int i = 0; i < dimCount; i++ ) {
-                double d = mComp.get( feature, i ) - mComp.get( mFeature, i );
-                dist += d * d;
+            if( near != null ) {
+                count += near.findInRadius( feature, radSq, minDist, out );
             }
 
-            if( dist < result.mPickDist ) {
-                result.mPickDist = dist;
-                result.mPickPoint = mFeature;
-            }
+            if( far != null ) {
+                double prevDist = minDist.getBin( mDim );
+                double newDist = minDist.setBin( mDim, (mVal - val) * (mVal - val) );
 
-            if( val < mVal ) {
-                if( mLess != null ) {
-                    mLess.findApproximateNearest( feature, minDist, result, queue );
+                if( newDist <= radSq ) {
+                    count += far.findInRadius( feature, radSq, minDist, out );
                 }
 
-                if( mMore != null ) {
-                    double prevDist = minDist.getBin( mDim );
-                    double newDist = minDist.setBin( mDim, (mVal - val) * (mVal - val) );
-
-                    if( newDist < result.mPickDist ) {
-                        queue.offer( new Choice<Node>( newDist, mMore ) );
-                    }
-
-                    minDist.setBin( mDim, prevDist );
-                }
+                minDist.setBin( mDim, prevDist );
+            }
 
-            } else {
-                if( mMore != null ) {
-                    mMore.findApproximateNearest( feature, minDist, result, queue );
-                }
+            return count;
+        }
 
-                if( mLess != null ) {
-                    double prevDist = minDist.getBin( mDim );
-                    double newDist = minDist.setBin( mDim, (val - mVal) * (val - mVal) );
 
-                    if( newDist < result.mPickDist ) {
-                        queue.offer( new Choice<Node>( newDist, mLess ) );
-                    }
+        public void listFeatures( List<P> list ) {
+            if( !mRemoved ) {
+                list.add( mFeature );
+            }
 
-                    minDist.setBin( mDim, prevDist );
-                }
+            if( mLess != null ) {
+                mLess.listFeatures( list );
+            }
+            if( mMore != null ) {
+                mMore.listFeatures( list );
             }
         }
-        
+
 
         @Override
         public int hashCode() {
-            int code = mFeature.hashCode();
+            int code = mRemoved ? 0 : mFeature.hashCode();
             if( mLess != null ) {
                 code += mLess.hashCode();
             }
@@ -633,8 +905,21 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
         }
 
 
+        public double distSq( P feature ) {
+            final int dimCount = mDimCount;
+            double dist = 0.0;
+            for( int i = 0; i < dimCount; i++ ) {
+                double d = mComp.get( feature, i ) - mComp.get( mFeature, i );
+                dist += d * d;
+            }
+            return dist;
+        }
+
+
         public int toArray( Object[] arr, int index ) {
-            arr[index++] = mFeature;
+            if( !mRemoved ) {
+                arr[index++] = mFeature;
+            }
 
             if( mLess != null ) {
                 index = mLess.toArray( arr, index );
@@ -680,73 +965,47 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
                 throw new NoSuchElementException();
             }
 
-            if( mIndex == 1 ) {
-                mCurrent = mRoot;
-
-                while( mCurrent.mLess != null ) {
-                    mCurrent = mCurrent.mLess;
-                }
-
-                return mCurrent.mFeature;
-            }
-
-            if( mCurrent.mMore != null ) {
-                mCurrent = mCurrent.mMore;
-
-                while( mCurrent.mLess != null ) {
-                    mCurrent = mCurrent.mLess;
-                }
-
-                return mCurrent.mFeature;
-            }
-
-
+            // Advance in-order, skipping removed nodes.
             do {
-                if( mCurrent == mCurrent.mParent.mLess ) {
-                    mCurrent = mCurrent.mParent;
-                    return mCurrent.mFeature;
-                }
+                mCurrent = mCurrent == null ? first( mRoot ) : successor( mCurrent );
+            } while( mCurrent.mRemoved );
 
-                mCurrent = mCurrent.mParent;
-            } while( true );
+            return mCurrent.mFeature;
         }
 
         @Override
         public void remove() {
             throw new UnsupportedOperationException();
         }
-    }
-
-
-
-    private final class DimComp implements Comparator<P> {
-
-        private final int mDim;
 
 
-        DimComp( int dim ) {
-            mDim = dim;
+        private Node first( Node node ) {
+            while( node.mLess != null ) {
+                node = node.mLess;
+            }
+            return node;
         }
 
 
-        @Override
-        public int compare( P a, P b ) {
-            double va = mComp.get( a, mDim );
-            double vb = mComp.get( b, mDim );
-
-            if( va < vb ) {
-                return -1;
-            } else if( va > vb ) {
-                return 1;
-            } else {
-                return 0;
+        private Node successor( Node node ) {
+            if( node.mMore != null ) {
+                return first( node.mMore );
             }
+            while( node == node.mParent.mMore ) {
+                node = node.mParent;
+            }
+            return node.mParent;
         }
     }
 
 
 
-    private static final class BinSum {
+    /**
+     * Per-dimension squared distances from a query point to the current cell,
+     * used to prune searches. Held by result objects so that searches do not
+     * share state.
+     */
+    static final class BinSum {
         private final double[] mBin;
         private double mTotal = 0f;
 
@@ -760,6 +1019,10 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
             mTotal = 0f;
         }
 
+        public int size() {
+            return mBin.length;
+        }
+
         public double getBin( int dim ) {
             return mBin[dim];
         }
@@ -775,56 +1038,174 @@ public class KdPointTree<P> implements Collection<P>, PointPicker<P> {
 
 
 
-    private static final class Bounds {
-        final double[] mMin;
-        final double[] mMax;
+    private final class BuildTask extends RecursiveTask<Node> {
+        private final Node mParent;
+        private final Object[] mArr;
+        private final int mLo;
+        private final int mHi;
 
-        public Bounds( int dimCount ) {
-            mMin = new double[dimCount];
-            mMax = new double[dimCount];
+        BuildTask( Node parent, Object[] arr, int lo, int hi ) {
+            mParent = parent;
+            mArr    = arr;
+            mLo     = lo;
+            mHi     = hi;
         }
 
+        @Override
+        @SuppressWarnings( "unchecked" )
+        protected Node compute() {
+            double[] scratch = new double[mDimCount * 2];
+            if( mHi - mLo <= PARALLEL_BUILD_SIZE ) {
+                return build( mParent, mArr, mLo, mHi, scratch );
+            }
 
-        public void clear() {
-            Arrays.fill( mMin, 0f );
-            Arrays.fill( mMax, 0f );
+            final int axis = splitAxis( mArr, mLo, mHi, scratch );
+            final int mid  = partition( mArr, mLo, mHi, axis );
+            final Node node = new Node( mParent, (P)mArr[mid], axis );
+            BuildTask less = new BuildTask( node, mArr, mLo, mid );
+            less.fork();
+            node.mMore = new BuildTask( node, mArr, mid + 1, mHi ).compute();
+            node.mLess = less.join();
+            node.mCount = mHi - mLo;
+            return node;
         }
-
     }
 
 
 
-    private static final class Choice<N> implements Comparable<Choice<?>> {
-        public final double mDistance;
-        public final N mNode;
+    private static final class Result<P> implements PointPickResult<P> {
+
+        boolean mHasPick = false;
+        double mPickDist = 0.0;
+        P mPickPoint = null;
 
-        public Choice( double distance, N node ) {
-            mDistance = distance;
-            mNode = node;
+        private BinSum mMinDist = null;
+
+        // Min-heap of branches queued by approximatePick(), keyed by squared distance.
+        // Each entry holds a node and the per-dimension offsets from the query point
+        // to the node's cell. Entries are stored in order of insertion and referenced
+        // by index from the heap.
+        private int mHeapDim = 0;
+        private Object[] mEntryNodes   = null;
+        private double[] mEntryOffsets = null;
+        private double[] mEntryOffsetsWork = null;
+        private int mEntryCount = 0;
+        private int[] mHeapIds     = null;
+        private double[] mHeapKeys = null;
+        private int mHeapSize = 0;
+
+
+        BinSum minDist( int dimCount ) {
+            if( mMinDist == null || mMinDist.size() != dimCount ) {
+                mMinDist = new BinSum( dimCount );
+            } else {
+                mMinDist.clear();
+            }
+            return mMinDist;
         }
 
 
-        @Override
-        public int compareTo( Choice<?> c ) {
-            if( this == c ) {
-                return 0;
+        /**
+         * Clears heap.
+         *
+         * @return cleared working array to hold offsets from query point to current cell.
+         */
+        double[] heapClear( int dim ) {
+            if( mEntryNodes == null || mHeapDim != dim ) {
+                mHeapDim = dim;
+                mEntryNodes   = new Object[64];
+                mEntryOffsets = new double[64 * dim];
+                mEntryOffsetsWork = new double[dim];
+                mHeapIds  = new int[64];
+                mHeapKeys = new double[64];
+            } else {
+                Arrays.fill( mEntryNodes, 0, mEntryCount, null );
+                Arrays.fill( mEntryOffsetsWork, 0.0 );
+            }
+            mEntryCount = 0;
+            mHeapSize = 0;
+            return mEntryOffsetsWork;
+        }
+
+
+        int heapSize() {
+            return mHeapSize;
+        }
+
+
+        double heapMinKey() {
+            return mHeapKeys[0];
+        }
+
+
+        void heapPush( Object node, double key, double[] offsets ) {
+            final int dim = mHeapDim;
+            final int id  = mEntryCount++;
+            if( id == mEntryNodes.length ) {
+                mEntryNodes   = Arrays.copyOf( mEntryNodes, id * 2 );
+                mEntryOffsets = Arrays.copyOf( mEntryOffsets, id * 2 * dim );
             }
+            mEntryNodes[id] = node;
+            System.arraycopy( offsets, 0, mEntryOffsets, id * dim, dim );
 
-            if( mDistance < c.mDistance ) {
-                return -1;
+            if( mHeapSize == mHeapIds.length ) {
+                mHeapIds  = Arrays.copyOf( mHeapIds, mHeapSize * 2 );
+                mHeapKeys = Arrays.copyOf( mHeapKeys, mHeapSize * 2 );
+            }
+
+            int i = mHeapSize++;
+            while( i > 0 ) {
+                int parent = ( i - 1 ) >> 1;
+                if( mHeapKeys[parent] <= key ) {
+                    break;
+                }
+                mHeapIds[i]  = mHeapIds[parent];
+                mHeapKeys[i] = mHeapKeys[parent];
+                i = parent;
             }
 
-            return 1;
+            mHeapIds[i]  = id;
+            mHeapKeys[i] = key;
         }
-    }
 
-    
+        /**
+         * Removes nearest entry from heap.
+         *
+         * @param outOffsets Receives offsets from query point to cell of entry.
+         * @return node of entry
+         */
+        Object heapPop( double[] outOffsets ) {
+            final int ret = mHeapIds[0];
+            final int size = --mHeapSize;
+            final int id = mHeapIds[size];
+            final double key = mHeapKeys[size];
+
+            int i = 0;
+            while( true ) {
+                int c = 2 * i + 1;
+                if( c >= size ) {
+                    break;
+                }
+                if( c + 1 < size && mHeapKeys[c + 1] < mHeapKeys[c] ) {
+                    c++;
+                }
+                if( key <= mHeapKeys[c] ) {
+                    break;
+                }
+                mHeapIds[i]  = mHeapIds[c];
+                mHeapKeys[i] = mHeapKeys[c];
+                i = c;
+            }
 
-    private static final class Result<P> implements PointPickResult<P> {
+            if( size > 0 ) {
+                mHeapIds[i]  = id;
+                mHeapKeys[i] = key;
+            }
+
+            System.arraycopy( mEntryOffsets, ret * mHeapDim, outOffsets, 0, mHeapDim );
+            return mEntryNodes[ret];
+        }
 
-        boolean mHasPick = false;
-        double mPickDist = 0.0;
-        P mPickPoint = null;
 
         @Override
         public boolean hasPick() {
@@ -0,0 +1,528 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.pick;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import bits.math3d.*;
+
+import static java.lang.Float.POSITIVE_INFINITY;
+import static bits.draw3d.pick.KdTriangleTree.*;
+
+
+/**
+ * Ray traversal of the flat node layout used by {@link KdTriangleTree} and
+ * {@link MappedKdTriangleTree}. The traversal is written twice: once over
+ * arrays, for trees built on the heap, and once over buffers read with absolute
+ * gets only, for mapped snapshots. Reading heap trees through wrapped buffers
+ * costs too much in the inner loop. Both versions share the triangle test of
+ * {@link TriangleIntersector}.
+ * <p>
+ * Each instance holds the working state and nearest pick of one traversal at
+ * a time. Pick results of both trees extend this class.
+ *
+ * @author decamp
+ */
+class KdTraversal {
+
+    final TriangleIntersector mIntersector     = new TriangleIntersector();
+    final RayIntersection     mRayIntersection = new RayIntersection();
+
+    final float[] mRayPoint = new float[3];
+    final float[] mRayDir   = new float[3];
+    final float[] mRange    = new float[2];
+
+    // Traversal stack. Holds at most one deferred node per tree level.
+    final int[]   mStackNodes = new int[TERM_DEPTH + 2];
+    final float[] mStackMin   = new float[TERM_DEPTH + 2];
+    final float[] mStackMax   = new float[TERM_DEPTH + 2];
+
+    boolean  mHasPick    = false;
+    float    mRayDist    = 0;
+    int      mTriIndex   = -1;
+    int      mSide       = 0;
+    Vec3     mStartPoint = new Vec3();
+    Vec3     mStopPoint  = new Vec3();
+
+
+    KdTraversal() {}
+
+
+    /**
+     * Loads ray into working arrays without modifying pick data.
+     */
+    final void loadRay( Vec3 point, Vec3 dir ) {
+        mRayPoint[0] = point.x;
+        mRayPoint[1] = point.y;
+        mRayPoint[2] = point.z;
+        mRayDir[0]   = dir.x;
+        mRayDir[1]   = dir.y;
+        mRayDir[2]   = dir.z;
+    }
+
+
+    final void loadRay( float[] points, float[] dirs, int index ) {
+        mRayPoint[0] = points[index * 3    ];
+        mRayPoint[1] = points[index * 3 + 1];
+        mRayPoint[2] = points[index * 3 + 2];
+        mRayDir[0]   = dirs[index * 3    ];
+        mRayDir[1]   = dirs[index * 3 + 1];
+        mRayDir[2]   = dirs[index * 3 + 2];
+    }
+
+    /**
+     * Finds nearest intersection of loaded ray and writes it to pick data.
+     *
+     * @param nodes    Flat node array.
+     * @param leafTris Triangle indices referenced by leaves.
+     * @param triData  Triangle records created by {@link TriangleIntersector#packTriangles}.
+     * @param bounds   Bounds of tree as {@code [x0, y0, z0, x1, y1, z1]}.
+     * @return true iff ray intersects a triangle
+     */
+    final boolean pick( int[] nodes, int[] leafTris, float[] triData, float[] bounds, int sides ) {
+        final float[] rayPoint = mRayPoint;
+        mHasPick = false;
+        mRayDist = POSITIVE_INFINITY;
+        mStartPoint.x = rayPoint[0];
+        mStartPoint.y = rayPoint[1];
+        mStartPoint.z = rayPoint[2];
+
+        final float[] range = mRange;
+        if( !clipToBounds( bounds, rayPoint, mRayDir, range ) ) {
+            return false;
+        }
+
+        return intersectTree( nodes, leafTris, triData, range[0], range[1], sides, false, POSITIVE_INFINITY );
+    }
+
+    /**
+     * Tests if loaded ray intersects any triangle within {@code maxDist}. Pick
+     * data is not modified.
+     */
+    final boolean occluded( int[] nodes,
+                            int[] leafTris,
+                            float[] triData,
+                            float[] bounds,
+                            float maxDist,
+                            int sides )
+    {
+        final float[] range = mRange;
+        if( !clipToBounds( bounds, mRayPoint, mRayDir, range ) || range[0] > maxDist ) {
+            return false;
+        }
+
+        return intersectTree( nodes, leafTris, triData, range[0], Math.min( range[1], maxDist ), sides, true, maxDist );
+    }
+
+    /**
+     * Traverses tree front-to-back, using the stack held in this object.
+     * Once a pick is found, deferred nodes that lie farther along the ray are
+     * skipped. Only rays that lie in a split plane defer nodes over overlapping
+     * ranges.
+     *
+     * @param anyHit   If true, traversal stops at the first intersection found at or
+     *                 before {@code hitLimit}, and no pick is written.
+     * @param hitLimit Max distance of intersections accepted when {@code anyHit} is set.
+     */
+    private boolean intersectTree( int[] nodes,
+                                   int[] leafTris,
+                                   float[] triData,
+                                   float minDist,
+                                   float maxDist,
+                                   int sides,
+                                   boolean anyHit,
+                                   float hitLimit )
+    {
+        final float[] rayPoint  = mRayPoint;
+        final float[] rayDir    = mRayDir;
+        final int[] stackNodes  = mStackNodes;
+        final float[] stackMin  = mStackMin;
+        final float[] stackMax  = mStackMax;
+
+        int stackSize = 1;
+        stackNodes[0] = 0;
+        stackMin[0]   = minDist;
+        stackMax[0]   = maxDist;
+
+        while( stackSize > 0 ) {
+            stackSize--;
+            int node = stackNodes[stackSize];
+            minDist  = stackMin[stackSize];
+            maxDist  = stackMax[stackSize];
+
+            // Skip deferred nodes beyond the pick found so far.
+            if( minDist > mRayDist && !anyHit ) {
+                continue;
+            }
+
+            while( true ) {
+                final int head = nodes[node * NODE_SIZE];
+                final int axis = head & AXIS_MASK;
+
+                if( axis == LEAF_FLAG ) {
+                    if( anyHit ) {
+                        if( occludeLeaf( leafTris,
+                                         triData,
+                                         head >>> NODE_SHIFT,
+                                         nodes[node * NODE_SIZE + 1],
+                                         hitLimit,
+                                         sides ) )
+                        {
+                            return true;
+                        }
+                    } else {
+                        intersectLeaf( leafTris,
+                                       triData,
+                                       head >>> NODE_SHIFT,
+                                       nodes[node * NODE_SIZE + 1],
+                                       minDist,
+                                       maxDist,
+                                       sides );
+                    }
+                    break;
+                }
+
+                final float splitPos = Float.intBitsToFloat( nodes[node * NODE_SIZE + 1] );
+                final float tSplit = (splitPos - rayPoint[axis]) / rayDir[axis];
+
+                // Determine which node is closest.
+                final int nearNode;
+                final int farNode;
+
+                if( rayPoint[axis] < splitPos ) {
+                    nearNode = node + 1;
+                    farNode  = head >>> NODE_SHIFT;
+                } else {
+                    nearNode = head >>> NODE_SHIFT;
+                    farNode  = node + 1;
+                }
+
+                if( tSplit != tSplit ) {
+                    // Ray lies in split plane, where triangles may belong to either
+                    // child. Visit both over the same range.
+                    stackNodes[stackSize] = farNode;
+                    stackMin[stackSize]   = minDist;
+                    stackMax[stackSize]   = maxDist;
+                    stackSize++;
+                    node = nearNode;
+
+                } else if( tSplit > maxDist ) {
+                    node = nearNode;
+
+                } else if( tSplit < minDist ) {
+                    if( tSplit > 0.0 ) {
+                        node = farNode;
+                    } else if( tSplit < 0.0 ) {
+                        node = nearNode;
+                    } else if( rayDir[axis] < 0 ) {
+                        node = farNode;
+                    } else {
+                        node = nearNode;
+                    }
+
+                } else if( tSplit > 0 ) {
+                    // Visit near node first, deferring far node.
+                    stackNodes[stackSize] = farNode;
+                    stackMin[stackSize]   = tSplit;
+                    stackMax[stackSize]   = maxDist;
+                    stackSize++;
+                    node    = nearNode;
+                    maxDist = tSplit;
+
+                } else {
+                    node    = nearNode;
+                    minDist = tSplit;
+                }
+            }
+        }
+
+        return !anyHit && mHasPick;
+    }
+
+
+    private boolean occludeLeaf( int[] leafTris,
+                                 float[] triData,
+                                 int triCount,
+                                 int triOff,
+                                 float hitLimit,
+                                 int sides )
+    {
+        final TriangleIntersector tester = mIntersector;
+        final RayIntersection intersect  = mRayIntersection;
+
+        for( int i = triOff; i < triOff + triCount; i++ ) {
+            if( tester.intersect( mRayPoint, mRayDir, triData, leafTris[i], intersect ) &&
+                (intersect.mTargetSide & sides) != 0 &&
+                intersect.mRayDist <= hitLimit )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    private boolean intersectLeaf( int[] leafTris,
+                                   float[] triData,
+                                   int triCount,
+                                   int triOff,
+                                   float minDist,
+                                   float maxDist,
+                                   int sides )
+    {
+        final TriangleIntersector tester = mIntersector;
+        final RayIntersection intersect  = mRayIntersection;
+
+        for( int i = triOff; i < triOff + triCount; i++ ) {
+            final int triIndex = leafTris[i];
+            if( !tester.intersect( mRayPoint, mRayDir, triData, triIndex, intersect ) ) {
+                continue;
+            }
+
+            if( (intersect.mTargetSide & sides) == 0 ) {
+                continue;
+            }
+
+            if( intersect.mRayDist >= mRayDist ||
+                Tol.approxComp( intersect.mRayDist, maxDist ) > 0 ||
+                Tol.approxComp( intersect.mRayDist, minDist ) < 0 )
+            {
+                continue;
+            }
+
+            mHasPick  = true;
+            mTriIndex = triIndex;
+            mRayDist  = intersect.mRayDist;
+            mSide     = intersect.mTargetSide;
+            Vec.put( intersect.mPoint, mStopPoint );
+        }
+
+        return mHasPick;
+    }
+
+
+    /**
+     * Equivalent to {@link #pick(int[], int[], float[], float[], int)}, reading tree from buffers.
+     */
+    final boolean pick( IntBuffer nodes, IntBuffer leafTris, FloatBuffer triData, float[] bounds, int sides ) {
+        final float[] rayPoint = mRayPoint;
+        mHasPick = false;
+        mRayDist = POSITIVE_INFINITY;
+        mStartPoint.x = rayPoint[0];
+        mStartPoint.y = rayPoint[1];
+        mStartPoint.z = rayPoint[2];
+
+        final float[] range = mRange;
+        if( !clipToBounds( bounds, rayPoint, mRayDir, range ) ) {
+            return false;
+        }
+
+        return intersectTree( nodes, leafTris, triData, range[0], range[1], sides, false, POSITIVE_INFINITY );
+    }
+
+    /**
+     * Equivalent to {@link #occluded(int[], int[], float[], float[], float, int)}, reading tree from buffers.
+     */
+    final boolean occluded( IntBuffer nodes,
+                            IntBuffer leafTris,
+                            FloatBuffer triData,
+                            float[] bounds,
+                            float maxDist,
+                            int sides )
+    {
+        final float[] range = mRange;
+        if( !clipToBounds( bounds, mRayPoint, mRayDir, range ) || range[0] > maxDist ) {
+            return false;
+        }
+
+        return intersectTree( nodes, leafTris, triData, range[0], Math.min( range[1], maxDist ), sides, true, maxDist );
+    }
+
+    /**
+     * Same loop as {@link #intersectTree(int[], int[], float[], float, float, int, boolean, float)}.
+     * Changes to either must be made to both.
+     */
+    private boolean intersectTree( IntBuffer nodes,
+                                   IntBuffer leafTris,
+                                   FloatBuffer triData,
+                                   float minDist,
+                                   float maxDist,
+                                   int sides,
+                                   boolean anyHit,
+                                   float hitLimit )
+    {
+        final float[] rayPoint  = mRayPoint;
+        final float[] rayDir    = mRayDir;
+        final int[] stackNodes  = mStackNodes;
+        final float[] stackMin  = mStackMin;
+        final float[] stackMax  = mStackMax;
+
+        int stackSize = 1;
+        stackNodes[0] = 0;
+        stackMin[0]   = minDist;
+        stackMax[0]   = maxDist;
+
+        while( stackSize > 0 ) {
+            stackSize--;
+            int node = stackNodes[stackSize];
+            minDist  = stackMin[stackSize];
+            maxDist  = stackMax[stackSize];
+
+            // Skip deferred nodes beyond the pick found so far.
+            if( minDist > mRayDist && !anyHit ) {
+                continue;
+            }
+
+            while( true ) {
+                final int head = nodes.get( node * NODE_SIZE );
+                final int axis = head & AXIS_MASK;
+
+                if( axis == LEAF_FLAG ) {
+                    if( anyHit ) {
+                        if( occludeLeaf( leafTris,
+                                         triData,
+                                         head >>> NODE_SHIFT,
+                                         nodes.get( node * NODE_SIZE + 1 ),
+                                         hitLimit,
+                                         sides ) )
+                        {
+                            return true;
+                        }
+                    } else {
+                        intersectLeaf( leafTris,
+                                       triData,
+                                       head >>> NODE_SHIFT,
+                                       nodes.get( node * NODE_SIZE + 1 ),
+                                       minDist,
+                                       maxDist,
+                                       sides );
+                    }
+                    break;
+                }
+
+                final float splitPos = Float.intBitsToFloat( nodes.get( node * NODE_SIZE + 1 ) );
+                final float tSplit = (splitPos - rayPoint[axis]) / rayDir[axis];
+
+                // Determine which node is closest.
+                final int nearNode;
+                final int farNode;
+
+                if( rayPoint[axis] < splitPos ) {
+                    nearNode = node + 1;
+                    farNode  = head >>> NODE_SHIFT;
+                } else {
+                    nearNode = head >>> NODE_SHIFT;
+                    farNode  = node + 1;
+                }
+
+                if( tSplit != tSplit ) {
+                    // Ray lies in split plane, where triangles may belong to either
+                    // child. Visit both over the same range.
+                    stackNodes[stackSize] = farNode;
+                    stackMin[stackSize]   = minDist;
+                    stackMax[stackSize]   = maxDist;
+                    stackSize++;
+                    node = nearNode;
+
+                } else if( tSplit > maxDist ) {
+                    node = nearNode;
+
+                } else if( tSplit < minDist ) {
+                    if( tSplit > 0.0 ) {
+                        node = farNode;
+                    } else if( tSplit < 0.0 ) {
+                        node = nearNode;
+                    } else if( rayDir[axis] < 0 ) {
+                        node = farNode;
+                    } else {
+                        node = nearNode;
+                    }
+
+                } else if( tSplit > 0 ) {
+                    // Visit near node first, deferring far node.
+                    stackNodes[stackSize] = farNode;
+                    stackMin[stackSize]   = tSplit;
+                    stackMax[stackSize]   = maxDist;
+                    stackSize++;
+                    node    = nearNode;
+                    maxDist = tSplit;
+
+                } else {
+                    node    = nearNode;
+                    minDist = tSplit;
+                }
+            }
+        }
+
+        return !anyHit && mHasPick;
+    }
+
+
+    private boolean occludeLeaf( IntBuffer leafTris,
+                                 FloatBuffer triData,
+                                 int triCount,
+                                 int triOff,
+                                 float hitLimit,
+                                 int sides )
+    {
+        final TriangleIntersector tester = mIntersector;
+        final RayIntersection intersect  = mRayIntersection;
+
+        for( int i = triOff; i < triOff + triCount; i++ ) {
+            if( tester.intersect( mRayPoint, mRayDir, triData, leafTris.get( i ), intersect ) &&
+                (intersect.mTargetSide & sides) != 0 &&
+                intersect.mRayDist <= hitLimit )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    private boolean intersectLeaf( IntBuffer leafTris,
+                                   FloatBuffer triData,
+                                   int triCount,
+                                   int triOff,
+                                   float minDist,
+                                   float maxDist,
+                                   int sides )
+    {
+        final TriangleIntersector tester = mIntersector;
+        final RayIntersection intersect  = mRayIntersection;
+
+        for( int i = triOff; i < triOff + triCount; i++ ) {
+            final int triIndex = leafTris.get( i );
+            if( !tester.intersect( mRayPoint, mRayDir, triData, triIndex, intersect ) ) {
+                continue;
+            }
+
+            if( (intersect.mTargetSide & sides) == 0 ) {
+                continue;
+            }
+
+            if( intersect.mRayDist >= mRayDist ||
+                Tol.approxComp( intersect.mRayDist, maxDist ) > 0 ||
+                Tol.approxComp( intersect.mRayDist, minDist ) < 0 )
+            {
+                continue;
+            }
+
+            mHasPick  = true;
+            mTriIndex = triIndex;
+            mRayDist  = intersect.mRayDist;
+            mSide     = intersect.mTargetSide;
+            Vec.put( intersect.mPoint, mStopPoint );
+        }
+
+        return mHasPick;
+    }
+
+}
@@ -6,9 +6,15 @@
 
 package bits.draw3d.pick;
 
+import java.io.*;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import bits.draw3d.model.*;
+import bits.draw3d.util.IntList;
 import bits.draw3d.util.TimSort;
 import bits.math3d.*;
 import bits.math3d.geom.*;
@@ -43,13 +49,38 @@ import static java.lang.Float.NEGATIVE_INFINITY;
  * instead of the far simpler practice of clipping the <i>bounding
  * box</i> of the triangle to the partition box. This means that triangles are
  * never added to a leaf node that they do not actually intersect.
+ * <p>
+ * Once built, the tree is stored in a flat layout rather than as a graph of
+ * node objects. Each node occupies two ints (8 bytes) of a single array, and
+ * leaves refer to runs of triangle indices in a second array. Nodes are stored
+ * in depth-first order, so the left child of an inner node always immediately
+ * follows its parent. Triangle edges and normals are also precomputed into a
+ * flat array, which leaf nodes test against using the M&ouml;ller-Trumbore
+ * algorithm.
+ * <p>
+ * For geometry that changes often, trees may instead be built with
+ * {@link KdBuildQuality#BINNED}, which evaluates the SAH at a fixed number
+ * of bins per axis and clips triangle bounding boxes rather than triangles.
+ * <p>
+ * Trees may optionally be built on a ForkJoinPool. Parallel builds fork
+ * subtrees that hold many triangles onto the pool, and produce exactly the
+ * same tree as a serial build.
+ * <p>
+ * KdTriangleTree is immutable once built. Any number of threads may pick
+ * against the same tree concurrently, provided each thread uses its own
+ * RayPickResult. See {@link RayPickers#pickAll} to spread a set of rays
+ * over a pool.
+ * <p>
+ * Built trees may be saved with {@link #write(File)} and later reopened
+ * with {@link MappedKdTriangleTree#open(File)}, which picks against the
+ * memory-mapped file without rebuilding.
  *
  * @author decamp
  */
-public final class KdTriangleTree implements RayPicker {
+public final class KdTriangleTree implements FastRayPicker {
 
     private static final int TERM_ITEM_COUNT = 1;
-    private static final int TERM_DEPTH      = 20;
+    static final int TERM_DEPTH              = 20;
 
     private static final float COST_TRAVERSAL_STEP = 2;
     private static final float COST_INTERSECTION   = 1;
@@ -63,19 +94,115 @@ public final class KdTriangleTree implements RayPicker {
     private static final int EVENT_PLANAR = 1;
     private static final int EVENT_STOP = 0;
 
+    // Flat node layout. Each node is two ints.
+    // Inner node: [ (rightChild << 2) | axis, floatBits( splitPos ) ]
+    // Leaf node:  [ (triCount << 2) | LEAF_FLAG, offset into mLeafTris ]
+    static final int NODE_SIZE  = 2;
+    static final int LEAF_FLAG  = 3;
+    static final int AXIS_MASK  = 3;
+    static final int NODE_SHIFT = 2;
+
+    // Parallel builds fork subtrees containing more than this many triangles.
+    private static final int PARALLEL_TRI_COUNT   = 2048;
+    // Parallel sorts fork ranges containing more than this many events.
+    private static final int PARALLEL_EVENT_COUNT = 8192;
 
+    // Query points per task for parallel nearest-point batches.
+    private static final int NEAREST_CHUNK_SIZE = 1024;
+
+    // Number of candidate split planes per axis, plus one, for binned builds.
+    private static final int BIN_COUNT = 32;
+
+
+    /**
+     * Builds a tree on the calling thread.
+     *
+     * @param triList Triangles to index.
+     * @return newly built tree
+     */
     public static KdTriangleTree build( List<? extends DrawTri> triList ) {
+        return build( triList, KdBuildQuality.PERFECT_SPLIT, null );
+    }
+
+    /**
+     * Builds a tree on the calling thread.
+     *
+     * @param triList Triangles to index.
+     * @param quality Build strategy.
+     * @return newly built tree
+     */
+    public static KdTriangleTree build( List<? extends DrawTri> triList, KdBuildQuality quality ) {
+        return build( triList, quality, null );
+    }
+
+    /**
+     * Builds a tree using a temporary ForkJoinPool.
+     *
+     * @param triList     Triangles to index.
+     * @param parallelism Number of threads to use for build. If {@code parallelism <= 1}, the
+     *                    tree will be built on the calling thread.
+     * @return newly built tree
+     */
+    public static KdTriangleTree build( List<? extends DrawTri> triList, int parallelism ) {
+        return build( triList, KdBuildQuality.PERFECT_SPLIT, parallelism );
+    }
+
+    /**
+     * Builds a tree using a temporary ForkJoinPool.
+     *
+     * @param triList     Triangles to index.
+     * @param quality     Build strategy.
+     * @param parallelism Number of threads to use for build. If {@code parallelism <= 1}, the
+     *                    tree will be built on the calling thread.
+     * @return newly built tree
+     */
+    public static KdTriangleTree build( List<? extends DrawTri> triList, KdBuildQuality quality, int parallelism ) {
+        if( parallelism <= 1 ) {
+            return build( triList, quality, null );
+        }
+
+        ForkJoinPool pool = new ForkJoinPool( parallelism );
+        try {
+            return build( triList, quality, pool );
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Builds a tree, optionally on a ForkJoinPool.
+     *
+     * @param triList Triangles to index.
+     * @param pool    Pool on which to perform build, or {@code null} to build on calling thread.
+     * @return newly built tree
+     */
+    public static KdTriangleTree build( List<? extends DrawTri> triList, ForkJoinPool pool ) {
+        return build( triList, KdBuildQuality.PERFECT_SPLIT, pool );
+    }
+
+
+    /**
+     * Builds a tree, optionally on a ForkJoinPool.
+     *
+     * @param triList Triangles to index.
+     * @param quality Build strategy.
+     * @param pool    Pool on which to perform build, or {@code null} to build on calling thread.
+     * @return newly built tree
+     */
+    public static KdTriangleTree build( List<? extends DrawTri> triList, KdBuildQuality quality, ForkJoinPool pool ) {
         Box3 box = new Box3();
         Models.computeBounds( Models.vertIterator( triList ), box );
         //Box.inflate( box, 1.001f, 1.001f, 1.001f, box );
         float[] vox = { box.x0, box.y0, box.z0, box.x1, box.y1, box.z1 };
 
-        // Generate events.
         final int triCount    = triList.size();
         final DrawTri[] tris = triList.toArray( new DrawTri[triCount] );
-        final int[] mark      = new int[tris.length];
-        Arrays.fill( mark, BOTH );
 
+        if( quality == KdBuildQuality.BINNED ) {
+            return flatten( buildBinned( tris, vox, pool ), tris, vox );
+        }
+
+        // Generate events.
         SplitEvent[] events = new SplitEvent[triCount * 2 * 3];
         int eventCount = 0;
 
@@ -106,32 +233,54 @@ public final class KdTriangleTree implements RayPicker {
             }
         }
 
-        TimSort.defaultInstance().sort( events, 0, eventCount );
-        //Arrays.sort( events, 0, eventCount );
-
-        Node root = build( 0,
-                           tris,
-                           triCount,
-                           mark,
-                           events,
-                           eventCount,
-                           new SplitEvent[eventCount * 2],
-                           vox );
+        final Node root;
+
+        if( pool == null ) {
+            final int[] mark = new int[tris.length];
+            Arrays.fill( mark, BOTH );
+            TimSort.defaultInstance().sort( events, 0, eventCount );
+            //Arrays.sort( events, 0, eventCount );
+            root = build( 0,
+                          tris,
+                          triCount,
+                          mark,
+                          events,
+                          eventCount,
+                          new SplitEvent[eventCount * 2],
+                          vox,
+                          null );
+        } else {
+            SplitEvent[] work = new SplitEvent[eventCount * 2];
+            pool.invoke( new SortTask( events, 0, eventCount, work ) );
+            ThreadLocal<BuildArrays> arrays = new ThreadLocal<BuildArrays>() {
+                @Override
+                protected BuildArrays initialValue() {
+                    return new BuildArrays( tris.length );
+                }
+            };
+            root = pool.invoke( new BuildTask( 0, tris, triCount, events, eventCount, vox, arrays ) );
+        }
 
-        return new KdTriangleTree( root, vox );
+        return flatten( root, tris, vox );
     }
 
 
 
-    private final Node mRoot;
+    private final DrawTri[] mTris;
+    private final float[] mTriData;
+    private final int[] mNodes;
+    private final int[] mLeafTris;
     private final int mDepth;
     private final float[] mBounds;
 
 
-    private KdTriangleTree( Node root, float[] bounds ) {
-        mRoot = root;
-        mDepth = root.computeMaxDepth();
-        mBounds = bounds;
+    private KdTriangleTree( DrawTri[] tris, int[] nodes, int[] leafTris, int depth, float[] bounds ) {
+        mTris     = tris;
+        mTriData  = TriangleIntersector.packTriangles( tris, tris.length );
+        mNodes    = nodes;
+        mLeafTris = leafTris;
+        mDepth    = depth;
+        mBounds   = bounds;
     }
 
 
@@ -146,18 +295,108 @@ public final class KdTriangleTree implements RayPicker {
             throw new IllegalArgumentException( "Improperly allocated PickResult." );
         }
 
-        float[] rayPoint = { rayPointVec.x, rayPointVec.y, rayPointVec.z };
-        float[] rayDir   = { rayDirVec.x, rayDirVec.y, rayDirVec.z };
-
         Result result = (Result)out;
-        result.mHasPick = false;
-        result.mRayDist = POSITIVE_INFINITY;
-        Vec.put( rayPointVec, result.mStartPoint );
+        result.loadRay( rayPointVec, rayDirVec );
+        return pick( side, result );
+    }
+
+    @Override
+    public int pick( float[] rayPoints,
+                     float[] rayDirs,
+                     int rayOff,
+                     int rayCount,
+                     int sides,
+                     float[] outDists,
+                     int[] outTris,
+                     int[] outSides )
+    {
+        Result result = new Result();
+        int hitCount = 0;
+
+        for( int i = rayOff; i < rayOff + rayCount; i++ ) {
+            result.loadRay( rayPoints, rayDirs, i );
+            if( pick( sides, result ) ) {
+                hitCount++;
+                if( outDists != null ) {
+                    outDists[i] = result.mRayDist;
+                }
+                if( outTris != null ) {
+                    outTris[i] = result.mTriIndex;
+                }
+                if( outSides != null ) {
+                    outSides[i] = result.mSide;
+                }
+            } else {
+                if( outDists != null ) {
+                    outDists[i] = POSITIVE_INFINITY;
+                }
+                if( outTris != null ) {
+                    outTris[i] = -1;
+                }
+                if( outSides != null ) {
+                    outSides[i] = Side.NONE;
+                }
+            }
+        }
+
+        return hitCount;
+    }
+
+
+    @Override
+    public boolean occluded( Vec3 rayPointVec, Vec3 rayDirVec, float maxDist, int sides, RayPickResult work ) {
+        if( !(work instanceof Result) ) {
+            throw new IllegalArgumentException( "Improperly allocated PickResult." );
+        }
+
+        Result result = (Result)work;
+        result.loadRay( rayPointVec, rayDirVec );
+        return result.occluded( mNodes, mLeafTris, mTriData, mBounds, maxDist, sides );
+    }
+
+    @Override
+    public int occluded( float[] rayPoints,
+                         float[] rayDirs,
+                         int rayOff,
+                         int rayCount,
+                         float maxDist,
+                         int sides,
+                         boolean[] out )
+    {
+        Result result = new Result();
+        int hitCount = 0;
+
+        for( int i = rayOff; i < rayOff + rayCount; i++ ) {
+            result.loadRay( rayPoints, rayDirs, i );
+            boolean hit = result.occluded( mNodes, mLeafTris, mTriData, mBounds, maxDist, sides );
+            if( hit ) {
+                hitCount++;
+            }
+            out[i] = hit;
+        }
+
+        return hitCount;
+    }
+
+
+    private boolean pick( int side, Result result ) {
+        boolean hit = result.pick( mNodes, mLeafTris, mTriData, mBounds, side );
+        result.mTriangle = hit ? mTris[result.mTriIndex] : null;
+        return hit;
+    }
 
+
+    /**
+     * Computes the parameterized range over which ray passes through tree bounds.
+     *
+     * @param bounds   Bounds as {@code [x0, y0, z0, x1, y1, z1]}.
+     * @param outRange Receives [tMin, tMax] on success.
+     * @return true iff ray intersects bounds in front of ray origin.
+     */
+    static boolean clipToBounds( float[] bounds, float[] rayPoint, float[] rayDir, float[] outRange ) {
         // Compute intersections with bounds.
         float tMin = POSITIVE_INFINITY;
         float tMax = NEGATIVE_INFINITY;
-        float[] bounds = mBounds;
 
         for( int i = 0; i < 3; i++ ) {
             if( rayDir[i] == 0.0 ) {
@@ -195,7 +434,9 @@ public final class KdTriangleTree implements RayPicker {
             return false;
         }
 
-        return intersectTree( mRoot, rayPoint, rayDir, tMin, tMax, side, (Result)out );
+        outRange[0] = tMin;
+        outRange[1] = tMax;
+        return true;
     }
 
 
@@ -203,100 +444,671 @@ public final class KdTriangleTree implements RayPicker {
         return mDepth;
     }
 
+    /**
+     * @param out Receives bounds of all indexed triangles.
+     * @return out
+     */
+    public Box3 bounds( Box3 out ) {
+        put( mBounds, out );
+        return out;
+    }
+
+
+    /**
+     * @return number of nodes in tree, including leaves.
+     */
+    public int nodeCount() {
+        return mNodes.length / NODE_SIZE;
+    }
+
+    /**
+     * @return number of indexed triangles.
+     */
+    public int triangleCount() {
+        return mTris.length;
+    }
+
+    /**
+     * @param index Index of triangle, in the order of the list from which the tree was built.
+     * @return indexed triangle
+     */
+    public DrawTri triangle( int index ) {
+        return mTris[index];
+    }
+
+    /**
+     * Finds every intersection along a ray, rather than only the nearest. Useful for
+     * depth peeling and thickness measurements, which would otherwise need to recast
+     * rays from each hit. Each triangle is reported at most once.
+     *
+     * @param rayPointVec Origin point of the ray.
+     * @param rayDirVec   Direction of ray.
+     * @param sides       Which sides to pick. (Side.FRONT, Side.BACK, or Side.BOTH)
+     * @param maxDist     Intersections farther than {@code maxDist}, in units of {@code rayDir}, are ignored.
+     * @param maxHits     Max number of intersections to report. If more are found, only the nearest are kept.
+     * @param outDists    Receives parameterized distance of each hit, in ascending order.
+     *                    Must hold at least {@code maxHits} elements.
+     * @param outTris     Receives index of triangle for each hit. May be null.
+     * @param outSides    Receives side of triangle for each hit. May be null.
+     * @param work        PickResult allocated with <tt>newRayPickResult()</tt> used as working space.
+     *                    Its pick data is not modified.
+     * @return number of hits written
+     */
+    public int pickAllHits( Vec3 rayPointVec,
+                            Vec3 rayDirVec,
+                            int sides,
+                            float maxDist,
+                            int maxHits,
+                            float[] outDists,
+                            int[] outTris,
+                            int[] outSides,
+                            RayPickResult work )
+    {
+        if( !(work instanceof Result) ) {
+            throw new IllegalArgumentException( "Improperly allocated PickResult." );
+        }
+
+        Result result = (Result)work;
+        result.loadRay( rayPointVec, rayDirVec );
+        float[] rayPoint = result.mRayPoint;
+        float[] rayDir   = result.mRayDir;
+
+        float[] range = result.mRange;
+        if( maxHits <= 0 || mTris.length == 0 || !clipToBounds( mBounds, rayPoint, rayDir, range ) || range[0] > maxDist ) {
+            return 0;
+        }
+
+        return intersectAll( rayPoint,
+                             rayDir,
+                             range[0],
+                             Math.min( range[1], maxDist ),
+                             sides,
+                             maxDist,
+                             maxHits,
+                             outDists,
+                             outTris,
+                             outSides,
+                             result );
+    }
+
+    /**
+     * Finds all triangles that overlap an axis-aligned box. Triangles that only
+     * touch the box are included.
+     *
+     * @param box Query box.
+     * @param out Receives indices of overlapping triangles, in ascending order and without
+     *            duplicates. Indices are appended after any existing contents.
+     * @return number of indices appended to {@code out}
+     */
+    public int findInBox( Box3 box, IntList out ) {
+        final int start = out.size();
+        if( mTris.length > 0 ) {
+            findInBox( 0,
+                       ( box.x0 + box.x1 ) * 0.5f,
+                       ( box.y0 + box.y1 ) * 0.5f,
+                       ( box.z0 + box.z1 ) * 0.5f,
+                       ( box.x1 - box.x0 ) * 0.5f,
+                       ( box.y1 - box.y0 ) * 0.5f,
+                       ( box.z1 - box.z0 ) * 0.5f,
+                       out );
+        }
+        return sortUnique( out, start );
+    }
+
+    /**
+     * Finds all triangles that overlap a sphere.
+     *
+     * @param center Center of sphere.
+     * @param radius Radius of sphere.
+     * @param out    Receives indices of overlapping triangles, in ascending order and without
+     *               duplicates. Indices are appended after any existing contents.
+     * @return number of indices appended to {@code out}
+     */
+    public int findInSphere( Vec3 center, float radius, IntList out ) {
+        final int start = out.size();
+        if( mTris.length > 0 && radius >= 0 ) {
+            final float[] b = mBounds;
+            findInSphere( 0, b[0], b[1], b[2], b[3], b[4], b[5], center.x, center.y, center.z, radius * radius, out );
+        }
+        return sortUnique( out, start );
+    }
+
+    /**
+     * Finds triangles within a convex volume bounded by planes, such as a view frustum.
+     * Each plane {@code p} bounds the half-space {@code p.x*x + p.y*y + p.z*z + p.w >= 0}.
+     * <p>
+     * Like most frustum culling, this test is conservative: every triangle that
+     * overlaps the volume is found, and triangles are only excluded if they lie
+     * entirely outside at least one plane. Triangles that lie just outside a
+     * corner or edge of the volume may therefore be included.
+     *
+     * @param planes Bounding planes, typically six.
+     * @param out    Receives indices of triangles, in ascending order and without
+     *               duplicates. Indices are appended after any existing contents.
+     * @return number of indices appended to {@code out}
+     */
+    public int findInFrustum( Vec4[] planes, IntList out ) {
+        final int start = out.size();
+        if( mTris.length > 0 ) {
+            final float[] b = mBounds;
+            findInFrustum( 0, b[0], b[1], b[2], b[3], b[4], b[5], planes, out );
+        }
+        return sortUnique( out, start );
+    }
+
+    /**
+     * Finds the point on the surface of the indexed triangles nearest to a query point.
+     * The search descends the nearest cells first and prunes any cell farther than the
+     * nearest point found so far.
+     *
+     * @param point   Query point.
+     * @param maxDist Max distance to search. Use POSITIVE_INFINITY for an unbounded search.
+     * @param out     Receives nearest point. Holds working data, so each thread must use its own.
+     * @return true iff a surface point was found within {@code maxDist}
+     */
+    public boolean nearestPoint( Vec3 point, float maxDist, NearestPointResult out ) {
+        out.mHasPick  = false;
+        out.mDistSq   = maxDist * maxDist;
+        out.mTriIndex = -1;
+        out.mTriangle = null;
+        if( mTris.length == 0 || !( maxDist >= 0 ) ) {
+            return false;
+        }
+
+        final float[] b = mBounds;
+        final float px = point.x;
+        final float py = point.y;
+        final float pz = point.z;
+        if( boxDistSq( b[0], b[1], b[2], b[3], b[4], b[5], px, py, pz ) <= out.mDistSq ) {
+            nearestPoint( 0, b[0], b[1], b[2], b[3], b[4], b[5], px, py, pz, out );
+        }
+
+        if( out.mHasPick ) {
+            out.mTriangle = mTris[out.mTriIndex];
+        }
+        return out.mHasPick;
+    }
+
+    /**
+     * Performs {@link #nearestPoint} on a batch of points packed into a float array,
+     * optionally splitting the batch into chunks that are processed concurrently.
+     * The result for the query at {@code points[i*3]} is written to {@code outPoints[i*3]},
+     * {@code outDists[i]}, {@code outTris[i]} and {@code outBary[i*3]}.
+     *
+     * @param points    Query points packed as {@code [x0, y0, z0, x1, y1, z1, ...]}.
+     * @param off       Index of first query point.
+     * @param count     Number of query points.
+     * @param maxDist   Max distance to search.
+     * @param outPoints Receives nearest points, or NaN where none is found. May be null.
+     * @param outDists  Receives distances to nearest points, or POSITIVE_INFINITY. May be null.
+     * @param outTris   Receives indices of nearest triangles, or -1. May be null.
+     * @param outBary   Receives barycentric coordinates of nearest points, or NaN. May be null.
+     * @param pool      Pool on which to process batch, or null to use calling thread.
+     * @return number of queries that found a surface point
+     */
+    public int nearestPoints( float[] points,
+                              int off,
+                              int count,
+                              float maxDist,
+                              float[] outPoints,
+                              float[] outDists,
+                              int[] outTris,
+                              float[] outBary,
+                              ForkJoinPool pool )
+    {
+        NearestTask task = new NearestTask( this, points, off, count, maxDist, outPoints, outDists, outTris, outBary );
+        if( pool == null || count <= NEAREST_CHUNK_SIZE ) {
+            return task.compute();
+        }
+        return pool.invoke( task );
+    }
+
+    /**
+     * Writes a snapshot of this tree that may be reopened without rebuilding
+     * by {@link MappedKdTriangleTree#open(File)}.
+     *
+     * @param file File to write.
+     * @throws IOException on write failure.
+     */
+    public void write( File file ) throws IOException {
+        FileOutputStream out = new FileOutputStream( file );
+        try {
+            write( out.getChannel() );
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes a snapshot of this tree.
+     *
+     * @param out Channel to which snapshot is written.
+     * @throws IOException on write failure.
+     * @see MappedKdTriangleTree
+     */
+    public void write( WritableByteChannel out ) throws IOException {
+        MappedKdTriangleTree.write( mNodes, mLeafTris, mTriData, mTris.length, mDepth, mBounds, out );
+    }
+
+    /**
+     * @return true iff this tree has an identical layout to {@code tree}.
+     */
+    boolean layoutEquals( KdTriangleTree tree ) {
+        return Arrays.equals( mNodes, tree.mNodes ) &&
+               Arrays.equals( mLeafTris, tree.mLeafTris ) &&
+               Arrays.equals( mBounds, tree.mBounds );
+    }
+
 
 
     /***************
      * Traversal
      ***************/
 
-    private boolean intersectTree( Node node,
-                                   float[] rayPoint,
-                                   float[] rayDir,
-                                   float minDist,
-                                   float maxDist,
-                                   int sides,
-                                   Result result )
+    /**
+     * Traverses tree front-to-back like {@link KdTraversal}, but collects every
+     * intersection. Traversal stops once {@code maxHits} intersections have been
+     * found that are all nearer than the next cell.
+     */
+    private int intersectAll( float[] rayPoint,
+                              float[] rayDir,
+                              float minDist,
+                              float maxDist,
+                              int sides,
+                              float hitLimit,
+                              int maxHits,
+                              float[] outDists,
+                              int[] outTris,
+                              int[] outSides,
+                              Result result )
     {
-
-        if( node.isEmpty() ) {
-            return false;
+        final int[] nodes       = mNodes;
+        final int[] stackNodes  = result.mStackNodes;
+        final float[] stackMin  = result.mStackMin;
+        final float[] stackMax  = result.mStackMax;
+        final TriangleIntersector tester = result.mIntersector;
+        final RayIntersection intersect  = result.mRayIntersection;
+
+        // Track triangle indices for all hits, even if caller does not want them,
+        // to reject triangles found again in later leaves.
+        int[] hitTris = outTris;
+        if( hitTris == null ) {
+            hitTris = result.hitTris( maxHits );
         }
 
-        final int axis = node.mSplitAxis;
-        final float splitPos = node.mSplitPos;
-        final float tSplit = (splitPos - rayPoint[axis]) / rayDir[axis];
+        int hitCount  = 0;
+        int stackSize = 1;
+        stackNodes[0] = 0;
+        stackMin[0]   = minDist;
+        stackMax[0]   = maxDist;
 
-        if( node.isLeaf() ) {
-            TriangleIntersector tester = result.mIntersector;
-            RayIntersection intersect = result.mRayIntersection;
+        while( stackSize > 0 ) {
+            stackSize--;
+            int node = stackNodes[stackSize];
+            minDist  = stackMin[stackSize];
+            maxDist  = stackMax[stackSize];
+
+            if( hitCount == maxHits && Tol.approxComp( minDist, outDists[hitCount - 1] ) > 0 ) {
+                continue;
+            }
 
-            for( DrawTri t : node.mTriangles ) {
-                if( !tester.intersect( rayPoint, rayDir, t, intersect ) ) {
-                    continue;
+            while( true ) {
+                final int head = nodes[node * NODE_SIZE];
+                final int axis = head & AXIS_MASK;
+
+                if( axis == LEAF_FLAG ) {
+                    final int off = nodes[node * NODE_SIZE + 1];
+                    for( int i = off; i < off + ( head >>> NODE_SHIFT ); i++ ) {
+                        final int tri = mLeafTris[i];
+                        if( !tester.intersect( rayPoint, rayDir, mTriData, tri, intersect ) ||
+                            (intersect.mTargetSide & sides) == 0 ||
+                            intersect.mRayDist > hitLimit ||
+                            Tol.approxComp( intersect.mRayDist, maxDist ) > 0 ||
+                            Tol.approxComp( intersect.mRayDist, minDist ) < 0 )
+                        {
+                            continue;
+                        }
+
+                        final float t = intersect.mRayDist;
+                        if( hitCount == maxHits && t >= outDists[hitCount - 1] ) {
+                            continue;
+                        }
+
+                        boolean dup = false;
+                        for( int j = 0; j < hitCount; j++ ) {
+                            if( hitTris[j] == tri ) {
+                                dup = true;
+                                break;
+                            }
+                        }
+                        if( dup ) {
+                            continue;
+                        }
+
+                        // Insert in sorted position, dropping farthest hit if full.
+                        int pos = hitCount < maxHits ? hitCount++ : hitCount - 1;
+                        while( pos > 0 && outDists[pos - 1] > t ) {
+                            outDists[pos] = outDists[pos - 1];
+                            hitTris[pos]  = hitTris[pos - 1];
+                            if( outSides != null ) {
+                                outSides[pos] = outSides[pos - 1];
+                            }
+                            pos--;
+                        }
+                        outDists[pos] = t;
+                        hitTris[pos]  = tri;
+                        if( outSides != null ) {
+                            outSides[pos] = intersect.mTargetSide;
+                        }
+                    }
+                    break;
                 }
 
-                if( (intersect.mTargetSide & sides) == 0 ) {
-                    continue;
+                final float splitPos = Float.intBitsToFloat( nodes[node * NODE_SIZE + 1] );
+                final float tSplit = (splitPos - rayPoint[axis]) / rayDir[axis];
+
+                final int nearNode;
+                final int farNode;
+
+                if( rayPoint[axis] < splitPos ) {
+                    nearNode = node + 1;
+                    farNode  = head >>> NODE_SHIFT;
+                } else {
+                    nearNode = head >>> NODE_SHIFT;
+                    farNode  = node + 1;
                 }
 
-                if( intersect.mRayDist >= result.mRayDist ||
-                    Tol.approxComp( intersect.mRayDist, maxDist ) > 0 ||
-                    Tol.approxComp( intersect.mRayDist, minDist ) < 0 )
-                {
-                    continue;
+                if( tSplit != tSplit ) {
+                    // Ray lies in split plane. Visit both children over the same range.
+                    stackNodes[stackSize] = farNode;
+                    stackMin[stackSize]   = minDist;
+                    stackMax[stackSize]   = maxDist;
+                    stackSize++;
+                    node = nearNode;
+
+                } else if( tSplit > maxDist ) {
+                    node = nearNode;
+
+                } else if( tSplit < minDist ) {
+                    if( tSplit > 0.0 ) {
+                        node = farNode;
+                    } else if( tSplit < 0.0 ) {
+                        node = nearNode;
+                    } else if( rayDir[axis] < 0 ) {
+                        node = farNode;
+                    } else {
+                        node = nearNode;
+                    }
+
+                } else if( tSplit > 0 ) {
+                    stackNodes[stackSize] = farNode;
+                    stackMin[stackSize]   = tSplit;
+                    stackMax[stackSize]   = maxDist;
+                    stackSize++;
+                    node    = nearNode;
+                    maxDist = tSplit;
+
+                } else {
+                    node    = nearNode;
+                    minDist = tSplit;
                 }
+            }
+        }
+
+        return hitCount;
+    }
+
+
+
+    /***************
+     * Volume queries
+     ***************/
 
-                result.mHasPick = true;
-                result.mTriangle = t;
-                result.mRayDist = intersect.mRayDist;
-                result.mSide = intersect.mTargetSide;
-                Vec.put( intersect.mPoint, result.mStopPoint );
+    // Volume queries recurse rather than keep an explicit stack so that
+    // they allocate nothing. Recursion depth is bounded by TERM_DEPTH.
+
+    private void findInBox( int node,
+                            float cx,
+                            float cy,
+                            float cz,
+                            float hx,
+                            float hy,
+                            float hz,
+                            IntList out )
+    {
+        final int[] nodes = mNodes;
+
+        while( true ) {
+            final int head = nodes[node * NODE_SIZE];
+            final int axis = head & AXIS_MASK;
+
+            if( axis == LEAF_FLAG ) {
+                final int off = nodes[node * NODE_SIZE + 1];
+                for( int i = off; i < off + ( head >>> NODE_SHIFT ); i++ ) {
+                    final int tri = mLeafTris[i];
+                    if( TriangleIntersector.overlapsBox( mTriData, tri, cx, cy, cz, hx, hy, hz ) ) {
+                        out.add( tri );
+                    }
+                }
+                return;
             }
 
-            return result.mHasPick;
+            final float split  = Float.intBitsToFloat( nodes[node * NODE_SIZE + 1] );
+            final float center = axis == 0 ? cx : axis == 1 ? cy : cz;
+            final float half   = axis == 0 ? hx : axis == 1 ? hy : hz;
+
+            if( center - half > split ) {
+                node = head >>> NODE_SHIFT;
+            } else {
+                if( center + half >= split ) {
+                    findInBox( head >>> NODE_SHIFT, cx, cy, cz, hx, hy, hz, out );
+                }
+                node = node + 1;
+            }
         }
+    }
 
-        // Determine which node is closest.
-        final Node nearNode;
-        final Node farNode;
 
-        if( rayPoint[axis] < splitPos ) {
-            nearNode = node.mLeft;
-            farNode = node.mRight;
-        } else {
-            nearNode = node.mRight;
-            farNode = node.mLeft;
+    private void findInSphere( int node,
+                               float x0,
+                               float y0,
+                               float z0,
+                               float x1,
+                               float y1,
+                               float z1,
+                               float cx,
+                               float cy,
+                               float cz,
+                               float radSq,
+                               IntList out )
+    {
+        final int head = mNodes[node * NODE_SIZE];
+        final int axis = head & AXIS_MASK;
+
+        if( axis == LEAF_FLAG ) {
+            final int off = mNodes[node * NODE_SIZE + 1];
+            for( int i = off; i < off + ( head >>> NODE_SHIFT ); i++ ) {
+                final int tri = mLeafTris[i];
+                if( TriangleIntersector.closestPoint( mTriData, tri, cx, cy, cz, null ) <= radSq ) {
+                    out.add( tri );
+                }
+            }
+            return;
         }
 
-        if( tSplit > maxDist ) {
-            return intersectTree( nearNode, rayPoint, rayDir, minDist, maxDist, sides, result );
+        final float s = Float.intBitsToFloat( mNodes[node * NODE_SIZE + 1] );
+        final float lx1 = axis == 0 ? s : x1;
+        final float ly1 = axis == 1 ? s : y1;
+        final float lz1 = axis == 2 ? s : z1;
+        final float rx0 = axis == 0 ? s : x0;
+        final float ry0 = axis == 1 ? s : y0;
+        final float rz0 = axis == 2 ? s : z0;
 
-        } else if( tSplit < minDist ) {
-            if( tSplit > 0.0 ) {
-                return intersectTree( farNode, rayPoint, rayDir, minDist, maxDist, sides, result );
+        if( boxDistSq( x0, y0, z0, lx1, ly1, lz1, cx, cy, cz ) <= radSq ) {
+            findInSphere( node + 1, x0, y0, z0, lx1, ly1, lz1, cx, cy, cz, radSq, out );
+        }
+        if( boxDistSq( rx0, ry0, rz0, x1, y1, z1, cx, cy, cz ) <= radSq ) {
+            findInSphere( head >>> NODE_SHIFT, rx0, ry0, rz0, x1, y1, z1, cx, cy, cz, radSq, out );
+        }
+    }
 
-            } else if( tSplit < 0.0 ) {
-                return intersectTree( nearNode, rayPoint, rayDir, minDist, maxDist, sides, result );
 
-            } else {
-                if( rayDir[axis] < 0 ) {
-                    return intersectTree( farNode, rayPoint, rayDir, minDist, maxDist, sides, result );
-                } else {
-                    return intersectTree( nearNode, rayPoint, rayDir, minDist, maxDist, sides, result );
+    private void findInFrustum( int node,
+                                float x0,
+                                float y0,
+                                float z0,
+                                float x1,
+                                float y1,
+                                float z1,
+                                Vec4[] planes,
+                                IntList out )
+    {
+        // Cull cell if entirely outside any plane.
+        for( Vec4 p : planes ) {
+            float d = p.x * ( p.x >= 0 ? x1 : x0 ) +
+                      p.y * ( p.y >= 0 ? y1 : y0 ) +
+                      p.z * ( p.z >= 0 ? z1 : z0 ) + p.w;
+            if( d < 0 ) {
+                return;
+            }
+        }
+
+        final int head = mNodes[node * NODE_SIZE];
+        final int axis = head & AXIS_MASK;
+
+        if( axis == LEAF_FLAG ) {
+            final int off = mNodes[node * NODE_SIZE + 1];
+            outer:
+            for( int i = off; i < off + ( head >>> NODE_SHIFT ); i++ ) {
+                final int tri = mLeafTris[i];
+                for( Vec4 p : planes ) {
+                    if( TriangleIntersector.outsidePlane( mTriData, tri, p.x, p.y, p.z, p.w ) ) {
+                        continue outer;
+                    }
                 }
+                out.add( tri );
             }
+            return;
+        }
 
-        } else {
-            if( tSplit > 0 ) {
-                if( intersectTree( nearNode, rayPoint, rayDir, minDist, tSplit, sides, result ) ) {
-                    return true;
+        final float s = Float.intBitsToFloat( mNodes[node * NODE_SIZE + 1] );
+        findInFrustum( node + 1,
+                       x0,
+                       y0,
+                       z0,
+                       axis == 0 ? s : x1,
+                       axis == 1 ? s : y1,
+                       axis == 2 ? s : z1,
+                       planes,
+                       out );
+        findInFrustum( head >>> NODE_SHIFT,
+                       axis == 0 ? s : x0,
+                       axis == 1 ? s : y0,
+                       axis == 2 ? s : z0,
+                       x1,
+                       y1,
+                       z1,
+                       planes,
+                       out );
+    }
+
+
+    private void nearestPoint( int node,
+                               float x0,
+                               float y0,
+                               float z0,
+                               float x1,
+                               float y1,
+                               float z1,
+                               float px,
+                               float py,
+                               float pz,
+                               NearestPointResult out )
+    {
+        final int head = mNodes[node * NODE_SIZE];
+        final int axis = head & AXIS_MASK;
+
+        if( axis == LEAF_FLAG ) {
+            final int off = mNodes[node * NODE_SIZE + 1];
+            final float[] work = out.mWork;
+            for( int i = off; i < off + ( head >>> NODE_SHIFT ); i++ ) {
+                final int tri = mLeafTris[i];
+                final float distSq = TriangleIntersector.closestPoint( mTriData, tri, px, py, pz, work );
+                if( distSq < out.mDistSq || !out.mHasPick && distSq <= out.mDistSq ) {
+                    out.mHasPick  = true;
+                    out.mDistSq   = distSq;
+                    out.mTriIndex = tri;
+                    out.mPoint.x  = work[0];
+                    out.mPoint.y  = work[1];
+                    out.mPoint.z  = work[2];
+                    out.mBary.x   = 1f - work[3] - work[4];
+                    out.mBary.y   = work[3];
+                    out.mBary.z   = work[4];
                 }
-                return intersectTree( farNode, rayPoint, rayDir, tSplit, maxDist, sides, result );
+            }
+            return;
+        }
 
-            } else {
-                return intersectTree( nearNode, rayPoint, rayDir, tSplit, maxDist, sides, result );
+        final float s = Float.intBitsToFloat( mNodes[node * NODE_SIZE + 1] );
+        final float lx1 = axis == 0 ? s : x1;
+        final float ly1 = axis == 1 ? s : y1;
+        final float lz1 = axis == 2 ? s : z1;
+        final float rx0 = axis == 0 ? s : x0;
+        final float ry0 = axis == 1 ? s : y0;
+        final float rz0 = axis == 2 ? s : z0;
+        final float pos = axis == 0 ? px : axis == 1 ? py : pz;
+
+        // Visit cell containing point first so that search radius shrinks quickly.
+        if( pos < s ) {
+            nearestPoint( node + 1, x0, y0, z0, lx1, ly1, lz1, px, py, pz, out );
+            if( boxDistSq( rx0, ry0, rz0, x1, y1, z1, px, py, pz ) <= out.mDistSq ) {
+                nearestPoint( head >>> NODE_SHIFT, rx0, ry0, rz0, x1, y1, z1, px, py, pz, out );
+            }
+        } else {
+            nearestPoint( head >>> NODE_SHIFT, rx0, ry0, rz0, x1, y1, z1, px, py, pz, out );
+            if( boxDistSq( x0, y0, z0, lx1, ly1, lz1, px, py, pz ) <= out.mDistSq ) {
+                nearestPoint( node + 1, x0, y0, z0, lx1, ly1, lz1, px, py, pz, out );
+            }
+        }
+    }
+
+
+    private static float boxDistSq( float x0,
+                                    float y0,
+                                    float z0,
+                                    float x1,
+                                    float y1,
+                                    float z1,
+                                    float px,
+                                    float py,
+                                    float pz )
+    {
+        float dx = px < x0 ? x0 - px : px > x1 ? px - x1 : 0;
+        float dy = py < y0 ? y0 - py : py > y1 ? py - y1 : 0;
+        float dz = pz < z0 ? z0 - pz : pz > z1 ? pz - z1 : 0;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Sorts {@code out[start..]} and removes duplicates, which occur when a
+     * triangle is referenced by multiple leaves.
+     *
+     * @return number of elements remaining after {@code start}
+     */
+    private static int sortUnique( IntList out, int start ) {
+        final int[] arr = out.array();
+        final int stop  = out.size();
+        Arrays.sort( arr, start, stop );
+
+        int n = start;
+        for( int i = start; i < stop; i++ ) {
+            if( n == start || arr[i] != arr[n - 1] ) {
+                arr[n++] = arr[i];
             }
         }
+
+        out.size( n );
+        return n - start;
     }
 
 
@@ -312,7 +1124,8 @@ public final class KdTriangleTree implements RayPicker {
                                SplitEvent[] events,
                                int eventCount,
                                SplitEvent[] work,
-                               float[] voxel )
+                               float[] voxel,
+                               ThreadLocal<BuildArrays> threadArrays )
     {
         if( triCount == 0 ) {
             return new Node( depth );
@@ -325,14 +1138,15 @@ public final class KdTriangleTree implements RayPicker {
         boolean havePlane = findSplitPlane( triCount, events, 0, eventCount, voxel, plane );
 
         if( !havePlane || triCount <= TERM_ITEM_COUNT || depth >= TERM_DEPTH ) {
-            List<DrawTri> triList = new ArrayList<DrawTri>( triCount );
+            int[] triList = new int[triCount];
+            int leafCount = 0;
 
             for( int i = 0; i < eventCount; i++ ) {
                 int idx = events[i].mTriIndex;
 
                 if( triMark[idx] == BOTH ) {
                     triMark[idx] = NONE;
-                    triList.add( tris[idx] );
+                    triList[leafCount++] = idx;
                 }
             }
 
@@ -341,6 +1155,10 @@ public final class KdTriangleTree implements RayPicker {
                 triMark[idx] = BOTH;
             }
 
+            if( leafCount < triCount ) {
+                triList = Arrays.copyOf( triList, leafCount );
+            }
+
             return new Node( depth, triList );
         }
 
@@ -476,31 +1294,217 @@ public final class KdTriangleTree implements RayPicker {
         Arrays.sort( leftEvents, 0, lbmax );
         Arrays.sort( rightEvents, 0, rbmax );
 
+        final int leftCount  = triCounts[LEFT] + triCounts[BOTH];
+        final int rightCount = triCounts[RIGHT] + triCounts[BOTH];
+
+        if( threadArrays != null && leftCount > PARALLEL_TRI_COUNT && rightCount > PARALLEL_TRI_COUNT ) {
+            // Forked subtree uses the mark and work arrays of whichever thread runs it.
+            BuildTask leftTask = new BuildTask( depth + 1,
+                                                tris,
+                                                leftCount,
+                                                leftEvents,
+                                                lbmax,
+                                                leftVoxel,
+                                                threadArrays );
+            leftTask.fork();
+            Node right = build( depth + 1,
+                                tris,
+                                rightCount,
+                                triMark,
+                                rightEvents,
+                                rbmax,
+                                work,
+                                rightVoxel,
+                                threadArrays );
+
+            return new Node( depth, leftTask.join(), right, splitAxis, splitPos );
+        }
+
         Node left = build( depth + 1,
                            tris,
-                           triCounts[LEFT] + triCounts[BOTH],
+                           leftCount,
                            triMark,
                            leftEvents,
                            lbmax,
                            work,
-                           leftVoxel );
+                           leftVoxel,
+                           threadArrays );
 
         // Clear left event array.
         leftEvents = null;
 
         Node right = build( depth + 1,
                             tris,
-                            triCounts[RIGHT] + triCounts[BOTH],
+                            rightCount,
                             triMark,
                             rightEvents,
                             rbmax,
                             work,
-                            rightVoxel );
+                            rightVoxel,
+                            threadArrays );
+
+        return new Node( depth, left, right, splitAxis, splitPos );
+    }
+
+
+    private static Node buildBinned( DrawTri[] tris, float[] voxel, ForkJoinPool pool ) {
+        final int triCount = tris.length;
+        float[] triBoxes = new float[triCount * 6];
+        int[] items = new int[triCount];
+
+        for( int i = 0; i < triCount; i++ ) {
+            final DrawVert[] verts = tris[i].mVerts;
+            items[i] = i;
+
+            for( int axis = 0; axis < 3; axis++ ) {
+                float v0 = verts[0].mPos.el( axis );
+                float v1 = verts[1].mPos.el( axis );
+                float v2 = verts[2].mPos.el( axis );
+                triBoxes[i * 6 + axis    ] = Math.min( v0, Math.min( v1, v2 ) );
+                triBoxes[i * 6 + axis + 3] = Math.max( v0, Math.max( v1, v2 ) );
+            }
+        }
+
+        if( pool == null ) {
+            return buildBinned( 0, triBoxes, items, triCount, voxel, false );
+        }
+
+        return pool.invoke( new BinnedBuildTask( 0, triBoxes, items, triCount, voxel ) );
+    }
+
+
+    private static Node buildBinned( int depth,
+                                     float[] triBoxes,
+                                     int[] items,
+                                     int itemCount,
+                                     float[] voxel,
+                                     boolean parallel )
+    {
+        if( itemCount == 0 ) {
+            return new Node( depth );
+        }
+
+        Plane plane = new Plane();
+        if( itemCount <= TERM_ITEM_COUNT ||
+            depth >= TERM_DEPTH ||
+            !findBinnedSplitPlane( triBoxes, items, itemCount, voxel, plane ) )
+        {
+            return new Node( depth, Arrays.copyOf( items, itemCount ) );
+        }
+
+        final int splitAxis  = plane.mAxis;
+        final float splitPos = plane.mPosition;
+
+        // Partition items by clipped bounding box.
+        int[] leftItems  = new int[itemCount];
+        int[] rightItems = new int[itemCount];
+        int leftCount  = 0;
+        int rightCount = 0;
+
+        for( int i = 0; i < itemCount; i++ ) {
+            final int idx = items[i];
+            final float lo = Math.max( triBoxes[idx * 6 + splitAxis    ], voxel[splitAxis    ] );
+            final float hi = Math.min( triBoxes[idx * 6 + splitAxis + 3], voxel[splitAxis + 3] );
+
+            if( lo < splitPos || lo == hi && lo == splitPos ) {
+                leftItems[leftCount++] = idx;
+            }
+            if( hi > splitPos ) {
+                rightItems[rightCount++] = idx;
+            }
+        }
+
+        if( leftCount == itemCount && rightCount == itemCount ) {
+            return new Node( depth, Arrays.copyOf( items, itemCount ) );
+        }
+
+        float[] leftVoxel  = new float[6];
+        float[] rightVoxel = new float[6];
+        splitVoxel( voxel, splitAxis, splitPos, leftVoxel, rightVoxel );
+
+        if( parallel && leftCount > PARALLEL_TRI_COUNT && rightCount > PARALLEL_TRI_COUNT ) {
+            BinnedBuildTask leftTask = new BinnedBuildTask( depth + 1, triBoxes, leftItems, leftCount, leftVoxel );
+            leftTask.fork();
+            Node right = buildBinned( depth + 1, triBoxes, rightItems, rightCount, rightVoxel, true );
+            return new Node( depth, leftTask.join(), right, splitAxis, splitPos );
+        }
 
+        Node left  = buildBinned( depth + 1, triBoxes, leftItems, leftCount, leftVoxel, parallel );
+        leftItems = null;
+        Node right = buildBinned( depth + 1, triBoxes, rightItems, rightCount, rightVoxel, parallel );
         return new Node( depth, left, right, splitAxis, splitPos );
     }
 
 
+    private static boolean findBinnedSplitPlane( float[] triBoxes,
+                                                 int[] items,
+                                                 int itemCount,
+                                                 float[] voxel,
+                                                 Plane out )
+    {
+        float[] leftVoxel  = new float[6];
+        float[] rightVoxel = new float[6];
+        int[] startBins    = new int[BIN_COUNT];
+        int[] stopBins     = new int[BIN_COUNT];
+        SplitCost cost     = new SplitCost();
+
+        float bestCost    = POSITIVE_INFINITY;
+        int bestSplitAxis = 0;
+        float bestSplitPos = 0;
+
+        for( int axis = 0; axis < 3; axis++ ) {
+            final float min    = voxel[axis];
+            final float extent = voxel[axis + 3] - min;
+            if( !( extent > 0 ) ) {
+                continue;
+            }
+
+            final float scale = BIN_COUNT / extent;
+            Arrays.fill( startBins, 0 );
+            Arrays.fill( stopBins, 0 );
+
+            for( int i = 0; i < itemCount; i++ ) {
+                final int idx = items[i];
+                startBins[ binIndex( triBoxes[idx * 6 + axis    ], min, scale ) ]++;
+                stopBins [ binIndex( triBoxes[idx * 6 + axis + 3], min, scale ) ]++;
+            }
+
+            int leftCount  = 0;
+            int rightCount = itemCount;
+
+            for( int bin = 1; bin < BIN_COUNT; bin++ ) {
+                leftCount  += startBins[bin - 1];
+                rightCount -= stopBins[bin - 1];
+
+                final float splitPos = min + extent * bin / BIN_COUNT;
+                splitVoxel( voxel, axis, splitPos, leftVoxel, rightVoxel );
+                computeSplitCost( voxel, leftVoxel, rightVoxel, leftCount, 0, rightCount, cost );
+
+                if( cost.mCost < bestCost ) {
+                    bestCost      = cost.mCost;
+                    bestSplitAxis = axis;
+                    bestSplitPos  = splitPos;
+                }
+            }
+        }
+
+        if( bestCost > COST_INTERSECTION * itemCount ) {
+            return false;
+        }
+
+        out.mAxis     = bestSplitAxis;
+        out.mPosition = bestSplitPos;
+        out.mSide     = LEFT;
+        return true;
+    }
+
+
+    private static int binIndex( float pos, float min, float scale ) {
+        int bin = (int)( ( pos - min ) * scale );
+        return bin < 0 ? 0 : bin >= BIN_COUNT ? BIN_COUNT - 1 : bin;
+    }
+
+
     private static boolean findSplitPlane( int triCount,
                                            SplitEvent[] events,
                                            int eventOff,
@@ -732,11 +1736,255 @@ public final class KdTriangleTree implements RayPicker {
     }
 
 
+    /**
+     * Converts build tree into flat node layout.
+     */
+    private static KdTriangleTree flatten( Node root, DrawTri[] tris, float[] bounds ) {
+        int[] nodes    = new int[root.computeNodeCount() * NODE_SIZE];
+        int[] leafTris = new int[root.computeLeafItemCount()];
+        int[] pos      = { 0, 0 };
+        flatten( root, nodes, leafTris, pos );
+        return new KdTriangleTree( tris, nodes, leafTris, root.computeMaxDepth(), bounds );
+    }
+
+    /**
+     * @param node     Node to write.
+     * @param nodes    Output node array.
+     * @param leafTris Output leaf triangle index array.
+     * @param pos      pos[0] holds next free node index. pos[1] holds next free position in leafTris.
+     */
+    private static void flatten( Node node, int[] nodes, int[] leafTris, int[] pos ) {
+        final int idx = pos[0]++;
+
+        if( node.isLeaf() ) {
+            int[] items = node.mTriangles;
+            int count   = items == null ? 0 : items.length;
+            nodes[idx * NODE_SIZE    ] = ( count << NODE_SHIFT ) | LEAF_FLAG;
+            nodes[idx * NODE_SIZE + 1] = pos[1];
+            if( count > 0 ) {
+                System.arraycopy( items, 0, leafTris, pos[1], count );
+                pos[1] += count;
+            }
+            return;
+        }
+
+        flatten( node.mLeft, nodes, leafTris, pos );
+        final int right = pos[0];
+        flatten( node.mRight, nodes, leafTris, pos );
+
+        nodes[idx * NODE_SIZE    ] = ( right << NODE_SHIFT ) | node.mSplitAxis;
+        nodes[idx * NODE_SIZE + 1] = Float.floatToRawIntBits( node.mSplitPos );
+    }
+
+
+    /**
+     * Mark and work arrays for one build thread. Both are only used within a
+     * single build step: marks are reset to BOTH and work is merged into the child
+     * event arrays before recursing. A thread that runs another task while joining
+     * may therefore reuse them.
+     */
+    private static final class BuildArrays {
+        final int[] mMark;
+        SplitEvent[] mWork = new SplitEvent[0];
+
+        BuildArrays( int triCount ) {
+            mMark = new int[triCount];
+            Arrays.fill( mMark, BOTH );
+        }
+
+        SplitEvent[] work( int triCount ) {
+            int size = triCount * 2 * 3 * 2;
+            if( mWork.length < size ) {
+                mWork = new SplitEvent[size];
+            }
+            return mWork;
+        }
+    }
+
+
+    private static final class BuildTask extends RecursiveTask<Node> {
+        private final int mDepth;
+        private final DrawTri[] mTris;
+        private final int mTriCount;
+        private final SplitEvent[] mEvents;
+        private final int mEventCount;
+        private final float[] mVoxel;
+        private final ThreadLocal<BuildArrays> mArrays;
+
+        BuildTask( int depth,
+                   DrawTri[] tris,
+                   int triCount,
+                   SplitEvent[] events,
+                   int eventCount,
+                   float[] voxel,
+                   ThreadLocal<BuildArrays> arrays )
+        {
+            mDepth      = depth;
+            mTris       = tris;
+            mTriCount   = triCount;
+            mEvents     = events;
+            mEventCount = eventCount;
+            mVoxel      = voxel;
+            mArrays     = arrays;
+        }
+
+        @Override
+        protected Node compute() {
+            BuildArrays arrays = mArrays.get();
+            return build( mDepth,
+                          mTris,
+                          mTriCount,
+                          arrays.mMark,
+                          mEvents,
+                          mEventCount,
+                          arrays.work( mTriCount ),
+                          mVoxel,
+                          mArrays );
+        }
+    }
+
+
+    private static final class BinnedBuildTask extends RecursiveTask<Node> {
+        private final int mDepth;
+        private final float[] mTriBoxes;
+        private final int[] mItems;
+        private final int mItemCount;
+        private final float[] mVoxel;
+
+        BinnedBuildTask( int depth, float[] triBoxes, int[] items, int itemCount, float[] voxel ) {
+            mDepth     = depth;
+            mTriBoxes  = triBoxes;
+            mItems     = items;
+            mItemCount = itemCount;
+            mVoxel     = voxel;
+        }
+
+        @Override
+        protected Node compute() {
+            return buildBinned( mDepth, mTriBoxes, mItems, mItemCount, mVoxel, true );
+        }
+    }
+
+
+    private static final class NearestTask extends RecursiveTask<Integer> {
+        private final KdTriangleTree mTree;
+        private final float[] mPoints;
+        private final int mOff;
+        private final int mCount;
+        private final float mMaxDist;
+        private final float[] mOutPoints;
+        private final float[] mOutDists;
+        private final int[] mOutTris;
+        private final float[] mOutBary;
+
+        NearestTask( KdTriangleTree tree,
+                     float[] points,
+                     int off,
+                     int count,
+                     float maxDist,
+                     float[] outPoints,
+                     float[] outDists,
+                     int[] outTris,
+                     float[] outBary )
+        {
+            mTree      = tree;
+            mPoints    = points;
+            mOff       = off;
+            mCount     = count;
+            mMaxDist   = maxDist;
+            mOutPoints = outPoints;
+            mOutDists  = outDists;
+            mOutTris   = outTris;
+            mOutBary   = outBary;
+        }
+
+        @Override
+        protected Integer compute() {
+            if( mCount > NEAREST_CHUNK_SIZE ) {
+                final int half = mCount / 2;
+                NearestTask left  = new NearestTask( mTree, mPoints, mOff, half, mMaxDist,
+                                                     mOutPoints, mOutDists, mOutTris, mOutBary );
+                NearestTask right = new NearestTask( mTree, mPoints, mOff + half, mCount - half, mMaxDist,
+                                                     mOutPoints, mOutDists, mOutTris, mOutBary );
+                left.fork();
+                int count = right.compute();
+                return count + left.join();
+            }
+
+            NearestPointResult result = new NearestPointResult();
+            Vec3 point = new Vec3();
+            int hitCount = 0;
+
+            for( int i = mOff; i < mOff + mCount; i++ ) {
+                point.x = mPoints[i * 3    ];
+                point.y = mPoints[i * 3 + 1];
+                point.z = mPoints[i * 3 + 2];
+                boolean hit = mTree.nearestPoint( point, mMaxDist, result );
+                if( hit ) {
+                    hitCount++;
+                }
+                if( mOutPoints != null ) {
+                    mOutPoints[i * 3    ] = hit ? result.mPoint.x : Float.NaN;
+                    mOutPoints[i * 3 + 1] = hit ? result.mPoint.y : Float.NaN;
+                    mOutPoints[i * 3 + 2] = hit ? result.mPoint.z : Float.NaN;
+                }
+                if( mOutDists != null ) {
+                    mOutDists[i] = hit ? result.pickedDistance() : POSITIVE_INFINITY;
+                }
+                if( mOutTris != null ) {
+                    mOutTris[i] = hit ? result.mTriIndex : -1;
+                }
+                if( mOutBary != null ) {
+                    mOutBary[i * 3    ] = hit ? result.mBary.x : Float.NaN;
+                    mOutBary[i * 3 + 1] = hit ? result.mBary.y : Float.NaN;
+                    mOutBary[i * 3 + 2] = hit ? result.mBary.z : Float.NaN;
+                }
+            }
+
+            return hitCount;
+        }
+    }
+
+
+    /**
+     * Parallel merge sort of SplitEvents. Because SplitEvent ordering is total,
+     * output is identical to that of a serial sort.
+     */
+    private static final class SortTask extends RecursiveAction {
+        private final SplitEvent[] mArr;
+        private final int mStart;
+        private final int mStop;
+        private final SplitEvent[] mWork;
+
+        SortTask( SplitEvent[] arr, int start, int stop, SplitEvent[] work ) {
+            mArr   = arr;
+            mStart = start;
+            mStop  = stop;
+            mWork  = work;
+        }
+
+        @Override
+        protected void compute() {
+            if( mStop - mStart <= PARALLEL_EVENT_COUNT ) {
+                Arrays.sort( mArr, mStart, mStop );
+                return;
+            }
+
+            final int mid = ( mStart + mStop ) >>> 1;
+            invokeAll( new SortTask( mArr, mStart, mid, mWork ),
+                       new SortTask( mArr, mid, mStop, mWork ) );
+
+            System.arraycopy( mArr, mStart, mWork, mStart, mStop - mStart );
+            sortlessMerge( mWork, mStart, mid, mWork, mid, mStop, mArr, mStart );
+        }
+    }
+
+
     private static final class Node {
         final int mDepth;
         final Node mLeft;
         final Node mRight;
-        final List<DrawTri> mTriangles;
+        final int[] mTriangles;
 
         final int mSplitAxis;
         final float mSplitPos;
@@ -751,7 +1999,7 @@ public final class KdTriangleTree implements RayPicker {
             mSplitPos = splitPos;
         }
 
-        Node( int depth, List<DrawTri> triangles ) {
+        Node( int depth, int[] triangles ) {
             mDepth     = depth;
             mLeft      = null;
             mRight     = null;
@@ -774,10 +2022,6 @@ public final class KdTriangleTree implements RayPicker {
             return mLeft == null;
         }
 
-        public boolean isEmpty() {
-            return mSplitAxis == -1;
-        }
-
         public int computeMaxDepth() {
             int max = mDepth;
             if( mLeft != null ) {
@@ -786,24 +2030,41 @@ public final class KdTriangleTree implements RayPicker {
             }
             return max;
         }
+
+        public int computeNodeCount() {
+            if( mLeft == null ) {
+                return 1;
+            }
+            return 1 + mLeft.computeNodeCount() + mRight.computeNodeCount();
+        }
+
+        public int computeLeafItemCount() {
+            if( mLeft == null ) {
+                return mTriangles == null ? 0 : mTriangles.length;
+            }
+            return mLeft.computeLeafItemCount() + mRight.computeLeafItemCount();
+        }
     }
 
 
-    private static final class Result implements RayPickResult {
-        final TriangleIntersector mIntersector     = new TriangleIntersector();
-        final RayIntersection     mRayIntersection = new RayIntersection();
+    private static final class Result extends KdTraversal implements IndexedPickResult {
+        DrawTri mTriangle = null;
 
-        boolean  mHasPick    = false;
-        float    mRayDist    = 0;
-        DrawTri  mTriangle   = null;
-        int      mSide       = 0;
-        Vec3     mStartPoint = new Vec3();
-        Vec3     mStopPoint  = new Vec3();
+        // Triangle indices of hits for pickAllHits, when caller doesn't supply array.
+        int[] mHitTris = null;
 
 
         Result() {}
 
 
+        int[] hitTris( int capacity ) {
+            if( mHitTris == null || mHitTris.length < capacity ) {
+                mHitTris = new int[capacity];
+            }
+            return mHitTris;
+        }
+
+
         @Override
         public boolean hasPick() {
             return mHasPick;
@@ -844,6 +2105,11 @@ public final class KdTriangleTree implements RayPicker {
             return null;
         }
 
+        @Override
+        public int pickedTriangleIndex() {
+            return mHasPick ? mTriIndex : -1;
+        }
+
     }
 
 
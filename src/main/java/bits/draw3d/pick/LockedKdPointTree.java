@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.pick;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import bits.math3d.VecView;
+
+
+/**
+ * Wraps a KdPointTree with a read/write lock, so that searches may run
+ * concurrently with each other but not with modifications. Use when a tree
+ * is shared between query threads and one or more writer threads; a tree
+ * that is not modified after it is filled can be searched concurrently
+ * without this wrapper.
+ * <p>
+ * {@link #iterator()} iterates over a snapshot of the tree taken when the
+ * iterator is created. For compound operations, callers may hold
+ * {@link #lock()} directly.
+ *
+ * @param <P> Point object type.
+ * @author decamp
+ */
+public class LockedKdPointTree<P> implements Collection<P>, PointPicker<P> {
+
+    private final KdPointTree<P> mTree;
+    private final ReadWriteLock mLock;
+    private final Lock mRead;
+    private final Lock mWrite;
+
+
+    public LockedKdPointTree( VecView<? super P> comp ) {
+        this( new KdPointTree<P>( comp ) );
+    }
+
+    /**
+     * @param tree Tree to wrap. After wrapping, the tree should only be accessed through this wrapper.
+     */
+    public LockedKdPointTree( KdPointTree<P> tree ) {
+        mTree  = tree;
+        mLock  = new ReentrantReadWriteLock();
+        mRead  = mLock.readLock();
+        mWrite = mLock.writeLock();
+    }
+
+
+
+    public ReadWriteLock lock() {
+        return mLock;
+    }
+
+
+    @Override
+    public PointPickResult<P> newPointPickResult() {
+        return mTree.newPointPickResult();
+    }
+
+    @Override
+    public boolean pick( P point, PointPickResult<P> out ) {
+        mRead.lock();
+        try {
+            return mTree.pick( point, out );
+        } finally {
+            mRead.unlock();
+        }
+    }
+
+
+    public boolean approximatePick( P point, PointPickResult<P> out ) {
+        mRead.lock();
+        try {
+            return mTree.approximatePick( point, out );
+        } finally {
+            mRead.unlock();
+        }
+    }
+
+
+    public boolean approximatePick( P point, int maxLeafVisits, double epsilon, PointPickResult<P> out ) {
+        mRead.lock();
+        try {
+            return mTree.approximatePick( point, maxLeafVisits, epsilon, out );
+        } finally {
+            mRead.unlock();
+        }
+    }
+
+
+    public int pickNearest( P point, int k, PointNeighbors<P> out ) {
+        mRead.lock();
+        try {
+            return mTree.pickNearest( point, k, out );
+        } finally {
+            mRead.unlock();
+        }
+    }
+
+
+    public int pickInRadius( P point, double radius, Collection<? super P> out ) {
+        mRead.lock();
+        try {
+            return mTree.pickInRadius( point, radius, out );
+        } finally {
+            mRead.unlock();
+        }
+    }
+
+
+    public void optimize() {
+        mWrite.lock();
+        try {
+            mTree.optimize();
+        } finally {
+            mWrite.unlock();
+        }
+    }
+
+
+    public void optimize( ForkJoinPool pool ) {
+        mWrite.lock();
+        try {
+            mTree.optimize( pool );
+        } finally {
+            mWrite.unlock();
+        }
+    }
+
+
+    @Override
+    public boolean add( P point ) {
+        mWrite.lock();
+        try {
+            return mTree.add( point );
+        } finally {
+            mWrite.unlock();
+        }
+    }
+
+    @Override
+    public boolean addAll( Collection<? extends P> c ) {
+        mWrite.lock();
+        try {
+            return mTree.addAll( c );
+        } finally {
+            mWrite.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        mWrite.lock();
+        try {
+            mTree.clear();
+        } finally {
+            mWrite.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains( Object o ) {
+        mRead.lock();
+        try {
+            return mTree.contains( o );
+        } finally {
+            mRead.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsAll( Collection<?> c ) {
+        mRead.lock();
+        try {
+            return mTree.containsAll( c );
+        } finally {
+            mRead.unlock();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        mRead.lock();
+        try {
+            return mTree.isEmpty();
+        } finally {
+            mRead.unlock();
+        }
+    }
+
+    @Override
+    @SuppressWarnings( "unchecked" )
+    public Iterator<P> iterator() {
+        return Collections.unmodifiableList( (List<P>)Arrays.asList( toArray() ) ).iterator();
+    }
+
+    @Override
+    public boolean remove( Object o ) {
+        mWrite.lock();
+        try {
+            return mTree.remove( o );
+        } finally {
+            mWrite.unlock();
+        }
+    }
+
+    @Override
+    public boolean removeAll( Collection<?> c ) {
+        mWrite.lock();
+        try {
+            return mTree.removeAll( c );
+        } finally {
+            mWrite.unlock();
+        }
+    }
+
+    @Override
+    public boolean retainAll( Collection<?> c ) {
+        mWrite.lock();
+        try {
+            return mTree.retainAll( c );
+        } finally {
+            mWrite.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mRead.lock();
+        try {
+            return mTree.size();
+        } finally {
+            mRead.unlock();
+        }
+    }
+
+    @Override
+    public Object[] toArray() {
+        mRead.lock();
+        try {
+            return mTree.toArray();
+        } finally {
+            mRead.unlock();
+        }
+    }
+
+    @Override
+    public <S> S[] toArray( S[] arr ) {
+        mRead.lock();
+        try {
+            return mTree.toArray( arr );
+        } finally {
+            mRead.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,498 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.pick;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import bits.draw3d.model.DrawTri;
+import bits.draw3d.model.DrawVert;
+import bits.math3d.*;
+
+import static java.lang.Float.POSITIVE_INFINITY;
+import static bits.draw3d.pick.KdTriangleTree.*;
+
+
+/**
+ * Read-only KdTriangleTree that picks directly against a snapshot written
+ * by {@link KdTriangleTree#write(File)}. Snapshots are usually opened with
+ * {@link #open(File)}, which memory-maps the file, so that no tree data is
+ * copied onto the heap. Opening a snapshot reads its node and leaf arrays once
+ * to check that they describe a valid tree, so that a corrupt snapshot fails
+ * with an IOException when opened rather than during a pick. Triangle data is
+ * not read until picked.
+ * <p>
+ * Snapshot format, in little-endian order:
+ * <pre>
+ *   int     magic ('KdTT')
+ *   int     version
+ *   int     node int count    (N)
+ *   int     leaf index count  (L)
+ *   int     triangle count    (T)
+ *   int     tree depth
+ *   float[6] bounds           ([x0, y0, z0, x1, y1, z1])
+ *   int[N]  nodes             (flat node array of KdTriangleTree)
+ *   int[L]  leaf triangles    (triangle indices referenced by leaves)
+ *   float[T * 12] triangles   ([v0, v1 - v0, v2 - v0, normal] per triangle)
+ * </pre>
+ * Because snapshots hold only triangle positions, {@link RayPickResult#pickedTriangle()}
+ * returns a new DrawTri built from the mapped vertex data on each call, and
+ * callers that need their original triangles should map the index returned by
+ * {@link #pick(float[], float[], int, int, int, float[], int[], int[])} back to
+ * the list from which the tree was built.
+ * <p>
+ * MappedKdTriangleTree is immutable. Any number of threads may pick against the
+ * same tree concurrently, provided each thread uses its own RayPickResult.
+ *
+ * @author decamp
+ */
+public final class MappedKdTriangleTree implements FastRayPicker {
+
+    static final int MAGIC       = 0x4B645454;
+    static final int VERSION     = 1;
+    static final int HEADER_SIZE = 12 * 4;
+
+
+    /**
+     * Memory-maps a tree snapshot.
+     *
+     * @param file File written by {@link KdTriangleTree#write(File)}.
+     * @return tree backed by mapped file
+     * @throws IOException if file cannot be read or is not a valid snapshot
+     */
+    public static MappedKdTriangleTree open( File file ) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try {
+            FileChannel ch = raf.getChannel();
+            return wrap( ch.map( FileChannel.MapMode.READ_ONLY, 0, ch.size() ) );
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Opens a tree snapshot held in a buffer. The buffer is used directly and
+     * must not be modified while the tree is in use.
+     *
+     * @param buf Buffer holding snapshot, starting at its current position.
+     * @return tree backed by {@code buf}
+     * @throws IOException if buffer does not hold a valid snapshot
+     */
+    public static MappedKdTriangleTree wrap( ByteBuffer buf ) throws IOException {
+        ByteBuffer bb = buf.slice().order( ByteOrder.LITTLE_ENDIAN );
+        if( bb.remaining() < HEADER_SIZE || bb.getInt( 0 ) != MAGIC ) {
+            throw new IOException( "Not a KdTriangleTree snapshot." );
+        }
+
+        int version = bb.getInt( 4 );
+        if( version != VERSION ) {
+            throw new IOException( "Unsupported KdTriangleTree snapshot version: " + version );
+        }
+
+        int nodeCount = bb.getInt( 8 );
+        int leafCount = bb.getInt( 12 );
+        int triCount  = bb.getInt( 16 );
+        int depth     = bb.getInt( 20 );
+        long size = HEADER_SIZE + 4L * ( (long)nodeCount + leafCount + (long)triCount * TriangleIntersector.TRI_DATA_SIZE );
+        if( nodeCount < 0 || leafCount < 0 || triCount < 0 || size > bb.remaining() ) {
+            throw new IOException( "Truncated KdTriangleTree snapshot." );
+        }
+
+        // Traversal stacks are sized for trees built to at most TERM_DEPTH.
+        if( depth < 0 || depth > TERM_DEPTH ) {
+            throw new IOException( "Invalid KdTriangleTree snapshot depth: " + depth );
+        }
+
+        float[] bounds = new float[6];
+        for( int i = 0; i < 6; i++ ) {
+            bounds[i] = bb.getFloat( 24 + i * 4 );
+        }
+
+        int pos = HEADER_SIZE;
+        IntBuffer nodes = slice( bb, pos, nodeCount * 4 ).asIntBuffer();
+        pos += nodeCount * 4;
+        IntBuffer leafTris = slice( bb, pos, leafCount * 4 ).asIntBuffer();
+        pos += leafCount * 4;
+        FloatBuffer triData = slice( bb, pos, triCount * TriangleIntersector.TRI_DATA_SIZE * 4 ).asFloatBuffer();
+
+        validate( nodes, leafTris, triCount );
+        return new MappedKdTriangleTree( nodes, leafTris, triData, triCount, depth, bounds );
+    }
+
+
+    static void write( int[] nodes,
+                       int[] leafTris,
+                       float[] triData,
+                       int triCount,
+                       int depth,
+                       float[] bounds,
+                       WritableByteChannel out )
+            throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+        header.putInt( MAGIC );
+        header.putInt( VERSION );
+        header.putInt( nodes.length );
+        header.putInt( leafTris.length );
+        header.putInt( triCount );
+        header.putInt( depth );
+        for( int i = 0; i < 6; i++ ) {
+            header.putFloat( bounds[i] );
+        }
+        header.flip();
+        writeFully( header, out );
+
+        ByteBuffer bb = ByteBuffer.allocate( 64 * 1024 ).order( ByteOrder.LITTLE_ENDIAN );
+        for( int v : nodes ) {
+            if( !bb.hasRemaining() ) {
+                flush( bb, out );
+            }
+            bb.putInt( v );
+        }
+        for( int v : leafTris ) {
+            if( !bb.hasRemaining() ) {
+                flush( bb, out );
+            }
+            bb.putInt( v );
+        }
+        for( int i = 0; i < triCount * TriangleIntersector.TRI_DATA_SIZE; i++ ) {
+            if( !bb.hasRemaining() ) {
+                flush( bb, out );
+            }
+            bb.putFloat( triData[i] );
+        }
+        flush( bb, out );
+    }
+
+
+
+    private final IntBuffer mNodes;
+    private final IntBuffer mLeafTris;
+    private final FloatBuffer mTriData;
+    private final int mTriCount;
+    private final int mDepth;
+    private final float[] mBounds;
+
+
+    private MappedKdTriangleTree( IntBuffer nodes,
+                                  IntBuffer leafTris,
+                                  FloatBuffer triData,
+                                  int triCount,
+                                  int depth,
+                                  float[] bounds )
+    {
+        mNodes    = nodes;
+        mLeafTris = leafTris;
+        mTriData  = triData;
+        mTriCount = triCount;
+        mDepth    = depth;
+        mBounds   = bounds;
+    }
+
+
+    @Override
+    public RayPickResult newRayPickResult() {
+        return new Result();
+    }
+
+    @Override
+    public boolean pick( Vec3 rayPointVec, Vec3 rayDirVec, int side, RayPickResult out ) {
+        if( !(out instanceof Result) ) {
+            throw new IllegalArgumentException( "Improperly allocated PickResult." );
+        }
+
+        Result result = (Result)out;
+        result.loadRay( rayPointVec, rayDirVec );
+        return pick( side, result );
+    }
+
+    @Override
+    public int pick( float[] rayPoints,
+                     float[] rayDirs,
+                     int rayOff,
+                     int rayCount,
+                     int sides,
+                     float[] outDists,
+                     int[] outTris,
+                     int[] outSides )
+    {
+        Result result = new Result();
+        int hitCount = 0;
+
+        for( int i = rayOff; i < rayOff + rayCount; i++ ) {
+            result.loadRay( rayPoints, rayDirs, i );
+            boolean hit = pick( sides, result );
+            if( hit ) {
+                hitCount++;
+            }
+            if( outDists != null ) {
+                outDists[i] = hit ? result.mRayDist : POSITIVE_INFINITY;
+            }
+            if( outTris != null ) {
+                outTris[i] = hit ? result.mTriIndex : -1;
+            }
+            if( outSides != null ) {
+                outSides[i] = hit ? result.mSide : Side.NONE;
+            }
+        }
+
+        return hitCount;
+    }
+
+    @Override
+    public boolean occluded( Vec3 rayPointVec, Vec3 rayDirVec, float maxDist, int sides, RayPickResult work ) {
+        if( !(work instanceof Result) ) {
+            throw new IllegalArgumentException( "Improperly allocated PickResult." );
+        }
+
+        Result result = (Result)work;
+        result.loadRay( rayPointVec, rayDirVec );
+        return occluded( maxDist, sides, result );
+    }
+
+    @Override
+    public int occluded( float[] rayPoints,
+                         float[] rayDirs,
+                         int rayOff,
+                         int rayCount,
+                         float maxDist,
+                         int sides,
+                         boolean[] out )
+    {
+        Result result = new Result();
+        int hitCount = 0;
+
+        for( int i = rayOff; i < rayOff + rayCount; i++ ) {
+            result.loadRay( rayPoints, rayDirs, i );
+            boolean hit = occluded( maxDist, sides, result );
+            if( hit ) {
+                hitCount++;
+            }
+            out[i] = hit;
+        }
+
+        return hitCount;
+    }
+
+
+    public int treeDepth() {
+        return mDepth;
+    }
+
+    /**
+     * @return number of indexed triangles.
+     */
+    public int triangleCount() {
+        return mTriCount;
+    }
+
+    /**
+     * @return number of nodes in tree, including leaves.
+     */
+    public int nodeCount() {
+        return mNodes.capacity() / NODE_SIZE;
+    }
+
+    /**
+     * @param out Receives bounds of all indexed triangles.
+     * @return out
+     */
+    public Box3 bounds( Box3 out ) {
+        out.x0 = mBounds[0];
+        out.y0 = mBounds[1];
+        out.z0 = mBounds[2];
+        out.x1 = mBounds[3];
+        out.y1 = mBounds[4];
+        out.z1 = mBounds[5];
+        return out;
+    }
+
+    /**
+     * Reads the vertices of a triangle.
+     *
+     * @param index Index of triangle.
+     * @param outVerts Receives three vertices.
+     */
+    public void triangle( int index, Vec3[] outVerts ) {
+        final FloatBuffer data = mTriData;
+        final int off = index * TriangleIntersector.TRI_DATA_SIZE;
+        final float x = data.get( off     );
+        final float y = data.get( off + 1 );
+        final float z = data.get( off + 2 );
+        Vec.put( x, y, z, outVerts[0] );
+        Vec.put( x + data.get( off + 3 ), y + data.get( off + 4 ), z + data.get( off + 5 ), outVerts[1] );
+        Vec.put( x + data.get( off + 6 ), y + data.get( off + 7 ), z + data.get( off + 8 ), outVerts[2] );
+    }
+
+
+
+    /***************
+     * Traversal
+     ***************/
+
+    private boolean pick( int side, Result result ) {
+        if( mTriCount == 0 ) {
+            result.mHasPick = false;
+            result.mRayDist = POSITIVE_INFINITY;
+            return false;
+        }
+        return result.pick( mNodes, mLeafTris, mTriData, mBounds, side );
+    }
+
+
+    private boolean occluded( float maxDist, int side, Result result ) {
+        return mTriCount != 0 && result.occluded( mNodes, mLeafTris, mTriData, mBounds, maxDist, side );
+    }
+
+
+
+    /**
+     * Checks that node array describes a tree no deeper than TERM_DEPTH, with
+     * child and leaf references in range, and that leaves reference only
+     * existing triangles.
+     */
+    private static void validate( IntBuffer nodes, IntBuffer leafTris, int triCount ) throws IOException {
+        final int nodeCount = nodes.capacity() / NODE_SIZE;
+        final int leafCount = leafTris.capacity();
+
+        if( nodes.capacity() % NODE_SIZE != 0 || nodeCount == 0 && triCount > 0 ) {
+            throw new IOException( "Invalid KdTriangleTree snapshot node count: " + nodes.capacity() );
+        }
+
+        for( int i = 0; i < leafCount; i++ ) {
+            final int tri = leafTris.get( i );
+            if( tri < 0 || tri >= triCount ) {
+                throw new IOException( "Invalid triangle index in KdTriangleTree snapshot: " + tri );
+            }
+        }
+
+        if( nodeCount == 0 ) {
+            return;
+        }
+
+        // Walk tree with the same bound on stack size as traversal.
+        final int[] stackNodes = new int[TERM_DEPTH + 2];
+        final int[] stackDepth = new int[TERM_DEPTH + 2];
+        int stackSize = 1;
+
+        while( stackSize > 0 ) {
+            stackSize--;
+            final int node  = stackNodes[stackSize];
+            final int depth = stackDepth[stackSize];
+            final int head  = nodes.get( node * NODE_SIZE );
+            final int child = head >>> NODE_SHIFT;
+
+            if( ( head & AXIS_MASK ) == LEAF_FLAG ) {
+                final int off = nodes.get( node * NODE_SIZE + 1 );
+                if( off < 0 || off > leafCount - child ) {
+                    throw new IOException( "Invalid leaf in KdTriangleTree snapshot at node " + node );
+                }
+                continue;
+            }
+
+            // Children always follow their parent in depth-first layout.
+            if( depth >= TERM_DEPTH || node + 1 >= nodeCount || child <= node || child >= nodeCount ) {
+                throw new IOException( "Invalid inner node in KdTriangleTree snapshot at node " + node );
+            }
+
+            stackNodes[stackSize] = child;
+            stackDepth[stackSize] = depth + 1;
+            stackSize++;
+            stackNodes[stackSize] = node + 1;
+            stackDepth[stackSize] = depth + 1;
+            stackSize++;
+        }
+    }
+
+
+    private static ByteBuffer slice( ByteBuffer bb, int off, int len ) {
+        ByteBuffer dup = bb.duplicate();
+        dup.position( off ).limit( off + len );
+        return dup.slice().order( ByteOrder.LITTLE_ENDIAN );
+    }
+
+
+    private static void flush( ByteBuffer bb, WritableByteChannel out ) throws IOException {
+        bb.flip();
+        writeFully( bb, out );
+        bb.clear();
+    }
+
+
+    private static void writeFully( ByteBuffer bb, WritableByteChannel out ) throws IOException {
+        while( bb.hasRemaining() ) {
+            out.write( bb );
+        }
+    }
+
+
+
+    private final class Result extends KdTraversal implements IndexedPickResult {
+
+        Result() {}
+
+
+        @Override
+        public boolean hasPick() {
+            return mHasPick;
+        }
+
+        @Override
+        public float pickedDistance() {
+            return Vec.dist( mStartPoint, mStopPoint );
+        }
+
+        @Override
+        public float pickedParamDistance() {
+            return mRayDist;
+        }
+
+        @Override
+        public Vec3 pickedPoint() {
+            return new Vec3( mStopPoint );
+        }
+
+        @Override
+        public Vec3 pickedPointRef() {
+            return mStopPoint;
+        }
+
+        /**
+         * @return new triangle built from mapped vertex data.
+         */
+        @Override
+        public DrawTri pickedTriangle() {
+            if( !mHasPick ) {
+                return null;
+            }
+            Vec3[] v = { new Vec3(), new Vec3(), new Vec3() };
+            triangle( mTriIndex, v );
+            return new DrawTri( new DrawVert( v[0].x, v[0].y, v[0].z ),
+                                new DrawVert( v[1].x, v[1].y, v[1].z ),
+                                new DrawVert( v[2].x, v[2].y, v[2].z ) );
+        }
+
+        @Override
+        public int pickedSide() {
+            return mSide;
+        }
+
+        @Override
+        public Object pickedData() {
+            return null;
+        }
+
+        @Override
+        public int pickedTriangleIndex() {
+            return mHasPick ? mTriIndex : -1;
+        }
+
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.pick;
+
+import bits.draw3d.model.DrawTri;
+import bits.math3d.Vec3;
+
+
+/**
+ * Holds the output of a nearest-surface-point query, such as
+ * {@link KdTriangleTree#nearestPoint}, along with working data for the query.
+ * Each thread performing queries should use its own result.
+ *
+ * @author decamp
+ */
+public final class NearestPointResult {
+
+    final float[] mWork = new float[5];
+
+    boolean mHasPick  = false;
+    float   mDistSq   = 0;
+    int     mTriIndex = -1;
+    DrawTri mTriangle = null;
+    final Vec3 mPoint = new Vec3();
+    final Vec3 mBary  = new Vec3();
+
+
+    public NearestPointResult() {}
+
+
+    /**
+     * @return true iff a surface point was found within the search distance.
+     */
+    public boolean hasPick() {
+        return mHasPick;
+    }
+
+    /**
+     * If <tt>hasPick()</tt> is <tt>false</tt>, the return value is undefined.
+     *
+     * @return distance from query point to nearest surface point.
+     */
+    public float pickedDistance() {
+        return (float)Math.sqrt( mDistSq );
+    }
+
+    /**
+     * Returns direct reference to the nearest surface point. Reuse of this
+     * result will cause the point to be overwritten.
+     *
+     * @return reference to nearest point
+     */
+    public Vec3 pickedPointRef() {
+        return mPoint;
+    }
+
+    /**
+     * @return triangle containing nearest point
+     */
+    public DrawTri pickedTriangle() {
+        return mTriangle;
+    }
+
+    /**
+     * @return index of triangle containing nearest point, or -1 if there is no pick.
+     */
+    public int pickedTriangleIndex() {
+        return mHasPick ? mTriIndex : -1;
+    }
+
+    /**
+     * Returns direct reference to the barycentric coordinates of the nearest point,
+     * such that {@code point = x * v0 + y * v1 + z * v2} for the vertices of the
+     * picked triangle.
+     *
+     * @return reference to barycentric coordinates
+     */
+    public Vec3 pickedBarycentricRef() {
+        return mBary;
+    }
+
+}
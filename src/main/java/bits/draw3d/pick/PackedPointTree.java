@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.pick;
+
+import bits.draw3d.util.IntList;
+
+
+/**
+ * Static kd-tree over points packed in a float array, such as
+ * {@code [x0, y0, z0, x1, y1, z1, ...]}. Intended for very large point sets,
+ * where the per-point nodes and {@link bits.math3d.VecView} calls of
+ * {@link KdPointTree} cost too much memory and time.
+ * <p>
+ * The tree is built once and is left-balanced, so it is stored implicitly:
+ * node {@code i} has children {@code 2i+1} and {@code 2i+2}, and the only
+ * per-node data is the reordered point coordinates, the index of the point in
+ * the source array, and the split dimension. Queries return point indices into
+ * the source array; no object is allocated per point.
+ * <p>
+ * Queries do not modify the tree and may be run concurrently.
+ *
+ * @author decamp
+ */
+public final class PackedPointTree {
+
+    private final int mDim;
+    private final int mSize;
+
+    /** Point coordinates in node order. */
+    private final float[] mCoords;
+    /** Index of point in source array for each node. */
+    private final int[] mIndex;
+    /** Split dimension for each node. */
+    private final byte[] mSplit;
+
+
+    /**
+     * Builds a tree. The source array is not retained or modified.
+     *
+     * @param coords Packed point coordinates.
+     * @param off    Offset into {@code coords} of first point.
+     * @param count  Number of points.
+     * @param dim    Number of dimensions per point, between 1 and 127.
+     */
+    public PackedPointTree( float[] coords, int off, int count, int dim ) {
+        if( dim < 1 || dim > Byte.MAX_VALUE ) {
+            throw new IllegalArgumentException( "Invalid dimension count: " + dim );
+        }
+        if( count < 0 || off < 0 || off + (long)count * dim > coords.length ) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        mDim    = dim;
+        mSize   = count;
+        mCoords = new float[count * dim];
+        mIndex  = new int[count];
+        mSplit  = new byte[count];
+
+        if( count == 0 ) {
+            return;
+        }
+
+        int[] perm = new int[count];
+        for( int i = 0; i < count; i++ ) {
+            perm[i] = i;
+        }
+
+        float[] min = new float[dim];
+        float[] max = new float[dim];
+        for( int d = 0; d < dim; d++ ) {
+            min[d] = Float.POSITIVE_INFINITY;
+            max[d] = Float.NEGATIVE_INFINITY;
+        }
+        for( int i = 0; i < count; i++ ) {
+            for( int d = 0; d < dim; d++ ) {
+                float v = coords[off + i * dim + d];
+                if( v < min[d] ) {
+                    min[d] = v;
+                }
+                if( v > max[d] ) {
+                    max[d] = v;
+                }
+            }
+        }
+
+        build( 0, perm, 0, count, coords, off, min, max );
+    }
+
+
+
+    /**
+     * @return number of points in tree
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return number of dimensions per point
+     */
+    public int dim() {
+        return mDim;
+    }
+
+    /**
+     * Finds the point nearest to a query point.
+     *
+     * @param query Array holding query point.
+     * @param off   Offset into {@code query} of query point.
+     * @return index of nearest point, or -1 if tree is empty
+     */
+    public int nearest( float[] query, int off ) {
+        if( mSize == 0 ) {
+            return -1;
+        }
+        int node = findNearest( 0, query, off, 0, distSq( 0, query, off ) );
+        return mIndex[node];
+    }
+
+    /**
+     * Finds the {@code k} points nearest to a query point.
+     *
+     * @param query      Array holding query point.
+     * @param off        Offset into {@code query} of query point.
+     * @param k          Max number of neighbors to find.
+     * @param outIndices Receives indices of neighbors, sorted by ascending distance. Length must be at least {@code k}.
+     * @param outDists   Receives distances of neighbors. Length must be at least {@code k}.
+     * @return number of neighbors found, which is {@code min( k, size() )}
+     */
+    public int nearest( float[] query, int off, int k, int[] outIndices, float[] outDists ) {
+        if( k <= 0 || mSize == 0 ) {
+            return 0;
+        }
+
+        // outIndices and outDists form a max-heap of k entries, initially all infinitely far.
+        for( int i = 0; i < k; i++ ) {
+            outIndices[i] = -1;
+            outDists[i] = Float.POSITIVE_INFINITY;
+        }
+        findNearest( 0, query, off, k, outIndices, outDists );
+
+        // Heap sort to ascending order, then convert to node indices and distances.
+        for( int end = k - 1; end > 0; end-- ) {
+            int ti = outIndices[0];
+            float td = outDists[0];
+            outIndices[0] = outIndices[end];
+            outDists[0] = outDists[end];
+            outIndices[end] = ti;
+            outDists[end] = td;
+            siftDown( outIndices, outDists, end );
+        }
+
+        int count = Math.min( k, mSize );
+        for( int i = 0; i < count; i++ ) {
+            outIndices[i] = mIndex[outIndices[i]];
+            outDists[i] = (float)Math.sqrt( outDists[i] );
+        }
+        return count;
+    }
+
+    /**
+     * Finds all points within a given distance of a query point.
+     *
+     * @param query  Array holding query point.
+     * @param off    Offset into {@code query} of query point.
+     * @param radius Max distance from query point, inclusive.
+     * @param out    Receives indices of points within radius, in no particular order.
+     *               Indices are appended after any existing contents.
+     * @return number of indices appended to {@code out}
+     */
+    public int findInRadius( float[] query, int off, float radius, IntList out ) {
+        if( mSize == 0 || !( radius >= 0 ) ) {
+            return 0;
+        }
+        final int start = out.size();
+        findInRadius( 0, query, off, radius * radius, out );
+        return out.size() - start;
+    }
+
+
+
+    private void build( int node, int[] perm, int lo, int hi, float[] coords, int off, float[] min, float[] max ) {
+        final int dim = mDim;
+        final int mid = lo + leftSize( hi - lo );
+
+        // Split along the dimension of greatest extent.
+        int axis = 0;
+        float ext = max[0] - min[0];
+        for( int d = 1; d < dim; d++ ) {
+            if( max[d] - min[d] > ext ) {
+                ext = max[d] - min[d];
+                axis = d;
+            }
+        }
+
+        select( perm, lo, hi - 1, mid, coords, off, axis );
+
+        final int src = perm[mid];
+        final float split = coords[off + src * dim + axis];
+        System.arraycopy( coords, off + src * dim, mCoords, node * dim, dim );
+        mIndex[node] = src;
+        mSplit[node] = (byte)axis;
+
+        if( lo < mid ) {
+            float prev = max[axis];
+            max[axis] = split;
+            build( 2 * node + 1, perm, lo, mid, coords, off, min, max );
+            max[axis] = prev;
+        }
+
+        if( mid + 1 < hi ) {
+            float prev = min[axis];
+            min[axis] = split;
+            build( 2 * node + 2, perm, mid + 1, hi, coords, off, min, max );
+            min[axis] = prev;
+        }
+    }
+
+    /**
+     * @return number of nodes in left subtree of a left-balanced tree with {@code n} nodes.
+     */
+    static int leftSize( int n ) {
+        if( n <= 1 ) {
+            return 0;
+        }
+        int h    = 31 - Integer.numberOfLeadingZeros( n );
+        int half = 1 << ( h - 1 );
+        int last = n - ( ( 1 << h ) - 1 );
+        return half - 1 + Math.min( last, half );
+    }
+
+    /**
+     * Partially sorts {@code perm[lo..hi]} by coordinate {@code axis} so that
+     * element {@code k} holds the point that would be there if fully sorted,
+     * with lesser points before it and greater points after.
+     */
+    private void select( int[] perm, int lo, int hi, int k, float[] coords, int off, int axis ) {
+        final int dim = mDim;
+        off += axis;
+
+        while( hi > lo ) {
+            // Median-of-three pivot, left at perm[lo].
+            int m = ( lo + hi ) >>> 1;
+            if( coords[off + perm[m] * dim] < coords[off + perm[lo] * dim] ) {
+                swap( perm, m, lo );
+            }
+            if( coords[off + perm[hi] * dim] < coords[off + perm[lo] * dim] ) {
+                swap( perm, hi, lo );
+            }
+            if( coords[off + perm[hi] * dim] < coords[off + perm[m] * dim] ) {
+                swap( perm, hi, m );
+            }
+            swap( perm, lo, m );
+
+            final float pivot = coords[off + perm[lo] * dim];
+            int i = lo;
+            int j = hi + 1;
+
+            while( true ) {
+                while( coords[off + perm[++i] * dim] < pivot ) {
+                    if( i == hi ) {
+                        break;
+                    }
+                }
+                while( pivot < coords[off + perm[--j] * dim] ) {}
+                if( i >= j ) {
+                    break;
+                }
+                swap( perm, i, j );
+            }
+
+            swap( perm, lo, j );
+
+            if( j == k ) {
+                return;
+            } else if( j < k ) {
+                lo = j + 1;
+            } else {
+                hi = j - 1;
+            }
+        }
+    }
+
+
+    private int findNearest( int node, float[] q, int off, int best, float bestDist ) {
+        final int dim = mDim;
+        float dist = distSq( node, q, off );
+        if( dist < bestDist ) {
+            best = node;
+            bestDist = dist;
+        }
+
+        final int left = 2 * node + 1;
+        if( left >= mSize ) {
+            return best;
+        }
+
+        final int axis = mSplit[node];
+        final float diff = q[off + axis] - mCoords[node * dim + axis];
+        final int near = diff < 0 ? left : left + 1;
+        final int far  = diff < 0 ? left + 1 : left;
+
+        if( near < mSize ) {
+            int b = findNearest( near, q, off, best, bestDist );
+            if( b != best ) {
+                best = b;
+                bestDist = distSq( b, q, off );
+            }
+        }
+
+        if( far < mSize && diff * diff < bestDist ) {
+            best = findNearest( far, q, off, best, bestDist );
+        }
+
+        return best;
+    }
+
+
+    private void findNearest( int node, float[] q, int off, int k, int[] heapNodes, float[] heapDists ) {
+        final int dim = mDim;
+        float dist = distSq( node, q, off );
+        if( dist < heapDists[0] ) {
+            heapNodes[0] = node;
+            heapDists[0] = dist;
+            siftDown( heapNodes, heapDists, k );
+        }
+
+        final int left = 2 * node + 1;
+        if( left >= mSize ) {
+            return;
+        }
+
+        final int axis = mSplit[node];
+        final float diff = q[off + axis] - mCoords[node * dim + axis];
+        final int near = diff < 0 ? left : left + 1;
+        final int far  = diff < 0 ? left + 1 : left;
+
+        if( near < mSize ) {
+            findNearest( near, q, off, k, heapNodes, heapDists );
+        }
+        if( far < mSize && diff * diff < heapDists[0] ) {
+            findNearest( far, q, off, k, heapNodes, heapDists );
+        }
+    }
+
+
+    private void findInRadius( int node, float[] q, int off, float radSq, IntList out ) {
+        final int dim = mDim;
+        if( distSq( node, q, off ) <= radSq ) {
+            out.add( mIndex[node] );
+        }
+
+        final int left = 2 * node + 1;
+        if( left >= mSize ) {
+            return;
+        }
+
+        final int axis = mSplit[node];
+        final float diff = q[off + axis] - mCoords[node * dim + axis];
+        final float diffSq = diff * diff;
+
+        if( diff < 0 || diffSq <= radSq ) {
+            findInRadius( left, q, off, radSq, out );
+        }
+        if( left + 1 < mSize && ( diff >= 0 || diffSq <= radSq ) ) {
+            findInRadius( left + 1, q, off, radSq, out );
+        }
+    }
+
+
+    private float distSq( int node, float[] q, int off ) {
+        final int dim = mDim;
+        final int base = node * dim;
+        float sum = 0f;
+        for( int d = 0; d < dim; d++ ) {
+            float v = q[off + d] - mCoords[base + d];
+            sum += v * v;
+        }
+        return sum;
+    }
+
+    /**
+     * Restores max-heap order after replacing the root of a heap of {@code size} entries.
+     */
+    private static void siftDown( int[] nodes, float[] dists, int size ) {
+        final int node = nodes[0];
+        final float dist = dists[0];
+        int i = 0;
+
+        while( true ) {
+            int c = 2 * i + 1;
+            if( c >= size ) {
+                break;
+            }
+            if( c + 1 < size && dists[c + 1] > dists[c] ) {
+                c++;
+            }
+            if( dists[c] <= dist ) {
+                break;
+            }
+            nodes[i] = nodes[c];
+            dists[i] = dists[c];
+            i = c;
+        }
+
+        nodes[i] = node;
+        dists[i] = dist;
+    }
+
+
+    private static void swap( int[] arr, int i, int j ) {
+        int t = arr[i];
+        arr[i] = arr[j];
+        arr[j] = t;
+    }
+
+}
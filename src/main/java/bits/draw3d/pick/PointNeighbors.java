@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.pick;
+
+import java.util.Arrays;
+
+
+/**
+ * Holds the output of a k-nearest-neighbor search, such as
+ * {@link KdPointTree#pickNearest}. During a search, neighbors are kept in
+ * a bounded max-heap so that the farthest candidate may be replaced in
+ * O(log k). On completion, neighbors are sorted by ascending distance.
+ * <p>
+ * Storage grows to the largest {@code k} requested and is then reused,
+ * so repeated searches with one PointNeighbors object allocate nothing.
+ * PointNeighbors also holds working data for searches, so each thread
+ * must use its own.
+ *
+ * @author decamp
+ */
+public final class PointNeighbors<P> {
+
+    private Object[] mPoints = new Object[8];
+    private double[] mDists  = new double[8];
+    private int mSize     = 0;
+    private int mCapacity = 0;
+
+    private KdPointTree.BinSum mMinDist = null;
+
+
+    public PointNeighbors() {}
+
+
+    /**
+     * @return number of neighbors found.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @param index Index of neighbor, where 0 is nearest.
+     * @return neighboring point
+     */
+    @SuppressWarnings( "unchecked" )
+    public P point( int index ) {
+        if( index >= mSize ) {
+            throw new IndexOutOfBoundsException();
+        }
+        return (P)mPoints[index];
+    }
+
+    /**
+     * @param index Index of neighbor, where 0 is nearest.
+     * @return distance to neighboring point
+     */
+    public double distance( int index ) {
+        if( index >= mSize ) {
+            throw new IndexOutOfBoundsException();
+        }
+        return mDists[index];
+    }
+
+
+
+    /**
+     * @return cleared working space for a search over {@code dimCount} dimensions.
+     */
+    KdPointTree.BinSum minDist( int dimCount ) {
+        if( mMinDist == null || mMinDist.size() != dimCount ) {
+            mMinDist = new KdPointTree.BinSum( dimCount );
+        } else {
+            mMinDist.clear();
+        }
+        return mMinDist;
+    }
+
+    /**
+     * Clears heap and sets max number of neighbors.
+     */
+    void reset( int capacity ) {
+        if( mPoints.length < capacity ) {
+            int len = Math.max( capacity, mPoints.length * 2 );
+            mPoints = new Object[len];
+            mDists  = new double[len];
+        } else {
+            Arrays.fill( mPoints, 0, mSize, null );
+        }
+        mSize     = 0;
+        mCapacity = capacity;
+    }
+
+    /**
+     * @return squared distance beyond which candidates are rejected.
+     */
+    double limit() {
+        return mSize < mCapacity ? Double.POSITIVE_INFINITY : mDists[0];
+    }
+
+    /**
+     * Offers a candidate to the heap. Caller must check that {@code distSq < limit()}.
+     */
+    void offer( Object point, double distSq ) {
+        if( mSize < mCapacity ) {
+            // Sift up.
+            int i = mSize++;
+            while( i > 0 ) {
+                int parent = ( i - 1 ) >> 1;
+                if( mDists[parent] >= distSq ) {
+                    break;
+                }
+                mPoints[i] = mPoints[parent];
+                mDists[i]  = mDists[parent];
+                i = parent;
+            }
+            mPoints[i] = point;
+            mDists[i]  = distSq;
+        } else {
+            siftDown( 0, mSize, point, distSq );
+        }
+    }
+
+    /**
+     * Sorts heap into ascending order and converts squared distances to distances.
+     */
+    void finish() {
+        // Heap sort in place: repeatedly move max to end.
+        for( int end = mSize - 1; end > 0; end-- ) {
+            Object p = mPoints[end];
+            double d = mDists[end];
+            mPoints[end] = mPoints[0];
+            mDists[end]  = mDists[0];
+            siftDown( 0, end, p, d );
+        }
+        for( int i = 0; i < mSize; i++ ) {
+            mDists[i] = Math.sqrt( mDists[i] );
+        }
+    }
+
+
+    private void siftDown( int i, int size, Object point, double distSq ) {
+        while( true ) {
+            int child = 2 * i + 1;
+            if( child >= size ) {
+                break;
+            }
+            if( child + 1 < size && mDists[child + 1] > mDists[child] ) {
+                child++;
+            }
+            if( mDists[child] <= distSq ) {
+                break;
+            }
+            mPoints[i] = mPoints[child];
+            mDists[i]  = mDists[child];
+            i = child;
+        }
+        mPoints[i] = point;
+        mDists[i]  = distSq;
+    }
+
+}
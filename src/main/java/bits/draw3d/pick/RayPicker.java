@@ -10,6 +10,16 @@ import bits.math3d.Vec3;
 
 
 /**
+ * Finds intersections between rays and geometry.
+ * <p>
+ * Unless otherwise documented, RayPicker implementations are safe for concurrent picking
+ * as long as each thread uses its own {@link RayPickResult}, allocated with
+ * {@link #newRayPickResult()}. All working data used by a pick is held in the result
+ * object, or allocated by the call.
+ * <p>
+ * Batch picks and occlusion queries are provided by {@link FastRayPicker}.
+ * {@link RayPickers} performs them on any RayPicker.
+ *
  * @author decamp
  */
 public interface RayPicker {
@@ -32,4 +42,5 @@ public interface RayPicker {
      */
     public boolean pick( Vec3 rayPoint, Vec3 rayDir, int sides, RayPickResult out);
 
+
 }
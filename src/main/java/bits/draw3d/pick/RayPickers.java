@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.pick;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import bits.math3d.Vec3;
+
+
+/**
+ * Utilities for working with RayPickers.
+ *
+ * @author decamp
+ */
+public final class RayPickers {
+
+    // Rays per task when splitting a batch across threads.
+    private static final int BATCH_CHUNK_SIZE = 1024;
+
+
+    /**
+     * Performs {@link FastRayPicker#pick(float[], float[], int, int, int, float[], int[], int[])}
+     * with the batch split into chunks that are picked concurrently on {@code pool}.
+     * Pickers must support concurrent picking with separate result objects.
+     * <p>
+     * Pickers that do not implement FastRayPicker pick each ray individually,
+     * and write -1 to {@code outTris}.
+     *
+     * @param pool Pool to run picks on, or null to pick on calling thread.
+     * @return number of rays that picked a point
+     */
+    public static int pick( RayPicker picker,
+                            float[] rayPoints,
+                            float[] rayDirs,
+                            int rayOff,
+                            int rayCount,
+                            int sides,
+                            float[] outDists,
+                            int[] outTris,
+                            int[] outSides,
+                            ForkJoinPool pool )
+    {
+        if( pool == null || rayCount <= BATCH_CHUNK_SIZE ) {
+            return pickBatch( picker, rayPoints, rayDirs, rayOff, rayCount, sides, outDists, outTris, outSides );
+        }
+        return pool.invoke( new BatchTask( picker,
+                                           rayPoints,
+                                           rayDirs,
+                                           rayOff,
+                                           rayCount,
+                                           sides,
+                                           outDists,
+                                           outTris,
+                                           outSides ) );
+    }
+
+    /**
+     * Performs {@link FastRayPicker#occluded(Vec3, Vec3, float, int, RayPickResult)}.
+     * Pickers that do not implement FastRayPicker perform a full pick instead,
+     * which overwrites the pick data held by {@code work}.
+     *
+     * @return true iff ray intersects geometry at or before {@code maxDist}
+     */
+    public static boolean occluded( RayPicker picker,
+                                    Vec3 rayPoint,
+                                    Vec3 rayDir,
+                                    float maxDist,
+                                    int sides,
+                                    RayPickResult work )
+    {
+        if( picker instanceof FastRayPicker ) {
+            return ((FastRayPicker)picker).occluded( rayPoint, rayDir, maxDist, sides, work );
+        }
+        return picker.pick( rayPoint, rayDir, sides, work ) && work.pickedParamDistance() <= maxDist;
+    }
+
+    /**
+     * Performs {@link FastRayPicker#occluded(float[], float[], int, int, float, int, boolean[])}
+     * with the batch split into chunks that are tested concurrently on {@code pool}.
+     * Pickers must support concurrent picking with separate result objects.
+     * Pickers that do not implement FastRayPicker perform a full pick of each ray.
+     *
+     * @param pool Pool to run tests on, or null to test on calling thread.
+     * @return number of occluded rays
+     */
+    public static int occluded( RayPicker picker,
+                                float[] rayPoints,
+                                float[] rayDirs,
+                                int rayOff,
+                                int rayCount,
+                                float maxDist,
+                                int sides,
+                                boolean[] out,
+                                ForkJoinPool pool )
+    {
+        if( pool == null || rayCount <= BATCH_CHUNK_SIZE ) {
+            return occludedBatch( picker, rayPoints, rayDirs, rayOff, rayCount, maxDist, sides, out );
+        }
+        return pool.invoke( new OcclusionTask( picker, rayPoints, rayDirs, rayOff, rayCount, maxDist, sides, out ) );
+    }
+
+    /**
+     * Picks a set of rays concurrently on {@code pool}. Each ray is picked into its own
+     * result object. Pickers must support concurrent picking with separate result objects.
+     *
+     * @param picker    Picker to use.
+     * @param rayPoints Ray origins.
+     * @param rayDirs   Ray directions.
+     * @param sides     Which sides to pick. (Side.FRONT, Side.BACK, or Side.BOTH)
+     * @param out       Receives result of each pick. Null entries will be allocated with
+     *                  {@code picker.newRayPickResult()}.
+     * @param pool      Pool to run picks on, or null to pick on calling thread.
+     * @return number of rays that picked a point
+     */
+    public static int pickAll( RayPicker picker,
+                               Vec3[] rayPoints,
+                               Vec3[] rayDirs,
+                               int sides,
+                               RayPickResult[] out,
+                               ForkJoinPool pool )
+    {
+        PickAllTask task = new PickAllTask( picker, rayPoints, rayDirs, sides, out, 0, rayPoints.length );
+        if( pool == null ) {
+            return task.compute();
+        }
+        return pool.invoke( task );
+    }
+
+
+
+    private static int pickBatch( RayPicker picker,
+                                  float[] rayPoints,
+                                  float[] rayDirs,
+                                  int rayOff,
+                                  int rayCount,
+                                  int sides,
+                                  float[] outDists,
+                                  int[] outTris,
+                                  int[] outSides )
+    {
+        if( picker instanceof FastRayPicker ) {
+            return ((FastRayPicker)picker).pick( rayPoints, rayDirs, rayOff, rayCount, sides, outDists, outTris, outSides );
+        }
+
+        RayPickResult result = picker.newRayPickResult();
+        Vec3 point = new Vec3();
+        Vec3 dir   = new Vec3();
+        int hitCount = 0;
+
+        for( int i = rayOff; i < rayOff + rayCount; i++ ) {
+            point.x = rayPoints[i * 3];
+            point.y = rayPoints[i * 3 + 1];
+            point.z = rayPoints[i * 3 + 2];
+            dir.x   = rayDirs[i * 3];
+            dir.y   = rayDirs[i * 3 + 1];
+            dir.z   = rayDirs[i * 3 + 2];
+
+            boolean hit = picker.pick( point, dir, sides, result );
+            if( hit ) {
+                hitCount++;
+            }
+            if( outDists != null ) {
+                outDists[i] = hit ? result.pickedParamDistance() : Float.POSITIVE_INFINITY;
+            }
+            if( outTris != null ) {
+                outTris[i] = -1;
+            }
+            if( outSides != null ) {
+                outSides[i] = hit ? result.pickedSide() : Side.NONE;
+            }
+        }
+
+        return hitCount;
+    }
+
+
+    private static int occludedBatch( RayPicker picker,
+                                      float[] rayPoints,
+                                      float[] rayDirs,
+                                      int rayOff,
+                                      int rayCount,
+                                      float maxDist,
+                                      int sides,
+                                      boolean[] out )
+    {
+        if( picker instanceof FastRayPicker ) {
+            return ((FastRayPicker)picker).occluded( rayPoints, rayDirs, rayOff, rayCount, maxDist, sides, out );
+        }
+
+        RayPickResult result = picker.newRayPickResult();
+        Vec3 point = new Vec3();
+        Vec3 dir   = new Vec3();
+        int count = 0;
+
+        for( int i = rayOff; i < rayOff + rayCount; i++ ) {
+            point.x = rayPoints[i * 3];
+            point.y = rayPoints[i * 3 + 1];
+            point.z = rayPoints[i * 3 + 2];
+            dir.x   = rayDirs[i * 3];
+            dir.y   = rayDirs[i * 3 + 1];
+            dir.z   = rayDirs[i * 3 + 2];
+
+            out[i] = occluded( picker, point, dir, maxDist, sides, result );
+            if( out[i] ) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+
+    private static final class PickAllTask extends RecursiveTask<Integer> {
+        private final RayPicker mPicker;
+        private final Vec3[] mRayPoints;
+        private final Vec3[] mRayDirs;
+        private final int mSides;
+        private final RayPickResult[] mOut;
+        private final int mStart;
+        private final int mStop;
+
+        PickAllTask( RayPicker picker,
+                     Vec3[] rayPoints,
+                     Vec3[] rayDirs,
+                     int sides,
+                     RayPickResult[] out,
+                     int start,
+                     int stop )
+        {
+            mPicker    = picker;
+            mRayPoints = rayPoints;
+            mRayDirs   = rayDirs;
+            mSides     = sides;
+            mOut       = out;
+            mStart     = start;
+            mStop      = stop;
+        }
+
+        @Override
+        protected Integer compute() {
+            if( mStop - mStart > BATCH_CHUNK_SIZE ) {
+                final int mid = ( mStart + mStop ) >>> 1;
+                PickAllTask left  = new PickAllTask( mPicker, mRayPoints, mRayDirs, mSides, mOut, mStart, mid );
+                PickAllTask right = new PickAllTask( mPicker, mRayPoints, mRayDirs, mSides, mOut, mid, mStop );
+                left.fork();
+                int count = right.compute();
+                return count + left.join();
+            }
+
+            int count = 0;
+            for( int i = mStart; i < mStop; i++ ) {
+                RayPickResult result = mOut[i];
+                if( result == null ) {
+                    result = mPicker.newRayPickResult();
+                    mOut[i] = result;
+                }
+                if( mPicker.pick( mRayPoints[i], mRayDirs[i], mSides, result ) ) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+
+    private static final class BatchTask extends RecursiveTask<Integer> {
+        private final RayPicker mPicker;
+        private final float[] mRayPoints;
+        private final float[] mRayDirs;
+        private final int mRayOff;
+        private final int mRayCount;
+        private final int mSides;
+        private final float[] mOutDists;
+        private final int[] mOutTris;
+        private final int[] mOutSides;
+
+        BatchTask( RayPicker picker,
+                   float[] rayPoints,
+                   float[] rayDirs,
+                   int rayOff,
+                   int rayCount,
+                   int sides,
+                   float[] outDists,
+                   int[] outTris,
+                   int[] outSides )
+        {
+            mPicker    = picker;
+            mRayPoints = rayPoints;
+            mRayDirs   = rayDirs;
+            mRayOff    = rayOff;
+            mRayCount  = rayCount;
+            mSides     = sides;
+            mOutDists  = outDists;
+            mOutTris   = outTris;
+            mOutSides  = outSides;
+        }
+
+        @Override
+        protected Integer compute() {
+            if( mRayCount <= BATCH_CHUNK_SIZE ) {
+                return pickBatch( mPicker, mRayPoints, mRayDirs, mRayOff, mRayCount, mSides, mOutDists, mOutTris, mOutSides );
+            }
+
+            final int half = mRayCount / 2;
+            BatchTask left  = new BatchTask( mPicker, mRayPoints, mRayDirs, mRayOff, half, mSides,
+                                             mOutDists, mOutTris, mOutSides );
+            BatchTask right = new BatchTask( mPicker, mRayPoints, mRayDirs, mRayOff + half, mRayCount - half, mSides,
+                                             mOutDists, mOutTris, mOutSides );
+            left.fork();
+            int count = right.compute();
+            return count + left.join();
+        }
+    }
+
+
+    private static final class OcclusionTask extends RecursiveTask<Integer> {
+        private final RayPicker mPicker;
+        private final float[] mRayPoints;
+        private final float[] mRayDirs;
+        private final int mRayOff;
+        private final int mRayCount;
+        private final float mMaxDist;
+        private final int mSides;
+        private final boolean[] mOut;
+
+        OcclusionTask( RayPicker picker,
+                       float[] rayPoints,
+                       float[] rayDirs,
+                       int rayOff,
+                       int rayCount,
+                       float maxDist,
+                       int sides,
+                       boolean[] out )
+        {
+            mPicker    = picker;
+            mRayPoints = rayPoints;
+            mRayDirs   = rayDirs;
+            mRayOff    = rayOff;
+            mRayCount  = rayCount;
+            mMaxDist   = maxDist;
+            mSides     = sides;
+            mOut       = out;
+        }
+
+        @Override
+        protected Integer compute() {
+            if( mRayCount <= BATCH_CHUNK_SIZE ) {
+                return occludedBatch( mPicker, mRayPoints, mRayDirs, mRayOff, mRayCount, mMaxDist, mSides, mOut );
+            }
+
+            final int half = mRayCount / 2;
+            OcclusionTask left  = new OcclusionTask( mPicker, mRayPoints, mRayDirs, mRayOff, half,
+                                                     mMaxDist, mSides, mOut );
+            OcclusionTask right = new OcclusionTask( mPicker, mRayPoints, mRayDirs, mRayOff + half, mRayCount - half,
+                                                     mMaxDist, mSides, mOut );
+            left.fork();
+            int count = right.compute();
+            return count + left.join();
+        }
+    }
+
+
+    private RayPickers() {}
+
+}
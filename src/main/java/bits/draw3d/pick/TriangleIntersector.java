@@ -7,6 +7,8 @@
 package bits.draw3d.pick;
 
 
+import java.nio.FloatBuffer;
+
 import bits.draw3d.model.DrawTri;
 import bits.math3d.Vec;
 import bits.math3d.Vec3;
@@ -17,6 +19,63 @@ import bits.math3d.Vec3;
  */
 class TriangleIntersector {
 
+    /**
+     * Number of floats in each precomputed triangle record. Each record holds
+     * {@code [ v0, v1 - v0, v2 - v0, (v1 - v0) x (v2 - v0) ]}.
+     */
+    static final int TRI_DATA_SIZE = 12;
+
+
+    /**
+     * Precomputes the records read by
+     * {@link #intersect(float[], float[], float[], int, RayIntersection)}.
+     *
+     * @param tris     Triangles to pack.
+     * @param triCount Number of triangles to pack.
+     * @return array of {@code triCount * TRI_DATA_SIZE} floats.
+     */
+    static float[] packTriangles( DrawTri[] tris, int triCount ) {
+        float[] ret = new float[triCount * TRI_DATA_SIZE];
+        for( int i = 0; i < triCount; i++ ) {
+            packTriangle( tris[i], ret, i * TRI_DATA_SIZE );
+        }
+        return ret;
+    }
+
+    /**
+     * Writes a single triangle record.
+     *
+     * @param tri Triangle to pack.
+     * @param out Receives triangle record.
+     * @param off Offset into {@code out} at which to write record.
+     */
+    static void packTriangle( DrawTri tri, float[] out, int off ) {
+        Vec3 v0 = tri.mVerts[0].mPos;
+        Vec3 v1 = tri.mVerts[1].mPos;
+        Vec3 v2 = tri.mVerts[2].mPos;
+
+        float e1x = v1.x - v0.x;
+        float e1y = v1.y - v0.y;
+        float e1z = v1.z - v0.z;
+        float e2x = v2.x - v0.x;
+        float e2y = v2.y - v0.y;
+        float e2z = v2.z - v0.z;
+
+        out[off     ] = v0.x;
+        out[off +  1] = v0.y;
+        out[off +  2] = v0.z;
+        out[off +  3] = e1x;
+        out[off +  4] = e1y;
+        out[off +  5] = e1z;
+        out[off +  6] = e2x;
+        out[off +  7] = e2y;
+        out[off +  8] = e2z;
+        out[off +  9] = e1y * e2z - e2y * e1z;
+        out[off + 10] = e1z * e2x - e2z * e1x;
+        out[off + 11] = e1x * e2y - e2x * e1y;
+    }
+
+
     private final Vec3 mNorm = new Vec3();
     private final Vec3 mTemp = new Vec3();
 
@@ -78,4 +137,295 @@ class TriangleIntersector {
         return true;
     }
 
+    /**
+     * Intersects ray with a precomputed triangle record using the
+     * M&ouml;ller-Trumbore algorithm. Side classification and output match
+     * {@link #intersect(float[], float[], DrawTri, RayIntersection)}.
+     *
+     * @param rayPoint Origin of ray.
+     * @param rayDir   Direction of ray.
+     * @param triData  Triangle records created by {@link #packTriangles}.
+     * @param triIndex Index of triangle record to test.
+     * @param out      Receives intersection on success.
+     * @return true iff ray intersects triangle
+     */
+    public boolean intersect( float[] rayPoint, float[] rayDir, float[] triData, int triIndex, RayIntersection out ) {
+        final int off = triIndex * TRI_DATA_SIZE;
+        return intersect( rayPoint,
+                          rayDir,
+                          triData[off     ], triData[off +  1], triData[off +  2],
+                          triData[off +  3], triData[off +  4], triData[off +  5],
+                          triData[off +  6], triData[off +  7], triData[off +  8],
+                          triData[off +  9], triData[off + 10], triData[off + 11],
+                          out );
+    }
+
+    /**
+     * Equivalent to {@link #intersect(float[], float[], float[], int, RayIntersection)},
+     * but reads triangle records from a buffer using absolute gets only, so that a
+     * single buffer may be shared between threads.
+     */
+    public boolean intersect( float[] rayPoint, float[] rayDir, FloatBuffer triData, int triIndex, RayIntersection out ) {
+        final int off = triIndex * TRI_DATA_SIZE;
+        return intersect( rayPoint,
+                          rayDir,
+                          triData.get( off     ), triData.get( off +  1 ), triData.get( off +  2 ),
+                          triData.get( off +  3 ), triData.get( off +  4 ), triData.get( off +  5 ),
+                          triData.get( off +  6 ), triData.get( off +  7 ), triData.get( off +  8 ),
+                          triData.get( off +  9 ), triData.get( off + 10 ), triData.get( off + 11 ),
+                          out );
+    }
+
+
+    /**
+     * M&ouml;ller-Trumbore test against the fields of one triangle record.
+     */
+    private static boolean intersect( float[] rayPoint,
+                                      float[] rayDir,
+                                      float v0x, float v0y, float v0z,
+                                      float e1x, float e1y, float e1z,
+                                      float e2x, float e2y, float e2z,
+                                      float nx, float ny, float nz,
+                                      RayIntersection out )
+    {
+        final float dx = rayDir[0];
+        final float dy = rayDir[1];
+        final float dz = rayDir[2];
+
+        //Compute side of triangle that ray will hit.
+        float dot = nx * dx + ny * dy + nz * dz;
+        if( dot < 0.0 ) {
+            out.mTargetSide = Side.FRONT;
+        } else if( dot > 0.0 ) {
+            out.mTargetSide = Side.BACK;
+        } else {
+            return false;
+        }
+
+        // det = e1 . (dir x e2) = -dot
+        final float px = dy * e2z - e2y * dz;
+        final float py = dz * e2x - e2z * dx;
+        final float pz = dx * e2y - e2x * dy;
+        final float invDet = 1.0f / ( e1x * px + e1y * py + e1z * pz );
+
+        final float tx = rayPoint[0] - v0x;
+        final float ty = rayPoint[1] - v0y;
+        final float tz = rayPoint[2] - v0z;
+
+        final float u = ( tx * px + ty * py + tz * pz ) * invDet;
+        if( u < 0.0f || u > 1.0f ) {
+            return false;
+        }
+
+        final float qx = ty * e1z - e1y * tz;
+        final float qy = tz * e1x - e1z * tx;
+        final float qz = tx * e1y - e1x * ty;
+
+        final float v = ( dx * qx + dy * qy + dz * qz ) * invDet;
+        if( v < 0.0f || u + v > 1.0f ) {
+            return false;
+        }
+
+        final float t = ( e2x * qx + e2y * qy + e2z * qz ) * invDet;
+        if( t <= 0 ) {
+            return false;
+        }
+
+        Vec3 outPoint = out.mPoint;
+        outPoint.x = rayPoint[0] + dx * t;
+        outPoint.y = rayPoint[1] + dy * t;
+        outPoint.z = rayPoint[2] + dz * t;
+        out.mRayDist = t;
+        return true;
+    }
+
+
+    /**
+     * Tests if a packed triangle overlaps an axis-aligned box, using the separating
+     * axis test of Akenine-M&ouml;ller. Triangles that touch the box overlap it.
+     *
+     * @param triData Triangle records.
+     * @param triIndex Index of triangle record.
+     * @param cx Center of box.
+     * @param hx Half-width of box.
+     * @return true iff triangle overlaps box
+     */
+    static boolean overlapsBox( float[] triData,
+                                int triIndex,
+                                float cx,
+                                float cy,
+                                float cz,
+                                float hx,
+                                float hy,
+                                float hz )
+    {
+        final int off = triIndex * TRI_DATA_SIZE;
+        final float e1x = triData[off + 3];
+        final float e1y = triData[off + 4];
+        final float e1z = triData[off + 5];
+        final float e2x = triData[off + 6];
+        final float e2y = triData[off + 7];
+        final float e2z = triData[off + 8];
+
+        // Vertices relative to box center.
+        final float ax = triData[off    ] - cx;
+        final float ay = triData[off + 1] - cy;
+        final float az = triData[off + 2] - cz;
+        final float bx = ax + e1x;
+        final float by = ay + e1y;
+        final float bz = az + e1z;
+        final float dx = ax + e2x;
+        final float dy = ay + e2y;
+        final float dz = az + e2z;
+
+        // Box face normals.
+        if( Math.min( ax, Math.min( bx, dx ) ) > hx || Math.max( ax, Math.max( bx, dx ) ) < -hx ||
+            Math.min( ay, Math.min( by, dy ) ) > hy || Math.max( ay, Math.max( by, dy ) ) < -hy ||
+            Math.min( az, Math.min( bz, dz ) ) > hz || Math.max( az, Math.max( bz, dz ) ) < -hz )
+        {
+            return false;
+        }
+
+        // Triangle normal.
+        final float nx = triData[off +  9];
+        final float ny = triData[off + 10];
+        final float nz = triData[off + 11];
+        if( Math.abs( nx * ax + ny * ay + nz * az ) > hx * Math.abs( nx ) + hy * Math.abs( ny ) + hz * Math.abs( nz ) ) {
+            return false;
+        }
+
+        // Cross products of box axes and triangle edges.
+        final float fx = e2x - e1x;
+        final float fy = e2y - e1y;
+        final float fz = e2z - e1z;
+        return !separates( 0, -e1z, e1y, ax, ay, az, bx, by, bz, dx, dy, dz, hx, hy, hz ) &&
+               !separates( e1z, 0, -e1x, ax, ay, az, bx, by, bz, dx, dy, dz, hx, hy, hz ) &&
+               !separates( -e1y, e1x, 0, ax, ay, az, bx, by, bz, dx, dy, dz, hx, hy, hz ) &&
+               !separates( 0, -e2z, e2y, ax, ay, az, bx, by, bz, dx, dy, dz, hx, hy, hz ) &&
+               !separates( e2z, 0, -e2x, ax, ay, az, bx, by, bz, dx, dy, dz, hx, hy, hz ) &&
+               !separates( -e2y, e2x, 0, ax, ay, az, bx, by, bz, dx, dy, dz, hx, hy, hz ) &&
+               !separates( 0, -fz, fy, ax, ay, az, bx, by, bz, dx, dy, dz, hx, hy, hz ) &&
+               !separates( fz, 0, -fx, ax, ay, az, bx, by, bz, dx, dy, dz, hx, hy, hz ) &&
+               !separates( -fy, fx, 0, ax, ay, az, bx, by, bz, dx, dy, dz, hx, hy, hz );
+    }
+
+    /**
+     * Finds the point on a packed triangle nearest to a given point.
+     *
+     * @param triData  Triangle records.
+     * @param triIndex Index of triangle record.
+     * @param px       Query point.
+     * @param out      Optional array that receives {@code [x, y, z, u, v]}, where
+     *                 {@code (x, y, z) = v0 + u * (v1 - v0) + v * (v2 - v0)}. May be null.
+     * @return squared distance from query point to triangle
+     */
+    static float closestPoint( float[] triData, int triIndex, float px, float py, float pz, float[] out ) {
+        final int off = triIndex * TRI_DATA_SIZE;
+        final float e1x = triData[off + 3];
+        final float e1y = triData[off + 4];
+        final float e1z = triData[off + 5];
+        final float e2x = triData[off + 6];
+        final float e2y = triData[off + 7];
+        final float e2z = triData[off + 8];
+        final float apx = px - triData[off    ];
+        final float apy = py - triData[off + 1];
+        final float apz = pz - triData[off + 2];
+
+        // Voronoi region tests from Ericson, Real-Time Collision Detection, 5.1.5.
+        final float d1 = e1x * apx + e1y * apy + e1z * apz;
+        final float d2 = e2x * apx + e2y * apy + e2z * apz;
+        final float e11 = e1x * e1x + e1y * e1y + e1z * e1z;
+        final float e12 = e1x * e2x + e1y * e2y + e1z * e2z;
+        final float e22 = e2x * e2x + e2y * e2y + e2z * e2z;
+        final float d3 = d1 - e11;
+        final float d4 = d2 - e12;
+        final float d5 = d1 - e12;
+        final float d6 = d2 - e22;
+
+        float u;
+        float v;
+
+        if( d1 <= 0 && d2 <= 0 ) {
+            u = 0;
+            v = 0;
+        } else if( d3 >= 0 && d4 <= d3 ) {
+            u = 1;
+            v = 0;
+        } else if( d6 >= 0 && d5 <= d6 ) {
+            u = 0;
+            v = 1;
+        } else {
+            final float vc = d1 * d4 - d3 * d2;
+            final float vb = d5 * d2 - d1 * d6;
+            final float va = d3 * d6 - d5 * d4;
+
+            if( vc <= 0 && d1 >= 0 && d3 <= 0 ) {
+                u = d1 / ( d1 - d3 );
+                v = 0;
+            } else if( vb <= 0 && d2 >= 0 && d6 <= 0 ) {
+                u = 0;
+                v = d2 / ( d2 - d6 );
+            } else if( va <= 0 && d4 - d3 >= 0 && d5 - d6 >= 0 ) {
+                v = ( d4 - d3 ) / ( ( d4 - d3 ) + ( d5 - d6 ) );
+                u = 1 - v;
+            } else {
+                final float denom = 1f / ( va + vb + vc );
+                u = vb * denom;
+                v = vc * denom;
+            }
+        }
+
+        final float qx = u * e1x + v * e2x;
+        final float qy = u * e1y + v * e2y;
+        final float qz = u * e1z + v * e2z;
+        if( out != null ) {
+            out[0] = triData[off    ] + qx;
+            out[1] = triData[off + 1] + qy;
+            out[2] = triData[off + 2] + qz;
+            out[3] = u;
+            out[4] = v;
+        }
+
+        final float rx = apx - qx;
+        final float ry = apy - qy;
+        final float rz = apz - qz;
+        return rx * rx + ry * ry + rz * rz;
+    }
+
+    /**
+     * @return true iff all vertices of a packed triangle lie strictly on the negative
+     *         side of plane {@code x*p.x + y*p.y + z*p.z + w = 0}.
+     */
+    static boolean outsidePlane( float[] triData, int triIndex, float x, float y, float z, float w ) {
+        final int off = triIndex * TRI_DATA_SIZE;
+        final float d0 = x * triData[off    ] + y * triData[off + 1] + z * triData[off + 2] + w;
+        final float d1 = x * triData[off + 3] + y * triData[off + 4] + z * triData[off + 5];
+        final float d2 = x * triData[off + 6] + y * triData[off + 7] + z * triData[off + 8];
+        return d0 < 0 && d0 + d1 < 0 && d0 + d2 < 0;
+    }
+
+
+    private static boolean separates( float ax,
+                                      float ay,
+                                      float az,
+                                      float v0x,
+                                      float v0y,
+                                      float v0z,
+                                      float v1x,
+                                      float v1y,
+                                      float v1z,
+                                      float v2x,
+                                      float v2y,
+                                      float v2z,
+                                      float hx,
+                                      float hy,
+                                      float hz )
+    {
+        final float p0 = ax * v0x + ay * v0y + az * v0z;
+        final float p1 = ax * v1x + ay * v1y + az * v1z;
+        final float p2 = ax * v2x + ay * v2y + az * v2z;
+        final float r  = hx * Math.abs( ax ) + hy * Math.abs( ay ) + hz * Math.abs( az );
+        return Math.min( p0, Math.min( p1, p2 ) ) > r || Math.max( p0, Math.max( p1, p2 ) ) < -r;
+    }
+
 }
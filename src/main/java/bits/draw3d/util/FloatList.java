@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.util.Arrays;
+
+
+/**
+ * Growable list of primitive floats. Intended for accumulating large amounts of
+ * numeric data, such as vertex attributes, without boxing. After the backing
+ * array has grown to fit, {@link #clear()} and {@link #add(float)} allocate nothing.
+ *
+ * @author decamp
+ */
+public final class FloatList {
+
+    private float[] mArr;
+    private int mSize = 0;
+
+
+    public FloatList() {
+        this( 16 );
+    }
+
+
+    public FloatList( int capacity ) {
+        mArr = new float[Math.max( 1, capacity )];
+    }
+
+
+
+    public int size() {
+        return mSize;
+    }
+
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+
+    public float get( int index ) {
+        if( index >= mSize ) {
+            throw new IndexOutOfBoundsException();
+        }
+        return mArr[index];
+    }
+
+
+    public void set( int index, float value ) {
+        if( index >= mSize ) {
+            throw new IndexOutOfBoundsException();
+        }
+        mArr[index] = value;
+    }
+
+
+    public void add( float value ) {
+        if( mSize == mArr.length ) {
+            mArr = Arrays.copyOf( mArr, mSize * 2 );
+        }
+        mArr[mSize++] = value;
+    }
+
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Shrinks or grows list. Elements added by growing the list are undefined.
+     */
+    public void size( int size ) {
+        ensureCapacity( size );
+        mSize = size;
+    }
+
+
+    public void ensureCapacity( int capacity ) {
+        if( capacity > mArr.length ) {
+            mArr = Arrays.copyOf( mArr, Math.max( capacity, mArr.length * 2 ) );
+        }
+    }
+
+    /**
+     * @return direct reference to backing array, which holds {@code size()} valid elements.
+     *         Invalidated by any call that grows the list.
+     */
+    public float[] array() {
+        return mArr;
+    }
+
+
+    public float[] toArray() {
+        return Arrays.copyOf( mArr, mSize );
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.util;
+
+import java.util.Arrays;
+
+
+/**
+ * Growable list of primitive ints. Intended for use as a reusable sink for
+ * query results: after the backing array has grown to fit, {@link #clear()}
+ * and {@link #add(int)} allocate nothing.
+ *
+ * @author decamp
+ */
+public final class IntList {
+
+    private int[] mArr;
+    private int mSize = 0;
+
+
+    public IntList() {
+        this( 16 );
+    }
+
+
+    public IntList( int capacity ) {
+        mArr = new int[Math.max( 1, capacity )];
+    }
+
+
+
+    public int size() {
+        return mSize;
+    }
+
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+
+    public int get( int index ) {
+        if( index >= mSize ) {
+            throw new IndexOutOfBoundsException();
+        }
+        return mArr[index];
+    }
+
+
+    public void set( int index, int value ) {
+        if( index >= mSize ) {
+            throw new IndexOutOfBoundsException();
+        }
+        mArr[index] = value;
+    }
+
+
+    public void add( int value ) {
+        if( mSize == mArr.length ) {
+            mArr = Arrays.copyOf( mArr, mSize * 2 );
+        }
+        mArr[mSize++] = value;
+    }
+
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Shrinks or grows list. Elements added by growing the list are undefined.
+     */
+    public void size( int size ) {
+        ensureCapacity( size );
+        mSize = size;
+    }
+
+
+    public void ensureCapacity( int capacity ) {
+        if( capacity > mArr.length ) {
+            mArr = Arrays.copyOf( mArr, Math.max( capacity, mArr.length * 2 ) );
+        }
+    }
+
+    /**
+     * @return direct reference to backing array, which holds {@code size()} valid elements.
+     *         Invalidated by any call that grows the list.
+     */
+    public int[] array() {
+        return mArr;
+    }
+
+
+    public int[] toArray() {
+        return Arrays.copyOf( mArr, mSize );
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.model;
+
+import java.io.*;
+import java.util.*;
+
+import bits.draw3d.model.io.ObjParser;
+import bits.math3d.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * @author decamp
+ */
+public class IndexedMeshTest {
+
+    private static final String MODEL_PATH = "../test/resources/debhouse.obj";
+
+
+    @Test
+    public void testWeld() {
+        DrawVert a = new DrawVert( 0, 0, 0 );
+        DrawVert b = new DrawVert( 1, 0, 0 );
+        DrawVert c = new DrawVert( 0, 1, 0 );
+        DrawVert d = new DrawVert( 1, 1, 0 );
+        a.mTex = new float[]{ 0.5f, 0.25f };
+        a.mNorm = new Vec3( 0, 0, 1 );
+
+        List<DrawTri> tris = new ArrayList<DrawTri>();
+        tris.add( new DrawTri( a, b, c ) );
+        // Equal to a, b and c, but distinct objects.
+        tris.add( new DrawTri( Models.deepCopy( b ), d, Models.deepCopy( c ) ) );
+        // Same position as a, but different attributes.
+        tris.add( new DrawTri( new DrawVert( 0, 0, 0 ), b, d ) );
+
+        TriModel model = new TriModel( "test", new ArrayList<TriGroup>() );
+        model.mGroups.add( new TriGroup( "g0", null, tris.subList( 0, 2 ) ) );
+        model.mGroups.add( new TriGroup( "g1", null, tris.subList( 2, 3 ) ) );
+
+        IndexedMesh mesh = IndexedMesh.fromModel( model );
+        assertEquals( "test", mesh.mName );
+        assertEquals( 5, mesh.mVertCount );
+        assertEquals( 3, mesh.triangleCount() );
+        assertEquals( 2, mesh.mTexDim );
+        assertNull( mesh.mColors );
+        assertTrue( Arrays.equals( new int[]{ 0, 1, 2, 1, 3, 2 }, mesh.mGroups.get( 0 ).mIndices ) );
+        assertTrue( Arrays.equals( new int[]{ 4, 1, 3 }, mesh.mGroups.get( 1 ).mIndices ) );
+        assertEquals( 1f, mesh.mNormals[2], 0f );
+        assertEquals( 0f, mesh.mNormals[14], 0f );
+
+        TriModel back = mesh.toModel();
+        assertEquals( 2, back.mGroups.size() );
+        assertEquals( "g1", back.mGroups.get( 1 ).mName );
+        List<DrawTri> t = back.mGroups.get( 0 ).mTris;
+        assertSame( t.get( 0 ).mVerts[1], t.get( 1 ).mVerts[0] );
+        assertTrue( Arrays.equals( a.mTex, t.get( 0 ).mVerts[0].mTex ) );
+        assertEquals( 1f, t.get( 1 ).mVerts[1].mPos.y, 0f );
+    }
+
+
+    @Test
+    public void testFile() throws IOException {
+        TriModel model = ObjParser.read( new File( MODEL_PATH ) );
+        IndexedMesh mesh = IndexedMesh.fromModel( model );
+        assertEquals( model.mGroups.size(), mesh.mGroups.size() );
+
+        int corners = 0;
+        for( TriGroup g : model.mGroups ) {
+            corners += g.mTris.size() * 3;
+        }
+        assertEquals( 2773, mesh.triangleCount() );
+        assertTrue( mesh.mVertCount < corners );
+
+        // Welding twice changes nothing, and round trip preserves all attributes.
+        IndexedMesh again = IndexedMesh.fromModel( mesh.toModel() );
+        assertEquals( mesh.mVertCount, again.mVertCount );
+        assertTrue( Arrays.equals( mesh.mPositions, again.mPositions ) );
+
+        Iterator<DrawVert> it0 = Models.vertIterator( model );
+        Iterator<DrawVert> it1 = Models.vertIterator( mesh.toModel() );
+        while( it0.hasNext() ) {
+            DrawVert v0 = it0.next();
+            DrawVert v1 = it1.next();
+            assertEquals( v0.mPos.x, v1.mPos.x, 0f );
+            assertEquals( v0.mPos.z, v1.mPos.z, 0f );
+            if( v0.mTex != null ) {
+                assertTrue( Arrays.equals( v0.mTex, v1.mTex ) );
+            }
+            if( v0.mNorm != null ) {
+                assertEquals( v0.mNorm.y, v1.mNorm.y, 0f );
+            }
+        }
+        assertFalse( it1.hasNext() );
+    }
+
+}
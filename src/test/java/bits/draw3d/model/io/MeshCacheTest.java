@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.model.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+import bits.draw3d.model.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * @author decamp
+ */
+public class MeshCacheTest {
+
+    private static final String MODEL_PATH = "../test/resources/debhouse.obj";
+
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        IndexedMesh mesh = IndexedMesh.fromModel( ObjParser.read( new File( MODEL_PATH ) ) );
+        File file = File.createTempFile( "mesh", MeshCache.SUFFIX );
+        file.deleteOnExit();
+        MeshCache.write( mesh, file );
+
+        MeshCache cache = MeshCache.read( file );
+        assertEquals( mesh.mVertCount, cache.mVertCount );
+        assertEquals( mesh.mGroups.size(), cache.mGroups.size() );
+        assertEquals( mesh.mVertCount * cache.mBytesPerVert, cache.mVerts.remaining() );
+        assertEquals( mesh.triangleCount() * 3 * 4, cache.mIndices.remaining() );
+        assertTrue( cache.mVerts.isDirect() );
+        assertEquals( ByteOrder.nativeOrder(), cache.mVerts.order() );
+
+        IndexedMesh back = cache.toMesh();
+        assertTrue( Arrays.equals( mesh.mPositions, back.mPositions ) );
+        if( cache.mNormals ) {
+            assertTrue( Arrays.equals( mesh.mNormals, back.mNormals ) );
+        }
+        if( mesh.mTexDim > 0 ) {
+            assertTrue( Arrays.equals( mesh.mTexCoords, back.mTexCoords ) );
+        }
+
+        for( int i = 0; i < mesh.mGroups.size(); i++ ) {
+            IndexedMesh.Group g0 = mesh.mGroups.get( i );
+            MeshCache.Group g1 = cache.mGroups.get( i );
+            assertEquals( g0.mName, g1.mName );
+            assertEquals( g0.mMaterial == null, g1.mMaterial == null );
+            assertTrue( Arrays.equals( g0.mIndices, back.mGroups.get( i ).mIndices ) );
+            assertEquals( g0.mIndices.length * 4, cache.indices( g1 ).remaining() );
+            if( g0.mMaterial != null ) {
+                assertEquals( g0.mMaterial.mName, g1.mMaterial.mName );
+                assertEquals( g0.mMaterial.mMaterial.mDiffuse.y, g1.mMaterial.mMaterial.mDiffuse.y, 0f );
+            }
+        }
+
+        TriModel model = ModelIO.read( file );
+        assertEquals( mesh.triangleCount(), IndexedMesh.fromModel( model ).triangleCount() );
+    }
+
+
+    @Test
+    public void testObjCache() throws IOException {
+        File obj = File.createTempFile( "cache", ".obj" );
+        File cacheFile = new File( obj.getPath() + MeshCache.SUFFIX );
+        obj.deleteOnExit();
+        cacheFile.deleteOnExit();
+
+        writeFile( obj, "v 0 0 0\nv 1 0 0\nv 0 1 0\nvn 0 0 1\nf 1//1 2//1 3//1\n" );
+        obj.setLastModified( 1000000000L );
+        MeshCache cache = MeshCache.readObj( obj, null );
+        assertTrue( cacheFile.isFile() );
+        assertEquals( 3, cache.mVertCount );
+        assertEquals( obj.length(), cache.mSourceLength );
+
+        // Unchanged source loads cache without parsing. Replace cache contents to check.
+        IndexedMesh other = IndexedMesh.fromModel( ObjParser.read( ByteBuffer.wrap(
+                "v 0 0 0\nv 2 0 0\nv 0 2 0\nv 2 2 0\nf 1 2 3\nf 2 4 3\n".getBytes( "UTF-8" ) ), null ) );
+        MeshCache.write( other, cacheFile, obj.length(), obj.lastModified() );
+        assertEquals( 4, MeshCache.readObj( obj, null ).mVertCount );
+
+        // Modified source is parsed again.
+        obj.setLastModified( 2000000000L );
+        cache = MeshCache.readObj( obj, null );
+        assertEquals( 3, cache.mVertCount );
+        assertEquals( 2000000000L, cache.mSourceModified );
+
+        // Corrupt cache is rebuilt.
+        writeFile( cacheFile, "garbage" );
+        assertEquals( 3, MeshCache.readObj( obj, null ).mVertCount );
+    }
+
+
+    @Test
+    public void testPaddingAtBufferEnd() throws IOException {
+        // 28 bytes per vertex. Two full write buffers end 4 bytes short, which
+        // leaves too little room for the 8 bytes of padding before the indices.
+        final int count = 2 * ( ( 1 << 20 ) / 28 );
+        IndexedMesh mesh = new IndexedMesh();
+        mesh.mVertCount = count;
+        mesh.mPositions = new float[count * 3];
+        mesh.mNormals   = new float[count * 3];
+        mesh.mTexDim    = 1;
+        mesh.mTexCoords = new float[count];
+        for( int i = 0; i < count; i++ ) {
+            mesh.mPositions[i * 3] = i;
+            mesh.mNormals[i * 3 + 2] = 1f;
+            mesh.mTexCoords[i] = i * 0.5f;
+        }
+        mesh.mGroups.add( new IndexedMesh.Group( "g", null, new int[]{ 0, 1, count - 1 } ) );
+
+        File file = File.createTempFile( "mesh", MeshCache.SUFFIX );
+        file.deleteOnExit();
+        MeshCache.write( mesh, file );
+
+        IndexedMesh back = MeshCache.read( file ).toMesh();
+        assertEquals( count, back.mVertCount );
+        assertTrue( Arrays.equals( mesh.mPositions, back.mPositions ) );
+        assertTrue( Arrays.equals( mesh.mTexCoords, back.mTexCoords ) );
+        assertTrue( Arrays.equals( mesh.mGroups.get( 0 ).mIndices, back.mGroups.get( 0 ).mIndices ) );
+    }
+
+
+
+    private static void writeFile( File file, String s ) throws IOException {
+        Writer out = new FileWriter( file );
+        out.write( s );
+        out.close();
+    }
+
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.model.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import bits.draw3d.model.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * @author decamp
+ */
+public class ObjParserTest {
+
+    private static final String MODEL_PATH = "../test/resources/debhouse.obj";
+
+
+    @Test
+    public void testFaceFormats() throws IOException {
+        TriModel model = parse( "v 0 0 0\n" +
+                                "v 1 0 0\n" +
+                                "v 0 1 0\n" +
+                                "vt 0.25 0.75\n" +
+                                "vn 0 0 1\n" +
+                                "f 1 2 3\n" +
+                                "f 1/1 2/1 3/1\n" +
+                                "f 1//1 2//1 3//1\n" +
+                                "f 1/1/1 2/1/1 3/1/1\n" );
+
+        assertEquals( 1, model.mGroups.size() );
+        List<DrawTri> tris = model.mGroups.get( 0 ).mTris;
+        assertEquals( 4, tris.size() );
+
+        for( int t = 0; t < 4; t++ ) {
+            DrawVert v = tris.get( t ).mVerts[1];
+            assertEquals( 1f, v.mPos.x, 0f );
+            assertEquals( t == 1 || t == 3, v.mTex != null );
+            assertEquals( t >= 2, v.mNorm != null );
+            if( v.mTex != null ) {
+                assertTrue( Arrays.equals( new float[]{ 0.25f, 0.75f }, v.mTex ) );
+            }
+        }
+
+        // Positions are shared, other attributes are not.
+        assertSame( tris.get( 0 ).mVerts[0].mPos, tris.get( 3 ).mVerts[0].mPos );
+        assertNotSame( tris.get( 2 ).mVerts[0].mNorm, tris.get( 3 ).mVerts[0].mNorm );
+        assertNotSame( tris.get( 1 ).mVerts[0].mTex, tris.get( 1 ).mVerts[1].mTex );
+    }
+
+
+    @Test
+    public void testGroups() throws IOException {
+        TriModel model = parse( "# comment\n" +
+                                "v 0 0 0\r\n" +
+                                "v 1 0 0\r\n" +
+                                "v 0 1 0\r\n" +
+                                "f 1 2 3\n" +
+                                "usemtl none\n" +
+                                "f 1 2 3\n" +
+                                "g first extra\n" +
+                                "g second\n" +
+                                "f 1 2 3\n" +
+                                "\n" +
+                                "f\t3 2 1" );
+
+        assertEquals( 3, model.mGroups.size() );
+        assertEquals( "unnamed_group_000", model.mGroups.get( 0 ).mName );
+        assertEquals( "unnamed_group_000", model.mGroups.get( 1 ).mName );
+        assertEquals( "second", model.mGroups.get( 2 ).mName );
+        assertEquals( 1, model.mGroups.get( 0 ).mTris.size() );
+        assertEquals( 1, model.mGroups.get( 1 ).mTris.size() );
+        assertEquals( 2, model.mGroups.get( 2 ).mTris.size() );
+        assertEquals( 0f, model.mGroups.get( 2 ).mTris.get( 1 ).mVerts[0].mPos.x, 0f );
+        assertEquals( 1f, model.mGroups.get( 2 ).mTris.get( 1 ).mVerts[0].mPos.y, 0f );
+    }
+
+
+    @Test
+    public void testFloats() throws IOException {
+        Random rand = new Random( 3 );
+        List<String> strs = new ArrayList<String>();
+        Collections.addAll( strs, "0", "-0", "+1", "1.", ".5", "-.5", "1e3", "1E-3", "2.5e+2",
+                            "123456789", "0.000000000001", "3.4028235e38", "1e-45", "NaN", "-Infinity" );
+        for( int i = 0; i < 3000; i++ ) {
+            switch( i % 5 ) {
+            case 0: strs.add( Integer.toString( rand.nextInt( 2000000 ) - 1000000 ) ); break;
+            case 1: strs.add( String.format( "%.6f", rand.nextFloat() * 2 - 1 ) ); break;
+            case 2: strs.add( String.format( "%.3f", ( rand.nextFloat() - 0.5f ) * 20000 ) ); break;
+            case 3: strs.add( Double.toString( rand.nextGaussian() * Math.pow( 10, rand.nextInt( 20 ) - 10 ) ) ); break;
+            default: strs.add( Float.toString( Float.intBitsToFloat( rand.nextInt() ) ) ); break;
+            }
+        }
+
+        StringBuilder s = new StringBuilder();
+        for( String str : strs ) {
+            s.append( "v " ).append( str ).append( " 0 0\n" );
+        }
+        s.append( "f 1 2 3\n" );
+
+        ObjScanner scanner = new ObjScanner();
+        ByteBuffer buf = ByteBuffer.wrap( s.toString().getBytes( "UTF-8" ) );
+        scanner.scan( buf, 0, buf.capacity() );
+
+        for( int i = 0; i < strs.size(); i++ ) {
+            float expect = Float.parseFloat( strs.get( i ) );
+            assertEquals( strs.get( i ), Float.floatToIntBits( expect ), Float.floatToIntBits( scanner.mPositions.get( i * 3 ) ) );
+        }
+    }
+
+
+    @Test
+    public void testPolygons() throws IOException {
+        TriModel model = parse( "v 0 0 0\n" +
+                                "v 1 0 0\n" +
+                                "v 1 1 0\n" +
+                                "v 0 1 0\n" +
+                                "v 0.5 2 0\n" +
+                                "vt 0 0\n" +
+                                "vt 1 0\n" +
+                                "f 1 2 3 4\n" +
+                                "f -5 -4 -3 -1 -2\n" +
+                                "f 1/-1 2/-2 3/1\n" +
+                                "v 9 9 9\n" +
+                                "f -1 -2 -3\n" );
+
+        List<DrawTri> tris = model.mGroups.get( 0 ).mTris;
+        assertEquals( 2 + 3 + 1 + 1, tris.size() );
+
+        // Fan around first corner.
+        int[][] expect = { { 0, 1, 2 }, { 0, 2, 3 }, { 0, 1, 2 }, { 0, 2, 4 }, { 0, 4, 3 } };
+        float[] xs = { 0, 1, 1, 0, 0.5f };
+        float[] ys = { 0, 0, 1, 1, 2 };
+        for( int t = 0; t < expect.length; t++ ) {
+            for( int v = 0; v < 3; v++ ) {
+                DrawVert vert = tris.get( t ).mVerts[v];
+                assertEquals( xs[expect[t][v]], vert.mPos.x, 0f );
+                assertEquals( ys[expect[t][v]], vert.mPos.y, 0f );
+            }
+        }
+
+        // Relative texture indices.
+        DrawVert[] v = tris.get( 5 ).mVerts;
+        assertEquals( 1f, v[0].mTex[0], 0f );
+        assertEquals( 0f, v[1].mTex[0], 0f );
+        assertEquals( 0f, v[2].mTex[0], 0f );
+
+        // Relative indices count vertices defined before the face.
+        assertEquals( 9f, tris.get( 6 ).mVerts[0].mPos.x, 0f );
+        assertEquals( 0.5f, tris.get( 6 ).mVerts[1].mPos.x, 0f );
+
+        // Large polygon.
+        StringBuilder s = new StringBuilder();
+        StringBuilder f = new StringBuilder( "f" );
+        for( int i = 0; i < 100; i++ ) {
+            s.append( "v " ).append( Math.cos( i * 0.0628 ) ).append( ' ' ).append( Math.sin( i * 0.0628 ) ).append( " 0\n" );
+            f.append( ' ' ).append( i - 100 );
+        }
+        s.append( f ).append( '\n' );
+        assertEquals( 98, parse( s.toString() ).mGroups.get( 0 ).mTris.size() );
+    }
+
+
+    @Test
+    public void testErrors() {
+        String verts = "v 0 0 0\nv 1 0 0\nv 0 1 0\nv 1 1 0\n";
+        String[] bad = { "f 1 2\n",
+                         "f 1 2 -5\n",
+                         "f 1 2 -0\n",
+                         "f 1/1/1 2//1 3/1/1\n",
+                         "f 1 2 5\n",
+                         "f 0 1 2\n",
+                         "f 1/1 2/1 3/1\n",
+                         "f 1 2 x\n",
+                         "v 1 2\n",
+                         "g\n" };
+
+        for( String b : bad ) {
+            try {
+                parse( verts + b );
+                fail( "Accepted: " + b );
+            } catch( IOException expected ) {}
+        }
+    }
+
+
+    @Test
+    public void testFile() throws IOException {
+        TriModel model = ObjParser.read( new File( MODEL_PATH ) );
+        int count = 0;
+        for( TriGroup g : model.mGroups ) {
+            count += g.mTris.size();
+        }
+        assertEquals( 2773, count );
+        assertEquals( "Mesh1", model.mGroups.get( 0 ).mName );
+
+        // File and buffer entry points give the same result.
+        InputStream in = new FileInputStream( MODEL_PATH );
+        TriModel model2 = ObjParser.read( ModelIO.bufferStream( in ), null );
+        assertEquals( model.mGroups.size(), model2.mGroups.size() );
+        DrawVert v0 = model.mGroups.get( 5 ).mTris.get( 0 ).mVerts[2];
+        DrawVert v1 = model2.mGroups.get( 5 ).mTris.get( 0 ).mVerts[2];
+        assertEquals( v0.mPos.x, v1.mPos.x, 0f );
+        assertTrue( Arrays.equals( v0.mTex, v1.mTex ) );
+    }
+
+
+    @Test
+    public void testParallel() throws IOException {
+        // Large enough to be split into several chunks.
+        File file = File.createTempFile( "parallel", ".obj" );
+        file.deleteOnExit();
+        Random rand = new Random( 7 );
+        Writer out = new BufferedWriter( new FileWriter( file ) );
+        int posCount = 0;
+        int texCount = 0;
+        int normCount = 0;
+
+        while( file.length() < ( 6 << 20 ) ) {
+            for( int i = 0; i < 2000; i++ ) {
+                switch( rand.nextInt( 8 ) ) {
+                case 0:
+                    out.write( "vt " + rand.nextFloat() + " " + rand.nextFloat() + "\n" );
+                    texCount++;
+                    break;
+                case 1:
+                    out.write( "vn " + rand.nextFloat() + " " + rand.nextFloat() + " " + rand.nextFloat() + "\n" );
+                    normCount++;
+                    break;
+                case 2:
+                    if( rand.nextInt( 20 ) == 0 ) {
+                        out.write( rand.nextBoolean() ? "g group" + i + "\n" : "usemtl mat" + i + "\n" );
+                    }
+                    break;
+                case 3:
+                case 4:
+                    if( posCount > 0 && texCount > 0 && normCount > 0 ) {
+                        out.write( "f" );
+                        for( int j = 0; j < 3; j++ ) {
+                            out.write( " " + ( rand.nextInt( posCount ) + 1 ) + "/" +
+                                       ( rand.nextInt( texCount ) + 1 ) + "/" +
+                                       ( rand.nextInt( normCount ) + 1 ) );
+                        }
+                        out.write( "\n" );
+                    }
+                    break;
+                default:
+                    out.write( "v " + rand.nextFloat() + " " + rand.nextFloat() + " " + rand.nextFloat() + "\n" );
+                    posCount++;
+                    break;
+                }
+            }
+            out.flush();
+        }
+        out.close();
+
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        TriModel serial   = ObjParser.read( file );
+        TriModel parallel = ObjParser.read( file, pool );
+        pool.shutdown();
+
+        assertEquals( serial.mGroups.size(), parallel.mGroups.size() );
+        for( int g = 0; g < serial.mGroups.size(); g++ ) {
+            TriGroup a = serial.mGroups.get( g );
+            TriGroup b = parallel.mGroups.get( g );
+            assertEquals( a.mName, b.mName );
+            assertEquals( a.mTris.size(), b.mTris.size() );
+            for( int t = 0; t < a.mTris.size(); t++ ) {
+                for( int v = 0; v < 3; v++ ) {
+                    DrawVert va = a.mTris.get( t ).mVerts[v];
+                    DrawVert vb = b.mTris.get( t ).mVerts[v];
+                    assertEquals( va.mPos.x, vb.mPos.x, 0f );
+                    assertEquals( va.mPos.y, vb.mPos.y, 0f );
+                    assertEquals( va.mPos.z, vb.mPos.z, 0f );
+                    assertTrue( Arrays.equals( va.mTex, vb.mTex ) );
+                    assertEquals( va.mNorm.x, vb.mNorm.x, 0f );
+                    assertEquals( va.mNorm.z, vb.mNorm.z, 0f );
+                }
+            }
+        }
+
+        // Errors are reported from parallel reads as well.
+        out = new FileWriter( file, true );
+        out.write( "f 1 2 " + ( posCount + 1 ) + "\n" );
+        out.close();
+        pool = new ForkJoinPool( 4 );
+        try {
+            ObjParser.read( file, pool );
+            fail();
+        } catch( IOException expected ) {
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+
+    private static TriModel parse( String s ) throws IOException {
+        return ObjParser.read( ByteBuffer.wrap( s.getBytes( "UTF-8" ) ), null );
+    }
+
+}
@@ -15,11 +15,12 @@ import java.util.*;
 
 /**
  * This is a refernce implemention of GeometryPicker that uses a simple brute
- * force algorithm. It should be used for testing purposes only.
+ * force algorithm. It should be used for testing purposes only. Triangles
+ * are copied when built, so the picker must be rebuilt after vertices move.
  *
  * @author decamp
  */
-public class BruteForcePicker implements RayPicker {
+public class BruteForcePicker implements FastRayPicker {
 
 
     public static BruteForcePicker build( List<DrawTri> trisRef ) {
@@ -28,10 +29,13 @@ public class BruteForcePicker implements RayPicker {
 
 
     private final List<DrawTri> mTris;
+    // Same triangle records as the trees, so that hits on edges agree exactly.
+    private final float[] mTriData;
 
 
     private BruteForcePicker( List<DrawTri> tris ) {
-        mTris = tris;
+        mTris    = tris;
+        mTriData = TriangleIntersector.packTriangles( tris.toArray( new DrawTri[tris.size()] ), tris.size() );
     }
 
 
@@ -58,16 +62,17 @@ public class BruteForcePicker implements RayPicker {
         RayIntersection inter = result.mIntersection;
         float bestDist = Float.POSITIVE_INFINITY;
 
-        for( DrawTri t : mTris ) {
-            if( checker.intersect( rayPoint, rayDir, t, inter ) ) {
+        for( int i = 0; i < mTris.size(); i++ ) {
+            if( checker.intersect( rayPoint, rayDir, mTriData, i, inter ) ) {
                 if( (inter.mTargetSide & side) == 0 || inter.mRayDist > bestDist ) {
                     continue;
                 }
 
                 bestDist = inter.mRayDist;
                 result.mHasPick = true;
-                result.mTriangle = t;
+                result.mTriangle = mTris.get( i );
                 result.mRayDistance = bestDist;
+                result.mSide = inter.mTargetSide;
 
                 Vec.put( inter.mPoint, result.mStopPoint );
             }
@@ -77,6 +82,90 @@ public class BruteForcePicker implements RayPicker {
     }
 
 
+    @Override
+    public int pick( float[] rayPoints,
+                     float[] rayDirs,
+                     int rayOff,
+                     int rayCount,
+                     int sides,
+                     float[] outDists,
+                     int[] outTris,
+                     int[] outSides )
+    {
+        Result result = new Result();
+        Vec3 point = new Vec3();
+        Vec3 dir   = new Vec3();
+        int hitCount = 0;
+
+        for( int i = rayOff; i < rayOff + rayCount; i++ ) {
+            point.x = rayPoints[i * 3];
+            point.y = rayPoints[i * 3 + 1];
+            point.z = rayPoints[i * 3 + 2];
+            dir.x   = rayDirs[i * 3];
+            dir.y   = rayDirs[i * 3 + 1];
+            dir.z   = rayDirs[i * 3 + 2];
+
+            boolean hit = pick( point, dir, sides, result );
+            if( hit ) {
+                hitCount++;
+            }
+            if( outDists != null ) {
+                outDists[i] = hit ? result.mRayDistance : Float.POSITIVE_INFINITY;
+            }
+            if( outTris != null ) {
+                outTris[i] = hit ? mTris.indexOf( result.mTriangle ) : -1;
+            }
+            if( outSides != null ) {
+                outSides[i] = hit ? result.mSide : Side.NONE;
+            }
+        }
+
+        return hitCount;
+    }
+
+
+    @Override
+    public boolean occluded( Vec3 rayPointVec, Vec3 rayDirVec, float maxDist, int side, RayPickResult work ) {
+        Result result = (Result)work;
+        float[] rayPoint = { rayPointVec.x, rayPointVec.y, rayPointVec.z };
+        float[] rayDir   = { rayDirVec.x, rayDirVec.y, rayDirVec.z };
+
+        for( int i = 0; i < mTris.size(); i++ ) {
+            if( result.mIntersector.intersect( rayPoint, rayDir, mTriData, i, result.mIntersection ) &&
+                ( result.mIntersection.mTargetSide & side ) != 0 &&
+                result.mIntersection.mRayDist <= maxDist )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    @Override
+    public int occluded( float[] rayPoints,
+                         float[] rayDirs,
+                         int rayOff,
+                         int rayCount,
+                         float maxDist,
+                         int sides,
+                         boolean[] out )
+    {
+        Result result = new Result();
+        int count = 0;
+        for( int i = rayOff; i < rayOff + rayCount; i++ ) {
+            Vec3 point = new Vec3( rayPoints[i*3], rayPoints[i*3+1], rayPoints[i*3+2] );
+            Vec3 dir   = new Vec3( rayDirs[i*3], rayDirs[i*3+1], rayDirs[i*3+2] );
+            out[i] = occluded( point, dir, maxDist, sides, result );
+            if( out[i] ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
     private static final class Result implements RayPickResult {
 
         final TriangleIntersector mIntersector = new TriangleIntersector();
@@ -87,6 +176,7 @@ public class BruteForcePicker implements RayPicker {
         private final Vec3 mStopPoint  = new Vec3();
         private float mRayDistance;
         private DrawTri mTriangle;
+        private int mSide;
 
         @Override
         public boolean hasPick() {
@@ -120,7 +210,7 @@ public class BruteForcePicker implements RayPicker {
 
         @Override
         public int pickedSide() {
-            return Side.NONE;
+            return mSide;
         }
 
         @Override
@@ -6,10 +6,14 @@
 
 package bits.draw3d.pick;
 
+import bits.draw3d.util.IntList;
 import org.junit.Ignore;
 import org.junit.Test;
 
-import java.util.Random;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import static org.junit.Assert.*;
 
 
@@ -60,6 +64,537 @@ public class KdPointTreeTest {
         assertTrue( t == 1f );
     }
 
+    @Test
+    public void testKNearest() {
+        final int DIM = 4;
+        Random rand = new Random( 3 );
+        RandomFeature[] features = new RandomFeature[2000];
+        KdPointTree<RandomFeature> tree = new KdPointTree<RandomFeature>( new RandomFeatureComp( DIM ) );
+        for( int i = 0; i < features.length; i++ ) {
+            features[i] = new RandomFeature( DIM, rand );
+            tree.add( features[i] );
+        }
+
+        PointNeighbors<RandomFeature> neighbors = new PointNeighbors<RandomFeature>();
+        double[] dists = new double[features.length];
+
+        for( int pass = 0; pass < 2; pass++ ) {
+            for( int trial = 0; trial < 200; trial++ ) {
+                RandomFeature query = new RandomFeature( DIM, rand );
+                int k = 1 + rand.nextInt( 30 );
+                for( int i = 0; i < features.length; i++ ) {
+                    dists[i] = features[i].distance( query );
+                }
+                Arrays.sort( dists );
+
+                assertEquals( k, tree.pickNearest( query, k, neighbors ) );
+                for( int i = 0; i < k; i++ ) {
+                    assertEquals( dists[i], neighbors.distance( i ), 1e-5 );
+                    assertEquals( neighbors.distance( i ), neighbors.point( i ).distance( query ), 1e-5 );
+                }
+            }
+            tree.optimize();
+        }
+
+        // k larger than tree.
+        assertEquals( features.length, tree.pickNearest( features[0], features.length + 10, neighbors ) );
+        assertSame( features[0], neighbors.point( 0 ) );
+        assertEquals( 0.0, neighbors.distance( 0 ), 0.0 );
+    }
+
+    @Test
+    public void testRadius() {
+        final int DIM = 3;
+        Random rand = new Random( 5 );
+        RandomFeature[] features = new RandomFeature[2000];
+        KdPointTree<RandomFeature> tree = new KdPointTree<RandomFeature>( new RandomFeatureComp( DIM ) );
+        for( int i = 0; i < features.length; i++ ) {
+            features[i] = new RandomFeature( DIM, rand );
+            tree.add( features[i] );
+        }
+
+        List<RandomFeature> found = new ArrayList<RandomFeature>();
+        Set<RandomFeature> expected = Collections.newSetFromMap( new IdentityHashMap<RandomFeature,Boolean>() );
+
+        for( int pass = 0; pass < 2; pass++ ) {
+            for( int trial = 0; trial < 200; trial++ ) {
+                RandomFeature query = new RandomFeature( DIM, rand );
+                double radius = rand.nextDouble() * 0.3;
+                expected.clear();
+                for( RandomFeature f : features ) {
+                    if( f.distance( query ) <= radius ) {
+                        expected.add( f );
+                    }
+                }
+
+                found.clear();
+                assertEquals( expected.size(), tree.pickInRadius( query, radius, found ) );
+                assertEquals( expected.size(), found.size() );
+                assertTrue( expected.containsAll( found ) );
+            }
+            tree.optimize();
+        }
+    }
+
+    @Test
+    public void testConcurrentPick() throws Exception {
+        final int DIM = 3;
+        Random rand = new Random( 7 );
+        final RandomFeature[] features = new RandomFeature[3000];
+        final KdPointTree<RandomFeature> tree = new KdPointTree<RandomFeature>( new RandomFeatureComp( DIM ) );
+        for( int i = 0; i < features.length; i++ ) {
+            features[i] = new RandomFeature( DIM, rand );
+            tree.add( features[i] );
+        }
+
+        final AtomicInteger failures = new AtomicInteger( 0 );
+        Thread[] threads = new Thread[8];
+        for( int t = 0; t < threads.length; t++ ) {
+            final long seed = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    Random r = new Random( seed );
+                    PointPickResult<RandomFeature> result = tree.newPointPickResult();
+                    PointNeighbors<RandomFeature> neighbors = new PointNeighbors<RandomFeature>();
+                    for( int i = 0; i < 300; i++ ) {
+                        RandomFeature query = new RandomFeature( DIM, r );
+                        RandomFeature best = null;
+                        double bestDist = Double.POSITIVE_INFINITY;
+                        for( RandomFeature f : features ) {
+                            double d = f.distance( query );
+                            if( d < bestDist ) {
+                                bestDist = d;
+                                best = f;
+                            }
+                        }
+                        if( !tree.pick( query, result ) || result.pickedPoint() != best ) {
+                            failures.incrementAndGet();
+                        }
+                        if( tree.pickNearest( query, 3, neighbors ) != 3 || neighbors.point( 0 ) != best ) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+        }
+
+        for( Thread t : threads ) {
+            t.start();
+        }
+        for( Thread t : threads ) {
+            t.join();
+        }
+        assertEquals( 0, failures.get() );
+    }
+
+    @Test
+    public void testLockedTree() throws Exception {
+        final int DIM = 3;
+        final Random rand = new Random( 11 );
+        final RandomFeature[] initial = new RandomFeature[1000];
+        final LockedKdPointTree<RandomFeature> tree = new LockedKdPointTree<RandomFeature>( new RandomFeatureComp( DIM ) );
+        for( int i = 0; i < initial.length; i++ ) {
+            initial[i] = new RandomFeature( DIM, rand );
+            tree.add( initial[i] );
+        }
+
+        final AtomicInteger failures = new AtomicInteger( 0 );
+        final AtomicBoolean done = new AtomicBoolean( false );
+
+        Thread writer = new Thread() {
+            public void run() {
+                Random r = new Random( 13 );
+                for( int i = 0; i < 2000; i++ ) {
+                    tree.add( new RandomFeature( DIM, r ) );
+                    if( i % 500 == 0 ) {
+                        tree.optimize();
+                    }
+                }
+                done.set( true );
+            }
+        };
+
+        Thread[] readers = new Thread[4];
+        for( int t = 0; t < readers.length; t++ ) {
+            final long seed = 100 + t;
+            readers[t] = new Thread() {
+                public void run() {
+                    Random r = new Random( seed );
+                    PointPickResult<RandomFeature> result = tree.newPointPickResult();
+                    do {
+                        RandomFeature query = new RandomFeature( DIM, r );
+                        double bound = Double.POSITIVE_INFINITY;
+                        for( RandomFeature f : initial ) {
+                            bound = Math.min( bound, f.distance( query ) );
+                        }
+                        if( !tree.pick( query, result ) || result.pickedDistance() > bound + 1e-6 ) {
+                            failures.incrementAndGet();
+                        }
+                    } while( !done.get() );
+                }
+            };
+        }
+
+        for( Thread t : readers ) {
+            t.start();
+        }
+        writer.start();
+        writer.join();
+        for( Thread t : readers ) {
+            t.join();
+        }
+
+        assertEquals( 0, failures.get() );
+        assertEquals( 3000, tree.size() );
+        int count = 0;
+        for( RandomFeature f : tree ) {
+            count++;
+        }
+        assertEquals( 3000, count );
+    }
+
+    @Test
+    public void testBulkLoad() {
+        final int DIM = 3;
+        Random rand = new Random( 19 );
+        List<RandomFeature> features = new ArrayList<RandomFeature>();
+        for( int i = 0; i < 40000; i++ ) {
+            RandomFeature f = new RandomFeature( DIM, rand );
+            // Quantize first dimension to exercise ties.
+            f.mVector[0] = rand.nextInt( 16 ) / 16f;
+            features.add( f );
+        }
+
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try {
+            KdPointTree<RandomFeature> serial   = new KdPointTree<RandomFeature>( new RandomFeatureComp( DIM ), features );
+            KdPointTree<RandomFeature> parallel = new KdPointTree<RandomFeature>( new RandomFeatureComp( DIM ), features, pool );
+            KdPointTree<RandomFeature> rebuilt  = new KdPointTree<RandomFeature>( new RandomFeatureComp( DIM ) );
+            rebuilt.addAll( features );
+            rebuilt.optimize( pool );
+
+            List<KdPointTree<RandomFeature>> trees = Arrays.asList( serial, parallel, rebuilt );
+            for( KdPointTree<RandomFeature> tree : trees ) {
+                assertEquals( features.size(), tree.size() );
+                assertEquals( features.size(), new HashSet<Object>( Arrays.asList( tree.toArray() ) ).size() );
+                for( int i = 0; i < features.size(); i += 7 ) {
+                    assertTrue( tree.contains( features.get( i ) ) );
+                }
+            }
+
+            PointPickResult<RandomFeature> result = serial.newPointPickResult();
+            for( int trial = 0; trial < 200; trial++ ) {
+                RandomFeature query = new RandomFeature( DIM, rand );
+                double best = Double.POSITIVE_INFINITY;
+                for( RandomFeature f : features ) {
+                    best = Math.min( best, f.distance( query ) );
+                }
+                for( KdPointTree<RandomFeature> tree : trees ) {
+                    assertTrue( tree.pick( query, result ) );
+                    assertEquals( best, result.pickedDistance(), 1e-6 );
+                }
+            }
+
+            for( int i = 0; i < 100; i++ ) {
+                RandomFeature f = features.get( i * 13 );
+                assertTrue( serial.remove( f ) );
+                assertFalse( serial.contains( f ) );
+            }
+            assertEquals( features.size() - 100, serial.size() );
+
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testDuplicateBulkLoad() {
+        final int DIM = 3;
+        Random rand = new Random( 29 );
+        List<RandomFeature> features = new ArrayList<RandomFeature>();
+        // Mostly identical points, plus a few distinct values, as in quantized scans.
+        for( int i = 0; i < 30000; i++ ) {
+            RandomFeature f = new RandomFeature( DIM, rand );
+            int k = i < 20000 ? 0 : rand.nextInt( 4 );
+            for( int d = 0; d < DIM; d++ ) {
+                f.mVector[d] = k / 4f;
+            }
+            features.add( f );
+        }
+
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try {
+            KdPointTree<RandomFeature> serial   = new KdPointTree<RandomFeature>( new RandomFeatureComp( DIM ), features );
+            KdPointTree<RandomFeature> parallel = new KdPointTree<RandomFeature>( new RandomFeatureComp( DIM ), features, pool );
+            final int maxDepth = 32 - Integer.numberOfLeadingZeros( features.size() );
+
+            PointPickResult<RandomFeature> result = serial.newPointPickResult();
+            for( KdPointTree<RandomFeature> tree : Arrays.asList( serial, parallel ) ) {
+                assertEquals( features.size(), tree.size() );
+                assertTrue( "depth: " + tree.depth(), tree.depth() <= maxDepth );
+                for( int i = 0; i < features.size(); i += 997 ) {
+                    assertTrue( tree.contains( features.get( i ) ) );
+                }
+                assertFalse( tree.contains( new RandomFeature( DIM, rand ) ) );
+
+                RandomFeature query = new RandomFeature( DIM, rand );
+                Arrays.fill( query.mVector, 0.3f );
+                assertTrue( tree.pick( query, result ) );
+                assertEquals( 0.25f, result.pickedPoint().mVector[0], 0f );
+            }
+
+            for( int i = 0; i < 300; i++ ) {
+                RandomFeature f = features.get( i * 97 );
+                assertTrue( serial.remove( f ) );
+                assertFalse( serial.contains( f ) );
+            }
+            assertEquals( features.size() - 300, serial.size() );
+            assertEquals( features.size() - 300, serial.toArray().length );
+
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testIncrementalBalance() {
+        final int DIM = 3;
+        Random rand = new Random( 23 );
+        KdPointTree<RandomFeature> tree = new KdPointTree<RandomFeature>( new RandomFeatureComp( DIM ) );
+        List<RandomFeature> live = new ArrayList<RandomFeature>();
+
+        // Points arriving in sweep order would degrade an unbalanced tree to a list.
+        for( int i = 0; i < 20000; i++ ) {
+            RandomFeature f = new RandomFeature( DIM, rand );
+            f.mVector[0] = i / 20000f;
+            tree.add( f );
+            live.add( f );
+        }
+        // Depth allowed with a balance factor of 0.7, plus the final insert.
+        final int maxDepth = (int)( Math.log( 20000 ) / Math.log( 1.0 / 0.7 ) ) + 2;
+        assertEquals( live.size(), tree.size() );
+        assertTrue( "depth: " + tree.depth(), tree.depth() <= maxDepth );
+
+        // Churn: remove and insert in bursts.
+        PointPickResult<RandomFeature> result = tree.newPointPickResult();
+        for( int round = 0; round < 20; round++ ) {
+            for( int i = 0; i < 1500; i++ ) {
+                RandomFeature f = live.remove( rand.nextInt( live.size() ) );
+                assertTrue( tree.remove( f ) );
+                assertFalse( tree.contains( f ) );
+            }
+            for( int i = 0; i < 1000; i++ ) {
+                RandomFeature f = new RandomFeature( DIM, rand );
+                f.mVector[1] = ( round * 1000 + i ) / 20000f;
+                tree.add( f );
+                live.add( f );
+            }
+
+            assertEquals( live.size(), tree.size() );
+            assertTrue( "depth: " + tree.depth(), tree.depth() <= maxDepth );
+
+            int count = 0;
+            for( RandomFeature f : tree ) {
+                count++;
+            }
+            assertEquals( live.size(), count );
+            assertEquals( new HashSet<Object>( live ), new HashSet<Object>( Arrays.asList( tree.toArray() ) ) );
+
+            for( int trial = 0; trial < 20; trial++ ) {
+                RandomFeature query = new RandomFeature( DIM, rand );
+                double best = Double.POSITIVE_INFINITY;
+                for( RandomFeature f : live ) {
+                    best = Math.min( best, f.distance( query ) );
+                }
+                assertTrue( tree.pick( query, result ) );
+                assertEquals( best, result.pickedDistance(), 1e-6 );
+            }
+        }
+
+        for( RandomFeature f : live ) {
+            assertTrue( tree.remove( f ) );
+        }
+        assertTrue( tree.isEmpty() );
+        assertFalse( tree.iterator().hasNext() );
+        assertFalse( tree.pick( new RandomFeature( DIM, rand ), result ) );
+    }
+
+    @Test
+    public void testDuplicateChurn() {
+        final int DIM = 3;
+        Random rand = new Random( 31 );
+        KdPointTree<RandomFeature> tree = new KdPointTree<RandomFeature>( new RandomFeatureComp( DIM ) );
+        List<RandomFeature> live = new ArrayList<RandomFeature>();
+        final int maxDepth = (int)( Math.log( 20000 ) / Math.log( 1.0 / 0.7 ) ) + 2;
+
+        // Identical points inserted one at a time must not build a chain.
+        for( int i = 0; i < 20000; i++ ) {
+            RandomFeature f = new RandomFeature( DIM, rand );
+            Arrays.fill( f.mVector, 0.5f );
+            tree.add( f );
+            live.add( f );
+        }
+        assertTrue( "depth: " + tree.depth(), tree.depth() <= maxDepth );
+
+        // Churn among a few distinct values.
+        PointPickResult<RandomFeature> result = tree.newPointPickResult();
+        for( int round = 0; round < 10; round++ ) {
+            for( int i = 0; i < 200; i++ ) {
+                RandomFeature f = live.remove( rand.nextInt( live.size() ) );
+                assertTrue( tree.remove( f ) );
+            }
+            for( int i = 0; i < 1000; i++ ) {
+                RandomFeature f = new RandomFeature( DIM, rand );
+                Arrays.fill( f.mVector, rand.nextInt( 3 ) / 2f );
+                tree.add( f );
+                live.add( f );
+            }
+
+            assertEquals( live.size(), tree.size() );
+            assertTrue( "depth: " + tree.depth(), tree.depth() <= maxDepth + 1 );
+            assertEquals( new HashSet<Object>( live ), new HashSet<Object>( Arrays.asList( tree.toArray() ) ) );
+
+            RandomFeature query = new RandomFeature( DIM, rand );
+            Arrays.fill( query.mVector, 0.9f );
+            assertTrue( tree.pick( query, result ) );
+            assertEquals( 1f, result.pickedPoint().mVector[0], 0f );
+        }
+    }
+
+
+    @Test
+    public void testPackedTree() {
+        Random rand = new Random( 17 );
+        int[] sizes = { 0, 1, 2, 3, 5, 8, 13, 64, 100, 5000 };
+        int[] dims  = { 3, 2, 3, 1, 3, 2, 3, 4, 3, 3 };
+
+        for( int s = 0; s < sizes.length; s++ ) {
+            final int count = sizes[s];
+            final int dim   = dims[s];
+            final int off   = 5;
+            float[] coords = new float[off + count * dim];
+            for( int i = off; i < coords.length; i++ ) {
+                // Quantize some coordinates to exercise ties.
+                coords[i] = s % 2 == 0 ? rand.nextFloat() : rand.nextInt( 8 );
+            }
+
+            PackedPointTree tree = new PackedPointTree( coords, off, count, dim );
+            assertEquals( count, tree.size() );
+
+            float[] q = new float[dim];
+            int[] outIndices = new int[10];
+            float[] outDists = new float[10];
+            float[] brute    = new float[count];
+            IntList found    = new IntList();
+
+            for( int trial = 0; trial < 50; trial++ ) {
+                for( int d = 0; d < dim; d++ ) {
+                    q[d] = rand.nextFloat() * 1.2f - 0.1f;
+                }
+                for( int i = 0; i < count; i++ ) {
+                    float sum = 0f;
+                    for( int d = 0; d < dim; d++ ) {
+                        float v = q[d] - coords[off + i * dim + d];
+                        sum += v * v;
+                    }
+                    brute[i] = (float)Math.sqrt( sum );
+                }
+                float[] sorted = brute.clone();
+                Arrays.sort( sorted );
+
+                int nearest = tree.nearest( q, 0 );
+                if( count == 0 ) {
+                    assertEquals( -1, nearest );
+                } else {
+                    assertEquals( sorted[0], brute[nearest], 0f );
+                }
+
+                int k = Math.min( 10, trial % 10 + 1 );
+                int n = tree.nearest( q, 0, k, outIndices, outDists );
+                assertEquals( Math.min( k, count ), n );
+                for( int i = 0; i < n; i++ ) {
+                    assertEquals( sorted[i], outDists[i], 1e-5f );
+                    assertEquals( brute[outIndices[i]], outDists[i], 1e-5f );
+                }
+
+                float radius = 0.3f;
+                found.clear();
+                found.add( -7 );
+                int m = tree.findInRadius( q, 0, radius, found );
+                assertEquals( m + 1, found.size() );
+                Set<Integer> expect = new HashSet<Integer>();
+                for( int i = 0; i < count; i++ ) {
+                    float sum = 0f;
+                    for( int d = 0; d < dim; d++ ) {
+                        float v = q[d] - coords[off + i * dim + d];
+                        sum += v * v;
+                    }
+                    if( sum <= radius * radius ) {
+                        expect.add( i );
+                    }
+                }
+                Set<Integer> actual = new HashSet<Integer>();
+                for( int i = 1; i < found.size(); i++ ) {
+                    actual.add( found.get( i ) );
+                }
+                assertEquals( expect.size(), m );
+                assertEquals( expect, actual );
+            }
+        }
+    }
+
+    @Test
+    public void testApproximatePick() {
+        final int DIM = 5;
+        Random rand = new Random( 29 );
+        List<RandomFeature> features = new ArrayList<RandomFeature>();
+        for( int i = 0; i < 20000; i++ ) {
+            features.add( new RandomFeature( DIM, rand ) );
+        }
+        KdPointTree<RandomFeature> tree = new KdPointTree<RandomFeature>( new RandomFeatureComp( DIM ), features );
+        PointPickResult<RandomFeature> result = tree.newPointPickResult();
+
+        int exactCount = 0;
+        int trials = 200;
+        for( int trial = 0; trial < trials; trial++ ) {
+            RandomFeature query = new RandomFeature( DIM, rand );
+            double best = Double.POSITIVE_INFINITY;
+            for( RandomFeature f : features ) {
+                best = Math.min( best, f.distance( query ) );
+            }
+
+            // Unlimited budget is exact.
+            assertTrue( tree.approximatePick( query, Integer.MAX_VALUE, 0.0, result ) );
+            assertEquals( best, result.pickedDistance(), 1e-6 );
+
+            // Epsilon bounds error.
+            assertTrue( tree.approximatePick( query, Integer.MAX_VALUE, 0.5, result ) );
+            assertTrue( result.pickedDistance() <= best * 1.5 + 1e-6 );
+            assertEquals( result.pickedPoint().distance( query ), result.pickedDistance(), 1e-6 );
+
+            // Single descent still finds some point.
+            assertTrue( tree.approximatePick( query, 1, 0.0, result ) );
+            assertTrue( result.pickedDistance() >= best - 1e-6 );
+
+            tree.approximatePick( query, 32, 0.0, result );
+            if( Math.abs( result.pickedDistance() - best ) < 1e-6 ) {
+                exactCount++;
+            }
+        }
+
+        assertTrue( "recall: " + exactCount, exactCount > trials / 2 );
+        assertFalse( new KdPointTree<RandomFeature>( new RandomFeatureComp( DIM ) ).approximatePick( features.get( 0 ), result ) );
+    }
+
+
+    @Test
+    @Ignore
+    public void testApproximateRecall() {
+        runRecallBenchmark( 8, 200000, 10000 );
+    }
+
+
     @Test
     @Ignore
     public void testSpeed() {
@@ -235,4 +770,50 @@ public class KdPointTreeTest {
         return (float)correct / trialCount;
     }
 
+
+    /**
+     * Prints recall and query time of approximatePick() for a range of leaf visit budgets.
+     */
+    public static void runRecallBenchmark( int dimCount, int featureCount, int trialCount ) {
+        final Random rand = new Random( 3 );
+        List<RandomFeature> features = new ArrayList<RandomFeature>( featureCount );
+        for( int i = 0; i < featureCount; i++ ) {
+            features.add( new RandomFeature( dimCount, rand ) );
+        }
+
+        KdPointTree<RandomFeature> tree = new KdPointTree<RandomFeature>( new RandomFeatureComp( dimCount ), features );
+        PointPickResult<RandomFeature> result = tree.newPointPickResult();
+
+        RandomFeature[] trials = new RandomFeature[trialCount];
+        RandomFeature[] exact  = new RandomFeature[trialCount];
+        for( int i = 0; i < trialCount; i++ ) {
+            trials[i] = new RandomFeature( dimCount, rand );
+            tree.pick( trials[i], result );
+            exact[i] = result.pickedPoint();
+        }
+
+        long time = System.nanoTime();
+        for( int i = 0; i < trialCount; i++ ) {
+            tree.pick( trials[i], result );
+        }
+        time = System.nanoTime() - time;
+        System.out.format( "exact          recall 1.000  %8.2f us/query%n", time / 1000.0 / trialCount );
+
+        for( int visits = 1; visits <= 4096; visits *= 2 ) {
+            int correct = 0;
+            time = System.nanoTime();
+            for( int i = 0; i < trialCount; i++ ) {
+                tree.approximatePick( trials[i], visits, 0.0, result );
+                if( result.pickedPoint() == exact[i] ) {
+                    correct++;
+                }
+            }
+            time = System.nanoTime() - time;
+            System.out.format( "visits %6d  recall %.3f  %8.2f us/query%n",
+                               visits,
+                               (double)correct / trialCount,
+                               time / 1000.0 / trialCount );
+        }
+    }
+
 }
@@ -2,9 +2,15 @@
 package bits.draw3d.pick;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import bits.draw3d.model.*;
+import bits.draw3d.util.IntList;
 import bits.math3d.*;
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -30,7 +36,7 @@ public class KdTreeTest {
 
         System.out.println( "Triangle Count: " + tris.size() + "\t" + bounds );
 
-        List<RayPicker> pickerList = createTree( tris );
+        List<FastRayPicker> pickerList = createTree( tris );
         List<RayPickResult> resultList = new ArrayList<RayPickResult>();
         for( RayPicker gp : pickerList ) {
             resultList.add( gp.newRayPickResult() );
@@ -83,6 +89,766 @@ public class KdTreeTest {
     }
 
 
+    @Test
+    public void parallelBuildTest() {
+        List<DrawTri> tris = newRandomGeometry( 20000, new Random( 3 ) );
+        KdTriangleTree serial   = KdTriangleTree.build( tris );
+        KdTriangleTree parallel = KdTriangleTree.build( tris, 4 );
+        assertEquals( serial.nodeCount(), parallel.nodeCount() );
+        assertEquals( serial.treeDepth(), parallel.treeDepth() );
+        assertTrue( serial.layoutEquals( parallel ) );
+
+        serial   = KdTriangleTree.build( tris, KdBuildQuality.BINNED );
+        parallel = KdTriangleTree.build( tris, KdBuildQuality.BINNED, 4 );
+        assertTrue( serial.layoutEquals( parallel ) );
+    }
+
+
+    @Test
+    public void batchPickTest() throws IOException {
+        List<DrawTri> tris = newGeometry();
+        KdTriangleTree tree = KdTriangleTree.build( tris );
+        RayPickResult result = tree.newRayPickResult();
+
+        final int RAY_COUNT = 5000;
+        float[] points = new float[RAY_COUNT * 3];
+        float[] dirs   = new float[RAY_COUNT * 3];
+        newRandomRays( tris, RAY_COUNT, new Random( 7 ), points, dirs );
+
+        float[] dists = new float[RAY_COUNT];
+        int[] triIdx  = new int[RAY_COUNT];
+        int[] sides   = new int[RAY_COUNT];
+        int hits = tree.pick( points, dirs, 0, RAY_COUNT, Side.BOTH, dists, triIdx, sides );
+
+        float[] parDists = new float[RAY_COUNT];
+        int[] parTriIdx  = new int[RAY_COUNT];
+        int[] parSides   = new int[RAY_COUNT];
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        int parHits = RayPickers.pick( tree, points, dirs, 0, RAY_COUNT, Side.BOTH, parDists, parTriIdx, parSides, pool );
+        pool.shutdown();
+
+        assertEquals( hits, parHits );
+        assertTrue( Arrays.equals( dists, parDists ) );
+        assertTrue( Arrays.equals( triIdx, parTriIdx ) );
+        assertTrue( Arrays.equals( sides, parSides ) );
+
+        Vec3 pos = new Vec3();
+        Vec3 dir = new Vec3();
+        int singleHits = 0;
+
+        for( int i = 0; i < RAY_COUNT; i++ ) {
+            pos.x = points[i*3]; pos.y = points[i*3+1]; pos.z = points[i*3+2];
+            dir.x = dirs[i*3];   dir.y = dirs[i*3+1];   dir.z = dirs[i*3+2];
+            boolean hit = tree.pick( pos, dir, Side.BOTH, result );
+            if( hit ) {
+                singleHits++;
+                assertEquals( result.pickedParamDistance(), dists[i], 0f );
+                assertSame( result.pickedTriangle(), tris.get( triIdx[i] ) );
+                assertEquals( result.pickedSide(), sides[i] );
+            } else {
+                assertEquals( -1, triIdx[i] );
+                assertEquals( Side.NONE, sides[i] );
+            }
+        }
+
+        assertEquals( singleHits, hits );
+    }
+
+
+    @Test
+    public void plainPickerTest() throws IOException {
+        List<DrawTri> tris = newGeometry();
+        final KdTriangleTree tree = KdTriangleTree.build( tris );
+        // Picker that only implements RayPicker. RayPickers must fall back to single picks.
+        RayPicker plain = new RayPicker() {
+            public RayPickResult newRayPickResult() {
+                return tree.newRayPickResult();
+            }
+
+            public boolean pick( Vec3 rayPoint, Vec3 rayDir, int sides, RayPickResult out ) {
+                return tree.pick( rayPoint, rayDir, sides, out );
+            }
+        };
+
+        final int RAY_COUNT = 5000;
+        float[] points = new float[RAY_COUNT * 3];
+        float[] dirs   = new float[RAY_COUNT * 3];
+        newRandomRays( tris, RAY_COUNT, new Random( 53 ), points, dirs );
+
+        float[] dists = new float[RAY_COUNT];
+        int[] sides   = new int[RAY_COUNT];
+        int hits = tree.pick( points, dirs, 0, RAY_COUNT, Side.BOTH, dists, null, sides );
+
+        float[] plainDists = new float[RAY_COUNT];
+        int[] plainTris    = new int[RAY_COUNT];
+        int[] plainSides   = new int[RAY_COUNT];
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        assertEquals( hits, RayPickers.pick( plain, points, dirs, 0, RAY_COUNT, Side.BOTH, plainDists, plainTris, plainSides, pool ) );
+        assertTrue( Arrays.equals( dists, plainDists ) );
+        assertTrue( Arrays.equals( sides, plainSides ) );
+        for( int i = 0; i < RAY_COUNT; i++ ) {
+            assertEquals( -1, plainTris[i] );
+        }
+
+        boolean[] occ      = new boolean[RAY_COUNT];
+        boolean[] plainOcc = new boolean[RAY_COUNT];
+        int count = tree.occluded( points, dirs, 0, RAY_COUNT, 0.5f, Side.BOTH, occ );
+        assertEquals( count, RayPickers.occluded( plain, points, dirs, 0, RAY_COUNT, 0.5f, Side.BOTH, plainOcc, pool ) );
+        assertTrue( Arrays.equals( occ, plainOcc ) );
+        pool.shutdown();
+    }
+
+
+    @Test
+    public void concurrentPickTest() throws Exception {
+        final List<DrawTri> tris = newGeometry();
+        final KdTriangleTree tree = KdTriangleTree.build( tris );
+        final RayPicker ref = BruteForcePicker.build( tris );
+
+        final int RAY_COUNT = 2000;
+        final int THREAD_COUNT = 8;
+        float[] points = new float[RAY_COUNT * 3];
+        float[] dirs   = new float[RAY_COUNT * 3];
+        newRandomRays( tris, RAY_COUNT, new Random( 11 ), points, dirs );
+
+        final Vec3[] rayPoints = new Vec3[RAY_COUNT];
+        final Vec3[] rayDirs   = new Vec3[RAY_COUNT];
+        final RayPickResult[] expected = new RayPickResult[RAY_COUNT];
+
+        for( int i = 0; i < RAY_COUNT; i++ ) {
+            rayPoints[i] = new Vec3( points[i*3], points[i*3+1], points[i*3+2] );
+            rayDirs[i]   = new Vec3( dirs[i*3], dirs[i*3+1], dirs[i*3+2] );
+            expected[i]  = ref.newRayPickResult();
+            ref.pick( rayPoints[i], rayDirs[i], Side.BOTH, expected[i] );
+        }
+
+        // Many threads, each with own result, hammering one shared tree.
+        final AtomicInteger failures = new AtomicInteger( 0 );
+        Thread[] threads = new Thread[THREAD_COUNT];
+
+        for( int t = 0; t < THREAD_COUNT; t++ ) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    Random rand = new Random( seed );
+                    RayPickResult result = tree.newRayPickResult();
+                    for( int n = 0; n < RAY_COUNT * 5; n++ ) {
+                        int i = rand.nextInt( RAY_COUNT );
+                        tree.pick( rayPoints[i], rayDirs[i], Side.BOTH, result );
+                        if( !matches( expected[i], result ) ) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+        }
+
+        for( Thread t : threads ) {
+            t.start();
+        }
+        for( Thread t : threads ) {
+            t.join();
+        }
+
+        assertEquals( 0, failures.get() );
+
+        // Same check through pickAll.
+        RayPickResult[] results = new RayPickResult[RAY_COUNT];
+        ForkJoinPool pool = new ForkJoinPool( THREAD_COUNT );
+        RayPickers.pickAll( tree, rayPoints, rayDirs, Side.BOTH, results, pool );
+        pool.shutdown();
+
+        for( int i = 0; i < RAY_COUNT; i++ ) {
+            assertTrue( matches( expected[i], results[i] ) );
+        }
+    }
+
+
+    @Test
+    public void occlusionTest() throws IOException {
+        List<DrawTri> tris = newGeometry();
+        KdTriangleTree tree = KdTriangleTree.build( tris );
+        FastRayPicker ref = BruteForcePicker.build( tris );
+        RayPickResult result = tree.newRayPickResult();
+        RayPickResult refResult = ref.newRayPickResult();
+
+        final int RAY_COUNT = 5000;
+        final float MAX_DIST = 0.5f;
+        float[] points = new float[RAY_COUNT * 3];
+        float[] dirs   = new float[RAY_COUNT * 3];
+        newRandomRays( tris, RAY_COUNT, new Random( 13 ), points, dirs );
+
+        boolean[] occ = new boolean[RAY_COUNT];
+        boolean[] parOcc = new boolean[RAY_COUNT];
+        int count = tree.occluded( points, dirs, 0, RAY_COUNT, MAX_DIST, Side.BOTH, occ );
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        int parCount = RayPickers.occluded( tree, points, dirs, 0, RAY_COUNT, MAX_DIST, Side.BOTH, parOcc, pool );
+        pool.shutdown();
+
+        assertEquals( count, parCount );
+        assertTrue( Arrays.equals( occ, parOcc ) );
+
+        Vec3 pos = new Vec3();
+        Vec3 dir = new Vec3();
+        int occCount = 0;
+
+        for( int i = 0; i < RAY_COUNT; i++ ) {
+            pos.x = points[i*3]; pos.y = points[i*3+1]; pos.z = points[i*3+2];
+            dir.x = dirs[i*3];   dir.y = dirs[i*3+1];   dir.z = dirs[i*3+2];
+
+            boolean expect = ref.occluded( pos, dir, MAX_DIST, Side.BOTH, refResult );
+            assertEquals( expect, occ[i] );
+            assertEquals( expect, tree.occluded( pos, dir, MAX_DIST, Side.BOTH, result ) );
+
+            // Occlusion must agree with nearest pick.
+            boolean picked = tree.pick( pos, dir, Side.BOTH, result );
+            if( !picked ) {
+                assertFalse( occ[i] );
+            } else if( Math.abs( result.pickedParamDistance() - MAX_DIST ) > 1e-4f ) {
+                assertEquals( result.pickedParamDistance() <= MAX_DIST, occ[i] );
+            }
+            if( occ[i] ) {
+                occCount++;
+            }
+        }
+
+        assertEquals( count, occCount );
+        assertTrue( count > 0 );
+    }
+
+
+    @Test
+    public void occlusionKeepsPickTest() throws IOException {
+        List<DrawTri> tris = newGeometry();
+        final int RAY_COUNT = 2000;
+        float[] points = new float[RAY_COUNT * 3];
+        float[] dirs   = new float[RAY_COUNT * 3];
+        newRandomRays( tris, RAY_COUNT, new Random( 37 ), points, dirs );
+
+        for( FastRayPicker picker : createTree( tris ) ) {
+            RayPickResult result = picker.newRayPickResult();
+            Vec3 pos = new Vec3();
+            Vec3 dir = new Vec3();
+            int occCount = 0;
+
+            for( int i = 0; i + 1 < RAY_COUNT; i += 2 ) {
+                pos.x = points[i*3]; pos.y = points[i*3+1]; pos.z = points[i*3+2];
+                dir.x = dirs[i*3];   dir.y = dirs[i*3+1];   dir.z = dirs[i*3+2];
+                if( !picker.pick( pos, dir, Side.BOTH, result ) ) {
+                    continue;
+                }
+
+                float param  = result.pickedParamDistance();
+                float dist   = result.pickedDistance();
+                DrawTri tri  = result.pickedTriangle();
+                int side     = result.pickedSide();
+                Vec3 point   = result.pickedPoint();
+
+                // Occlusion query with a different ray must not disturb the pick.
+                int j = i + 1;
+                pos.x = points[j*3]; pos.y = points[j*3+1]; pos.z = points[j*3+2];
+                dir.x = dirs[j*3];   dir.y = dirs[j*3+1];   dir.z = dirs[j*3+2];
+                if( picker.occluded( pos, dir, 0.5f, Side.BOTH, result ) ) {
+                    occCount++;
+                }
+
+                assertTrue( result.hasPick() );
+                assertEquals( param, result.pickedParamDistance(), 0f );
+                assertEquals( dist, result.pickedDistance(), 0f );
+                assertSame( tri, result.pickedTriangle() );
+                assertEquals( side, result.pickedSide() );
+                assertTrue( assertNear( point, result.pickedPoint(), 0f ) );
+            }
+
+            assertTrue( occCount > 0 );
+        }
+    }
+
+
+    @Test
+    public void bvhRefitTest() throws IOException {
+        List<DrawTri> tris = newGeometry();
+        BvhTriangleTree bvh = BvhTriangleTree.build( tris );
+
+        Set<DrawVert> verts = Collections.newSetFromMap( new IdentityHashMap<DrawVert,Boolean>() );
+        for( DrawTri t : tris ) {
+            verts.addAll( Arrays.asList( t.mVerts ) );
+        }
+
+        // Smooth deformation. Refit alone must remain exact.
+        for( DrawVert v : verts ) {
+            Vec3 p = v.mPos;
+            p.x += 200f * (float)Math.sin( p.y * 0.001 );
+            p.z += 300f * (float)Math.cos( p.x * 0.002 );
+        }
+
+        bvh.refit();
+        RayPicker ref = BruteForcePicker.build( tris );
+        assertPickersMatch( tris, ref, bvh, new Random( 17 ) );
+
+        // Scramble vertices. Update should rebuild degraded subtrees.
+        Random rand = new Random( 19 );
+        Box3 bounds = new Box3();
+        Models.computeBounds( Models.vertIterator( tris ), bounds );
+        for( DrawVert v : verts ) {
+            if( rand.nextInt( 4 ) == 0 ) {
+                v.mPos.x = bounds.x0 + rand.nextFloat() * ( bounds.x1 - bounds.x0 );
+                v.mPos.y = bounds.y0 + rand.nextFloat() * ( bounds.y1 - bounds.y0 );
+                v.mPos.z = bounds.z0 + rand.nextFloat() * ( bounds.z1 - bounds.z0 );
+            }
+        }
+
+        assertTrue( bvh.update() > 0 );
+        ref = BruteForcePicker.build( tris );
+        assertPickersMatch( tris, ref, bvh, new Random( 23 ) );
+        assertEquals( 0, bvh.update() );
+        assertPickersMatch( tris, ref, bvh, new Random( 29 ) );
+    }
+
+
+    @Test
+    public void instanceTreeTest() {
+        Random rand = new Random( 31 );
+        List<DrawTri> tris = newRandomGeometry( 500, rand );
+        KdTriangleTree kd = KdTriangleTree.build( tris );
+        BvhTriangleTree bvh = BvhTriangleTree.build( tris );
+
+        InstanceTree tree = new InstanceTree();
+        List<InstanceTree.Instance> insts = new ArrayList<InstanceTree.Instance>();
+        List<Mat4> mats = new ArrayList<Mat4>();
+        for( int i = 0; i < 40; i++ ) {
+            Mat4 mat = newRandomTransform( rand, i % 5 == 0 );
+            RayPicker picker = i % 2 == 0 ? kd : bvh;
+            Box3 bounds = i % 2 == 0 ? kd.bounds( new Box3() ) : bvh.bounds( new Box3() );
+            insts.add( tree.add( picker, bounds, mat, i ) );
+            mats.add( mat );
+        }
+        assertInstancesMatch( tris, tree, insts, mats, rand );
+
+        // Move instances without rebuilding.
+        for( int i = 0; i < 10; i++ ) {
+            int index = rand.nextInt( insts.size() );
+            Mat4 mat = newRandomTransform( rand, rand.nextBoolean() );
+            tree.setTransform( insts.get( index ), mat );
+            mats.set( index, mat );
+        }
+        assertInstancesMatch( tris, tree, insts, mats, rand );
+
+        // Remove instances.
+        for( int i = 0; i < 10; i++ ) {
+            int index = rand.nextInt( insts.size() );
+            assertTrue( tree.remove( insts.remove( index ) ) );
+            mats.remove( index );
+        }
+        assertEquals( insts.size(), tree.instanceCount() );
+        assertInstancesMatch( tris, tree, insts, mats, rand );
+    }
+
+
+    @Test
+    public void instanceGridTest() {
+        // Floor of unit squares. Rays straight down along grid lines start on the
+        // planes of instance boxes.
+        DrawVert[] v = { new DrawVert( 0, 0, 0 ), new DrawVert( 1, 0, 0 ),
+                         new DrawVert( 1, 1, 0 ), new DrawVert( 0, 1, 0 ) };
+        List<DrawTri> tris = Arrays.asList( new DrawTri( v[0], v[1], v[2] ), new DrawTri( v[0], v[2], v[3] ) );
+        KdTriangleTree kd = KdTriangleTree.build( tris );
+        BvhTriangleTree bvh = BvhTriangleTree.build( tris );
+
+        InstanceTree tree = new InstanceTree();
+        for( int y = 0; y < 4; y++ ) {
+            for( int x = 0; x < 4; x++ ) {
+                Mat4 mat = new Mat4();
+                Mat.identity( mat );
+                Mat.translate( mat, x, y, 0, mat );
+                RayPicker picker = ( x + y ) % 2 == 0 ? kd : bvh;
+                tree.add( picker, picker == kd ? kd.bounds( new Box3() ) : bvh.bounds( new Box3() ), mat, null );
+            }
+        }
+        tree.optimize();
+
+        RayPickResult result = tree.newRayPickResult();
+        Vec3 dir = new Vec3( 0, 0, -1 );
+        for( int y = 1; y < 8; y++ ) {
+            for( int x = 1; x < 8; x++ ) {
+                Vec3 pos = new Vec3( x * 0.5f, y * 0.5f, 2f );
+                assertTrue( tree.occluded( pos, dir, 2.5f, Side.BOTH, result ) );
+                assertFalse( tree.occluded( pos, dir, 1.5f, Side.BOTH, result ) );
+                assertTrue( tree.pick( pos, dir, Side.BOTH, result ) );
+                assertEquals( 2f, result.pickedParamDistance(), 0f );
+            }
+        }
+    }
+
+
+    @Test
+    public void snapshotTest() throws IOException {
+        List<DrawTri> tris = newGeometry();
+        KdTriangleTree tree = KdTriangleTree.build( tris );
+        File file = File.createTempFile( "kdtree", ".bin" );
+        file.deleteOnExit();
+        tree.write( file );
+
+        MappedKdTriangleTree mapped = MappedKdTriangleTree.open( file );
+        assertEquals( tree.nodeCount(), mapped.nodeCount() );
+        assertEquals( tree.treeDepth(), mapped.treeDepth() );
+        assertEquals( tris.size(), mapped.triangleCount() );
+
+        final int RAY_COUNT = 5000;
+        float[] points = new float[RAY_COUNT * 3];
+        float[] dirs   = new float[RAY_COUNT * 3];
+        newRandomRays( tris, RAY_COUNT, new Random( 37 ), points, dirs );
+
+        float[] dists0 = new float[RAY_COUNT];
+        float[] dists1 = new float[RAY_COUNT];
+        int[] tris0    = new int[RAY_COUNT];
+        int[] tris1    = new int[RAY_COUNT];
+        int[] sides0   = new int[RAY_COUNT];
+        int[] sides1   = new int[RAY_COUNT];
+        int hits = tree.pick( points, dirs, 0, RAY_COUNT, Side.BOTH, dists0, tris0, sides0 );
+        assertEquals( hits, mapped.pick( points, dirs, 0, RAY_COUNT, Side.BOTH, dists1, tris1, sides1 ) );
+        assertTrue( Arrays.equals( dists0, dists1 ) );
+        assertTrue( Arrays.equals( tris0, tris1 ) );
+        assertTrue( Arrays.equals( sides0, sides1 ) );
+
+        boolean[] occ0 = new boolean[RAY_COUNT];
+        boolean[] occ1 = new boolean[RAY_COUNT];
+        tree.occluded( points, dirs, 0, RAY_COUNT, 1f, Side.BOTH, occ0 );
+        mapped.occluded( points, dirs, 0, RAY_COUNT, 1f, Side.BOTH, occ1 );
+        assertTrue( Arrays.equals( occ0, occ1 ) );
+
+        // Picked triangles are rebuilt from mapped vertex data.
+        RayPickResult r0 = tree.newRayPickResult();
+        RayPickResult r1 = mapped.newRayPickResult();
+        Vec3 pos = new Vec3();
+        Vec3 dir = new Vec3();
+        for( int i = 0; i < 200; i++ ) {
+            pos.x = points[i*3]; pos.y = points[i*3+1]; pos.z = points[i*3+2];
+            dir.x = dirs[i*3];   dir.y = dirs[i*3+1];   dir.z = dirs[i*3+2];
+            assertEquals( tree.pick( pos, dir, Side.BOTH, r0 ), mapped.pick( pos, dir, Side.BOTH, r1 ) );
+            if( r0.hasPick() ) {
+                for( int j = 0; j < 3; j++ ) {
+                    assertTrue( assertNear( r0.pickedTriangle().mVerts[j].mPos, r1.pickedTriangle().mVerts[j].mPos, 0.01f ) );
+                }
+            }
+        }
+
+        // Corrupt header.
+        ByteBuffer bad = ByteBuffer.allocate( 64 );
+        bad.putInt( 0, 12345 );
+        try {
+            MappedKdTriangleTree.wrap( bad );
+            fail();
+        } catch( IOException expected ) {}
+
+        // Depth too large for traversal stacks.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        tree.write( Channels.newChannel( bytes ) );
+        ByteBuffer deep = ByteBuffer.wrap( bytes.toByteArray() ).order( ByteOrder.LITTLE_ENDIAN );
+        assertEquals( tree.treeDepth(), MappedKdTriangleTree.wrap( deep ).treeDepth() );
+        deep.putInt( 20, 1000 );
+        try {
+            MappedKdTriangleTree.wrap( deep );
+            fail();
+        } catch( IOException expected ) {}
+
+        // Child of root out of range.
+        ByteBuffer badNode = ByteBuffer.wrap( bytes.toByteArray() ).order( ByteOrder.LITTLE_ENDIAN );
+        int nodeInts = badNode.getInt( 8 );
+        int head = badNode.getInt( 48 );
+        assertTrue( ( head & 3 ) != 3 );
+        badNode.putInt( 48, ( nodeInts << 2 ) | ( head & 3 ) );
+        try {
+            MappedKdTriangleTree.wrap( badNode );
+            fail();
+        } catch( IOException expected ) {}
+
+        // Leaf references missing triangle.
+        ByteBuffer badTri = ByteBuffer.wrap( bytes.toByteArray() ).order( ByteOrder.LITTLE_ENDIAN );
+        badTri.putInt( 48 + nodeInts * 4, tris.size() );
+        try {
+            MappedKdTriangleTree.wrap( badTri );
+            fail();
+        } catch( IOException expected ) {}
+    }
+
+
+    @Test
+    public void volumeQueryTest() {
+        Random rand = new Random( 41 );
+        List<DrawTri> tris = newRandomGeometry( 3000, rand );
+        float[] triData = TriangleIntersector.packTriangles( tris.toArray( new DrawTri[tris.size()] ), tris.size() );
+        IntList found = new IntList();
+        IntList expected = new IntList();
+
+        for( KdTriangleTree tree : new KdTriangleTree[]{ KdTriangleTree.build( tris ),
+                                                         KdTriangleTree.build( tris, KdBuildQuality.BINNED ) } )
+        {
+            for( int trial = 0; trial < 50; trial++ ) {
+                Box3 box = new Box3();
+                box.x0 = rand.nextFloat() * 100f;
+                box.y0 = rand.nextFloat() * 100f;
+                box.z0 = rand.nextFloat() * 100f;
+                box.x1 = box.x0 + rand.nextFloat() * 20f;
+                box.y1 = box.y0 + rand.nextFloat() * 20f;
+                box.z1 = box.z0 + rand.nextFloat() * 20f;
+
+                // Box
+                expected.clear();
+                for( int i = 0; i < tris.size(); i++ ) {
+                    if( TriangleIntersector.overlapsBox( triData, i,
+                                                         ( box.x0 + box.x1 ) * 0.5f,
+                                                         ( box.y0 + box.y1 ) * 0.5f,
+                                                         ( box.z0 + box.z1 ) * 0.5f,
+                                                         ( box.x1 - box.x0 ) * 0.5f,
+                                                         ( box.y1 - box.y0 ) * 0.5f,
+                                                         ( box.z1 - box.z0 ) * 0.5f ) )
+                    {
+                        expected.add( i );
+                    }
+                }
+                found.clear();
+                found.add( -5 );
+                assertEquals( expected.size(), tree.findInBox( box, found ) );
+                assertEquals( -5, found.get( 0 ) );
+                for( int i = 0; i < expected.size(); i++ ) {
+                    assertEquals( expected.get( i ), found.get( i + 1 ) );
+                }
+                for( int i = 0; i < tris.size(); i++ ) {
+                    Vec3 v = tris.get( i ).mVerts[0].mPos;
+                    if( Box.contains( box, v.x, v.y, v.z ) ) {
+                        assertTrue( Arrays.binarySearch( expected.toArray(), i ) >= 0 );
+                    }
+                }
+
+                // Frustum bounded by box faces must contain every triangle overlapping box.
+                Vec4[] planes = { new Vec4(  1, 0, 0, -box.x0 ), new Vec4( -1, 0, 0, box.x1 ),
+                                  new Vec4( 0,  1, 0, -box.y0 ), new Vec4( 0, -1, 0, box.y1 ),
+                                  new Vec4( 0, 0,  1, -box.z0 ), new Vec4( 0, 0, -1, box.z1 ) };
+                found.clear();
+                tree.findInFrustum( planes, found );
+                int[] frustumTris = found.toArray();
+                for( int i = 0; i < expected.size(); i++ ) {
+                    assertTrue( Arrays.binarySearch( frustumTris, expected.get( i ) ) >= 0 );
+                }
+                for( int i : frustumTris ) {
+                    for( Vec4 p : planes ) {
+                        assertFalse( TriangleIntersector.outsidePlane( triData, i, p.x, p.y, p.z, p.w ) );
+                    }
+                }
+
+                // Sphere
+                Vec3 center = new Vec3( box.x0, box.y0, box.z0 );
+                float radius = rand.nextFloat() * 15f;
+                expected.clear();
+                for( int i = 0; i < tris.size(); i++ ) {
+                    if( TriangleIntersector.closestPoint( triData, i, center.x, center.y, center.z, null ) <= radius * radius ) {
+                        expected.add( i );
+                    }
+                }
+                found.clear();
+                assertEquals( expected.size(), tree.findInSphere( center, radius, found ) );
+                assertTrue( Arrays.equals( expected.toArray(), found.toArray() ) );
+            }
+        }
+
+        // Check closest points against dense sampling.
+        float[] closest = new float[5];
+        for( int trial = 0; trial < 200; trial++ ) {
+            int tri = rand.nextInt( tris.size() );
+            Vec3 p = tris.get( tri ).mVerts[0].mPos;
+            float px = p.x + ( rand.nextFloat() - 0.5f ) * 10f;
+            float py = p.y + ( rand.nextFloat() - 0.5f ) * 10f;
+            float pz = p.z + ( rand.nextFloat() - 0.5f ) * 10f;
+            float distSq = TriangleIntersector.closestPoint( triData, tri, px, py, pz, closest );
+
+            float best = Float.POSITIVE_INFINITY;
+            int off = tri * TriangleIntersector.TRI_DATA_SIZE;
+            for( int i = 0; i <= 100; i++ ) {
+                for( int j = 0; i + j <= 100; j++ ) {
+                    float u = i / 100f;
+                    float v = j / 100f;
+                    float dx = triData[off  ] + u * triData[off+3] + v * triData[off+6] - px;
+                    float dy = triData[off+1] + u * triData[off+4] + v * triData[off+7] - py;
+                    float dz = triData[off+2] + u * triData[off+5] + v * triData[off+8] - pz;
+                    best = Math.min( best, dx * dx + dy * dy + dz * dz );
+                }
+            }
+
+            assertTrue( distSq <= best + 1e-3f );
+            assertTrue( Math.sqrt( best ) - Math.sqrt( distSq ) < 0.05 );
+            assertTrue( closest[3] >= 0 && closest[4] >= 0 && closest[3] + closest[4] <= 1.0001f );
+        }
+    }
+
+
+    @Test
+    public void nearestPointTest() throws IOException {
+        List<DrawTri> tris = newGeometry();
+        DrawTri[] triArr = tris.toArray( new DrawTri[tris.size()] );
+        float[] triData = TriangleIntersector.packTriangles( triArr, triArr.length );
+        KdTriangleTree tree = KdTriangleTree.build( tris );
+
+        final int QUERY_COUNT = 3000;
+        float[] points = new float[QUERY_COUNT * 3];
+        newRandomRays( tris, QUERY_COUNT, new Random( 43 ), points, new float[QUERY_COUNT * 3] );
+
+        NearestPointResult result = new NearestPointResult();
+        Vec3 p = new Vec3();
+        float[] work = new float[5];
+        float[] dists = new float[QUERY_COUNT];
+
+        for( int i = 0; i < QUERY_COUNT; i++ ) {
+            p.x = points[i*3]; p.y = points[i*3+1]; p.z = points[i*3+2];
+            float best = Float.POSITIVE_INFINITY;
+            for( int j = 0; j < triArr.length; j++ ) {
+                best = Math.min( best, TriangleIntersector.closestPoint( triData, j, p.x, p.y, p.z, work ) );
+            }
+            best = (float)Math.sqrt( best );
+            dists[i] = best;
+
+            assertTrue( tree.nearestPoint( p, Float.POSITIVE_INFINITY, result ) );
+            assertEquals( best, result.pickedDistance(), 1e-3f * Math.max( 1f, best ) );
+            assertEquals( result.pickedDistance(), Vec.dist( p, result.pickedPointRef() ), 1e-2f );
+            assertSame( tris.get( result.pickedTriangleIndex() ), result.pickedTriangle() );
+
+            // Barycentrics reconstruct point.
+            Vec3 bary = result.pickedBarycentricRef();
+            DrawTri t = result.pickedTriangle();
+            Vec3 q = new Vec3();
+            for( int j = 0; j < 3; j++ ) {
+                float w = j == 0 ? bary.x : j == 1 ? bary.y : bary.z;
+                q.x += w * t.mVerts[j].mPos.x;
+                q.y += w * t.mVerts[j].mPos.y;
+                q.z += w * t.mVerts[j].mPos.z;
+            }
+            assertTrue( assertNear( q, result.pickedPointRef(), 1e-2f ) );
+
+            // Bounded search.
+            assertTrue( tree.nearestPoint( p, best * 1.01f + 1e-3f, result ) );
+            if( best > 0.1f ) {
+                assertFalse( tree.nearestPoint( p, best * 0.99f, result ) );
+            }
+        }
+
+        // Serial and parallel batches match single queries.
+        float[] outDists0 = new float[QUERY_COUNT];
+        float[] outDists1 = new float[QUERY_COUNT];
+        int[] outTris0 = new int[QUERY_COUNT];
+        int[] outTris1 = new int[QUERY_COUNT];
+        float[] outPoints = new float[QUERY_COUNT * 3];
+        float[] outBary = new float[QUERY_COUNT * 3];
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        assertEquals( QUERY_COUNT, tree.nearestPoints( points, 0, QUERY_COUNT, Float.POSITIVE_INFINITY,
+                                                       null, outDists0, outTris0, null, null ) );
+        assertEquals( QUERY_COUNT, tree.nearestPoints( points, 0, QUERY_COUNT, Float.POSITIVE_INFINITY,
+                                                       outPoints, outDists1, outTris1, outBary, pool ) );
+        pool.shutdown();
+        assertTrue( Arrays.equals( outDists0, outDists1 ) );
+        assertTrue( Arrays.equals( outTris0, outTris1 ) );
+        for( int i = 0; i < QUERY_COUNT; i++ ) {
+            assertEquals( dists[i], outDists0[i], 1e-3f * Math.max( 1f, dists[i] ) );
+        }
+    }
+
+
+    @Test
+    public void allHitsTest() throws IOException {
+        List<DrawTri> tris = newGeometry();
+        DrawTri[] triArr = tris.toArray( new DrawTri[tris.size()] );
+        float[] triData = TriangleIntersector.packTriangles( triArr, triArr.length );
+        TriangleIntersector tester = new TriangleIntersector();
+        RayIntersection inter = new RayIntersection();
+
+        final int RAY_COUNT = 2000;
+        final int MAX_HITS = 64;
+        float[] points = new float[RAY_COUNT * 3];
+        float[] dirs   = new float[RAY_COUNT * 3];
+        newRandomRays( tris, RAY_COUNT, new Random( 47 ), points, dirs );
+
+        float[] dists = new float[MAX_HITS];
+        int[] hitTris = new int[MAX_HITS];
+        int[] sides   = new int[MAX_HITS];
+        float[] limitedDists = new float[2];
+        List<float[]> expected = new ArrayList<float[]>();
+        Vec3 pos = new Vec3();
+        Vec3 dir = new Vec3();
+        int multiHitRays = 0;
+
+        for( KdTriangleTree tree : new KdTriangleTree[]{ KdTriangleTree.build( tris ),
+                                                         KdTriangleTree.build( tris, KdBuildQuality.BINNED ) } )
+        {
+            RayPickResult work = tree.newRayPickResult();
+            RayPickResult nearest = tree.newRayPickResult();
+
+            for( int i = 0; i < RAY_COUNT; i++ ) {
+                float[] p = { points[i*3], points[i*3+1], points[i*3+2] };
+                float[] d = { dirs[i*3], dirs[i*3+1], dirs[i*3+2] };
+                Vec.put( p, pos );
+                Vec.put( d, dir );
+                int pickSides = i % 2 == 0 ? Side.BOTH : Side.BACK;
+
+                expected.clear();
+                for( int j = 0; j < triArr.length; j++ ) {
+                    if( tester.intersect( p, d, triData, j, inter ) && ( inter.mTargetSide & pickSides ) != 0 ) {
+                        expected.add( new float[]{ inter.mRayDist, j, inter.mTargetSide } );
+                    }
+                }
+                Collections.sort( expected, new Comparator<float[]>() {
+                    public int compare( float[] a, float[] b ) {
+                        return Float.compare( a[0], b[0] );
+                    }
+                } );
+
+                int n = tree.pickAllHits( pos, dir, pickSides, Float.POSITIVE_INFINITY, MAX_HITS, dists, hitTris, sides, work );
+                assertEquals( Math.min( MAX_HITS, expected.size() ), n );
+                Set<Integer> found = new HashSet<Integer>();
+                for( int j = 0; j < n; j++ ) {
+                    assertEquals( expected.get( j )[0], dists[j], 0f );
+                    assertTrue( found.add( hitTris[j] ) );
+                    assertTrue( ( sides[j] & pickSides ) != 0 );
+                    if( j > 0 ) {
+                        assertTrue( dists[j - 1] <= dists[j] );
+                    }
+                }
+                for( float[] e : expected ) {
+                    assertTrue( found.contains( (int)e[1] ) );
+                }
+
+                if( n > 0 ) {
+                    assertTrue( tree.pick( pos, dir, pickSides, nearest ) );
+                    assertEquals( nearest.pickedParamDistance(), dists[0], 0f );
+                }
+                if( n > 1 ) {
+                    multiHitRays++;
+                }
+
+                // Limited count and distance keep nearest hits.
+                assertEquals( Math.min( 2, n ), tree.pickAllHits( pos, dir, pickSides, Float.POSITIVE_INFINITY, 2, limitedDists, null, null, work ) );
+                for( int j = 0; j < Math.min( 2, n ); j++ ) {
+                    assertEquals( dists[j], limitedDists[j], 0f );
+                }
+                if( n > 1 ) {
+                    float limit = dists[n - 1] * 0.5f + dists[0] * 0.5f;
+                    int expectedCount = 0;
+                    for( float[] e : expected ) {
+                        if( e[0] <= limit ) {
+                            expectedCount++;
+                        }
+                    }
+                    int m = tree.pickAllHits( pos, dir, pickSides, limit, MAX_HITS, dists, null, null, work );
+                    assertEquals( Math.min( MAX_HITS, expectedCount ), m );
+                    for( int j = 0; j < m; j++ ) {
+                        assertTrue( dists[j] <= limit );
+                    }
+                }
+            }
+        }
+
+        assertTrue( multiHitRays > 0 );
+    }
+
+
     @Ignore @Test
     public void pickSpeedTest() throws IOException {
         List<DrawTri> tris = newGeometry();
@@ -93,7 +859,7 @@ public class KdTreeTest {
         float[] boundSpan = { bounds.x1 - bounds.x0, bounds.y1 - bounds.y0, bounds.z1 - bounds.z0 };
         float[] boundMin  = { bounds.x0, bounds.y0, bounds.z0 };
 
-        List<RayPicker> pickerList = createTree( tris );
+        List<FastRayPicker> pickerList = createTree( tris );
 
         for( RayPicker picker : pickerList ) {
             RayPickResult result = picker.newRayPickResult();
@@ -157,6 +923,51 @@ public class KdTreeTest {
     }
 
     
+    @Ignore @Test
+    public void buildQualityBenchmark() throws IOException {
+        List<DrawTri> tris = newGeometry();
+        Box3 bounds = new Box3();
+        Models.computeBounds( Models.vertIterator( tris ), bounds );
+
+        Box.inflate( bounds, 1.5f, 1.5f, 1.5f, bounds );
+        float[] boundSpan = { bounds.x1 - bounds.x0, bounds.y1 - bounds.y0, bounds.z1 - bounds.z0 };
+        float[] boundMin  = { bounds.x0, bounds.y0, bounds.z0 };
+
+        final int BUILD_COUNT = 10;
+        final int PICK_COUNT  = 100000;
+
+        for( KdBuildQuality quality : KdBuildQuality.values() ) {
+            long testStart = System.nanoTime();
+            KdTriangleTree tree = null;
+            for( int i = 0; i < BUILD_COUNT; i++ ) {
+                tree = KdTriangleTree.build( tris, quality );
+            }
+            double buildSecs = ( System.nanoTime() - testStart ) / 1000000000.0 / BUILD_COUNT;
+
+            RayPickResult result = tree.newRayPickResult();
+            Random rand = new Random( 0 );
+            Vec3 pos = new Vec3();
+            Vec3 dir = new Vec3();
+
+            testStart = System.nanoTime();
+            for( int i = 0; i < PICK_COUNT; i++ ) {
+                pos.x = rand.nextFloat() * boundSpan[0] + boundMin[0];
+                pos.y = rand.nextFloat() * boundSpan[1] + boundMin[1];
+                pos.z = rand.nextFloat() * boundSpan[2] + boundMin[2];
+                dir.x = rand.nextFloat() * boundSpan[0] + boundMin[0] - pos.x;
+                dir.y = rand.nextFloat() * boundSpan[1] + boundMin[1] - pos.y;
+                dir.z = rand.nextFloat() * boundSpan[2] + boundMin[2] - pos.z;
+                tree.pick( pos, dir, Side.BOTH, result );
+            }
+            double pickSecs = ( System.nanoTime() - testStart ) / 1000000000.0;
+
+            System.out.println( quality + ": " + tree.nodeCount() + " nodes, depth " + tree.treeDepth() );
+            System.out.println( "  Build seconds: " + buildSecs );
+            System.out.println( "  Pick seconds for " + PICK_COUNT + " picks: " + pickSecs );
+        }
+    }
+
+
     @Ignore @Test
     public void arrayVersusListSortTest() {
         final int count = 1000000;
@@ -196,17 +1007,182 @@ public class KdTreeTest {
     }
 
 
-    private static List<RayPicker> createTree( List<DrawTri> tris ) throws IOException {
-        List<RayPicker> ret = new ArrayList<RayPicker>();
+    private static void newRandomRays( List<DrawTri> tris, int count, Random rand, float[] outPoints, float[] outDirs ) {
+        Box3 bounds = new Box3();
+        Models.computeBounds( Models.vertIterator( tris ), bounds );
+        Box.inflate( bounds, 1.5f, 1.5f, 1.5f, bounds );
+        float[] boundSpan = { bounds.x1 - bounds.x0, bounds.y1 - bounds.y0, bounds.z1 - bounds.z0 };
+        float[] boundMin  = { bounds.x0, bounds.y0, bounds.z0 };
+
+        for( int i = 0; i < count; i++ ) {
+            if( i % 8 == 7 ) {
+                // Axis-aligned ray starting on the bounds. One other coordinate is taken
+                // from a vertex, so the ray lies in a plane of the boxes and splits
+                // around that vertex while its direction is zero across them.
+                Vec3 v = tris.get( rand.nextInt( tris.size() ) ).mVerts[rand.nextInt( 3 )].mPos;
+                int axis  = rand.nextInt( 3 );
+                int plane = ( axis + 1 + rand.nextInt( 2 ) ) % 3;
+                float sign = rand.nextBoolean() ? 1f : -1f;
+                for( int j = 0; j < 3; j++ ) {
+                    outPoints[i*3+j] = rand.nextFloat() * boundSpan[j] + boundMin[j];
+                    outDirs[i*3+j]   = 0f;
+                }
+                outPoints[i*3+axis]  = sign > 0 ? boundMin[axis] : boundMin[axis] + boundSpan[axis];
+                outPoints[i*3+plane] = plane == 0 ? v.x : plane == 1 ? v.y : v.z;
+                outDirs[i*3+axis]    = sign;
+                continue;
+            }
+
+            for( int j = 0; j < 3; j++ ) {
+                outPoints[i*3+j] = rand.nextFloat() * boundSpan[j] + boundMin[j];
+            }
+            for( int j = 0; j < 3; j++ ) {
+                outDirs[i*3+j] = rand.nextFloat() * boundSpan[j] + boundMin[j] - outPoints[i*3+j];
+            }
+        }
+    }
+
+
+    private static List<DrawTri> newRandomGeometry( int count, Random rand ) {
+        List<DrawTri> ret = new ArrayList<DrawTri>( count );
+        for( int i = 0; i < count; i++ ) {
+            float x = rand.nextFloat() * 100f;
+            float y = rand.nextFloat() * 100f;
+            float z = rand.nextFloat() * 100f;
+            ret.add( new DrawTri( new DrawVert( x, y, z ),
+                                  new DrawVert( x + rand.nextFloat() * 4f, y + rand.nextFloat() * 4f, z ),
+                                  new DrawVert( x, y + rand.nextFloat() * 4f, z + rand.nextFloat() * 4f ) ) );
+        }
+        return ret;
+    }
+
+
+    private static Mat4 newRandomTransform( Random rand, boolean mirror ) {
+        Mat4 mat = new Mat4();
+        Mat.identity( mat );
+        Mat.translate( mat, rand.nextFloat() * 400f, rand.nextFloat() * 400f, rand.nextFloat() * 400f, mat );
+        Mat.rotate( mat, rand.nextFloat() * 6f, rand.nextFloat(), rand.nextFloat(), rand.nextFloat() + 0.1f, mat );
+        float scale = 0.5f + rand.nextFloat();
+        Mat.scale( mat, mirror ? -scale : scale, scale, scale, 1f, mat );
+        return mat;
+    }
+
+
+    private static void assertInstancesMatch( List<DrawTri> tris, InstanceTree tree,
+                                              List<InstanceTree.Instance> insts,
+                                              List<Mat4> mats,
+                                              Random rand ) {
+        // Reference: transformed copies of every instance.
+        List<DrawTri> copies = new ArrayList<DrawTri>();
+        Map<DrawTri,Integer> copyInstance = new IdentityHashMap<DrawTri,Integer>();
+        for( int i = 0; i < mats.size(); i++ ) {
+            for( DrawTri t : tris ) {
+                DrawVert[] v = new DrawVert[3];
+                for( int j = 0; j < 3; j++ ) {
+                    Vec3 p = new Vec3();
+                    Mat.mult( mats.get( i ), t.mVerts[j].mPos, p );
+                    v[j] = new DrawVert( p.x, p.y, p.z );
+                }
+                DrawTri copy = new DrawTri( v[0], v[1], v[2] );
+                copies.add( copy );
+                copyInstance.put( copy, i );
+            }
+        }
+
+        RayPicker ref = BruteForcePicker.build( copies );
+        final int RAY_COUNT = 2000;
+        float[] points = new float[RAY_COUNT * 3];
+        float[] dirs   = new float[RAY_COUNT * 3];
+        newRandomRays( copies, RAY_COUNT, rand, points, dirs );
+
+        RayPickResult r0 = ref.newRayPickResult();
+        RayPickResult r1 = tree.newRayPickResult();
+        Vec3 pos = new Vec3();
+        Vec3 dir = new Vec3();
+        int hits = 0;
+
+        for( int i = 0; i < RAY_COUNT; i++ ) {
+            pos.x = points[i*3]; pos.y = points[i*3+1]; pos.z = points[i*3+2];
+            dir.x = dirs[i*3];   dir.y = dirs[i*3+1];   dir.z = dirs[i*3+2];
+            int sides = i % 3 == 0 ? Side.FRONT : Side.BOTH;
+            boolean occluded = tree.occluded( pos, dir, 1f, sides, r1 );
+            ref.pick( pos, dir, sides, r0 );
+            tree.pick( pos, dir, sides, r1 );
+            assertEquals( r0.hasPick(), r1.hasPick() );
+            assertEquals( r0.hasPick() && r0.pickedParamDistance() <= 1f, occluded );
+            if( !r0.hasPick() ) {
+                continue;
+            }
+
+            hits++;
+            assertTrue( assertNear( r0.pickedPointRef(), r1.pickedPointRef(), 0.05f ) );
+            assertEquals( r0.pickedSide(), r1.pickedSide() );
+            InstanceTree.Instance inst = (InstanceTree.Instance)r1.pickedData();
+            assertSame( tree.instance( inst.index() ), inst );
+            if( inst != insts.get( copyInstance.get( r0.pickedTriangle() ) ) ) {
+                // Coincident hits on different instances are acceptable.
+                assertEquals( r0.pickedParamDistance(), r1.pickedParamDistance(), 1e-4f );
+            }
+
+            // Occlusion query must leave pick data intact.
+            float param = r1.pickedParamDistance();
+            Vec3 point  = r1.pickedPoint();
+            dir.x = -dir.x; dir.y = -dir.y; dir.z = -dir.z;
+            tree.occluded( pos, dir, 1f, Side.BOTH, r1 );
+            assertTrue( r1.hasPick() );
+            assertSame( inst, r1.pickedData() );
+            assertEquals( param, r1.pickedParamDistance(), 0f );
+            assertTrue( assertNear( point, r1.pickedPointRef(), 0f ) );
+        }
+
+        assertTrue( hits > 0 );
+    }
+
+
+    private static List<FastRayPicker> createTree( List<DrawTri> tris ) throws IOException {
+        List<FastRayPicker> ret = new ArrayList<FastRayPicker>();
         ret.add( BruteForcePicker.build( tris ) );
         //ret.add( MedianVolumeKdTree.build( tris ) );
         //ret.add( NaiveSahKdTree.build( tris ) );
         //ret.add( FasterSahKdTree.build( tris ) );
         ret.add( KdTriangleTree.build( tris ) );
+        ret.add( KdTriangleTree.build( tris, KdBuildQuality.BINNED ) );
+        ret.add( BvhTriangleTree.build( tris ) );
         return ret;
     }
 
 
+    private static void assertPickersMatch( List<DrawTri> tris, RayPicker expected, RayPicker actual, Random rand ) {
+        final int RAY_COUNT = 3000;
+        float[] points = new float[RAY_COUNT * 3];
+        float[] dirs   = new float[RAY_COUNT * 3];
+        newRandomRays( tris, RAY_COUNT, rand, points, dirs );
+
+        RayPickResult r0 = expected.newRayPickResult();
+        RayPickResult r1 = actual.newRayPickResult();
+        Vec3 pos = new Vec3();
+        Vec3 dir = new Vec3();
+
+        for( int i = 0; i < RAY_COUNT; i++ ) {
+            pos.x = points[i*3]; pos.y = points[i*3+1]; pos.z = points[i*3+2];
+            dir.x = dirs[i*3];   dir.y = dirs[i*3+1];   dir.z = dirs[i*3+2];
+            expected.pick( pos, dir, Side.BOTH, r0 );
+            actual.pick( pos, dir, Side.BOTH, r1 );
+            assertTrue( matches( r0, r1 ) );
+        }
+    }
+
+
+    private static boolean matches( RayPickResult expected, RayPickResult actual ) {
+        if( expected.hasPick() != actual.hasPick() ) {
+            return false;
+        }
+        return !expected.hasPick() ||
+               expected.pickedTriangle() == actual.pickedTriangle() ||
+               Vec.dist( expected.pickedPointRef(), actual.pickedPointRef() ) <= 0.01f;
+    }
+
+
     private static boolean assertNear( Vec3 x, Vec3 y, float tol ) {
         if( Vec.dist( x, y ) > tol ) {
             System.out.println( "### ASSERT FAILED" );